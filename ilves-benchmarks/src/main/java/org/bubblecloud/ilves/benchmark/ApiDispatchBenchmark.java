@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
+import com.googlecode.jsonrpc4j.ProxyUtil;
+import org.bubblecloud.ilves.Ilves;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks JSON RPC API dispatch through in process Jetty server.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiDispatchBenchmark {
+
+    /**
+     * The in process server shared by benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        /** The server. */
+        private Server server;
+        /** The API URL. */
+        private URL url;
+
+        @Setup
+        public void setUp() throws Exception {
+            server = Ilves.configure("site", "site-localization", "site");
+            Ilves.addApi(BenchmarkApi.class, BenchmarkApiImpl.class);
+            server.start();
+            url = new URL("http://localhost:" + PropertiesUtil.getProperty("site", "http-port") + "/api/benchmarkapi");
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            server.stop();
+        }
+    }
+
+    /**
+     * The API client of benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+        /** The API client proxy. */
+        private BenchmarkApi api;
+
+        @Setup
+        public void setUp(final ServerState serverState) {
+            api = ProxyUtil.createClientProxy(getClass().getClassLoader(), BenchmarkApi.class,
+                    new JsonRpcHttpClient(serverState.url));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String dispatch(final ClientState clientState) {
+        return clientState.api.echo("benchmark");
+    }
+}
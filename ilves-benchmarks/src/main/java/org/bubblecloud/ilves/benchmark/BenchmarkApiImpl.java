@@ -0,0 +1,36 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.api.ApiImplementation;
+import org.bubblecloud.ilves.site.SiteContext;
+
+/**
+ * Implementation of API used in API dispatch benchmark.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class BenchmarkApiImpl implements BenchmarkApi, ApiImplementation {
+
+    @Override
+    public void setContext(final SiteContext context) {
+    }
+
+    @Override
+    public String echo(final String value) {
+        return value;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.GroupMember;
+import org.bubblecloud.ilves.model.Privilege;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.module.content.Content;
+import org.bubblecloud.ilves.module.content.MarkupType;
+import org.bubblecloud.ilves.security.CompanyDao;
+import org.bubblecloud.ilves.security.UserDao;
+
+import javax.persistence.EntityManager;
+import java.util.Date;
+
+/**
+ * Benchmark data fixture populating the in memory database with users, groups, privileges and content
+ * of the default company.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class BenchmarkFixture {
+    /** The privilege key used in benchmarks. */
+    static final String PRIVILEGE_KEY = "view";
+
+    /** The default company. */
+    private final Company company;
+    /** The benchmark user. */
+    private final User user;
+    /** The benchmark group. */
+    private final Group group;
+
+    /**
+     * Constructor which populates the database.
+     *
+     * @param entityManager the entity manager
+     * @param privilegeCount the number of group privileges
+     * @param contentCount the number of content pages visible to anonymous users
+     */
+    BenchmarkFixture(final EntityManager entityManager, final int privilegeCount, final int contentCount) {
+        company = CompanyDao.getCompany(entityManager, "*");
+        final Group anonymousGroup = UserDao.getGroup(entityManager, company, "anonymous");
+
+        entityManager.getTransaction().begin();
+        group = new Group(company, "benchmark", "Benchmark Group");
+        entityManager.persist(group);
+        user = new User(company, "Bench", "Mark", "bench.mark@ilves.org", "+123", "");
+        entityManager.persist(user);
+        entityManager.persist(new GroupMember(group, user));
+        for (int i = 0; i < privilegeCount; i++) {
+            entityManager.persist(new Privilege(group, null, PRIVILEGE_KEY, getDataId(i)));
+        }
+        Content previous = null;
+        for (int i = 0; i < contentCount; i++) {
+            final Content content = new Content();
+            content.setOwner(company);
+            content.setPage("page-" + i);
+            content.setTitle("Page " + i);
+            content.setAfterPage(previous != null ? previous.getPage() : null);
+            content.setMarkupType(MarkupType.MARKDOWN);
+            content.setMarkup("# Page " + i);
+            content.setCreated(new Date());
+            content.setModified(content.getCreated());
+            entityManager.persist(content);
+            entityManager.flush();
+            entityManager.persist(new Privilege(anonymousGroup, null, "view", content.getContentId()));
+            previous = content;
+        }
+        entityManager.getTransaction().commit();
+    }
+
+    /**
+     * Gets data ID of privilege.
+     *
+     * @param index the privilege index
+     * @return the data ID
+     */
+    static String getDataId(final int index) {
+        return "data-" + index;
+    }
+
+    Company getCompany() {
+        return company;
+    }
+
+    User getUser() {
+        return user;
+    }
+
+    Group getGroup() {
+        return group;
+    }
+}
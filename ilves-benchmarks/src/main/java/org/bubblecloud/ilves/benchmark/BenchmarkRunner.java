@@ -0,0 +1,57 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs ilves benchmarks and writes results in JSON so that results of releases can be compared.
+ * The first argument is regular expression selecting benchmarks and the result file is given
+ * with jmh.result system property.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Private constructor to disable construction of utility class.
+     */
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Main method for running the benchmarks.
+     *
+     * @param args the benchmark include pattern
+     * @throws RunnerException if benchmark run fails
+     */
+    public static void main(final String[] args) throws RunnerException {
+        final String includes = args.length > 0 ? args[0] : ".*";
+        final String result = System.getProperty("jmh.result", "jmh-result.json");
+
+        final Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "\\..*" + includes)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.module.content.ContentModule;
+import org.bubblecloud.ilves.security.DefaultRoles;
+import org.bubblecloud.ilves.site.AbstractSiteUI;
+import org.bubblecloud.ilves.site.DefaultContentProvider;
+import org.bubblecloud.ilves.site.DefaultSiteUI;
+import org.bubblecloud.ilves.site.SecurityProviderSessionImpl;
+import org.bubblecloud.ilves.site.Site;
+import org.bubblecloud.ilves.site.SiteContext;
+import org.bubblecloud.ilves.site.SiteDescriptor;
+import org.bubblecloud.ilves.site.SiteMode;
+import org.bubblecloud.ilves.site.SiteModuleManager;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks dynamic site descriptor construction of anonymous user with content pages stored in
+ * in memory database, both by injecting dynamic content directly and through content provider.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentModuleBenchmark {
+    /** The number of content pages. */
+    private static final int CONTENT_COUNT = 50;
+
+    /** The entity manager. */
+    private EntityManager entityManager;
+    /** The content provider. */
+    private DefaultContentProvider contentProvider;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestUtil.before();
+        DefaultSiteUI.setEntityManagerFactory(TestUtil.getEntityManagerFactory());
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        final Company company = new BenchmarkFixture(entityManager, 0, CONTENT_COUNT).getCompany();
+
+        contentProvider = new DefaultContentProvider();
+        DefaultSiteUI.setContentProvider(contentProvider);
+        SiteModuleManager.initializeModule(ContentModule.class);
+
+        final SecurityProviderSessionImpl securityProvider = new SecurityProviderSessionImpl(
+                DefaultRoles.ADMINISTRATOR, DefaultRoles.USER);
+        final SiteContext siteContext = new SiteContext(entityManager, entityManager, newRequest(),
+                securityProvider);
+        siteContext.putObject(EntityManager.class, entityManager);
+        siteContext.putObject(Company.class, company);
+        final Site site = new Site(SiteMode.PRODUCTION, contentProvider, null, securityProvider, siteContext);
+
+        final BenchmarkSiteUI ui = new BenchmarkSiteUI(site);
+        ui.setSession(new VaadinSession(null));
+        UI.setCurrent(ui);
+        ui.initialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        UI.setCurrent(null);
+        entityManager.close();
+        TestUtil.after();
+    }
+
+    @Benchmark
+    public SiteDescriptor injectDynamicContent() {
+        final SiteDescriptor dynamicSiteDescriptor = contentProvider.getSiteDescriptor().clone();
+        SiteModuleManager.injectDynamicContent(dynamicSiteDescriptor);
+        return dynamicSiteDescriptor;
+    }
+
+    @Benchmark
+    public SiteDescriptor getDynamicSiteDescriptor() {
+        return contentProvider.getDynamicSiteDescriptor();
+    }
+
+    /**
+     * Constructs request stub for site context.
+     *
+     * @return the request
+     */
+    private static HttpServletRequest newRequest() {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class[] {HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getServerName".equals(method.getName()) || "getRemoteHost".equals(method.getName())) {
+                            return "localhost";
+                        }
+                        if ("getLocalAddr".equals(method.getName()) || "getRemoteAddr".equals(method.getName())) {
+                            return "127.0.0.1";
+                        }
+                        if ("getRemotePort".equals(method.getName())) {
+                            return 0;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Site UI serving benchmark site. Site is constructed by the benchmark as it does not depend on
+     * request and UI is initialized directly instead of through Vaadin request processing.
+     */
+    private static final class BenchmarkSiteUI extends AbstractSiteUI {
+        /** The benchmark site. */
+        private final Site site;
+
+        /**
+         * Constructor for setting the benchmark site.
+         *
+         * @param site the benchmark site
+         */
+        private BenchmarkSiteUI(final Site site) {
+            this.site = site;
+        }
+
+        /**
+         * Initializes UI with the benchmark site.
+         */
+        private void initialize() {
+            init(null);
+        }
+
+        @Override
+        protected Site constructSite(final VaadinRequest request) {
+            return site;
+        }
+    }
+}
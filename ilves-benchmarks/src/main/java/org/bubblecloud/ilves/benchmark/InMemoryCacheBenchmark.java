@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.cache.InMemoryCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks in memory cache get and put under contention. Key space is twice the cache capacity
+ * so that roughly half of the reads miss and writes cause evictions.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryCacheBenchmark {
+    /** The number of distinct keys. */
+    private static final int KEY_COUNT = 20000;
+
+    /** The cache. */
+    private InMemoryCache<Integer, Integer> cache;
+
+    @Setup
+    public void setUp() {
+        cache = new InMemoryCache<Integer, Integer>(60 * 1000, 10 * 1000, KEY_COUNT / 2);
+        for (int i = 0; i < KEY_COUNT / 2; i++) {
+            cache.put(i, i);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer get() {
+        return cache.get(ThreadLocalRandom.current().nextInt(KEY_COUNT));
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(6)
+    public Integer readWriteGet() {
+        return cache.get(ThreadLocalRandom.current().nextInt(KEY_COUNT));
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public void readWritePut() {
+        final int key = ThreadLocalRandom.current().nextInt(KEY_COUNT);
+        cache.put(key, key);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.util.NavigationTreeParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks navigation tree parsing and formatting of a three level tree with 200 pages.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NavigationTreeParserBenchmark {
+
+    /** The navigation tree string. */
+    private String tree;
+    /** The parsed navigation tree. */
+    private Map<String, List<String>> navigationMap;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            builder.append("root").append(i).append(';');
+            for (int j = 0; j < 4; j++) {
+                builder.append("#child").append(i).append('-').append(j).append(';');
+                for (int k = 0; k < 4; k++) {
+                    builder.append("##leaf").append(i).append('-').append(j).append('-').append(k).append(';');
+                }
+            }
+        }
+        tree = builder.substring(0, builder.length() - 1);
+        navigationMap = NavigationTreeParser.parse(tree);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> parse() {
+        return NavigationTreeParser.parse(tree);
+    }
+
+    @Benchmark
+    public String format() {
+        return NavigationTreeParser.format(navigationMap);
+    }
+}
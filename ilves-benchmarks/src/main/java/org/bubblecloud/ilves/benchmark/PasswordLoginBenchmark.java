@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.CidrMatcher;
+import org.bubblecloud.ilves.security.CidrUtil;
+import org.bubblecloud.ilves.security.PasswordLoginUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks password hashing and user directory subnet white list matching done on password login.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordLoginBenchmark {
+    /** The subnet white list of user directory. */
+    private static final String SUBNET_WHITE_LIST = "10.0.0.0/8,172.16.0.0/12,192.168.0.0/16,127.0.0.1/32,::1/128";
+    /** The remote IP address not matching the white list. */
+    private static final String REMOTE_IP_ADDRESS = "203.0.113.17";
+
+    /** The company. */
+    private Company company;
+    /** The user. */
+    private User user;
+    /** The password. */
+    private char[] password;
+    /** The compiled subnet white list matcher. */
+    private CidrMatcher subnetWhiteListMatcher;
+
+    @Setup
+    public void setUp() {
+        final PostalAddress address = new PostalAddress("", "", "", "", "", "");
+        company = new Company("", "", "", "", "", "", "", "*", "", "", "", address, address);
+        user = new User(company, "Bench", "Mark", "bench.mark@ilves.org", "+123", "");
+        user.setUserId(UUID.randomUUID().toString());
+        password = "benchmark-password".toCharArray();
+        subnetWhiteListMatcher = new CidrMatcher(SUBNET_WHITE_LIST);
+    }
+
+    @Benchmark
+    public String hashPassword() throws Exception {
+        PasswordLoginUtil.setUserPasswordHash(company, user, password);
+        return user.getPasswordHash();
+    }
+
+    @Benchmark
+    public boolean matchSubnetWhiteList() {
+        return subnetWhiteListMatcher.matches(REMOTE_IP_ADDRESS);
+    }
+
+    @Benchmark
+    public boolean matchSubnetWhiteListWithCidrUtil() throws Exception {
+        for (final String subnet : SUBNET_WHITE_LIST.split(",")) {
+            if (new CidrUtil(subnet).isInRange(REMOTE_IP_ADDRESS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks privilege checks against loaded privilege snapshot. Half of the checked data IDs
+ * have been granted to the group of the user.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivilegeCacheBenchmark {
+    /** The number of granted privileges. */
+    private static final int PRIVILEGE_COUNT = 1000;
+
+    /** The entity manager. */
+    private EntityManager entityManager;
+    /** The company. */
+    private Company company;
+    /** The user. */
+    private User user;
+    /** The groups of the user. */
+    private List<Group> groups;
+
+    @Setup
+    public void setUp() {
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        final BenchmarkFixture fixture = new BenchmarkFixture(entityManager, PRIVILEGE_COUNT, 0);
+        company = fixture.getCompany();
+        user = fixture.getUser();
+        groups = Collections.singletonList(fixture.getGroup());
+        PrivilegeCache.load(entityManager, company);
+    }
+
+    @TearDown
+    public void tearDown() {
+        entityManager.close();
+        TestUtil.after();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean hasPrivilege() {
+        final String dataId = BenchmarkFixture.getDataId(ThreadLocalRandom.current().nextInt(PRIVILEGE_COUNT * 2));
+        return PrivilegeCache.hasPrivilege(entityManager, company, user, groups,
+                BenchmarkFixture.PRIVILEGE_KEY, dataId);
+    }
+}
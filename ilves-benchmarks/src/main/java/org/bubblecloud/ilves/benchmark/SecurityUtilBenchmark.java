@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.benchmark;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bubblecloud.ilves.security.SecurityUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks secret key encryption and access token hashing.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityUtilBenchmark {
+    /** The plain text secret. */
+    private static final String PLAIN_TEXT = "JBSWY3DPEHPK3PXP";
+
+    /** The encrypted secret. */
+    private String cipherText;
+    /** The access token. */
+    private char[] accessToken;
+
+    @Setup
+    public void setUp() {
+        Security.addProvider(new BouncyCastleProvider());
+        cipherText = SecurityUtil.encryptSecretKey(PLAIN_TEXT);
+        accessToken = SecurityUtil.generateAccessToken();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String encryptSecretKey() {
+        return SecurityUtil.encryptSecretKey(PLAIN_TEXT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String decryptSecretKey() {
+        return SecurityUtil.decryptSecretKey(cipherText);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String decryptDeviceSecret() {
+        return SecurityUtil.decryptDeviceSecret(cipherText);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public char[] generateAccessToken() {
+        return SecurityUtil.generateAccessToken();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getSecretHash() {
+        return SecurityUtil.getSecretHash(accessToken);
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.model.UserSession;
+import org.bubblecloud.ilves.security.SecurityService;
+import org.bubblecloud.ilves.security.SecurityUtil;
+import org.bubblecloud.ilves.security.SignedAccessToken;
+import org.bubblecloud.ilves.security.UserDao;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of access token principals. Principal consisting of user and user groups is cached by access token
+ * hash so that API requests do not need to look up user session and user groups from database on each call.
+ * Cached principals are invalidated immediately when access token is invalidated, user logs out or user or
+ * group membership is changed in this node. Principals are reloaded from database at least every
+ * access-token-cache-max-age-millis to pick up changes made in other nodes. Signed access tokens issued
+ * before user access tokens revoked time are rejected on reload. Users are copied when handed out so that
+ * concurrent requests do not share the cached instance.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AccessTokenCache {
+
+    /** The default maximum age of cached principals. */
+    private static final long DEFAULT_MAX_AGE_MILLIS = 60 * 1000;
+
+    /** The maximum age of cached principal or -1 if not yet read from properties. */
+    private static volatile long maxAgeMillis = -1;
+
+    /** The cached principals by access token hash. */
+    private static InMemoryCache<String, Principal> principals;
+
+    /** The revoked access token hashes with access token expiration times. */
+    private static final ConcurrentHashMap<String, Long> revokedAccessTokens = new ConcurrentHashMap<String, Long>();
+    /** The invalidation generations of users. */
+    private static final ConcurrentHashMap<String, AtomicLong> userGenerations =
+            new ConcurrentHashMap<String, AtomicLong>();
+    /** The invalidation generations of companies. */
+    private static final ConcurrentHashMap<String, AtomicLong> companyGenerations =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Gets principal of access token either from cache or database.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param accessToken the access token
+     * @return the principal or null if access token is not valid.
+     */
+    public static Principal getPrincipal(final EntityManager entityManager, final Company company,
+                                         final char[] accessToken) {
+        final String accessTokenHash = SecurityUtil.getSecretHash(accessToken.clone());
+        if (revokedAccessTokens.containsKey(accessTokenHash)) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long companyGeneration = getGeneration(companyGenerations, company.getCompanyId());
+        final InMemoryCache<String, Principal> cache = getPrincipals();
+        if (cache != null) {
+            final Principal principal = cache.get(accessTokenHash);
+            if (principal != null) {
+                if (now < principal.validUntil
+                        && principal.companyId.equals(company.getCompanyId())
+                        && principal.companyGeneration == companyGeneration
+                        && principal.userGeneration == getGeneration(userGenerations, principal.user.getUserId())) {
+                    return principal;
+                }
+                cache.remove(accessTokenHash);
+            }
+        }
+
+        final String userId;
+        final long issued;
+        final long expires;
+        User user;
+        if (SignedAccessToken.isSigned(accessToken)) {
+            final SignedAccessToken signedAccessToken = SignedAccessToken.verify(accessToken);
+            if (signedAccessToken == null || !signedAccessToken.getCompanyId().equals(company.getCompanyId())) {
+                return null;
+            }
+            userId = signedAccessToken.getUserId();
+            issued = signedAccessToken.getIssued();
+            expires = signedAccessToken.getExpires();
+            user = null;
+        } else {
+            final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager,
+                    accessTokenHash);
+            if (userSession == null) {
+                return null;
+            }
+            user = userSession.getUser();
+            userId = user.getUserId();
+            issued = -1;
+            expires = userSession.getCreated().getTime() + SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS;
+        }
+        if (now >= expires) {
+            return null;
+        }
+
+        // Read user generation before loading user details so that concurrent invalidation is not lost.
+        final long userGeneration = getGeneration(userGenerations, userId);
+        if (user == null) {
+            user = UserDao.getUser(entityManager, userId);
+            if (user == null) {
+                return null;
+            }
+            if (user.getAccessTokensRevoked() != null && issued <= user.getAccessTokensRevoked().getTime()) {
+                return null;
+            }
+        }
+        final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
+
+        final Principal principal = new Principal(company.getCompanyId(), user,
+                Collections.unmodifiableList(new ArrayList<Group>(groups)),
+                cache != null ? Math.min(expires, now + maxAgeMillis) : expires,
+                userGeneration, companyGeneration);
+        if (cache != null) {
+            cache.put(accessTokenHash, principal);
+            if (revokedAccessTokens.containsKey(accessTokenHash)) {
+                cache.remove(accessTokenHash);
+                return null;
+            }
+        }
+        return principal;
+    }
+
+    /**
+     * Revokes access token. Revoked access token is rejected until it expires even if it is signed
+     * access token which can not be removed from database.
+     *
+     * @param accessTokenHash the access token hash
+     * @param expires the access token expiration time in milliseconds
+     */
+    public static void revoke(final String accessTokenHash, final long expires) {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Long>> iterator = revokedAccessTokens.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() <= now) {
+                iterator.remove();
+            }
+        }
+        if (expires > now) {
+            revokedAccessTokens.put(accessTokenHash, expires);
+        }
+        final InMemoryCache<String, Principal> cache = getPrincipals();
+        if (cache != null) {
+            cache.remove(accessTokenHash);
+        }
+    }
+
+    /**
+     * Invalidates cached principals of user. Principals are reloaded on next access.
+     *
+     * @param userId the user ID
+     */
+    public static void invalidateUser(final String userId) {
+        incrementGeneration(userGenerations, userId);
+    }
+
+    /**
+     * Invalidates cached principals of company. Principals are reloaded on next access.
+     *
+     * @param company the company
+     */
+    public static void invalidateCompany(final Company company) {
+        incrementGeneration(companyGenerations, company.getCompanyId());
+    }
+
+    /**
+     * Gets principal cache or null if caching is disabled.
+     *
+     * @return the principal cache or null
+     */
+    private static InMemoryCache<String, Principal> getPrincipals() {
+        if (maxAgeMillis < 0) {
+            synchronized (AccessTokenCache.class) {
+                if (maxAgeMillis < 0) {
+                    final String maxAgeString = PropertiesUtil.getProperty("site",
+                            "access-token-cache-max-age-millis", false);
+                    final long maxAge = maxAgeString != null ? Long.parseLong(maxAgeString) : DEFAULT_MAX_AGE_MILLIS;
+                    if (maxAge > 0) {
+                        principals = new InMemoryCache<String, Principal>(maxAge, 60 * 1000, 10000);
+                    }
+                    maxAgeMillis = maxAge;
+                }
+            }
+        }
+        return principals;
+    }
+
+    /**
+     * Gets current generation of key.
+     *
+     * @param generations the generations
+     * @param key the key
+     * @return the generation
+     */
+    private static long getGeneration(final ConcurrentHashMap<String, AtomicLong> generations, final String key) {
+        final AtomicLong generation = generations.get(key);
+        return generation != null ? generation.get() : 0;
+    }
+
+    /**
+     * Increments generation of key.
+     *
+     * @param generations the generations
+     * @param key the key
+     */
+    private static void incrementGeneration(final ConcurrentHashMap<String, AtomicLong> generations,
+                                            final String key) {
+        AtomicLong generation = generations.get(key);
+        if (generation == null) {
+            final AtomicLong newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(key, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Principal of access token.
+     */
+    public static final class Principal {
+        /** The company ID. */
+        private final String companyId;
+        /** The user. */
+        private final User user;
+        /** The user groups. */
+        private final List<Group> groups;
+        /** The time until which principal can be used from cache. */
+        private final long validUntil;
+        /** The user generation at load time. */
+        private final long userGeneration;
+        /** The company generation at load time. */
+        private final long companyGeneration;
+
+        /**
+         * Constructor for setting principal fields.
+         *
+         * @param companyId the company ID
+         * @param user the user
+         * @param groups the user groups
+         * @param validUntil the time until which principal can be used from cache
+         * @param userGeneration the user generation at load time
+         * @param companyGeneration the company generation at load time
+         */
+        private Principal(final String companyId, final User user, final List<Group> groups, final long validUntil,
+                          final long userGeneration, final long companyGeneration) {
+            this.companyId = companyId;
+            this.user = user;
+            this.groups = groups;
+            this.validUntil = validUntil;
+            this.userGeneration = userGeneration;
+            this.companyGeneration = companyGeneration;
+        }
+
+        /**
+         * Gets copy of the principal user.
+         *
+         * @return the user
+         */
+        public User getUser() {
+            final User copy = new User(user.getOwner(), user.getFirstName(), user.getLastName(),
+                    user.getEmailAddress(), user.getPhoneNumber(), user.getPasswordHash());
+            copy.setUserId(user.getUserId());
+            copy.setEmailAddressValidated(user.isEmailAddressValidated());
+            copy.setFailedLoginCount(user.getFailedLoginCount());
+            copy.setLockedOut(user.isLockedOut());
+            copy.setOpenIdIdentifier(user.getOpenIdIdentifier());
+            copy.setCertificate(user.getCertificate());
+            copy.setCertificateFingerprint(user.getCertificateFingerprint());
+            copy.setPasswordExpirationDate(user.getPasswordExpirationDate());
+            copy.setAccessTokensRevoked(user.getAccessTokensRevoked());
+            copy.setCreated(user.getCreated());
+            copy.setModified(user.getModified());
+            return copy;
+        }
+
+        public List<Group> getGroups() {
+            return groups;
+        }
+    }
+}
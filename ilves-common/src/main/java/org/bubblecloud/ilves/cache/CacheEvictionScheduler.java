@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared scheduler evicting expired objects from all in memory caches with single daemon thread.
+ * Caches are referenced weakly so that garbage collected caches are unscheduled automatically.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class CacheEvictionScheduler {
+
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(CacheEvictionScheduler.class);
+
+    /** The executor running the evictions. */
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ilves-cache-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Private default constructor to disable construction of utility class.
+     */
+    private CacheEvictionScheduler() {
+    }
+
+    /**
+     * Schedules periodic eviction of expired objects for the cache.
+     *
+     * @param cache the cache
+     * @param evictIntervalMillis the evict interval in milliseconds
+     */
+    static void schedule(final InMemoryCache<?, ?> cache, final long evictIntervalMillis) {
+        final WeakReference<InMemoryCache<?, ?>> cacheReference = new WeakReference<InMemoryCache<?, ?>>(cache);
+        final AtomicReference<ScheduledFuture<?>> futureReference = new AtomicReference<ScheduledFuture<?>>();
+        futureReference.set(EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final InMemoryCache<?, ?> cache = cacheReference.get();
+                if (cache == null) {
+                    final ScheduledFuture<?> future = futureReference.get();
+                    if (future != null) {
+                        future.cancel(false);
+                    }
+                    return;
+                }
+                try {
+                    cache.evictExpired();
+                } catch (final Throwable t) {
+                    LOGGER.error("Error evicting expired objects from cache.", t);
+                }
+            }
+        }, evictIntervalMillis, evictIntervalMillis, TimeUnit.MILLISECONDS));
+    }
+
+}
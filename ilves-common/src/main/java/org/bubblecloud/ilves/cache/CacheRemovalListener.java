@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+/**
+ * Listener notified when entries are removed from cache so that resources held by values can be released.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public interface CacheRemovalListener<K, T> {
+
+    /**
+     * Invoked after entry has been removed from cache due to eviction, expiry, removal or replacement.
+     *
+     * @param key the key
+     * @param value the removed value
+     */
+    void removed(K key, T value);
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.cache;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for resolving host names to company IDs. Host names of all companies are loaded into immutable
+ * snapshot with single query and host name resolutions, including unknown host names, are memoized
+ * so that tenant resolution does not query database in steady state. Company host can be exact host
+ * name, wildcard pattern matching subdomains like *.example.com or * matching any host name.
+ * Snapshot is reloaded when companies are modified in this node or refresh interval has elapsed.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class CompanyHostCache {
+    /** The default company host matching any host name. */
+    public static final String DEFAULT_HOST = "*";
+
+    /** The age after which host snapshot is reloaded. */
+    private static final long REFRESH_INTERVAL_MILLIS = 5 * 60 * 1000;
+    /** The maximum number of memoized host name resolutions. */
+    private static final int MAX_RESOLVED_HOSTS = 10000;
+    /** The marker for host names which did not resolve to company. */
+    private static final String NOT_FOUND = "";
+
+    /** The snapshot generation incremented on flush. */
+    private static final AtomicLong generation = new AtomicLong();
+    /** The current host snapshot. */
+    private static volatile HostSnapshot snapshot;
+
+    /**
+     * Gets ID of company with exactly given host.
+     *
+     * @param entityManager the entity manager used to load host snapshot
+     * @param host the company host
+     * @return the company ID or null
+     */
+    public static String getCompanyId(final EntityManager entityManager, final String host) {
+        return getSnapshot(entityManager).companyIds.get(host);
+    }
+
+    /**
+     * Resolves ID of company serving given host name. Exact host match is preferred over the most specific
+     * wildcard pattern which is preferred over the default company.
+     *
+     * @param entityManager the entity manager used to load host snapshot
+     * @param hostName the host name
+     * @return the company ID or null
+     */
+    public static String resolveCompanyId(final EntityManager entityManager, final String hostName) {
+        final HostSnapshot hostSnapshot = getSnapshot(entityManager);
+        final String resolvedCompanyId = hostSnapshot.resolvedCompanyIds.get(hostName);
+        if (resolvedCompanyId != null) {
+            return resolvedCompanyId == NOT_FOUND ? null : resolvedCompanyId;
+        }
+
+        String companyId = hostSnapshot.companyIds.get(hostName);
+        int separatorIndex = hostName.indexOf('.');
+        while (companyId == null && separatorIndex >= 0) {
+            companyId = hostSnapshot.companyIds.get(DEFAULT_HOST + hostName.substring(separatorIndex));
+            separatorIndex = hostName.indexOf('.', separatorIndex + 1);
+        }
+        if (companyId == null) {
+            companyId = hostSnapshot.companyIds.get(DEFAULT_HOST);
+        }
+
+        if (hostSnapshot.resolvedCompanyIds.size() >= MAX_RESOLVED_HOSTS) {
+            hostSnapshot.resolvedCompanyIds.clear();
+        }
+        hostSnapshot.resolvedCompanyIds.put(hostName, companyId != null ? companyId : NOT_FOUND);
+        return companyId;
+    }
+
+    /**
+     * Flushes host snapshot. Snapshot is reloaded on next resolution.
+     */
+    public static void flush() {
+        generation.incrementAndGet();
+        snapshot = null;
+    }
+
+    /**
+     * Gets current host snapshot loading it if it has been flushed or has expired.
+     *
+     * @param entityManager the entity manager
+     * @return the host snapshot
+     */
+    private static HostSnapshot getSnapshot(final EntityManager entityManager) {
+        final HostSnapshot currentSnapshot = snapshot;
+        if (currentSnapshot != null && currentSnapshot.generation == generation.get()
+                && System.currentTimeMillis() - currentSnapshot.loaded < REFRESH_INTERVAL_MILLIS) {
+            return currentSnapshot;
+        }
+        final long loadGeneration = generation.get();
+        final List<Object[]> rows = entityManager.createQuery(
+                "select e.host, e.companyId from Company as e", Object[].class).getResultList();
+        final Map<String, String> companyIds = new HashMap<String, String>();
+        for (final Object[] row : rows) {
+            if (row[0] != null && !companyIds.containsKey(row[0])) {
+                companyIds.put((String) row[0], (String) row[1]);
+            }
+        }
+        final HostSnapshot loadedSnapshot = new HostSnapshot(loadGeneration, companyIds);
+        synchronized (CompanyHostCache.class) {
+            if (generation.get() == loadGeneration) {
+                snapshot = loadedSnapshot;
+            }
+        }
+        return loadedSnapshot;
+    }
+
+    /**
+     * Immutable snapshot of company hosts with memoized host name resolutions.
+     */
+    private static final class HostSnapshot {
+        /** The generation at load time. */
+        private final long generation;
+        /** The load time. */
+        private final long loaded = System.currentTimeMillis();
+        /** The company IDs by company host. */
+        private final Map<String, String> companyIds;
+        /** The resolved company IDs by host name. */
+        private final ConcurrentHashMap<String, String> resolvedCompanyIds = new ConcurrentHashMap<String, String>();
+
+        /**
+         * Constructor for setting snapshot fields.
+         *
+         * @param generation the generation at load time
+         * @param companyIds the company IDs by company host
+         */
+        private HostSnapshot(final long generation, final Map<String, String> companyIds) {
+            this.generation = generation;
+            this.companyIds = Collections.unmodifiableMap(companyIds);
+        }
+    }
+}
@@ -15,13 +15,16 @@
  */
 package org.bubblecloud.ilves.cache;
 
-import org.apache.commons.collections.MapIterator;
-import org.apache.commons.collections.map.LRUMap;
-
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Simple in memory cache.
+ * Simple in memory cache. Reads are lock free and capacity is enforced with approximate
+ * LRU (second chance / clock) eviction. Expired objects are evicted by shared eviction scheduler.
  *
  * @author Tommi S.E. Laukkanen
  */
@@ -31,10 +34,58 @@ public class InMemoryCache<K, T> {
      * The time to live for all cached object in ms.
      */
     private final long timeToLiveMillis;
+    /**
+     * Whether cached objects expire.
+     */
+    private final boolean expiring;
+    /**
+     * The maximum number of cached items.
+     */
+    private final int maxItems;
+    /**
+     * The maximum total weight of cached items or 0 if weight is not limited.
+     */
+    private final long maxWeight;
+    /**
+     * The weigher or null if weight is not limited.
+     */
+    private final CacheWeigher<K, T> weigher;
+    /**
+     * The removal listener or null if removals are not listened.
+     */
+    private final CacheRemovalListener<K, T> removalListener;
     /**
      * The internal map containing cached objects.
      */
-    private final LRUMap cacheMap;
+    private final ConcurrentHashMap<K, CacheObject> cacheMap;
+    /**
+     * The eviction queue containing cached objects in insertion order.
+     */
+    private final ConcurrentLinkedQueue<CacheObject> evictionQueue = new ConcurrentLinkedQueue<CacheObject>();
+    /**
+     * The number of objects in eviction queue including objects already removed from cache.
+     */
+    private final AtomicInteger evictionQueueLength = new AtomicInteger();
+    /**
+     * The number of cached objects.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * The total weight of cached objects.
+     */
+    private final AtomicLong weight = new AtomicLong();
+    /**
+     * The hit count.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * The miss count.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * The eviction count.
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
 
     /**
      * Constructor defining time to live, cache evict expired intervals and maximum cached items.
@@ -44,26 +95,52 @@ public class InMemoryCache<K, T> {
      * @param maxItems              the maximum number of cached items.
      */
     public InMemoryCache(final long timeToLiveMillis, final long evictIntervalMillis, final int maxItems) {
-        this.timeToLiveMillis = timeToLiveMillis;
+        this(timeToLiveMillis, evictIntervalMillis, maxItems, 0, null);
+    }
 
-        cacheMap = new LRUMap(maxItems);
+    /**
+     * Constructor defining time to live, cache evict expired intervals, maximum cached items and maximum
+     * total weight of cached items.
+     *
+     * @param timeToLiveMillis      the time to live in milliseconds
+     * @param evictIntervalMillis the clean up interval in milliseconds
+     * @param maxItems              the maximum number of cached items.
+     * @param maxWeight             the maximum total weight of cached items or 0 for no weight limit
+     * @param weigher               the weigher calculating weight of cached items or null for no weight limit
+     */
+    public InMemoryCache(final long timeToLiveMillis, final long evictIntervalMillis, final int maxItems,
+                         final long maxWeight, final CacheWeigher<K, T> weigher) {
+        this(timeToLiveMillis, evictIntervalMillis, maxItems, maxWeight, weigher, null);
+    }
 
-        if (this.timeToLiveMillis > 0 && evictIntervalMillis > 0) {
+    /**
+     * Constructor defining time to live, cache evict expired intervals, maximum cached items, maximum
+     * total weight of cached items and listener notified of removed items.
+     *
+     * @param timeToLiveMillis      the time to live in milliseconds
+     * @param evictIntervalMillis the clean up interval in milliseconds
+     * @param maxItems              the maximum number of cached items.
+     * @param maxWeight             the maximum total weight of cached items or 0 for no weight limit
+     * @param weigher               the weigher calculating weight of cached items or null for no weight limit
+     * @param removalListener       the removal listener or null
+     */
+    public InMemoryCache(final long timeToLiveMillis, final long evictIntervalMillis, final int maxItems,
+                         final long maxWeight, final CacheWeigher<K, T> weigher,
+                         final CacheRemovalListener<K, T> removalListener) {
+        if (maxItems < 1) {
+            throw new IllegalArgumentException("Maximum items has to be at least 1: " + maxItems);
+        }
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.expiring = timeToLiveMillis > 0 && evictIntervalMillis > 0;
+        this.maxItems = maxItems;
+        this.maxWeight = weigher != null ? maxWeight : 0;
+        this.weigher = maxWeight > 0 ? weigher : null;
+        this.removalListener = removalListener;
 
-            final Thread evictThread = new Thread(new Runnable() {
-                public void run() {
-                    while (true) {
-                        try {
-                            Thread.sleep(evictIntervalMillis);
-                        } catch (final InterruptedException e) {
-                        }
-                        evictExpired();
-                    }
-                }
-            });
+        cacheMap = new ConcurrentHashMap<K, CacheObject>(Math.min(maxItems, 1024));
 
-            evictThread.setDaemon(true);
-            evictThread.start();
+        if (expiring) {
+            CacheEvictionScheduler.schedule(this, evictIntervalMillis);
         }
     }
 
@@ -74,9 +151,18 @@ public class InMemoryCache<K, T> {
      * @param value the value
      */
     public void put(K key, T value) {
-        synchronized (cacheMap) {
-            cacheMap.put(key, new CacheObject(value));
+        final CacheObject cacheObject = new CacheObject(key, value, weigher != null ? weigher.weigh(key, value) : 0);
+        final CacheObject replacedCacheObject = cacheMap.put(key, cacheObject);
+        if (replacedCacheObject != null) {
+            weight.addAndGet(cacheObject.weight - replacedCacheObject.weight);
+            notifyRemoved(replacedCacheObject);
+        } else {
+            size.incrementAndGet();
+            weight.addAndGet(cacheObject.weight);
         }
+        evictionQueue.offer(cacheObject);
+        evictionQueueLength.incrementAndGet();
+        evictOverflow();
     }
 
     /**
@@ -86,16 +172,30 @@ public class InMemoryCache<K, T> {
      * @return the cached object or null.
      */
     public T get(K key) {
-        synchronized (cacheMap) {
-            CacheObject c = (CacheObject) cacheMap.get(key);
-
-            if (c == null)
-                return null;
-            else {
-                c.lastAccessed = System.currentTimeMillis();
-                return c.value;
+        final CacheObject c = cacheMap.get(key);
+
+        if (c == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (isExpired(c, now)) {
+            if (removeCacheObject(c)) {
+                evictionCount.incrementAndGet();
             }
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        if (c.lastAccessed != now) {
+            c.lastAccessed = now;
         }
+        if (!c.referenced) {
+            c.referenced = true;
+        }
+        hitCount.incrementAndGet();
+        return c.value;
     }
 
     /**
@@ -104,9 +204,22 @@ public class InMemoryCache<K, T> {
      * @param key the key
      */
     public void remove(K key) {
-        synchronized (cacheMap) {
-            cacheMap.remove(key);
+        final CacheObject removedCacheObject = cacheMap.remove(key);
+        if (removedCacheObject != null) {
+            size.decrementAndGet();
+            weight.addAndGet(-removedCacheObject.weight);
+            notifyRemoved(removedCacheObject);
+        }
+    }
+
+    /**
+     * Removes all objects from cache.
+     */
+    public void clear() {
+        for (final CacheObject cacheObject : cacheMap.values()) {
+            removeCacheObject(cacheObject);
         }
+        purgeEvictionQueue();
     }
 
     /**
@@ -115,35 +228,58 @@ public class InMemoryCache<K, T> {
      * @return the size
      */
     public int size() {
-        synchronized (cacheMap) {
-            return cacheMap.size();
-        }
+        return size.get();
     }
 
     /**
-     * Evicts expired objects from cache.
+     * Gets total weight of cached objects.
+     *
+     * @return the weight or 0 if weight is not limited.
      */
-    public void evictExpired() {
-        final long now = System.currentTimeMillis();
-        final LinkedList<K> expiredKeys = new LinkedList<K>();
+    public long weight() {
+        return weight.get();
+    }
 
-        synchronized (cacheMap) {
-            final MapIterator itr = cacheMap.mapIterator();
-            while (itr.hasNext()) {
-                final K key = (K) itr.next();
-                final CacheObject cacheObject = (CacheObject) itr.getValue();
+    /**
+     * Gets number of cache hits.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
 
-                if (cacheObject != null && (now > (timeToLiveMillis + cacheObject.lastAccessed))) {
-                    expiredKeys.add(key);
-                }
-            }
-        }
+    /**
+     * Gets number of cache misses.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets number of objects evicted from cache due to expiry or capacity limits.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
 
-        for (K key : expiredKeys) {
-            synchronized (cacheMap) {
-                cacheMap.remove(key);
+    /**
+     * Evicts expired objects from cache.
+     */
+    public void evictExpired() {
+        if (expiring) {
+            final long now = System.currentTimeMillis();
+            for (final CacheObject cacheObject : cacheMap.values()) {
+                if (isExpired(cacheObject, now) && removeCacheObject(cacheObject)) {
+                    evictionCount.incrementAndGet();
+                }
             }
         }
+        purgeEvictionQueue();
     }
 
     /**
@@ -152,33 +288,127 @@ public class InMemoryCache<K, T> {
      * @return true if key is contained in the cache
      */
     public boolean containsKey(K key) {
-        synchronized (cacheMap) {
-            return cacheMap.containsKey(key);
+        final CacheObject c = cacheMap.get(key);
+        return c != null && !isExpired(c, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether cache object has expired.
+     * @param cacheObject the cache object
+     * @param now the current time in milliseconds
+     * @return true if cache object has expired
+     */
+    private boolean isExpired(final CacheObject cacheObject, final long now) {
+        return expiring && now > (timeToLiveMillis + cacheObject.lastAccessed);
+    }
+
+    /**
+     * Removes cache object if it is still mapped to its key.
+     * @param cacheObject the cache object
+     * @return true if cache object was removed
+     */
+    private boolean removeCacheObject(final CacheObject cacheObject) {
+        if (cacheMap.remove(cacheObject.key, cacheObject)) {
+            size.decrementAndGet();
+            weight.addAndGet(-cacheObject.weight);
+            notifyRemoved(cacheObject);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Notifies removal listener of removed cache object.
+     * @param cacheObject the removed cache object
+     */
+    private void notifyRemoved(final CacheObject cacheObject) {
+        if (removalListener != null) {
+            removalListener.removed(cacheObject.key, cacheObject.value);
         }
     }
 
     /**
-     * The cache object containing lastAccess and value.
+     * Evicts objects until cache is within its item and weight limits. Objects which have been accessed
+     * since they were last visited in eviction queue are given second chance.
+     */
+    private void evictOverflow() {
+        while (size.get() > maxItems || (maxWeight > 0 && weight.get() > maxWeight)) {
+            final CacheObject cacheObject = evictionQueue.poll();
+            if (cacheObject == null) {
+                return;
+            }
+            if (cacheMap.get(cacheObject.key) != cacheObject) {
+                evictionQueueLength.decrementAndGet();
+                continue;
+            }
+            if (cacheObject.referenced) {
+                cacheObject.referenced = false;
+                evictionQueue.offer(cacheObject);
+                continue;
+            }
+            evictionQueueLength.decrementAndGet();
+            if (removeCacheObject(cacheObject)) {
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        if (evictionQueueLength.get() > 2 * maxItems) {
+            purgeEvictionQueue();
+        }
+    }
+
+    /**
+     * Removes objects which are no longer cached from eviction queue.
+     */
+    private void purgeEvictionQueue() {
+        final Iterator<CacheObject> iterator = evictionQueue.iterator();
+        while (iterator.hasNext()) {
+            final CacheObject cacheObject = iterator.next();
+            if (cacheMap.get(cacheObject.key) != cacheObject) {
+                iterator.remove();
+                evictionQueueLength.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The cache object containing key, lastAccess, weight and value.
      */
     private class CacheObject {
+        /**
+         * The key.
+         */
+        public final K key;
         /**
          * The last access time.
          */
-        public long lastAccessed = System.currentTimeMillis();
+        public volatile long lastAccessed = System.currentTimeMillis();
+        /**
+         * Whether object has been accessed since it was last visited in eviction queue.
+         */
+        public volatile boolean referenced = false;
         /**
          * The cached value.
          */
         public final T value;
+        /**
+         * The weight of cached value.
+         */
+        public final int weight;
 
         /**
          * Constructor which sets the cached value.
+         * @param key the key
          * @param value the cached value
+         * @param weight the weight of the cached value
          */
-        private CacheObject(final T value) {
+        private CacheObject(final K key, final T value, final int weight) {
+            this.key = key;
             this.value = value;
+            this.weight = weight;
         }
 
 
     }
 
-}
\ No newline at end of file
+}
@@ -15,6 +15,7 @@
  */
 package org.bubblecloud.ilves.cache;
 
+import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.Privilege;
@@ -23,109 +24,392 @@ import org.bubblecloud.ilves.security.DefaultRoles;
 import org.bubblecloud.ilves.security.UserDao;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Cache for privileges
+ * Cache for privileges. Privileges of each company are compiled into immutable snapshot which is
+ * replaced atomically on reload so that privilege checks never block on each other. Flushed or
+ * expired snapshot is reloaded once, in background if cache has been initialized, while other
+ * privilege checks keep using the previous snapshot.
+ *
  * @author Tommi S.E. Laukkanen
  */
 public class PrivilegeCache {
     public static final String USER_FOR_PRIVILEGE_CHECK = "user-for-privilege-check";
     public static final String USER_GROUPS_FOR_PRIVILEGE_CHECK = "user-groups-for-privilege-check";
-    /** The cached group privileges. */
-    private static Map<Company, InMemoryCache<Group, Map<String, Set<String>>>> groupPrivileges =
-            new HashMap<Company, InMemoryCache<Group, Map<String, Set<String>>>>();
 
-    /** The cached user privileges. */
-    private static Map<Company, InMemoryCache<User, Map<String, Set<String>>>> userPrivileges =
-            new HashMap<Company, InMemoryCache<User, Map<String, Set<String>>>>();
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(PrivilegeCache.class);
+
+    /** The age after which privilege snapshot is reloaded in background. */
+    private static final long REFRESH_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    /** The executor reloading privilege snapshots in background. */
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ilves-privilege-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The entity manager factory used to reload privileges in background. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    /** The cached privileges of companies. */
+    private static final ConcurrentHashMap<String, CompanyPrivileges> companyPrivileges =
+            new ConcurrentHashMap<String, CompanyPrivileges>();
+
+    /**
+     * Initializes privilege cache to reload privileges in background with given entity manager factory.
+     * If privilege cache is not initialized then privileges are reloaded in the thread checking privileges.
+     *
+     * @param entityManagerFactory the entity manager factory
+     */
+    public static void init(final EntityManagerFactory entityManagerFactory) {
+        PrivilegeCache.entityManagerFactory = entityManagerFactory;
+    }
+
+    /**
+     * Flushes privileges of given company. Privileges are reloaded on next privilege check and
+     * previous privileges are used until reload is complete.
+     *
+     * @param company the company
+     */
+    public static void flush(final Company company) {
+        final CompanyPrivileges privileges = getCompanyPrivileges(company);
+        synchronized (privileges) {
+            privileges.generation++;
+            privileges.stale = true;
+        }
+    }
+
+    /**
+     * Loads privileges of given company immediately.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     */
+    public static void load(final EntityManager entityManager, final Company company) {
+        final CompanyPrivileges privileges = getCompanyPrivileges(company);
+        synchronized (privileges) {
+            privileges.generation++;
+            privileges.snapshot = PrivilegeSnapshot.load(entityManager, company);
+            privileges.stale = false;
+        }
+    }
 
-    public static synchronized void flush(final Company company) {
-        groupPrivileges.remove(company);
-        userPrivileges.remove(company);
+    /**
+     * Gets privilege generation of given company. Generation is incremented each time privileges of
+     * company are flushed or reloaded so that caches derived from privileges can detect changes.
+     *
+     * @param company the company
+     * @return the privilege generation
+     */
+    public static long getGeneration(final Company company) {
+        return getCompanyPrivileges(company).generation;
     }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final User user, final List<Group> groups, final String key,
-                                                     final String dataId) {
+    /**
+     * Checks whether user has been granted any privileges directly instead of through groups.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param user the user
+     * @return true if user has user specific privileges
+     */
+    public static boolean hasUserPrivileges(final EntityManager entityManager, final Company company,
+                                            final User user) {
+        return user != null && getSnapshot(entityManager, company).userPrivileges.containsKey(user.getUserId());
+    }
+
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final User user, final List<Group> groups, final String key,
+                                       final String dataId) {
+        final PrivilegeSnapshot snapshot = getSnapshot(entityManager, company);
         if (user != null) {
-            if (PrivilegeCache.hasPrivilege(entityManager, company, user, key, dataId)) {
+            if (snapshot.hasUserPrivilege(user.getUserId(), key, dataId)) {
                 return true;
             } else {
                 for (final Group group : groups) {
-                    if (PrivilegeCache.hasPrivilege(entityManager, company, group, key, dataId)) {
+                    if (snapshot.hasGroupPrivilege(group.getGroupId(), key, dataId)) {
                         return true;
                     }
                 }
                 return false;
             }
         } else {
-            final Group group = UserDao.getGroup(entityManager, company, DefaultRoles.ANONYMOUS);
-            if (PrivilegeCache.hasPrivilege(entityManager, company, group, key, dataId)) {
-                return true;
-            } else {
-                return false;
-            }
+            return snapshot.hasGroupPrivilege(snapshot.anonymousGroupId, key, dataId);
         }
     }
 
-    public static synchronized void load(final EntityManager entityManager, final Company company, final Group group) {
-        if (!groupPrivileges.get(company).containsKey(group)) {
-            groupPrivileges.get(company).put(group, new HashMap<String, Set<String>>());
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final Group group, final String key, final String dataId) {
+        return group != null && getSnapshot(entityManager, company).hasGroupPrivilege(group.getGroupId(), key, dataId);
+    }
+
+    public static boolean hasPrivilege(final EntityManager entityManager, final Company company,
+                                       final User user, final String key, final String dataId) {
+        return user != null && getSnapshot(entityManager, company).hasUserPrivilege(user.getUserId(), key, dataId);
+    }
+
+    /**
+     * Gets cached privileges holder of given company.
+     *
+     * @param company the company
+     * @return the company privileges
+     */
+    private static CompanyPrivileges getCompanyPrivileges(final Company company) {
+        final CompanyPrivileges privileges = companyPrivileges.get(company.getCompanyId());
+        if (privileges != null) {
+            return privileges;
         }
-        final List<Privilege> privileges = UserDao.getGroupPrivileges(entityManager, group);
-        for (final Privilege privilege : privileges) {
-            if (!groupPrivileges.get(company).get(group).containsKey(privilege.getKey())) {
-                groupPrivileges.get(company).get(group).put(privilege.getKey(), new HashSet<String>());
+        final CompanyPrivileges newPrivileges = new CompanyPrivileges();
+        final CompanyPrivileges existingPrivileges = companyPrivileges.putIfAbsent(company.getCompanyId(), newPrivileges);
+        return existingPrivileges != null ? existingPrivileges : newPrivileges;
+    }
+
+    /**
+     * Gets current privilege snapshot of company. Snapshot is loaded if it does not exist and
+     * reloaded if it has been flushed or is older than refresh interval.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     * @return the privilege snapshot
+     */
+    private static PrivilegeSnapshot getSnapshot(final EntityManager entityManager, final Company company) {
+        final CompanyPrivileges privileges = getCompanyPrivileges(company);
+        PrivilegeSnapshot snapshot = privileges.snapshot;
+        if (snapshot == null) {
+            synchronized (privileges) {
+                snapshot = privileges.snapshot;
+                if (snapshot == null) {
+                    snapshot = PrivilegeSnapshot.load(entityManager, company);
+                    privileges.snapshot = snapshot;
+                    privileges.stale = false;
+                }
             }
-            groupPrivileges.get(company).get(group).get(privilege.getKey()).add(privilege.getDataId());
+        } else if ((privileges.stale || System.currentTimeMillis() - snapshot.loaded > REFRESH_INTERVAL_MILLIS)
+                && privileges.refreshing.compareAndSet(false, true)) {
+            refresh(entityManager, company, privileges);
+            snapshot = privileges.snapshot;
         }
+        return snapshot;
     }
 
-    public static synchronized void load(final EntityManager entityManager, final Company company, final User user) {
-        if (!userPrivileges.get(company).containsKey(user)) {
-            userPrivileges.get(company).put(user, new HashMap<String, Set<String>>());
+    /**
+     * Reloads privilege snapshot of company. Reload is done in background if privilege cache has been
+     * initialized with entity manager factory and otherwise in the calling thread. Only one reload of
+     * company is in progress at a time and other readers use the previous snapshot until it is complete.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param privileges the company privileges
+     */
+    private static void refresh(final EntityManager entityManager, final Company company,
+                                final CompanyPrivileges privileges) {
+        final long generation = privileges.generation;
+        if (entityManagerFactory == null) {
+            try {
+                install(privileges, generation, PrivilegeSnapshot.load(entityManager, company));
+            } finally {
+                privileges.refreshing.set(false);
+            }
+            return;
         }
-        final List<Privilege> privileges = UserDao.getUserPrivileges(entityManager, user);
-        for (final Privilege privilege : privileges) {
-            if (!userPrivileges.get(company).get(user).containsKey(privilege.getKey())) {
-                userPrivileges.get(company).get(user).put(privilege.getKey(), new HashSet<String>());
+        REFRESH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager refreshEntityManager = entityManagerFactory.createEntityManager();
+                try {
+                    install(privileges, generation, PrivilegeSnapshot.load(refreshEntityManager, company));
+                } catch (final Exception e) {
+                    LOGGER.error("Error reloading privileges of company: " + company.getCompanyId(), e);
+                } finally {
+                    refreshEntityManager.close();
+                    privileges.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Installs reloaded snapshot unless privileges have been flushed after reload begun, in which case
+     * snapshot remains stale and is reloaded again on next privilege check.
+     *
+     * @param privileges the company privileges
+     * @param generation the generation of privileges when reload begun
+     * @param snapshot the reloaded snapshot
+     */
+    private static void install(final CompanyPrivileges privileges, final long generation,
+                                final PrivilegeSnapshot snapshot) {
+        synchronized (privileges) {
+            if (privileges.generation == generation) {
+                privileges.generation++;
+                privileges.snapshot = snapshot;
+                privileges.stale = false;
             }
-            userPrivileges.get(company).get(user).get(privilege.getKey()).add(privilege.getDataId());
         }
     }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final Group group, final String key, final String dataId) {
-        if (!groupPrivileges.containsKey(company)) {
-            groupPrivileges.put(company, new InMemoryCache<Group, Map<String, Set<String>>>(
-                    5 * 60 * 1000, 60 * 1000, 100
-            ));
+    /**
+     * Holder of company privilege snapshot.
+     */
+    private static final class CompanyPrivileges {
+        /** The current snapshot or null if privileges have not been loaded. */
+        private volatile PrivilegeSnapshot snapshot;
+        /** The generation incremented when privileges are flushed or reloaded. */
+        private volatile long generation;
+        /** Whether privileges have been flushed after current snapshot was loaded. */
+        private volatile boolean stale;
+        /** Whether background reload is in progress. */
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    /**
+     * Immutable snapshot of company privileges mapping group and user IDs to privilege keys to data IDs.
+     */
+    private static final class PrivilegeSnapshot {
+        /** The load time. */
+        private final long loaded = System.currentTimeMillis();
+        /** The group ID to privilege key to data IDs map. */
+        private final Map<String, Map<String, Set<String>>> groupPrivileges;
+        /** The user ID to privilege key to data IDs map. */
+        private final Map<String, Map<String, Set<String>>> userPrivileges;
+        /** The ID of anonymous group or null if anonymous group has no privileges. */
+        private final String anonymousGroupId;
+
+        /**
+         * Constructor for setting privilege maps.
+         *
+         * @param groupPrivileges the group privileges
+         * @param userPrivileges the user privileges
+         * @param anonymousGroupId the anonymous group ID
+         */
+        private PrivilegeSnapshot(final Map<String, Map<String, Set<String>>> groupPrivileges,
+                                  final Map<String, Map<String, Set<String>>> userPrivileges,
+                                  final String anonymousGroupId) {
+            this.groupPrivileges = groupPrivileges;
+            this.userPrivileges = userPrivileges;
+            this.anonymousGroupId = anonymousGroupId;
+        }
+
+        /**
+         * Loads privilege snapshot of company.
+         *
+         * @param entityManager the entity manager
+         * @param company the company
+         * @return the privilege snapshot
+         */
+        private static PrivilegeSnapshot load(final EntityManager entityManager, final Company company) {
+            final Map<String, Map<String, Set<String>>> groupPrivileges = new HashMap<String, Map<String, Set<String>>>();
+            String anonymousGroupId = null;
+            for (final Privilege privilege : UserDao.getCompanyGroupPrivileges(entityManager, company)) {
+                final Group group = privilege.getGroup();
+                if (DefaultRoles.ANONYMOUS.equals(group.getName())) {
+                    anonymousGroupId = group.getGroupId();
+                }
+                index(groupPrivileges, group.getGroupId(), privilege);
+            }
+            final Map<String, Map<String, Set<String>>> userPrivileges = new HashMap<String, Map<String, Set<String>>>();
+            for (final Privilege privilege : UserDao.getCompanyUserPrivileges(entityManager, company)) {
+                index(userPrivileges, privilege.getUser().getUserId(), privilege);
+            }
+            return new PrivilegeSnapshot(freeze(groupPrivileges), freeze(userPrivileges), anonymousGroupId);
         }
-        if (!groupPrivileges.get(company).containsKey(group)) {
-            load(entityManager, company, group);
+
+        /**
+         * Adds privilege to index.
+         *
+         * @param index the index
+         * @param principalId the group or user ID
+         * @param privilege the privilege
+         */
+        private static void index(final Map<String, Map<String, Set<String>>> index, final String principalId,
+                                  final Privilege privilege) {
+            Map<String, Set<String>> keyDataIds = index.get(principalId);
+            if (keyDataIds == null) {
+                keyDataIds = new HashMap<String, Set<String>>();
+                index.put(principalId, keyDataIds);
+            }
+            final String key = privilege.getKey().intern();
+            Set<String> dataIds = keyDataIds.get(key);
+            if (dataIds == null) {
+                dataIds = new HashSet<String>();
+                keyDataIds.put(key, dataIds);
+            }
+            dataIds.add(privilege.getDataId());
         }
-        if (!groupPrivileges.get(company).get(group).containsKey(key)) {
-            return false;
+
+        /**
+         * Makes index unmodifiable.
+         *
+         * @param index the index
+         * @return the unmodifiable index
+         */
+        private static Map<String, Map<String, Set<String>>> freeze(final Map<String, Map<String, Set<String>>> index) {
+            for (final Map.Entry<String, Map<String, Set<String>>> principalEntry : index.entrySet()) {
+                final Map<String, Set<String>> keyDataIds = principalEntry.getValue();
+                for (final Map.Entry<String, Set<String>> keyEntry : keyDataIds.entrySet()) {
+                    keyEntry.setValue(Collections.unmodifiableSet(keyEntry.getValue()));
+                }
+                principalEntry.setValue(Collections.unmodifiableMap(keyDataIds));
+            }
+            return Collections.unmodifiableMap(index);
         }
-        return groupPrivileges.get(company).get(group).get(key).contains(dataId);
-    }
 
-    public static  synchronized boolean hasPrivilege(final EntityManager entityManager, final Company company,
-                                                     final User user, final String key, final String dataId) {
-        if (!userPrivileges.containsKey(company) || !userPrivileges.containsKey(company)) {
-            userPrivileges.put(company, new InMemoryCache<User, Map<String, Set<String>>>(
-                    5 * 60 * 1000, 60 * 1000, 1000
-            ));
+        /**
+         * Checks whether group has privilege.
+         *
+         * @param groupId the group ID
+         * @param key the privilege key
+         * @param dataId the data ID
+         * @return true if group has privilege
+         */
+        private boolean hasGroupPrivilege(final String groupId, final String key, final String dataId) {
+            return hasPrivilege(groupPrivileges, groupId, key, dataId);
         }
-        if (!userPrivileges.get(company).containsKey(user)) {
-            load(entityManager, company, user);
-            return false;
+
+        /**
+         * Checks whether user has privilege.
+         *
+         * @param userId the user ID
+         * @param key the privilege key
+         * @param dataId the data ID
+         * @return true if user has privilege
+         */
+        private boolean hasUserPrivilege(final String userId, final String key, final String dataId) {
+            return hasPrivilege(userPrivileges, userId, key, dataId);
         }
-        if (!userPrivileges.get(company).get(user).containsKey(key)) {
-            return false;
+
+        /**
+         * Checks whether index contains privilege.
+         *
+         * @param index the index
+         * @param principalId the group or user ID
+         * @param key the privilege key
+         * @param dataId the data ID
+         * @return true if index contains privilege
+         */
+        private static boolean hasPrivilege(final Map<String, Map<String, Set<String>>> index,
+                                            final String principalId, final String key, final String dataId) {
+            if (principalId == null) {
+                return false;
+            }
+            final Map<String, Set<String>> keyDataIds = index.get(principalId);
+            if (keyDataIds == null) {
+                return false;
+            }
+            final Set<String> dataIds = keyDataIds.get(key);
+            return dataIds != null && dataIds.contains(dataId);
         }
-        return userPrivileges.get(company).get(user).get(key).contains(dataId);
     }
 
 }
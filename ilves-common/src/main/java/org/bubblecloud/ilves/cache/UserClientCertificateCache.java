@@ -15,23 +15,36 @@
  */
 package org.bubblecloud.ilves.cache;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Root;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Cache for user TLS client certificates.
+ * Cache for user TLS client certificates. Users are indexed by SHA-256 fingerprint of
+ * the DER encoded certificate so that TLS handshakes resolve users without locking or
+ * database access. Index is loaded at startup and maintained by user DAO on user changes.
+ * Users may be changed or removed by other nodes, so index entries older than the maximum
+ * age are revalidated in background with indexed database lookup of the fingerprint while
+ * handshakes keep using the entry. Revalidation runs at most once at a time per entry.
  *
  * @author Tommi S.E. Laukkanen
  */
@@ -43,20 +56,108 @@ public class UserClientCertificateCache {
     /** The entity manager factory used to access the user client certificates. */
     private static EntityManagerFactory entityManagerFactory;
 
-    /**
-     * The certificate cache.
-     */
-    private static InMemoryCache<Certificate, User> certificateCache = new InMemoryCache<Certificate, User>(
-            10 * 60 * 1000, 60 * 1000, 1000);
+    /** The default maximum age of index entry before it is revalidated from database. */
+    private static final long DEFAULT_MAX_ENTRY_AGE_MILLIS = 60 * 1000;
+
+    /** The executor revalidating index entries in background. */
+    private static final ExecutorService REVALIDATE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ilves-client-certificate-cache-revalidate");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The maximum age of index entry before it is revalidated from database. */
+    private static volatile long maxEntryAgeMillis = DEFAULT_MAX_ENTRY_AGE_MILLIS;
+
+    /** The index entries by certificate fingerprint. */
+    private static final Map<String, IndexEntry> fingerprintUsers = new ConcurrentHashMap<String, IndexEntry>();
+
+    /** The certificate fingerprints by user ID. */
+    private static final Map<String, String> userFingerprints = new ConcurrentHashMap<String, String>();
+
+    /** The lock for index modifications. */
+    private static final Object indexLock = new Object();
 
     /**
-     * The blacklisted certificate cache.
+     * The blacklisted certificate fingerprint cache.
      */
-    private static InMemoryCache<Certificate, Certificate> blacklistCache = new InMemoryCache<Certificate, Certificate>(
+    private static InMemoryCache<String, String> blacklistCache = new InMemoryCache<String, String>(
             2 * 60 * 1000, 30 * 1000, 1000);
 
+    /**
+     * Initializes cache and loads certificate fingerprint index from database.
+     *
+     * @param entityManagerFactory the entity manager factory
+     */
     public static void init(final EntityManagerFactory entityManagerFactory) {
         UserClientCertificateCache.entityManagerFactory = entityManagerFactory;
+        final String maxAgeString = PropertiesUtil.getProperty("site", "client-certificate-cache-max-age-millis", false);
+        maxEntryAgeMillis = maxAgeString != null ? Long.parseLong(maxAgeString) : DEFAULT_MAX_ENTRY_AGE_MILLIS;
+        load();
+    }
+
+    /**
+     * Loads certificate fingerprint index from database. Fingerprints missing from users
+     * with certificate are calculated and stored first.
+     */
+    public static void load() {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            backfillFingerprints(entityManager);
+            final TypedQuery<User> query = entityManager.createQuery(
+                    "select u from User u where u.certificateFingerprint is not null", User.class);
+            final List<User> users = query.getResultList();
+            synchronized (indexLock) {
+                fingerprintUsers.clear();
+                userFingerprints.clear();
+                for (final User user : users) {
+                    fingerprintUsers.put(user.getCertificateFingerprint(), new IndexEntry(user));
+                    userFingerprints.put(user.getUserId(), user.getCertificateFingerprint());
+                }
+            }
+            LOGGER.info("Loaded TSL client certificate fingerprints of " + users.size() + " users.");
+        } catch (final Exception e) {
+            LOGGER.error("Error loading TSL client certificate fingerprints.", e);
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Updates user to certificate fingerprint index. Invoked after user has been stored.
+     *
+     * @param user the user
+     */
+    public static void update(final User user) {
+        synchronized (indexLock) {
+            final String oldFingerprint = userFingerprints.remove(user.getUserId());
+            if (oldFingerprint != null) {
+                fingerprintUsers.remove(oldFingerprint);
+            }
+            final String fingerprint = user.getCertificateFingerprint();
+            if (fingerprint != null) {
+                fingerprintUsers.put(fingerprint, new IndexEntry(user));
+                userFingerprints.put(user.getUserId(), fingerprint);
+                blacklistCache.remove(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Removes user from certificate fingerprint index. Invoked after user has been removed.
+     *
+     * @param user the user
+     */
+    public static void remove(final User user) {
+        synchronized (indexLock) {
+            final String fingerprint = userFingerprints.remove(user.getUserId());
+            if (fingerprint != null) {
+                fingerprintUsers.remove(fingerprint);
+            }
+        }
     }
 
     /**
@@ -64,45 +165,41 @@ public class UserClientCertificateCache {
      *
      * @param clientCertificate the client certificate
      * @param blackListNotFound whether certificate should be blacklisted if user is not found
-     * @return the user or null if no matching user or more than one matching user was found.
+     * @return the user or null if no matching user was found.
      */
-    public static synchronized User getUserByCertificate(final Certificate clientCertificate, final boolean blackListNotFound) {
-        if (blacklistCache.get(clientCertificate) != null) {
-            LOGGER.debug("Blacklisted TSL client certificate: "
-                    + ((X509Certificate) clientCertificate).getSubjectDN());
-            return null;
-        }
-        final User cachedUser = certificateCache.get(clientCertificate);
-        if (cachedUser != null) {
-            LOGGER.debug("User matching TSL client certificate in cache: " + cachedUser.getUserId());
-            return cachedUser;
-        }
-        final String encodedCertificateString;
+    public static User getUserByCertificate(final Certificate clientCertificate, final boolean blackListNotFound) {
+        final String fingerprint;
         try {
-            encodedCertificateString = Base64.encodeBase64String(clientCertificate.getEncoded());
+            fingerprint = DigestUtils.sha256Hex(clientCertificate.getEncoded());
         } catch (CertificateEncodingException e) {
-            LOGGER.error("Error encoding TSL client certificate for finding user from database.");
+            LOGGER.error("Error encoding TSL client certificate for finding user.");
             return null;
         }
 
-        final EntityManager entityManager = entityManagerFactory.createEntityManager();
-        final CriteriaBuilder criteriaBuilder =  entityManager.getCriteriaBuilder();
-        final CriteriaQuery<User> criteria = criteriaBuilder.createQuery(User.class);
-        final Root<User> root = criteria.from(User.class);
-        criteria.where(criteriaBuilder.equal(root.get("certificate"), encodedCertificateString));
-        final TypedQuery<User> query = entityManager.createQuery(criteria);
-        final List<User> users = query.getResultList();
-        if (users.size() == 1) {
-            LOGGER.info("User found matching TSL client certificate: " + users.get(0).getUserId());
-            certificateCache.put(clientCertificate, users.get(0));
-            return users.get(0);
-        } else if (users.size() > 1) {
-            blacklistCache.put(clientCertificate, clientCertificate);
-            LOGGER.error("Blacklisted TSL client certificate. More than one user had the certificate: " + clientCertificate);
+        final IndexEntry indexEntry = fingerprintUsers.get(fingerprint);
+        if (indexEntry != null) {
+            if (System.currentTimeMillis() - indexEntry.indexed >= maxEntryAgeMillis
+                    && indexEntry.revalidating.compareAndSet(false, true)) {
+                revalidate(fingerprint, indexEntry);
+            }
+            LOGGER.debug("User matching TSL client certificate in cache: " + indexEntry.user.getUserId());
+            return indexEntry.user;
+        }
+        if (blacklistCache.get(fingerprint) != null) {
+            LOGGER.debug("Blacklisted TSL client certificate: "
+                    + ((X509Certificate) clientCertificate).getSubjectDN());
             return null;
+        }
+
+        // User may have been stored by another node after the index was loaded.
+        final User user = findUser(fingerprint);
+        if (user != null) {
+            LOGGER.info("User found matching TSL client certificate: " + user.getUserId());
+            update(user);
+            return user;
         } else {
             if (blackListNotFound) {
-                blacklistCache.put(clientCertificate, clientCertificate);
+                blacklistCache.put(fingerprint, fingerprint);
                 LOGGER.warn("Blacklisted TSL client certificate. User not found matching the certificate: "
                         + ((X509Certificate) clientCertificate).getSubjectDN());
             } else {
@@ -112,4 +209,132 @@ public class UserClientCertificateCache {
             return null;
         }
     }
+
+    /**
+     * Revalidates index entry in background as user may have been changed or removed by another node.
+     * Changes are applied with the same index update and removal as local user changes. Certificate
+     * which no longer matches any user is blacklisted.
+     *
+     * @param fingerprint the certificate fingerprint
+     * @param indexEntry the index entry
+     */
+    private static void revalidate(final String fingerprint, final IndexEntry indexEntry) {
+        REVALIDATE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final User user = findUser(fingerprint);
+                    synchronized (indexLock) {
+                        if (fingerprintUsers.get(fingerprint) != indexEntry) {
+                            // Index was changed locally during revalidation.
+                            return;
+                        }
+                        if (user != null) {
+                            update(user);
+                        } else {
+                            remove(indexEntry.user);
+                            blacklistCache.put(fingerprint, fingerprint);
+                            LOGGER.warn("Blacklisted TSL client certificate. User no longer matches the certificate: "
+                                    + indexEntry.user.getUserId());
+                        }
+                    }
+                } catch (final Exception e) {
+                    LOGGER.error("Error revalidating TSL client certificate user: " + indexEntry.user.getUserId(), e);
+                    indexEntry.revalidating.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds user by certificate fingerprint from database.
+     *
+     * @param fingerprint the certificate fingerprint
+     * @return the user or null if not found
+     */
+    private static User findUser(final String fingerprint) {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final TypedQuery<User> query = entityManager.createQuery(
+                    "select u from User u where u.certificateFingerprint = :certificateFingerprint", User.class);
+            query.setParameter("certificateFingerprint", fingerprint);
+            final List<User> users = query.getResultList();
+            return users.size() == 1 ? users.get(0) : null;
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Calculates and stores fingerprints for users which have certificate but no fingerprint.
+     * Users sharing same certificate are left without fingerprint and can not log in with the certificate.
+     *
+     * @param entityManager the entity manager
+     */
+    private static void backfillFingerprints(final EntityManager entityManager) {
+        final TypedQuery<User> query = entityManager.createQuery(
+                "select u from User u where u.certificate is not null and u.certificateFingerprint is null", User.class);
+        final List<User> users = query.getResultList();
+        if (users.isEmpty()) {
+            return;
+        }
+
+        final Map<String, User> uniqueUsers = new HashMap<String, User>();
+        final Set<String> duplicateFingerprints = new HashSet<String>();
+        for (final User user : users) {
+            user.setCertificate(user.getCertificate());
+            final String fingerprint = user.getCertificateFingerprint();
+            if (fingerprint == null) {
+                continue;
+            }
+            if (uniqueUsers.put(fingerprint, user) != null) {
+                duplicateFingerprints.add(fingerprint);
+            }
+        }
+        for (final String fingerprint : duplicateFingerprints) {
+            LOGGER.error("More than one user had the TSL client certificate, skipped fingerprint: " + fingerprint);
+            uniqueUsers.remove(fingerprint);
+        }
+
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            for (final User user : uniqueUsers.values()) {
+                entityManager.createQuery(
+                        "update User u set u.certificateFingerprint = :certificateFingerprint where u.userId = :userId")
+                        .setParameter("certificateFingerprint", user.getCertificateFingerprint())
+                        .setParameter("userId", user.getUserId())
+                        .executeUpdate();
+            }
+            transaction.commit();
+            LOGGER.info("Stored TSL client certificate fingerprints of " + uniqueUsers.size() + " users.");
+        } catch (final Exception e) {
+            LOGGER.error("Error storing TSL client certificate fingerprints.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+        }
+        entityManager.clear();
+    }
+
+    /**
+     * Index entry of user and the time the user was indexed.
+     */
+    private static final class IndexEntry {
+        /** The user. */
+        private final User user;
+        /** The time the user was indexed. */
+        private final long indexed = System.currentTimeMillis();
+        /** Whether revalidation is in progress. */
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        /**
+         * Constructor for setting the user.
+         *
+         * @param user the user
+         */
+        private IndexEntry(final User user) {
+            this.user = user;
+        }
+    }
 }
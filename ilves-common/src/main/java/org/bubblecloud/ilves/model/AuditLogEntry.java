@@ -66,6 +66,10 @@ public final class AuditLogEntry implements Serializable {
     @Column(nullable = true)
     private String dataLabel;
 
+    /** Owner company ID. */
+    @Column(nullable = true)
+    private String companyId;
+
     /** Created time of the task. */
     @Temporal(TemporalType.TIMESTAMP)
     @Column(nullable = false)
@@ -79,6 +83,11 @@ public final class AuditLogEntry implements Serializable {
     }
 
     public AuditLogEntry(String event, String componentAddress, String componentType, String userAddress, String userId, String userName, String dataType, String dataId, String dataOldVersionId, String dataNewVersionId, String dataLabel, Date created) {
+        this(null, event, componentAddress, componentType, userAddress, userId, userName, dataType, dataId, dataOldVersionId, dataNewVersionId, dataLabel, created);
+    }
+
+    public AuditLogEntry(String companyId, String event, String componentAddress, String componentType, String userAddress, String userId, String userName, String dataType, String dataId, String dataOldVersionId, String dataNewVersionId, String dataLabel, Date created) {
+        this.companyId = companyId;
         this.event =  StringUtils.abbreviate(event, 255);
         this.componentAddress = StringUtils.abbreviate(componentAddress, 60);
         this.componentType = StringUtils.abbreviate(componentType, 20);
@@ -141,6 +150,10 @@ public final class AuditLogEntry implements Serializable {
         return dataLabel;
     }
 
+    public String getCompanyId() {
+        return companyId;
+    }
+
     public Date getCreated() {
         return created;
     }
@@ -15,6 +15,8 @@
  */
 package org.bubblecloud.ilves.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheIsolationType;
 import org.eclipse.persistence.annotations.JoinFetch;
 import org.eclipse.persistence.annotations.JoinFetchType;
 
@@ -23,12 +25,14 @@ import java.io.Serializable;
 import java.util.Date;
 
 /**
- * Company.
+ * Company. Companies are held in shared entity cache so that resolving company of each request does
+ * not query database. Cached companies expire at the same interval as company host cache snapshot.
  *
  * @author Tommi S.E. Laukkanen
  */
 @Entity
 @Table(name = "company")
+@Cache(isolation = CacheIsolationType.SHARED, expiry = 5 * 60 * 1000)
 public final class Company implements Serializable {
     /** Java serialization version UID. */
     private static final long serialVersionUID = 1L;
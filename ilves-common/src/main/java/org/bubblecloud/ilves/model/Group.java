@@ -20,6 +20,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import javax.persistence.*;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * Customer.
@@ -51,6 +52,16 @@ public final class Group implements Serializable {
     @Column(nullable = false)
     private String description;
 
+    /** Lower case name for case insensitive prefix search. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String normalizedName;
+
+    /** Lower case description for case insensitive prefix search. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String normalizedDescription;
+
     /** Created time of the task. */
     @Temporal(TemporalType.TIMESTAMP)
     @Column(nullable = false)
@@ -77,8 +88,8 @@ public final class Group implements Serializable {
     public Group(final Company owner, final String name, final String description) {
         super();
         this.owner = owner;
-        this.name = name;
-        this.description = description;
+        setName(name);
+        setDescription(description);
         this.created = new Date();
         this.modified = this.created;
     }
@@ -123,6 +134,7 @@ public final class Group implements Serializable {
      */
     public void setName(final String name) {
         this.name = name;
+        this.normalizedName = normalize(name);
     }
 
     /**
@@ -137,6 +149,7 @@ public final class Group implements Serializable {
      */
     public void setDescription(final String description) {
         this.description = description;
+        this.normalizedDescription = normalize(description);
     }
 
     /**
@@ -182,4 +195,12 @@ public final class Group implements Serializable {
         return obj != null && obj instanceof Group && groupId.equals(((Group) obj).getGroupId());
     }
 
+    /**
+     * @param value the value
+     * @return the value in lower case or null if value is null
+     */
+    private static String normalize(final String value) {
+        return value != null ? value.toLowerCase(Locale.ROOT) : null;
+    }
+
 }
@@ -15,6 +15,9 @@
  */
 package org.bubblecloud.ilves.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheIsolationType;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
@@ -22,12 +25,13 @@ import javax.persistence.Table;
 import java.io.Serializable;
 
 /**
- * PostalAddress.
+ * PostalAddress. Addresses are held in shared entity cache together with the companies referring to them.
  *
  * @author Tommi S.E. Laukkanen
  */
 @Entity
 @Table(name = "postaladdress")
+@Cache(isolation = CacheIsolationType.SHARED, expiry = 5 * 60 * 1000)
 public final class PostalAddress implements Serializable {
     /** Java serialization version UID. */
     private static final long serialVersionUID = 1L;
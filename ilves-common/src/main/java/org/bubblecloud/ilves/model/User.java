@@ -16,10 +16,13 @@
 package org.bubblecloud.ilves.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.persistence.*;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * User.
@@ -64,6 +67,21 @@ public final class User implements Serializable {
     @Column(nullable = false)
     private String lastName;
 
+    /** Lower case email address for case insensitive prefix search. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String normalizedEmailAddress;
+
+    /** Lower case first name for case insensitive prefix search. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String normalizedFirstName;
+
+    /** Lower case last name for case insensitive prefix search. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String normalizedLastName;
+
     /** Phone number. */
     @Column(nullable = false)
     private String phoneNumber;
@@ -84,11 +102,22 @@ public final class User implements Serializable {
     @Column(nullable = true)
     private String certificate;
 
+    /** SHA-256 fingerprint of TLS client certificate as hex string. */
+    @JsonIgnore
+    @Column(nullable = true)
+    private String certificateFingerprint;
+
     /** Date of password expiration. Null corresponds to password never expiring. */
     @Temporal(TemporalType.DATE)
     @Column(nullable = true)
     private Date passwordExpirationDate;
 
+    /** Time before which issued signed access tokens are revoked. Updated only with bulk update. */
+    @JsonIgnore
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = true, updatable = false)
+    private Date accessTokensRevoked;
+
     /** Created time of the task. */
     @Temporal(TemporalType.TIMESTAMP)
     @Column(nullable = false)
@@ -118,9 +147,9 @@ public final class User implements Serializable {
             final String passwordHash) {
         super();
         this.owner = owner;
-        this.firstName = firstName;
-        this.lastName = lastName;
-        this.emailAddress = emailAddress;
+        setFirstName(firstName);
+        setLastName(lastName);
+        setEmailAddress(emailAddress);
         this.phoneNumber = phoneNumber;
         this.passwordHash = passwordHash;
         this.created = new Date();
@@ -153,6 +182,7 @@ public final class User implements Serializable {
      */
     public void setEmailAddress(final String emailAddress) {
         this.emailAddress = emailAddress;
+        this.normalizedEmailAddress = normalize(emailAddress);
     }
 
     /**
@@ -209,6 +239,7 @@ public final class User implements Serializable {
      */
     public void setFirstName(final String firstName) {
         this.firstName = firstName;
+        this.normalizedFirstName = normalize(firstName);
     }
 
     /**
@@ -223,6 +254,7 @@ public final class User implements Serializable {
      */
     public void setLastName(final String lastName) {
         this.lastName = lastName;
+        this.normalizedLastName = normalize(lastName);
     }
 
     /**
@@ -321,6 +353,25 @@ public final class User implements Serializable {
      */
     public void setCertificate(final String certificate) {
         this.certificate = certificate;
+        if (certificate == null || certificate.length() == 0) {
+            this.certificateFingerprint = null;
+        } else {
+            this.certificateFingerprint = DigestUtils.sha256Hex(Base64.decodeBase64(certificate));
+        }
+    }
+
+    /**
+     * @return the SHA-256 fingerprint of the TLS client certificate as hex string
+     */
+    public String getCertificateFingerprint() {
+        return certificateFingerprint;
+    }
+
+    /**
+     * @param certificateFingerprint the SHA-256 fingerprint of the TLS client certificate as hex string to set
+     */
+    public void setCertificateFingerprint(final String certificateFingerprint) {
+        this.certificateFingerprint = certificateFingerprint;
     }
 
     /**
@@ -339,6 +390,23 @@ public final class User implements Serializable {
         this.passwordExpirationDate = passwordExpirationDate;
     }
 
+    /**
+     * Gets the time before which issued signed access tokens are revoked. Null if none have been revoked.
+     * @return the access tokens revoked time
+     */
+    public Date getAccessTokensRevoked() {
+        return accessTokensRevoked;
+    }
+
+    /**
+     * Sets the time before which issued signed access tokens are revoked. This is not persisted by merge,
+     * use UserDao.revokeAccessTokens instead.
+     * @param accessTokensRevoked the access tokens revoked time
+     */
+    public void setAccessTokensRevoked(final Date accessTokensRevoked) {
+        this.accessTokensRevoked = accessTokensRevoked;
+    }
+
     @Override
     public String toString() {
         return firstName + " " + lastName;
@@ -354,4 +422,12 @@ public final class User implements Serializable {
         return obj != null && obj instanceof User && userId.equals(((User) obj).getUserId());
     }
 
+    /**
+     * @param value the value
+     * @return the value in lower case or null if value is null
+     */
+    private static String normalize(final String value) {
+        return value != null ? value.toLowerCase(Locale.ROOT) : null;
+    }
+
 }
@@ -23,6 +23,8 @@ import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Content data access object.
@@ -35,6 +37,10 @@ public class ContentDao {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ContentDao.class);
 
+    /** The content versions of companies incremented when content of company is modified. */
+    private static final ConcurrentHashMap<String, AtomicLong> contentVersions =
+            new ConcurrentHashMap<String, AtomicLong>();
+
     /**
      * Saves content to database.
      * @param entityManager the entity manager
@@ -58,6 +64,58 @@ public class ContentDao {
             }
             throw new RuntimeException(e);
         }
+        incrementContentVersion(content.getOwner());
+    }
+
+    /**
+     * Removes content from database.
+     * @param entityManager the entity manager
+     * @param content the content
+     */
+    public static void removeContent(final EntityManager entityManager, final Content content) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            entityManager.remove(entityManager.contains(content) ? content : entityManager.merge(content));
+            transaction.commit();
+        } catch (final Exception e) {
+            LOGGER.error("Error in remove content.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+        incrementContentVersion(content.getOwner());
+    }
+
+    /**
+     * Gets content version of company. Version is incremented each time content of company is saved
+     * or removed so that views derived from content can detect changes.
+     * @param company the company
+     * @return the content version
+     */
+    public static long getContentVersion(final Company company) {
+        final AtomicLong contentVersion = contentVersions.get(company.getCompanyId());
+        return contentVersion != null ? contentVersion.get() : 0L;
+    }
+
+    /**
+     * Increments content version of company.
+     * @param company the company
+     */
+    private static void incrementContentVersion(final Company company) {
+        if (company == null) {
+            return;
+        }
+        AtomicLong contentVersion = contentVersions.get(company.getCompanyId());
+        if (contentVersion == null) {
+            final AtomicLong newContentVersion = new AtomicLong();
+            contentVersion = contentVersions.putIfAbsent(company.getCompanyId(), newContentVersion);
+            if (contentVersion == null) {
+                contentVersion = newContentVersion;
+            }
+        }
+        contentVersion.incrementAndGet();
     }
 
     /**
@@ -99,6 +157,28 @@ public class ContentDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets content.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param contentId the content ID
+     * @return the content or null if not found
+     */
+    public static final Content getContent(final EntityManager entityManager, final Company owner,
+                                           final String contentId) {
+        final TypedQuery<Content> query = entityManager.createQuery(
+                "select e from Content as e where e.owner=:owner and e.contentId = :contentId",
+                Content.class);
+        query.setParameter("owner", owner);
+        query.setParameter("contentId", contentId);
+        final List<Content> resultList = query.getResultList();
+        if (resultList.size() == 1) {
+            return resultList.get(0);
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Gets list of contents.
      * @param entityManager the entity manager.
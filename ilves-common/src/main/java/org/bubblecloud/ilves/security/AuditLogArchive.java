@@ -0,0 +1,279 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Archive of audit log entries in compressed files. Entries are bucketed per company and month of
+ * creation and each appended batch is written to its own gzip file of length prefixed serialized
+ * entries, same as audit log spill file records. Batch file is written to temporary file which is
+ * renamed atomically to its final name only after it has been flushed to disk, so that batch
+ * interrupted by crash never becomes visible and can not hide other batches. Company directory is
+ * flushed to disk after rename so that the rename itself survives crash. Unreadable batch files
+ * are skipped with warning. Entries of batch which is archived twice due to crash between archiving
+ * and database delete are returned once when read.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogArchive {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogArchive.class);
+    /** The directory name for entries without owner company. */
+    private static final String NO_COMPANY_DIRECTORY = "no-company";
+    /** The archive file name prefix. */
+    private static final String FILE_PREFIX = "audit-";
+    /** The archive file name suffix. */
+    private static final String FILE_SUFFIX = ".gz";
+    /** The temporary archive file name suffix. */
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    /** The maximum compression ratio of deflate used to bound record lengths read from archive files. */
+    private static final long MAX_COMPRESSION_RATIO = 1032;
+
+    /** The comparator ordering entries by creation time and ID descending. */
+    public static final Comparator<AuditLogEntry> NEWEST_FIRST = new Comparator<AuditLogEntry>() {
+        @Override
+        public int compare(final AuditLogEntry o1, final AuditLogEntry o2) {
+            final int result = o2.getCreated().compareTo(o1.getCreated());
+            return result != 0 ? result : o2.getAuditLogEntryId().compareTo(o1.getAuditLogEntryId());
+        }
+    };
+
+    /** The archive root directory. */
+    private final File directory;
+
+    /**
+     * Constructor for setting archive directory.
+     *
+     * @param directory the archive root directory
+     */
+    public AuditLogArchive(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Appends entries as new batch files of their companies and months. Entries are flushed to disk
+     * before method returns.
+     *
+     * @param entries the entries
+     * @throws IOException if IO exception occurs
+     */
+    public synchronized void append(final List<AuditLogEntry> entries) throws IOException {
+        final Map<File, List<AuditLogEntry>> buckets = new LinkedHashMap<File, List<AuditLogEntry>>();
+        for (final AuditLogEntry entry : entries) {
+            final File monthPrefix = getMonthPrefix(entry.getCompanyId(), entry.getCreated());
+            List<AuditLogEntry> bucket = buckets.get(monthPrefix);
+            if (bucket == null) {
+                bucket = new ArrayList<AuditLogEntry>();
+                buckets.put(monthPrefix, bucket);
+            }
+            bucket.add(entry);
+        }
+        for (final Map.Entry<File, List<AuditLogEntry>> bucket : buckets.entrySet()) {
+            final File monthPrefix = bucket.getKey();
+            final File companyDirectory = monthPrefix.getParentFile();
+            if (!companyDirectory.exists()) {
+                if (!companyDirectory.mkdirs()) {
+                    throw new IOException("Unable to create audit log archive directory: " + companyDirectory);
+                }
+                syncDirectory(companyDirectory.getParentFile());
+            }
+            final String batchName = monthPrefix.getName() + "-" + UUID.randomUUID();
+            final File temporaryFile = new File(companyDirectory, batchName + TEMPORARY_FILE_SUFFIX);
+            final FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+            boolean written = false;
+            try {
+                final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(
+                        new BufferedOutputStream(fileOutputStream));
+                final DataOutputStream outputStream = new DataOutputStream(gzipOutputStream);
+                for (final AuditLogEntry entry : bucket.getValue()) {
+                    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                    final ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+                    objectOutputStream.writeObject(entry);
+                    objectOutputStream.close();
+                    final byte[] bytes = byteArrayOutputStream.toByteArray();
+                    outputStream.writeInt(bytes.length);
+                    outputStream.write(bytes);
+                }
+                gzipOutputStream.finish();
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+                written = true;
+            } finally {
+                fileOutputStream.close();
+                if (!written && !temporaryFile.delete()) {
+                    LOGGER.warn("Unable to delete incomplete audit log archive file: " + temporaryFile);
+                }
+            }
+            Files.move(temporaryFile.toPath(), new File(companyDirectory, batchName + FILE_SUFFIX).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(companyDirectory);
+        }
+    }
+
+    /**
+     * Flushes directory entries to disk. Platforms which do not allow opening directories are skipped.
+     *
+     * @param directory the directory
+     * @throws IOException if IO exception occurs
+     */
+    private static void syncDirectory(final File directory) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (final AccessDeniedException e) {
+            LOGGER.debug("Unable to open audit log archive directory for sync: " + directory);
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads archived entries of company created within given time range. Only batch files of months
+     * overlapping the range are read.
+     *
+     * @param companyId the company ID or null for entries without owner company
+     * @param startTime the start time inclusive
+     * @param endTime the end time exclusive
+     * @return the entries ordered by creation time descending
+     * @throws IOException if IO exception occurs
+     */
+    public synchronized List<AuditLogEntry> read(final String companyId, final Date startTime, final Date endTime)
+            throws IOException {
+        final Map<String, AuditLogEntry> entries = new HashMap<String, AuditLogEntry>();
+        final Calendar month = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        month.setTime(startTime);
+        month.set(Calendar.DAY_OF_MONTH, 1);
+        month.set(Calendar.HOUR_OF_DAY, 0);
+        month.set(Calendar.MINUTE, 0);
+        month.set(Calendar.SECOND, 0);
+        month.set(Calendar.MILLISECOND, 0);
+        while (month.getTime().before(endTime)) {
+            for (final File file : getFiles(companyId, month.getTime())) {
+                readFile(file, startTime, endTime, entries);
+            }
+            month.add(Calendar.MONTH, 1);
+        }
+        final List<AuditLogEntry> result = new ArrayList<AuditLogEntry>(entries.values());
+        Collections.sort(result, NEWEST_FIRST);
+        return result;
+    }
+
+    /**
+     * Reads entries within time range from archive file. Entries preceding corrupted or truncated
+     * part of the file are kept and rest of the file is skipped. Record lengths which can not fit in
+     * the file are treated as corruption.
+     *
+     * @param file the archive file
+     * @param startTime the start time inclusive
+     * @param endTime the end time exclusive
+     * @param entries the entries by ID to add read entries to
+     * @throws IOException if IO exception occurs
+     */
+    private void readFile(final File file, final Date startTime, final Date endTime,
+                          final Map<String, AuditLogEntry> entries) throws IOException {
+        final long maxLength = Math.min(Integer.MAX_VALUE, file.length() * MAX_COMPRESSION_RATIO);
+        final FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            final DataInputStream inputStream = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(fileInputStream)));
+            while (true) {
+                final int length;
+                try {
+                    length = inputStream.readInt();
+                } catch (final EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > maxLength) {
+                    throw new StreamCorruptedException("Invalid audit log archive record length: " + length);
+                }
+                final byte[] bytes = new byte[length];
+                inputStream.readFully(bytes);
+                final ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                final AuditLogEntry entry;
+                try {
+                    entry = (AuditLogEntry) objectInputStream.readObject();
+                } catch (final ClassNotFoundException e) {
+                    throw new IOException("Invalid audit log archive record in: " + file, e);
+                }
+                if (!entry.getCreated().before(startTime) && entry.getCreated().before(endTime)) {
+                    entries.put(entry.getAuditLogEntryId(), entry);
+                }
+            }
+        } catch (final EOFException | ZipException | StreamCorruptedException e) {
+            LOGGER.warn("Skipped corrupted or truncated part of audit log archive file: " + file, e);
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    /**
+     * Gets archive files of company and month in name order. Temporary files of incomplete batches
+     * are not included.
+     *
+     * @param companyId the company ID or null
+     * @param time the time within the month
+     * @return the archive files
+     */
+    private List<File> getFiles(final String companyId, final Date time) {
+        final File monthPrefix = getMonthPrefix(companyId, time);
+        final String batchPrefix = monthPrefix.getName() + "-";
+        final String monthFileName = monthPrefix.getName() + FILE_SUFFIX;
+        final File[] files = monthPrefix.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.equals(monthFileName) || (name.startsWith(batchPrefix) && name.endsWith(FILE_SUFFIX));
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Gets path prefix of archive files of company and month. The name of the returned file is the
+     * common prefix of batch file names within the company directory.
+     *
+     * @param companyId the company ID or null
+     * @param time the time within the month
+     * @return the archive file path prefix
+     */
+    private File getMonthPrefix(final String companyId, final Date time) {
+        final SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM");
+        monthFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return new File(new File(directory, companyId != null ? companyId : NO_COMPANY_DIRECTORY),
+                FILE_PREFIX + monthFormat.format(time));
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background archiver enforcing audit log retention. Entries older than retention period of their
+ * company are moved from database to audit log archive in batches. Each batch is written to the
+ * archive before it is deleted from database so that crash can only cause entry to be archived twice.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogArchiver {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogArchiver.class);
+    /** Milliseconds in day. */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** The entity manager factory. */
+    private final EntityManagerFactory entityManagerFactory;
+    /** The archive or null if expired entries are deleted without archiving. */
+    private final AuditLogArchive archive;
+    /** The default retention in days. */
+    private final int defaultRetentionDays;
+    /** The company specific retentions in days by company ID. */
+    private final Map<String, Integer> companyRetentionDays;
+    /** The number of entries archived in single transaction. */
+    private final int batchSize;
+    /** The interval between archiving runs. */
+    private final long intervalMillis;
+    /** The archiver thread. */
+    private final Thread archiverThread;
+    /** Whether archiver is running. */
+    private volatile boolean running = true;
+    /** The number of archived entries. */
+    private final AtomicLong archivedCount = new AtomicLong();
+
+    /**
+     * Constructor which starts the archiver thread. First archiving run starts after the interval.
+     *
+     * @param entityManagerFactory the entity manager factory
+     * @param archive the archive or null if expired entries are deleted without archiving
+     * @param defaultRetentionDays the default retention in days, 0 to keep entries
+     * @param companyRetentionDays the company specific retentions in days by company ID
+     * @param batchSize the number of entries archived in single transaction
+     * @param intervalMillis the interval between archiving runs
+     */
+    public AuditLogArchiver(final EntityManagerFactory entityManagerFactory,
+                            final AuditLogArchive archive,
+                            final int defaultRetentionDays,
+                            final Map<String, Integer> companyRetentionDays,
+                            final int batchSize,
+                            final long intervalMillis) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.archive = archive;
+        this.defaultRetentionDays = defaultRetentionDays;
+        this.companyRetentionDays = new HashMap<String, Integer>(companyRetentionDays);
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+
+        archiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, "ilves-audit-log-archiver");
+        archiverThread.setDaemon(true);
+        archiverThread.start();
+    }
+
+    /**
+     * Stops archiver thread after current batch.
+     *
+     * @param timeoutMillis the maximum time to wait for archiver thread to stop
+     */
+    public void stop(final long timeoutMillis) {
+        running = false;
+        archiverThread.interrupt();
+        try {
+            archiverThread.join(timeoutMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the archive.
+     *
+     * @return the archive or null if expired entries are deleted without archiving
+     */
+    public AuditLogArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Gets number of entries archived.
+     *
+     * @return the archived count
+     */
+    public long getArchivedCount() {
+        return archivedCount.get();
+    }
+
+    /**
+     * Archives all expired entries of all companies.
+     */
+    public void archiveExpired() {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final List<String> companyIds = new ArrayList<String>(entityManager.createQuery(
+                    "select e.companyId from Company e", String.class).getResultList());
+            companyIds.add(null);
+            final long now = System.currentTimeMillis();
+            for (final String companyId : companyIds) {
+                final Integer retentionDays = companyRetentionDays.containsKey(companyId)
+                        ? companyRetentionDays.get(companyId) : defaultRetentionDays;
+                if (retentionDays <= 0) {
+                    continue;
+                }
+                final Date cutoff = new Date(now - retentionDays * DAY_MILLIS);
+                while (running && archiveBatch(entityManager, companyId, cutoff)) {
+                    entityManager.clear();
+                }
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Archives one batch of expired entries of company.
+     *
+     * @param entityManager the entity manager
+     * @param companyId the company ID or null for entries without company
+     * @param cutoff the time before which entries are archived
+     * @return true if full batch was archived and more entries may exist
+     */
+    private boolean archiveBatch(final EntityManager entityManager, final String companyId, final Date cutoff) {
+        final TypedQuery<AuditLogEntry> query = entityManager.createQuery("select e from AuditLogEntry e where "
+                + (companyId != null ? "e.companyId = :companyId" : "e.companyId is null")
+                + " and e.created < :cutoff order by e.created, e.auditLogEntryId", AuditLogEntry.class);
+        if (companyId != null) {
+            query.setParameter("companyId", companyId);
+        }
+        query.setParameter("cutoff", cutoff);
+        query.setMaxResults(batchSize);
+        final List<AuditLogEntry> entries = query.getResultList();
+        if (entries.isEmpty()) {
+            return false;
+        }
+
+        final List<String> auditLogEntryIds = new ArrayList<String>(entries.size());
+        for (final AuditLogEntry entry : entries) {
+            auditLogEntryIds.add(entry.getAuditLogEntryId());
+        }
+        try {
+            if (archive != null) {
+                archive.append(entries);
+            }
+            entityManager.getTransaction().begin();
+            entityManager.createQuery("delete from AuditLogEntry e where e.auditLogEntryId in :ids")
+                    .setParameter("ids", auditLogEntryIds).executeUpdate();
+            entityManager.getTransaction().commit();
+        } catch (final Exception e) {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            throw new RuntimeException("Error archiving audit log entries of company: " + companyId, e);
+        }
+        archivedCount.addAndGet(entries.size());
+        return entries.size() == batchSize;
+    }
+
+    /**
+     * Archiver thread loop.
+     */
+    private void process() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (final InterruptedException e) {
+                running = false;
+                break;
+            }
+            try {
+                archiveExpired();
+            } catch (final Throwable t) {
+                LOGGER.error("Error in audit log archiver.", t);
+            }
+        }
+    }
+}
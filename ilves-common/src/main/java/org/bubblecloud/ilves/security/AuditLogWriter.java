@@ -0,0 +1,401 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous audit log writer. Audit log entries are queued to bounded queue and
+ * persisted in batches by single writer thread. Batch is written when it is full or
+ * when flush interval has elapsed since the first entry of the batch was queued.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class AuditLogWriter {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuditLogWriter.class);
+    /** The time to wait for queue space before checking whether writer has been stopped. */
+    private static final long BLOCK_OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * The policy applied when audit log queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Block logging thread until queue has space. */
+        BLOCK,
+        /** Drop audit log entry and increment dropped count. */
+        DROP,
+        /** Append audit log entry to spill file which is written to database when queue is idle. */
+        SPILL
+    }
+
+    /** The entity manager factory. */
+    private final EntityManagerFactory entityManagerFactory;
+    /** The queue. */
+    private final ArrayBlockingQueue<AuditLogEntry> queue;
+    /** The maximum batch size. */
+    private final int batchSize;
+    /** The flush interval in milliseconds. */
+    private final long flushIntervalMillis;
+    /** The overflow policy. */
+    private final OverflowPolicy overflowPolicy;
+    /** The spill file or null if spilling is not enabled. */
+    private final File spillFile;
+    /** The lock for spill file access. */
+    private final Object spillLock = new Object();
+    /** The writer thread. */
+    private final Thread writerThread;
+    /** Whether writer is running. */
+    private volatile boolean running = true;
+    /** The number of written entries. */
+    private final AtomicLong writtenCount = new AtomicLong();
+    /** The number of dropped entries. */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** The number of spilled entries. */
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /**
+     * Constructor which starts the writer thread.
+     *
+     * @param entityManagerFactory the entity manager factory
+     * @param queueSize the maximum number of queued entries
+     * @param batchSize the maximum number of entries written in single transaction
+     * @param flushIntervalMillis the maximum time entries wait in queue before written
+     * @param overflowPolicy the overflow policy
+     * @param spillFile the spill file or null if spill policy is not used
+     */
+    public AuditLogWriter(final EntityManagerFactory entityManagerFactory,
+                          final int queueSize,
+                          final int batchSize,
+                          final long flushIntervalMillis,
+                          final OverflowPolicy overflowPolicy,
+                          final File spillFile) {
+        if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null) {
+            throw new IllegalArgumentException("Spill file is required for spill overflow policy.");
+        }
+        this.entityManagerFactory = entityManagerFactory;
+        this.queue = new ArrayBlockingQueue<AuditLogEntry>(queueSize);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = spillFile;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, "ilves-audit-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues audit log entry for writing.
+     *
+     * @param auditLogEntry the audit log entry
+     */
+    public void write(final AuditLogEntry auditLogEntry) {
+        if (!running) {
+            writeSynchronously(auditLogEntry);
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    while (!queue.offer(auditLogEntry, BLOCK_OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            writeSynchronously(auditLogEntry);
+                            return;
+                        }
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    LOGGER.error("Interrupted while queuing audit log entry: " + auditLogEntry);
+                }
+                break;
+            case DROP:
+                if (!queue.offer(auditLogEntry)) {
+                    droppedCount.incrementAndGet();
+                    LOGGER.warn("Audit log queue full, dropped: " + auditLogEntry);
+                }
+                break;
+            case SPILL:
+                if (!queue.offer(auditLogEntry)) {
+                    spill(auditLogEntry);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown overflow policy: " + overflowPolicy);
+        }
+        if (!writerThread.isAlive()) {
+            // Writer stopped while entry was queued.
+            drainQueue();
+        }
+    }
+
+    /**
+     * Stops writer thread after writing all queued entries to database.
+     *
+     * @param timeoutMillis the maximum time to wait for queued entries to be written
+     */
+    public void stop(final long timeoutMillis) {
+        running = false;
+        try {
+            writerThread.join(timeoutMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            LOGGER.warn("Audit log writer did not stop in " + timeoutMillis + " ms, queued entries: " + queue.size());
+        } else {
+            drainQueue();
+        }
+    }
+
+    /**
+     * Gets number of entries waiting in queue.
+     *
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Gets number of entries written to database.
+     *
+     * @return the written count
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Gets number of entries dropped due to full queue.
+     *
+     * @return the dropped count
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets number of entries spilled to file due to full queue or database error.
+     *
+     * @return the spilled count
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * Writes audit log entry in the calling thread.
+     *
+     * @param auditLogEntry the audit log entry
+     */
+    private void writeSynchronously(final AuditLogEntry auditLogEntry) {
+        final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(1);
+        batch.add(auditLogEntry);
+        persist(batch);
+    }
+
+    /**
+     * Writes entries left in queue after writer thread has exited in the calling thread.
+     */
+    private void drainQueue() {
+        final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            persist(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void process() {
+        final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(batchSize);
+        long deadline = 0;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    final AuditLogEntry auditLogEntry = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (auditLogEntry == null) {
+                        replaySpill();
+                        if (!running && queue.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.add(auditLogEntry);
+                    deadline = System.currentTimeMillis() + flushIntervalMillis;
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+                final long now = System.currentTimeMillis();
+                if (batch.size() >= batchSize || now >= deadline || !running) {
+                    persist(batch);
+                    batch.clear();
+                    continue;
+                }
+                final AuditLogEntry auditLogEntry = queue.poll(deadline - now, TimeUnit.MILLISECONDS);
+                if (auditLogEntry != null) {
+                    batch.add(auditLogEntry);
+                }
+            } catch (final InterruptedException e) {
+                running = false;
+            } catch (final Throwable t) {
+                LOGGER.error("Error in audit log writer.", t);
+            }
+        }
+        if (!batch.isEmpty()) {
+            persist(batch);
+        }
+    }
+
+    /**
+     * Persists batch of audit log entries in single transaction. Failed batch is spilled to file
+     * if spill file is configured.
+     *
+     * @param batch the batch
+     */
+    private void persist(final List<AuditLogEntry> batch) {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            for (final AuditLogEntry auditLogEntry : batch) {
+                entityManager.persist(auditLogEntry);
+            }
+            entityManager.getTransaction().commit();
+            writtenCount.addAndGet(batch.size());
+            for (final AuditLogEntry auditLogEntry : batch) {
+                LOGGER.info(auditLogEntry);
+            }
+        } catch (final Exception e) {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            LOGGER.error("Error writing audit log batch of " + batch.size() + " entries.", e);
+            for (final AuditLogEntry auditLogEntry : batch) {
+                if (spillFile != null) {
+                    spill(auditLogEntry);
+                } else {
+                    droppedCount.incrementAndGet();
+                    LOGGER.error("Error writing audit log: " + auditLogEntry);
+                }
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Appends audit log entry to spill file.
+     *
+     * @param auditLogEntry the audit log entry
+     */
+    private void spill(final AuditLogEntry auditLogEntry) {
+        try {
+            final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+            objectOutputStream.writeObject(auditLogEntry);
+            objectOutputStream.close();
+            final byte[] bytes = byteArrayOutputStream.toByteArray();
+            synchronized (spillLock) {
+                final DataOutputStream outputStream = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+                try {
+                    outputStream.writeInt(bytes.length);
+                    outputStream.write(bytes);
+                } finally {
+                    outputStream.close();
+                }
+            }
+            spilledCount.incrementAndGet();
+        } catch (final IOException e) {
+            droppedCount.incrementAndGet();
+            LOGGER.error("Error spilling audit log: " + auditLogEntry, e);
+        }
+    }
+
+    /**
+     * Writes spilled audit log entries to database and removes spill file.
+     */
+    private void replaySpill() {
+        if (spillFile == null) {
+            return;
+        }
+        final File replayFile = new File(spillFile.getPath() + ".replay");
+        synchronized (spillLock) {
+            if (!replayFile.exists()) {
+                if (!spillFile.exists() || !spillFile.renameTo(replayFile)) {
+                    return;
+                }
+            }
+        }
+        final List<AuditLogEntry> batch = new ArrayList<AuditLogEntry>(batchSize);
+        try {
+            final DataInputStream inputStream = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(replayFile)));
+            try {
+                while (true) {
+                    final int length;
+                    try {
+                        length = inputStream.readInt();
+                    } catch (final EOFException e) {
+                        break;
+                    }
+                    if (length < 0 || length > replayFile.length()) {
+                        throw new StreamCorruptedException("Invalid audit log spill record length: " + length);
+                    }
+                    final byte[] bytes = new byte[length];
+                    inputStream.readFully(bytes);
+                    final ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                    batch.add((AuditLogEntry) objectInputStream.readObject());
+                    if (batch.size() >= batchSize) {
+                        persist(batch);
+                        batch.clear();
+                    }
+                }
+            } finally {
+                inputStream.close();
+            }
+            if (!batch.isEmpty()) {
+                persist(batch);
+            }
+            if (!replayFile.delete()) {
+                LOGGER.error("Unable to delete replayed audit log spill file: " + replayFile);
+            }
+        } catch (final Exception e) {
+            final File failedFile = new File(spillFile.getPath() + ".failed-" + System.currentTimeMillis());
+            LOGGER.error("Error replaying audit log spill file, moved to: " + failedFile, e);
+            if (!replayFile.renameTo(failedFile)) {
+                LOGGER.error("Unable to move failed audit log spill file: " + replayFile);
+            }
+        }
+    }
+}
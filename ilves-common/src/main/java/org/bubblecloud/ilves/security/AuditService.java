@@ -15,11 +15,18 @@
  */
 package org.bubblecloud.ilves.security;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 
 import javax.persistence.EntityManager;
-import java.util.Date;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * Audit log service.
@@ -29,6 +36,184 @@ import java.util.Date;
 public class AuditService {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(AuditService.class);
+    /** The maximum time to wait for queued audit log entries to be written on stop. */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+    /** The asynchronous audit log writer or null if audit log entries are written synchronously. */
+    private static volatile AuditLogWriter auditLogWriter;
+    /** The audit log archiver or null if retention is not enforced. */
+    private static volatile AuditLogArchiver auditLogArchiver;
+
+    /**
+     * Starts asynchronous audit logging configured in given properties category. Audit log entries logged
+     * with security context are written by background writer after this call.
+     *
+     * @param entityManagerFactory the entity manager factory used by the audit log writer
+     * @param propertiesCategory the properties category
+     */
+    public static synchronized void startAsynchronousLogging(final EntityManagerFactory entityManagerFactory,
+                                                             final String propertiesCategory) {
+        if (auditLogWriter != null) {
+            return;
+        }
+        final int queueSize = Integer.parseInt(getProperty(propertiesCategory, "audit-log-queue-size", "10000"));
+        final int batchSize = Integer.parseInt(getProperty(propertiesCategory, "audit-log-batch-size", "100"));
+        final long flushIntervalMillis = Long.parseLong(getProperty(propertiesCategory,
+                "audit-log-flush-interval-millis", "1000"));
+        final AuditLogWriter.OverflowPolicy overflowPolicy = AuditLogWriter.OverflowPolicy.valueOf(
+                getProperty(propertiesCategory, "audit-log-overflow-policy", "block").toUpperCase());
+        final String spillPath = getProperty(propertiesCategory, "audit-log-spill-path", "");
+        final File spillFile = StringUtils.isEmpty(spillPath) ? null : new File(spillPath);
+
+        auditLogWriter = new AuditLogWriter(entityManagerFactory, queueSize, batchSize, flushIntervalMillis,
+                overflowPolicy, spillFile);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopAsynchronousLogging();
+            }
+        }, "ilves-audit-log-shutdown"));
+        LOGGER.info("Asynchronous audit logging started with queue size " + queueSize + ", batch size " + batchSize
+                + ", flush interval " + flushIntervalMillis + " ms and overflow policy " + overflowPolicy + ".");
+    }
+
+    /**
+     * Stops asynchronous audit logging after queued audit log entries have been written.
+     */
+    public static synchronized void stopAsynchronousLogging() {
+        if (auditLogWriter == null) {
+            return;
+        }
+        auditLogWriter.stop(SHUTDOWN_TIMEOUT_MILLIS);
+        LOGGER.info("Asynchronous audit logging stopped. Written: " + auditLogWriter.getWrittenCount()
+                + " dropped: " + auditLogWriter.getDroppedCount() + " spilled: " + auditLogWriter.getSpilledCount());
+        auditLogWriter = null;
+    }
+
+    /**
+     * Gets asynchronous audit log writer.
+     *
+     * @return the audit log writer or null if asynchronous audit logging is not started.
+     */
+    public static AuditLogWriter getAuditLogWriter() {
+        return auditLogWriter;
+    }
+
+    /**
+     * Starts audit log archiver enforcing retention configured in given properties category. Archiving
+     * is not started if neither default nor company specific retention is configured. Expired entries
+     * are deleted without archiving only if archive path is empty and audit-log-archive-delete-only is
+     * true, otherwise archiving is not started.
+     *
+     * @param entityManagerFactory the entity manager factory used by the archiver
+     * @param propertiesCategory the properties category
+     */
+    public static synchronized void startArchiving(final EntityManagerFactory entityManagerFactory,
+                                                   final String propertiesCategory) {
+        if (auditLogArchiver != null) {
+            return;
+        }
+        final int retentionDays = Integer.parseInt(getProperty(propertiesCategory, "audit-log-retention-days", "0"));
+        final Map<String, Integer> companyRetentionDays = new HashMap<String, Integer>();
+        for (final String companyRetention : getProperty(propertiesCategory,
+                "audit-log-company-retention-days", "").split(",")) {
+            final String[] parts = companyRetention.split(":");
+            if (parts.length == 2) {
+                companyRetentionDays.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        if (retentionDays <= 0 && companyRetentionDays.isEmpty()) {
+            return;
+        }
+        final int batchSize = Integer.parseInt(getProperty(propertiesCategory,
+                "audit-log-archive-batch-size", "1000"));
+        final long intervalMillis = Long.parseLong(getProperty(propertiesCategory,
+                "audit-log-archive-interval-millis", "3600000"));
+        final String archivePath = getProperty(propertiesCategory, "audit-log-archive-path", "");
+        if (StringUtils.isEmpty(archivePath)
+                && !"true".equals(getProperty(propertiesCategory, "audit-log-archive-delete-only", "false"))) {
+            LOGGER.error("Audit log archiving not started: audit-log-archive-path is not set and "
+                    + "audit-log-archive-delete-only is not true.");
+            return;
+        }
+        final AuditLogArchive archive = StringUtils.isEmpty(archivePath) ? null
+                : new AuditLogArchive(new File(archivePath));
+
+        auditLogArchiver = new AuditLogArchiver(entityManagerFactory, archive, retentionDays, companyRetentionDays,
+                batchSize, intervalMillis);
+        LOGGER.info("Audit log archiving started with retention " + retentionDays + " days, company retentions "
+                + companyRetentionDays + " and archive path '" + archivePath + "'.");
+    }
+
+    /**
+     * Stops audit log archiver.
+     */
+    public static synchronized void stopArchiving() {
+        if (auditLogArchiver == null) {
+            return;
+        }
+        auditLogArchiver.stop(SHUTDOWN_TIMEOUT_MILLIS);
+        LOGGER.info("Audit log archiving stopped. Archived: " + auditLogArchiver.getArchivedCount());
+        auditLogArchiver = null;
+    }
+
+    /**
+     * Gets audit log archiver.
+     *
+     * @return the audit log archiver or null if archiving is not started.
+     */
+    public static AuditLogArchiver getAuditLogArchiver() {
+        return auditLogArchiver;
+    }
+
+    /**
+     * Gets audit log entries of company created within given time range ordered by creation time
+     * descending. Archived entries are read from the monthly archive files overlapping the time range
+     * if requested and archiving is started with archive path.
+     *
+     * @param entityManager the entity manager
+     * @param companyId the company ID
+     * @param startTime the start time inclusive
+     * @param endTime the end time exclusive
+     * @param maxResults the maximum number of entries returned
+     * @param includeArchived true if archived entries are included
+     * @return list of audit log entries
+     */
+    public static List<AuditLogEntry> getAuditLogEntries(final EntityManager entityManager,
+                                                         final String companyId,
+                                                         final Date startTime,
+                                                         final Date endTime,
+                                                         final int maxResults,
+                                                         final boolean includeArchived) {
+        final TypedQuery<AuditLogEntry> query = entityManager.createQuery(
+                "select e from AuditLogEntry e where e.companyId = :companyId and e.created >= :startTime"
+                        + " and e.created < :endTime order by e.created desc, e.auditLogEntryId desc",
+                AuditLogEntry.class);
+        query.setParameter("companyId", companyId);
+        query.setParameter("startTime", startTime);
+        query.setParameter("endTime", endTime);
+        query.setMaxResults(maxResults);
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>(query.getResultList());
+
+        final AuditLogArchiver archiver = auditLogArchiver;
+        if (!includeArchived || archiver == null || archiver.getArchive() == null) {
+            return entries;
+        }
+        final Set<String> auditLogEntryIds = new HashSet<String>();
+        for (final AuditLogEntry entry : entries) {
+            auditLogEntryIds.add(entry.getAuditLogEntryId());
+        }
+        try {
+            for (final AuditLogEntry entry : archiver.getArchive().read(companyId, startTime, endTime)) {
+                if (auditLogEntryIds.add(entry.getAuditLogEntryId())) {
+                    entries.add(entry);
+                }
+            }
+        } catch (final IOException e) {
+            throw new SecurityException("Error reading audit log archive of company: " + companyId, e);
+        }
+        Collections.sort(entries, AuditLogArchive.NEWEST_FIRST);
+        return entries.size() > maxResults ? new ArrayList<AuditLogEntry>(entries.subList(0, maxResults)) : entries;
+    }
 
     /**
      * Log audit event.
@@ -37,20 +222,7 @@ public class AuditService {
      */
     public static void log(final SecurityContext securityContext,
                            final String event) {
-        log(securityContext.getAuditEntityManager(),
-                event,
-                securityContext.getLocalIpAddress() + ":" +
-                        securityContext.getComponentPort() + " (" + securityContext.getServerName() + ")",
-                securityContext.getComponentType(),
-                securityContext.getRemoteIpAddress() + ":" +
-                        securityContext.getRemotePort() + " (" + securityContext.getRemoteHost() + ")",
-                securityContext.getUserId(),
-                securityContext.getUserName(),
-                null,
-                null,
-                null,
-                null,
-                null);
+        log(securityContext, event, null, null, null, null, null);
     }
 
     /**
@@ -66,20 +238,7 @@ public class AuditService {
                            final String dataType,
                            final String dataId,
                            final String dataLabel) {
-        log(securityContext.getAuditEntityManager(),
-                event,
-                securityContext.getLocalIpAddress() + ":" +
-                        securityContext.getComponentPort() + " (" + securityContext.getServerName() + ")",
-                securityContext.getComponentType(),
-                securityContext.getRemoteIpAddress() + ":" +
-                        securityContext.getRemotePort() + " (" + securityContext.getRemoteHost() + ")",
-                securityContext.getUserId(),
-                securityContext.getUserName(),
-                dataType,
-                dataId,
-                null,
-                null,
-                dataLabel);
+        log(securityContext, event, dataType, dataId, null, null, dataLabel);
     }
 
     /**
@@ -99,13 +258,39 @@ public class AuditService {
                            final String dataOldVersionId,
                            final String dataNewVersionId,
                            final String dataLabel) {
+        final String componentAddress = securityContext.getLocalIpAddress() + ":" +
+                securityContext.getComponentPort() + " (" + securityContext.getServerName() + ")";
+        final String userAddress = securityContext.getRemoteIpAddress() + ":" +
+                securityContext.getRemotePort() + " (" + securityContext.getRemoteHost() + ")";
+        final Company company = securityContext.getObject(Company.class);
+        final String companyId = company != null ? company.getCompanyId() : null;
+
+        final AuditLogWriter writer = auditLogWriter;
+        if (writer != null) {
+            writer.write(new AuditLogEntry(
+                    companyId,
+                    event,
+                    componentAddress,
+                    securityContext.getComponentType(),
+                    userAddress,
+                    securityContext.getUserId(),
+                    securityContext.getUserName(),
+                    dataType,
+                    dataId,
+                    dataOldVersionId,
+                    dataNewVersionId,
+                    dataLabel,
+                    new Date()
+            ));
+            return;
+        }
+
         log(securityContext.getAuditEntityManager(),
+                companyId,
                 event,
-                securityContext.getLocalIpAddress() + ":" +
-                securityContext.getComponentPort() + " (" + securityContext.getServerName() + ")",
+                componentAddress,
                 securityContext.getComponentType(),
-                securityContext.getRemoteIpAddress() + ":" +
-                securityContext.getRemotePort() + " (" + securityContext.getRemoteHost() + ")",
+                userAddress,
                 securityContext.getUserId(),
                 securityContext.getUserName(),
                 dataType,
@@ -144,7 +329,43 @@ public class AuditService {
                                     String dataOldVersionId,
                                     String dataNewVersionId,
                                     String dataLabel) {
+        return log(entityManager, null, event, componentAddress, componentType, userAddress, userId, userName,
+                dataType, dataId, dataOldVersionId, dataNewVersionId, dataLabel);
+    }
+
+    /**
+     * Logs audit log entry of owner company.
+     *
+     * @param entityManager the entity manager
+     * @param companyId the owner company ID or null
+     * @param event the event
+     * @param componentAddress the component address
+     * @param componentType the component type
+     * @param userAddress the user address
+     * @param userId the user ID
+     * @param userName the user name
+     * @param dataType the data type
+     * @param dataId the data ID
+     * @param dataOldVersionId the old data version ID
+     * @param dataNewVersionId the new data version ID
+     * @param dataLabel the data label
+     * @return the audit log entry
+     */
+    protected static AuditLogEntry log(EntityManager entityManager,
+                                    String companyId,
+                                    String event,
+                                    String componentAddress,
+                                    String componentType,
+                                    String userAddress,
+                                    String userId,
+                                    String userName,
+                                    String dataType,
+                                    String dataId,
+                                    String dataOldVersionId,
+                                    String dataNewVersionId,
+                                    String dataLabel) {
         final AuditLogEntry auditLogEntry = new AuditLogEntry(
+                companyId,
                 event,
                 componentAddress,
                 componentType,
@@ -183,4 +404,17 @@ public class AuditService {
     protected static AuditLogEntry get(EntityManager entityManager, String auditLogEntryId) {
         return entityManager.getReference(AuditLogEntry.class, auditLogEntryId);
     }
+
+    /**
+     * Gets optional property value or default value if property is not defined.
+     * @param propertiesCategory the properties category
+     * @param propertyKey the property key
+     * @param defaultValue the default value
+     * @return the property value or default value
+     */
+    private static String getProperty(final String propertiesCategory, final String propertyKey,
+                                      final String defaultValue) {
+        final String value = PropertiesUtil.getProperty(propertiesCategory, propertyKey, false);
+        return StringUtils.isEmpty(value) ? defaultValue : value.trim();
+    }
 }
@@ -23,8 +23,11 @@ import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * AuthenticationDevice data access object.
@@ -37,6 +40,10 @@ public class AuthenticationDeviceDao {
      * The logger.
      */
     private static final Logger LOGGER = Logger.getLogger(AuthenticationDeviceDao.class);
+    /**
+     * The maximum number of user IDs in single count query.
+     */
+    private static final int COUNT_BATCH_SIZE = 500;
 
     /**
      * Adds authenticationDevice to database.
@@ -139,6 +146,32 @@ public class AuthenticationDeviceDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets authentication device counts of given users with grouped queries.
+     * Users without authentication devices are not included in the result.
+     *
+     * @param entityManager the entity manager.
+     * @param userIds       the user IDs
+     * @return map of user IDs to authentication device counts
+     */
+    public static final Map<String, Long> getAuthenticationDeviceCounts(final EntityManager entityManager,
+                                                                        final Collection<String> userIds) {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        final List<String> userIdList = new ArrayList<String>(userIds);
+        for (int i = 0; i < userIdList.size(); i += COUNT_BATCH_SIZE) {
+            final TypedQuery<Object[]> query = entityManager.createQuery(
+                    "select e.user.userId, count(e) from AuthenticationDevice as e " +
+                            "where e.user.userId in :userIds group by e.user.userId",
+                    Object[].class);
+            query.setParameter("userIds",
+                    userIdList.subList(i, Math.min(i + COUNT_BATCH_SIZE, userIdList.size())));
+            for (final Object[] row : query.getResultList()) {
+                counts.put((String) row[0], ((Number) row[1]).longValue());
+            }
+        }
+        return counts;
+    }
+
     /**
      * Gets authentication device by key.
      *
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Compiled matcher for comma separated list of IPv4 and IPv6 CIDR subnets. Subnets are compiled into
+ * binary tries so that matching IP address literal does not allocate and takes at most prefix length
+ * steps regardless of the number of subnets.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class CidrMatcher {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(CidrMatcher.class);
+
+    /** The IPv4 address bit count. */
+    private static final int IPV4_BITS = 32;
+    /** The IPv6 address bit count. */
+    private static final int IPV6_BITS = 128;
+
+    /** The subnet list this matcher was compiled from. */
+    private final String subnets;
+    /** The IPv4 subnet trie. */
+    private final BitTrie ipv4Trie = new BitTrie();
+    /** The IPv6 subnet trie. */
+    private final BitTrie ipv6Trie = new BitTrie();
+
+    /**
+     * Constructor which compiles comma separated subnet list. Blank and invalid subnets are skipped.
+     *
+     * @param subnets the comma separated list of subnets in CIDR notation
+     */
+    public CidrMatcher(final String subnets) {
+        this.subnets = subnets;
+        if (subnets == null) {
+            return;
+        }
+        for (final String subnet : subnets.split(",")) {
+            final String cidr = subnet.trim();
+            if (cidr.length() == 0) {
+                continue;
+            }
+            final int separatorIndex = cidr.indexOf('/');
+            try {
+                if (separatorIndex < 0) {
+                    throw new IllegalArgumentException("Prefix length missing.");
+                }
+                final byte[] address = InetAddress.getByName(cidr.substring(0, separatorIndex)).getAddress();
+                final int prefixLength = Integer.parseInt(cidr.substring(separatorIndex + 1).trim());
+                final int bits = address.length * 8;
+                if (prefixLength < 0 || prefixLength > bits) {
+                    throw new IllegalArgumentException("Prefix length out of range.");
+                }
+                long high = 0;
+                long low = 0;
+                for (final byte addressByte : address) {
+                    high = (high << 8) | (low >>> 56);
+                    low = (low << 8) | (addressByte & 0xff);
+                }
+                if (bits == IPV4_BITS) {
+                    ipv4Trie.insert(high, low, IPV4_BITS, prefixLength);
+                } else {
+                    ipv6Trie.insert(high, low, IPV6_BITS, prefixLength);
+                }
+            } catch (final UnknownHostException | IllegalArgumentException e) {
+                LOGGER.error("Skipping invalid subnet in white list: " + cidr + " (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Gets the subnet list this matcher was compiled from.
+     *
+     * @return the subnet list
+     */
+    public String getSubnets() {
+        return subnets;
+    }
+
+    /**
+     * Checks whether IP address literal is in any of the subnets. IPv4 mapped IPv6 addresses are
+     * matched against IPv4 subnets.
+     *
+     * @param ipAddress the IPv4 or IPv6 address literal
+     * @return true if address is in any of the subnets, false if not or address is not valid literal
+     */
+    public boolean matches(final String ipAddress) {
+        if (ipAddress == null) {
+            return false;
+        }
+        if (ipAddress.indexOf(':') >= 0) {
+            return matchesIpv6(ipAddress);
+        }
+        final long address = parseIpv4(ipAddress, 0, ipAddress.length());
+        return address >= 0 && ipv4Trie.matches(0, address, IPV4_BITS);
+    }
+
+    /**
+     * Checks whether IPv6 address literal is in any of the subnets.
+     *
+     * @param ipAddress the IPv6 address literal
+     * @return true if address is in any of the subnets
+     */
+    private boolean matchesIpv6(final String ipAddress) {
+        int end = ipAddress.indexOf('%');
+        if (end < 0) {
+            end = ipAddress.length();
+        }
+        final int compressionIndex = ipAddress.indexOf("::");
+        int zeroGroups = 0;
+        if (compressionIndex >= 0) {
+            if (ipAddress.indexOf("::", compressionIndex + 1) >= 0) {
+                return false;
+            }
+            zeroGroups = 8 - countGroups(ipAddress, 0, compressionIndex)
+                    - countGroups(ipAddress, compressionIndex + 2, end);
+            if (zeroGroups < 1) {
+                return false;
+            }
+        }
+
+        long high = 0;
+        long low = 0;
+        int groups = 0;
+        int index = 0;
+        while (index < end) {
+            if (index == compressionIndex) {
+                for (int i = 0; i < zeroGroups; i++) {
+                    high = (high << 16) | (low >>> 48);
+                    low = low << 16;
+                }
+                groups += zeroGroups;
+                index += 2;
+                continue;
+            }
+            int groupEnd = index;
+            boolean embeddedIpv4 = false;
+            while (groupEnd < end && ipAddress.charAt(groupEnd) != ':') {
+                embeddedIpv4 |= ipAddress.charAt(groupEnd) == '.';
+                groupEnd++;
+            }
+            if (embeddedIpv4) {
+                final long ipv4Address = parseIpv4(ipAddress, index, groupEnd);
+                if (groupEnd != end || groups > 6 || ipv4Address < 0) {
+                    return false;
+                }
+                high = (high << 32) | (low >>> 32);
+                low = (low << 32) | ipv4Address;
+                groups += 2;
+                break;
+            }
+            if (groupEnd == index || groupEnd - index > 4 || groups > 7) {
+                return false;
+            }
+            int group = 0;
+            for (int i = index; i < groupEnd; i++) {
+                final int digit = Character.digit(ipAddress.charAt(i), 16);
+                if (digit < 0) {
+                    return false;
+                }
+                group = (group << 4) | digit;
+            }
+            high = (high << 16) | (low >>> 48);
+            low = (low << 16) | group;
+            groups++;
+            if (groupEnd == compressionIndex || groupEnd == end) {
+                index = groupEnd;
+            } else if (groupEnd + 1 == end) {
+                return false;
+            } else {
+                index = groupEnd + 1;
+            }
+        }
+        if (groups != 8) {
+            return false;
+        }
+        if (high == 0 && (low >>> 32) == 0xffffL) {
+            return ipv4Trie.matches(0, low & 0xffffffffL, IPV4_BITS);
+        }
+        return ipv6Trie.matches(high, low, IPV6_BITS);
+    }
+
+    /**
+     * Counts IPv6 address groups in range. Embedded IPv4 address counts as two groups.
+     *
+     * @param ipAddress the IPv6 address literal
+     * @param start the start index
+     * @param end the end index
+     * @return the group count
+     */
+    private static int countGroups(final String ipAddress, final int start, final int end) {
+        if (start >= end) {
+            return 0;
+        }
+        int groups = 1;
+        for (int i = start; i < end; i++) {
+            if (ipAddress.charAt(i) == ':') {
+                groups++;
+            } else if (ipAddress.charAt(i) == '.') {
+                return groups + 1;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Parses dotted decimal IPv4 address literal.
+     *
+     * @param ipAddress the string containing the address
+     * @param start the start index of the address
+     * @param end the end index of the address
+     * @return the address as unsigned 32 bit value or -1 if address is not valid
+     */
+    private static long parseIpv4(final String ipAddress, final int start, final int end) {
+        long address = 0;
+        int octets = 0;
+        int index = start;
+        while (index <= end) {
+            int octet = 0;
+            int digits = 0;
+            while (index < end && ipAddress.charAt(index) != '.') {
+                final char c = ipAddress.charAt(index);
+                if (c < '0' || c > '9' || digits == 3) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                digits++;
+                index++;
+            }
+            if (digits == 0 || octet > 255 || octets == 4) {
+                return -1;
+            }
+            address = (address << 8) | octet;
+            octets++;
+            index++;
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    /**
+     * Binary trie of address prefixes. Nodes are stored in arrays to keep lookups allocation free.
+     */
+    private static final class BitTrie {
+        /** The child node indexes, two per node. Zero means no child as root is never a child. */
+        private int[] children = new int[32];
+        /** Whether node terminates a prefix. */
+        private boolean[] terminal = new boolean[16];
+        /** The number of nodes. */
+        private int size = 1;
+
+        /**
+         * Inserts address prefix.
+         *
+         * @param high the high 64 bits of address
+         * @param low the low 64 bits of address
+         * @param bits the address bit count
+         * @param prefixLength the prefix length
+         */
+        private void insert(final long high, final long low, final int bits, final int prefixLength) {
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                if (terminal[node]) {
+                    return;
+                }
+                final int childIndex = node * 2 + bit(high, low, bits, i);
+                if (children[childIndex] == 0) {
+                    if (size == terminal.length) {
+                        children = Arrays.copyOf(children, children.length * 2);
+                        terminal = Arrays.copyOf(terminal, terminal.length * 2);
+                    }
+                    children[childIndex] = size++;
+                }
+                node = children[childIndex];
+            }
+            terminal[node] = true;
+        }
+
+        /**
+         * Checks whether address matches any prefix.
+         *
+         * @param high the high 64 bits of address
+         * @param low the low 64 bits of address
+         * @param bits the address bit count
+         * @return true if address matches any prefix
+         */
+        private boolean matches(final long high, final long low, final int bits) {
+            int node = 0;
+            for (int i = 0; ; i++) {
+                if (terminal[node]) {
+                    return true;
+                }
+                if (i == bits) {
+                    return false;
+                }
+                node = children[node * 2 + bit(high, low, bits, i)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Gets address bit counting from the most significant bit.
+         *
+         * @param high the high 64 bits of address
+         * @param low the low 64 bits of address
+         * @param bits the address bit count
+         * @param index the bit index
+         * @return the bit value
+         */
+        private static int bit(final long high, final long low, final int bits, final int index) {
+            if (bits == IPV4_BITS) {
+                return (int) (low >>> (IPV4_BITS - 1 - index)) & 1;
+            } else if (index < 64) {
+                return (int) (high >>> (63 - index)) & 1;
+            } else {
+                return (int) (low >>> (IPV6_BITS - 1 - index)) & 1;
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.bubblecloud.ilves.security;
 
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.CompanyHostCache;
 import org.bubblecloud.ilves.model.Company;
 
 import javax.persistence.EntityManager;
@@ -48,6 +49,7 @@ public class CompanyDao {
         try {
             entityManager.persist(company);
             transaction.commit();
+            CompanyHostCache.flush();
         } catch (final Exception e) {
             LOGGER.error("Error in add company.", e);
             if (transaction.isActive()) {
@@ -69,6 +71,7 @@ public class CompanyDao {
             company.setModified(new Date());
             entityManager.persist(company);
             transaction.commit();
+            CompanyHostCache.flush();
         } catch (final Exception e) {
             LOGGER.error("Error in update company.", e);
             if (transaction.isActive()) {
@@ -89,6 +92,7 @@ public class CompanyDao {
         try {
             entityManager.remove(company);
             transaction.commit();
+            CompanyHostCache.flush();
         } catch (final Exception e) {
             LOGGER.error("Error in remove company.", e);
             if (transaction.isActive()) {
@@ -99,12 +103,56 @@ public class CompanyDao {
     }
 
     /**
-     * Gets company.
+     * Gets company with exactly given host. Host is looked up from company host cache.
      * @param entityManager the entity manager
      * @param host the company host name
      * @return company or null
      */
     public static Company getCompany(final EntityManager entityManager, final String host) {
+        final String companyId = CompanyHostCache.getCompanyId(entityManager, host);
+        if (companyId == null) {
+            return null;
+        }
+        final Company company = entityManager.find(Company.class, companyId);
+        if (company == null) {
+            // Company has been removed in other node.
+            CompanyHostCache.flush();
+            return getCompanyByQuery(entityManager, host);
+        }
+        return company;
+    }
+
+    /**
+     * Resolves company serving given host name. Company with exactly matching host is preferred over
+     * company with the most specific matching wildcard host like *.example.com which is preferred
+     * over default company with host *. Host is resolved from company host cache and company is found
+     * from shared entity cache, so steady state resolution does not query database.
+     * @param entityManager the entity manager
+     * @param hostName the host name
+     * @return company or null
+     */
+    public static Company resolveCompany(final EntityManager entityManager, final String hostName) {
+        final String companyId = CompanyHostCache.resolveCompanyId(entityManager, hostName);
+        if (companyId == null) {
+            return null;
+        }
+        final Company company = entityManager.find(Company.class, companyId);
+        if (company == null) {
+            // Company has been removed in other node.
+            CompanyHostCache.flush();
+            final String reloadedCompanyId = CompanyHostCache.resolveCompanyId(entityManager, hostName);
+            return reloadedCompanyId != null ? entityManager.find(Company.class, reloadedCompanyId) : null;
+        }
+        return company;
+    }
+
+    /**
+     * Gets company with exactly given host from database.
+     * @param entityManager the entity manager
+     * @param host the company host name
+     * @return company or null
+     */
+    private static Company getCompanyByQuery(final EntityManager entityManager, final String host) {
         final CriteriaBuilder queryBuilder = entityManager.getCriteriaBuilder();
         final CriteriaQuery<Company> criteriaQuery = queryBuilder.createQuery(Company.class);
         final Root<Company> companyRoot = criteriaQuery.from(Company.class);
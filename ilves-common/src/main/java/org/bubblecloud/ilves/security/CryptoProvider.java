@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provider of reusable cryptographic primitives. Cipher, MAC and message digest instances
+ * are expensive to look up from security providers and are not thread safe, so each thread
+ * keeps its own instances. Secure randoms are kept per thread as well to avoid contention
+ * on single shared instance. Returned instances must not be held over calls which may use
+ * the same primitive.
+ * <p>
+ * Thread locals are plain {@link ThreadLocal} instances instead of anonymous subclasses, so
+ * the thread local keys do not reference classes of this library. The per-thread instances are
+ * not removed automatically and may reference security provider classes deployed with the
+ * application. The provider is intended for embedded servers, where the application lives as
+ * long as its threads. In a shared container, call {@link #removeThreadInstances()} on threads
+ * that outlive the application, or renew the container threads on redeploy.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class CryptoProvider {
+
+    /** The ciphers of current thread by provider and transformation. */
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>();
+
+    /** The MACs of current thread by algorithm. */
+    private static final ThreadLocal<Map<String, Mac>> macs = new ThreadLocal<Map<String, Mac>>();
+
+    /** The message digests of current thread by algorithm. */
+    private static final ThreadLocal<Map<String, MessageDigest>> digests = new ThreadLocal<Map<String, MessageDigest>>();
+
+    /** The secure random of current thread. */
+    private static final ThreadLocal<SecureRandom> secureRandoms = new ThreadLocal<SecureRandom>();
+
+    /**
+     * Private default constructor to disable construction.
+     */
+    private CryptoProvider() {
+    }
+
+    /**
+     * Gets cipher of current thread. Cipher has to be initialized by caller.
+     *
+     * @param transformation the transformation
+     * @param provider the security provider
+     * @return the cipher
+     */
+    public static Cipher getCipher(final String transformation, final String provider) {
+        final Map<String, Cipher> threadCiphers = getThreadMap(ciphers);
+        final String key = provider + ":" + transformation;
+        Cipher cipher = threadCiphers.get(key);
+        if (cipher == null) {
+            try {
+                cipher = Cipher.getInstance(transformation, provider);
+            } catch (final GeneralSecurityException e) {
+                throw new SecurityException("Error getting cipher: " + transformation, e);
+            }
+            threadCiphers.put(key, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Gets MAC of current thread. MAC has to be initialized with key by caller.
+     *
+     * @param algorithm the MAC algorithm
+     * @return the MAC
+     */
+    public static Mac getMac(final String algorithm) {
+        final Map<String, Mac> threadMacs = getThreadMap(macs);
+        Mac mac = threadMacs.get(algorithm);
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(algorithm);
+            } catch (final GeneralSecurityException e) {
+                throw new SecurityException("Error getting MAC: " + algorithm, e);
+            }
+            threadMacs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * Gets message digest of current thread in reset state.
+     *
+     * @param algorithm the digest algorithm
+     * @return the message digest
+     */
+    public static MessageDigest getDigest(final String algorithm) {
+        final Map<String, MessageDigest> threadDigests = getThreadMap(digests);
+        MessageDigest digest = threadDigests.get(algorithm);
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (final GeneralSecurityException e) {
+                throw new SecurityException("Error getting message digest: " + algorithm, e);
+            }
+            threadDigests.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    /**
+     * Gets secure random of current thread.
+     *
+     * @return the secure random
+     */
+    public static SecureRandom getSecureRandom() {
+        SecureRandom secureRandom = secureRandoms.get();
+        if (secureRandom == null) {
+            secureRandom = new SecureRandom();
+            secureRandoms.set(secureRandom);
+        }
+        return secureRandom;
+    }
+
+    /**
+     * Removes cryptographic primitives of current thread.
+     */
+    public static void removeThreadInstances() {
+        ciphers.remove();
+        macs.remove();
+        digests.remove();
+        secureRandoms.remove();
+    }
+
+    /**
+     * Gets map of current thread from thread local and sets new map if there is none.
+     *
+     * @param threadLocal the thread local
+     * @param <T> the type of the map values
+     * @return the map of current thread
+     */
+    private static <T> Map<String, T> getThreadMap(final ThreadLocal<Map<String, T>> threadLocal) {
+        Map<String, T> threadMap = threadLocal.get();
+        if (threadMap == null) {
+            threadMap = new HashMap<String, T>();
+            threadLocal.set(threadMap);
+        }
+        return threadMap;
+    }
+}
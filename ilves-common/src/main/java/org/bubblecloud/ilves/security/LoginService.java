@@ -15,6 +15,7 @@
  */
 package org.bubblecloud.ilves.security;
 
+import org.bubblecloud.ilves.cache.AccessTokenCache;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.model.UserSession;
@@ -52,11 +53,8 @@ public class LoginService {
             return "message-login-failed-duplicate-login-for-login-transaction-id";
         }
 
-        final String errorKey = PasswordLoginUtil.login(emailAddress, context.getRemoteHost(),
-                context.getRemoteIpAddress(), context.getRemotePort(),
-                context.getEntityManager(), company, user, password);
+        final String errorKey = login(context, company, user, emailAddress, password);
         if (errorKey == null) {
-
             final UserSession userSession = new UserSession();
             userSession.setSessionIdHash(sessionIdHash);
             userSession.setLoginTransactionIdHash(accessTokenHash);
@@ -64,7 +62,26 @@ public class LoginService {
             userSession.setCreated(new Date());
 
             SecurityService.addUserSession(context.getEntityManager(), userSession);
+        }
+        return errorKey;
+    }
 
+    /**
+     * Execute login operations on directory / database layer with given email address and password without
+     * recording user session. Used when issuing signed access tokens which are validated without user session.
+     * This function does not perform user login for web container layer.
+     * @param context the security context
+     * @param company the company
+     * @param user the user
+     * @param emailAddress the email addres
+     * @param password the password
+     * @return null if success or error key
+     */
+    public static String login(final SecurityContext context, final Company company, final User user, final String emailAddress, final char[] password) {
+        final String errorKey = PasswordLoginUtil.login(emailAddress, context.getRemoteHost(),
+                context.getRemoteIpAddress(), context.getRemotePort(),
+                context.getEntityManager(), company, user, password);
+        if (errorKey == null) {
             AuditService.log(context, "password login success", "User", user.getUserId(), user.getEmailAddress());
         } else {
             AuditService.log(context, "password login failure", "User", user != null ? user.getUserId() : null, emailAddress);
@@ -79,6 +96,9 @@ public class LoginService {
      */
     public static void logout(final SecurityContext context) {
         AuditService.log(context, " logout");
+        if (context.getUserId() != null) {
+            AccessTokenCache.invalidateUser(context.getUserId());
+        }
         context.getEntityManager().clear();
         context.getAuditEntityManager().clear();
     }
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.ArrayUtils;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bubblecloud.ilves.exception.ServiceBusyException;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.bubblecloud.ilves.util.StringUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Password hashing utility. Passwords are hashed with PBKDF2-HMAC-SHA256 in versioned format
+ * $pbkdf2-sha256$iterations$salt$hash where iteration count is tunable with password-hash-iterations
+ * site property. Legacy SHA-256 hashes salted with user ID or email address are verified so that
+ * they can be rehashed on successful login.
+ *
+ * Hashing is CPU bound and runs in dedicated bounded thread pool so that login storms can not
+ * saturate CPU with more hashing than there are hashing threads. Calling request thread waits for
+ * the result. Hash requests exceeding pool queue size are rejected immediately and hash requests which
+ * do not start within password-hash-timeout-millis are removed from queue, both with
+ * {@link ServiceBusyException}. PBKDF2 computation can not be interrupted so hash request which has
+ * started is always waited to completion instead of reporting busy while the work still continues.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class PasswordHashUtil {
+    /** The PBKDF2-HMAC-SHA256 hash format prefix. */
+    private static final String PBKDF2_SHA256_PREFIX = "$pbkdf2-sha256$";
+    /** The length of legacy hex encoded SHA-256 hash. */
+    private static final int LEGACY_HASH_LENGTH = 64;
+    /** The salt length in bytes. */
+    private static final int SALT_LENGTH = 16;
+    /** The derived key length in bytes. */
+    private static final int HASH_LENGTH = 32;
+    /** The default iteration count. */
+    private static final int DEFAULT_ITERATIONS = 50000;
+
+    /** The secure random for salt generation. */
+    private static final SecureRandom random = new SecureRandom();
+
+    /** The current iteration count or 0 if not yet read from properties. */
+    private static volatile int iterations;
+    /** The hash timeout in milliseconds. */
+    private static volatile long timeoutMillis;
+    /** The hashing thread pool. */
+    private static volatile ThreadPoolExecutor executor;
+
+    /**
+     * Hashes password in current hash format.
+     *
+     * @param password the password
+     * @return the password hash
+     * @throws ServiceBusyException if hashing thread pool is saturated
+     */
+    public static String hashPassword(final char[] password) {
+        final char[] passwordCopy = password.clone();
+        return execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    return hashPbkdf2Sha256(passwordCopy, getIterations());
+                } finally {
+                    Arrays.fill(passwordCopy, '\u0000');
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks password against user password hash. If password matches and user password hash is not
+     * in current format or has lower cost than currently configured, then password is rehashed.
+     *
+     * @param user the user
+     * @param password the password
+     * @return null if password does not match or password hash to be stored to user which differs from
+     *         current user password hash if password was rehashed.
+     * @throws ServiceBusyException if hashing thread pool is saturated
+     */
+    public static String checkPassword(final User user, final char[] password) {
+        final String passwordHash = user.getPasswordHash();
+        if (passwordHash == null) {
+            return null;
+        }
+        final String userId = user.getUserId();
+        final String emailAddress = user.getEmailAddress();
+        final char[] passwordCopy = password.clone();
+        return execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    final boolean passwordMatch;
+                    if (passwordHash.startsWith(PBKDF2_SHA256_PREFIX)) {
+                        passwordMatch = checkPbkdf2Sha256(passwordHash, passwordCopy);
+                    } else {
+                        passwordMatch = checkLegacy(passwordHash, userId, passwordCopy)
+                                || checkLegacy(passwordHash, emailAddress, passwordCopy);
+                    }
+                    if (!passwordMatch) {
+                        return null;
+                    }
+                    if (isRehashNeeded(passwordHash)) {
+                        return hashPbkdf2Sha256(passwordCopy, getIterations());
+                    }
+                    return passwordHash;
+                } finally {
+                    Arrays.fill(passwordCopy, '\u0000');
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether value is password hash in any supported format. Used to distinguish
+     * new plain text passwords from existing hashes in user editors.
+     *
+     * @param value the value
+     * @return true if value is password hash
+     */
+    public static boolean isPasswordHash(final String value) {
+        if (value == null) {
+            return false;
+        }
+        if (value.startsWith(PBKDF2_SHA256_PREFIX)) {
+            return true;
+        }
+        if (value.length() != LEGACY_HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether password hash should be replaced with hash in current format and cost.
+     *
+     * @param passwordHash the password hash
+     * @return true if rehash is needed
+     */
+    public static boolean isRehashNeeded(final String passwordHash) {
+        if (!passwordHash.startsWith(PBKDF2_SHA256_PREFIX)) {
+            return true;
+        }
+        final String[] parts = passwordHash.split("\\$");
+        try {
+            return parts.length != 5 || Integer.parseInt(parts[2]) < getIterations();
+        } catch (final NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Executes hashing task in hashing thread pool. If task has not started before timeout it is
+     * withdrawn and busy is reported. If task has started it is waited to completion.
+     *
+     * @param task the task
+     * @param <T> the result type
+     * @return the result
+     */
+    private static <T> T execute(final Callable<T> task) {
+        final ThreadPoolExecutor threadPoolExecutor = getExecutor();
+        // Claimed either by pool thread starting the task or by caller withdrawing the task.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final Future<T> future;
+        try {
+            future = threadPoolExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    return task.call();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            throw new ServiceBusyException("Password hashing queue is full.", e);
+        }
+        try {
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                if (claimed.compareAndSet(false, true)) {
+                    future.cancel(false);
+                    threadPoolExecutor.remove((Runnable) future);
+                    throw new ServiceBusyException("Password hashing did not start in time.", e);
+                }
+                return future.get();
+            }
+        } catch (final InterruptedException e) {
+            if (claimed.compareAndSet(false, true)) {
+                future.cancel(false);
+                threadPoolExecutor.remove((Runnable) future);
+            }
+            Thread.currentThread().interrupt();
+            throw new ServiceBusyException("Interrupted while waiting for password hashing.", e);
+        } catch (final ExecutionException e) {
+            throw new SecurityException("Error in password hashing.", e.getCause());
+        }
+    }
+
+    /**
+     * Shuts down hashing thread pool. Thread pool is constructed again with current properties on next use.
+     */
+    static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        iterations = 0;
+    }
+
+    /**
+     * Gets hashing thread pool constructing it on first access.
+     *
+     * @return the thread pool
+     */
+    private static ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            synchronized (PasswordHashUtil.class) {
+                if (executor == null) {
+                    int threads = getIntegerProperty("password-hash-threads", 0);
+                    if (threads <= 0) {
+                        threads = Runtime.getRuntime().availableProcessors();
+                    }
+                    final int queueSize = getIntegerProperty("password-hash-queue-size", 64);
+                    timeoutMillis = getIntegerProperty("password-hash-timeout-millis", 5000);
+                    final AtomicInteger threadCount = new AtomicInteger();
+                    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "ilves-password-hash-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Gets configured PBKDF2 iteration count.
+     *
+     * @return the iteration count
+     */
+    private static int getIterations() {
+        if (iterations == 0) {
+            iterations = getIntegerProperty("password-hash-iterations", DEFAULT_ITERATIONS);
+        }
+        return iterations;
+    }
+
+    /**
+     * Gets integer site property.
+     *
+     * @param key the property key
+     * @param defaultValue the default value if property is not defined
+     * @return the property value
+     */
+    private static int getIntegerProperty(final String key, final int defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Hashes password with PBKDF2-HMAC-SHA256 and random salt.
+     *
+     * @param password the password
+     * @param iterations the iteration count
+     * @return the password hash
+     */
+    private static String hashPbkdf2Sha256(final char[] password, final int iterations) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return PBKDF2_SHA256_PREFIX + iterations + "$" + Base64.encodeBase64String(salt) + "$"
+                + Base64.encodeBase64String(pbkdf2Sha256(password, salt, iterations));
+    }
+
+    /**
+     * Checks password against PBKDF2-HMAC-SHA256 password hash.
+     *
+     * @param passwordHash the password hash
+     * @param password the password
+     * @return true if password matches
+     */
+    private static boolean checkPbkdf2Sha256(final String passwordHash, final char[] password) {
+        final String[] parts = passwordHash.split("\\$");
+        if (parts.length != 5) {
+            return false;
+        }
+        final int hashIterations = Integer.parseInt(parts[2]);
+        final byte[] salt = Base64.decodeBase64(parts[3]);
+        final byte[] hash = Base64.decodeBase64(parts[4]);
+        return MessageDigest.isEqual(hash, pbkdf2Sha256(password, salt, hashIterations));
+    }
+
+    /**
+     * Derives key from password with PBKDF2-HMAC-SHA256.
+     *
+     * @param password the password
+     * @param salt the salt
+     * @param iterations the iteration count
+     * @return the derived key
+     */
+    private static byte[] pbkdf2Sha256(final char[] password, final byte[] salt, final int iterations) {
+        final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+        final byte[] passwordBytes = SecurityUtil.convertCharactersToBytes(password.clone());
+        generator.init(passwordBytes, salt, iterations);
+        final byte[] hash = ((KeyParameter) generator.generateDerivedParameters(HASH_LENGTH * 8)).getKey();
+        Arrays.fill(passwordBytes, (byte) 0);
+        return hash;
+    }
+
+    /**
+     * Checks password against legacy SHA-256 password hash.
+     *
+     * @param passwordHash the password hash
+     * @param salt the salt
+     * @param password the password
+     * @return true if password matches
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     */
+    private static boolean checkLegacy(final String passwordHash, final String salt, final char[] password)
+            throws NoSuchAlgorithmException {
+        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(
+                ArrayUtils.addAll((salt + ":").toCharArray(), password));
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        final String passwordAndSaltDigest = StringUtil.toHexString(md.digest(passwordAndSaltBytes));
+        return MessageDigest.isEqual(passwordAndSaltDigest.getBytes(SecurityUtil.CHARSET),
+                passwordHash.getBytes(SecurityUtil.CHARSET));
+    }
+}
@@ -15,26 +15,30 @@
  */
 package org.bubblecloud.ilves.security;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.ldap.client.api.LdapConnection;
-import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.InMemoryCache;
+import org.bubblecloud.ilves.exception.ServiceBusyException;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.model.UserDirectory;
-import org.bubblecloud.ilves.util.StringUtil;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.joda.time.DateTime;
 
 import javax.persistence.EntityManager;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Password login utility.
@@ -46,6 +50,14 @@ public class PasswordLoginUtil {
     private static final long serialVersionUID = 1L;
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(PasswordLoginUtil.class);
+    /** The compiled subnet white list matchers by user directory ID. */
+    private static final ConcurrentHashMap<String, CidrMatcher> subnetWhiteListMatchers =
+            new ConcurrentHashMap<String, CidrMatcher>();
+    /** The cached remote group memberships by user directory, user DN and requested groups. */
+    private static final InMemoryCache<String, RemoteGroupMembership> remoteGroupMemberships =
+            new InMemoryCache<String, RemoteGroupMembership>(10 * 60 * 1000, 60 * 1000, 10000);
+    /** The remote group membership cache time to live or -1 if not loaded from properties. */
+    private static volatile long remoteGroupCacheTtlMillis = -1;
 
     /**
      * Calculates and sets user password hash. Updates password expiration date.
@@ -60,10 +72,7 @@ public class PasswordLoginUtil {
         if (user.getUserId() == null) {
             user.setUserId(UUID.randomUUID().toString());
         }
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getUserId() + ":").toCharArray(), password));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final byte[] passwordAndSaltDigest = md.digest(passwordAndSaltBytes);
-        user.setPasswordHash(StringUtil.toHexString(passwordAndSaltDigest));
+        user.setPasswordHash(PasswordHashUtil.hashPassword(password));
 
         if (company.getPasswordValidityPeriodDays() != 0) {
             user.setPasswordExpirationDate(new DateTime().plusDays(company.getPasswordValidityPeriodDays()).toDate());
@@ -110,17 +119,17 @@ public class PasswordLoginUtil {
                 if (!userDirectory.isEnabled()) {
                     continue;
                 }
-                final String[] subnets = userDirectory.getSubNetWhiteList().split(",");
-                for (final String subnet : subnets) {
-                    final CidrUtil cidrUtils = new CidrUtil(subnet);
-                    if (cidrUtils.isInRange(remoteIpAddress)) {
-                        return attemptDirectoryLogin(remoteHost, remoteIpAddress, remotePort,
-                                entityManager, company, user, userPassword, userDirectory);
-                    }
+                if (getSubnetWhiteListMatcher(userDirectory).matches(remoteIpAddress)) {
+                    return attemptDirectoryLogin(remoteHost, remoteIpAddress, remotePort,
+                            entityManager, company, user, userPassword, userDirectory);
                 }
             }
 
             return attemptLocalLogin(remoteHost, remoteIpAddress, remotePort, entityManager, company, user, userPassword);
+        } catch (final ServiceBusyException e) {
+            LOGGER.warn("User login rejected due to password hashing overload: " + user.getEmailAddress()
+                    + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
+            return "message-login-busy";
         } catch (final Exception e) {
             LOGGER.error("Error logging in user: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")", e);
@@ -129,6 +138,23 @@ public class PasswordLoginUtil {
 
     }
 
+    /**
+     * Gets compiled subnet white list matcher of user directory. Matchers are cached per user directory
+     * and recompiled when subnet white list of the user directory changes.
+     *
+     * @param userDirectory the user directory
+     * @return the subnet white list matcher
+     */
+    private static CidrMatcher getSubnetWhiteListMatcher(final UserDirectory userDirectory) {
+        final String subnetWhiteList = userDirectory.getSubNetWhiteList();
+        CidrMatcher matcher = subnetWhiteListMatchers.get(userDirectory.getUserDirectoryId());
+        if (matcher == null || !StringUtils.equals(matcher.getSubnets(), subnetWhiteList)) {
+            matcher = new CidrMatcher(subnetWhiteList);
+            subnetWhiteListMatchers.put(userDirectory.getUserDirectoryId(), matcher);
+        }
+        return matcher;
+    }
+
     /**
      * Attempt directory login.
      *
@@ -157,20 +183,17 @@ public class PasswordLoginUtil {
                 + ") email: " + user.getEmailAddress()
                 + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
 
-        final LdapConnection connection = new LdapNetworkConnection(userDirectory.getAddress(),
-                userDirectory.getPort());
+        final UserDirectoryConnectionPool connectionPool = UserDirectoryConnectionPool.getPool(userDirectory);
+        LdapConnection connection = null;
 
         boolean passwordMatch = false;
         try {
-            final String ldapLoginDn = userDirectory.getLoginDn();
-            final String ldapLoginPassword = userDirectory.getLoginPassword();
             final String userEmailAttribute = userDirectory.getUserEmailAttribute();
             final String userSearchBaseDn = userDirectory.getUserSearchBaseDn();
-            final String groupSearchBaseDn = userDirectory.getGroupSearchBaseDn();
 
-            final String userFilter = "(" + userEmailAttribute + "=" + user.getEmailAddress() + ")";
+            final String userFilter = "(" + userEmailAttribute + "=" + escapeFilterValue(user.getEmailAddress()) + ")";
 
-            connection.bind(ldapLoginDn, ldapLoginPassword);
+            connection = connectionPool.borrow();
 
             final EntryCursor userCursor = connection.search(userSearchBaseDn, userFilter, SearchScope.ONELEVEL);
             if (!userCursor.next()) {
@@ -179,16 +202,36 @@ public class PasswordLoginUtil {
                         + ") email: " + user.getEmailAddress()
                         + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")");
                 userCursor.close();
-                connection.unBind();
+                connectionPool.release(connection);
+                connection = null;
                 return "message-directory-user-not-found";
             } else {
                 final Entry userEntry = userCursor.get();
                 userCursor.close();
-                connection.unBind();
-                connection.bind(userEntry.getDn(), new String(userPassword));
+                try {
+                    connection.bind(userEntry.getDn(), new String(userPassword));
+                } catch (final LdapAuthenticationException exception) {
+                    LOGGER.debug("LDAP bind failed: " + user.getEmailAddress(), exception);
+                    connectionPool.release(connection);
+                    connection = null;
+                    throw exception;
+                }
 
-                if (!isInRemoteGroup(connection, groupSearchBaseDn,
-                        userEntry, userDirectory.getRequiredRemoteGroup())) {
+                final Map<String, String> remoteLocalGroupNames = new HashMap<String, String>();
+                for (final String remoteLocalGroupPair :  userDirectory.getRemoteLocalGroupMapping().split(",")) {
+                    final String[] parts = remoteLocalGroupPair.split("=");
+                    if (parts.length != 2) {
+                        continue;
+                    }
+                    remoteLocalGroupNames.put(parts[0].trim(), parts[1].trim());
+                }
+
+                final Set<String> remoteGroups = getRemoteGroups(connection, userDirectory, userEntry,
+                        remoteLocalGroupNames.keySet());
+                connectionPool.release(connection);
+                connection = null;
+
+                if (!remoteGroups.contains(normalizeGroupName(userDirectory.getRequiredRemoteGroup()))) {
                     LOGGER.warn("User not in required remote group '" + userDirectory.getRequiredRemoteGroup()
                             + "', LDAP address: " + userDirectory.getAddress() + ":" + userDirectory.getPort()
                             + ") email: " + user.getEmailAddress()
@@ -202,16 +245,11 @@ public class PasswordLoginUtil {
                     localGroups.put(group.getName(), group);
                 }
 
-                for (final String remoteLocalGroupPair :  userDirectory.getRemoteLocalGroupMapping().split(",")) {
-                    final String[] parts = remoteLocalGroupPair.split("=");
-                    if (parts.length != 2) {
-                        continue;
-                    }
-                    final String remoteGroupName = parts[0].trim();
-                    final String localGroupName = parts[1].trim();
+                for (final Map.Entry<String, String> remoteLocalGroupName : remoteLocalGroupNames.entrySet()) {
+                    final String localGroupName = remoteLocalGroupName.getValue();
 
-                    final boolean remoteGroupMember = isInRemoteGroup(connection, groupSearchBaseDn,
-                            userEntry, remoteGroupName);
+                    final boolean remoteGroupMember = remoteGroups.contains(
+                            normalizeGroupName(remoteLocalGroupName.getKey()));
 
                     final boolean localGroupMember = localGroups.containsKey(localGroupName);
                     final Group localGroup = UserDao.getGroup(entityManager, company, localGroupName);
@@ -235,11 +273,14 @@ public class PasswordLoginUtil {
                 }
 
                 passwordMatch = true;
-                connection.unBind();
             }
         } catch (final LdapException exception) {
             LOGGER.error("LDAP error: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + " (" + remoteIpAddress + "):" + remotePort + ")", exception);
+        } finally {
+            if (connection != null) {
+                connectionPool.invalidate(connection);
+            }
         }
 
         if (passwordMatch) {
@@ -265,23 +306,146 @@ public class PasswordLoginUtil {
     }
 
     /**
-     * Checks whether user is in LDAP group
+     * Gets remote groups of user with single search matching all requested group names. Results are
+     * cached per user directory and user for ldap-group-cache-ttl-millis.
      *
-     * @param connection
-     * @param groupSearchBaseDn
-     * @param userEntry
-     * @param remoteGroupName
-     * @return
-     * @throws Exception
+     * @param connection the connection bound as the user
+     * @param userDirectory the user directory
+     * @param userEntry the user entry
+     * @param remoteGroupNames the mapped remote group names
+     * @return set of normalized names of the requested groups the user is member of
+     * @throws Exception if exception occurs in search
+     */
+    private static Set<String> getRemoteGroups(final LdapConnection connection,
+                                               final UserDirectory userDirectory,
+                                               final Entry userEntry,
+                                               final Set<String> remoteGroupNames) throws Exception {
+        final Set<String> requestedGroupNames = new TreeSet<String>();
+        requestedGroupNames.add(normalizeGroupName(userDirectory.getRequiredRemoteGroup()));
+        for (final String remoteGroupName : remoteGroupNames) {
+            requestedGroupNames.add(normalizeGroupName(remoteGroupName));
+        }
+
+        final String cacheKey = userDirectory.getUserDirectoryId() + ":" + userEntry.getDn()
+                + ":" + requestedGroupNames;
+        final long now = System.currentTimeMillis();
+        final long cacheTtlMillis = getRemoteGroupCacheTtlMillis();
+        if (cacheTtlMillis > 0) {
+            final RemoteGroupMembership cachedMembership = remoteGroupMemberships.get(cacheKey);
+            if (cachedMembership != null && now - cachedMembership.loaded < cacheTtlMillis) {
+                return cachedMembership.groups;
+            }
+        }
+
+        final StringBuilder groupFilter = new StringBuilder();
+        groupFilter.append("(&(uniqueMember=").append(escapeFilterValue(userEntry.getDn().toString())).append(")(|");
+        for (final String requestedGroupName : requestedGroupNames) {
+            groupFilter.append("(cn=").append(escapeFilterValue(requestedGroupName)).append(')');
+        }
+        groupFilter.append("))");
+
+        final Set<String> groups = new HashSet<String>();
+        final EntryCursor groupCursor = connection.search(userDirectory.getGroupSearchBaseDn(),
+                groupFilter.toString(), SearchScope.ONELEVEL, "cn");
+        try {
+            while (groupCursor.next()) {
+                final Attribute commonNames = groupCursor.get().get("cn");
+                if (commonNames == null) {
+                    continue;
+                }
+                for (final Value<?> commonName : commonNames) {
+                    final String groupName = normalizeGroupName(commonName.getString());
+                    if (requestedGroupNames.contains(groupName)) {
+                        groups.add(groupName);
+                    }
+                }
+            }
+        } finally {
+            groupCursor.close();
+        }
+
+        final Set<String> membership = Collections.unmodifiableSet(groups);
+        if (cacheTtlMillis > 0) {
+            remoteGroupMemberships.put(cacheKey, new RemoteGroupMembership(membership, now));
+        }
+        return membership;
+    }
+
+    /**
+     * Normalizes remote group name for case insensitive comparison.
+     *
+     * @param remoteGroupName the remote group name
+     * @return the normalized group name
      */
-    private static boolean isInRemoteGroup(LdapConnection connection,
-                                           String groupSearchBaseDn, Entry userEntry,
-                                           String remoteGroupName) throws Exception {
-        final String groupFilter = "(&(uniqueMember="+ userEntry.getDn() +")(cn=" + remoteGroupName + "))";
-        final EntryCursor groupCursor = connection.search(groupSearchBaseDn, groupFilter, SearchScope.ONELEVEL );
-        final boolean remoteGroupMember = groupCursor.next();
-        groupCursor.close();
-        return remoteGroupMember;
+    private static String normalizeGroupName(final String remoteGroupName) {
+        return remoteGroupName == null ? "" : remoteGroupName.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Escapes LDAP search filter assertion value as defined in RFC 4515.
+     *
+     * @param value the value
+     * @return the escaped value
+     */
+    static String escapeFilterValue(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '*':
+                    escaped.append("\\2a");
+                    break;
+                case '(':
+                    escaped.append("\\28");
+                    break;
+                case ')':
+                    escaped.append("\\29");
+                    break;
+                case '\\':
+                    escaped.append("\\5c");
+                    break;
+                case '\u0000':
+                    escaped.append("\\00");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Gets remote group membership cache time to live.
+     *
+     * @return the time to live in milliseconds or 0 if cache is disabled
+     */
+    private static long getRemoteGroupCacheTtlMillis() {
+        if (remoteGroupCacheTtlMillis < 0) {
+            final String value = PropertiesUtil.getProperty("site", "ldap-group-cache-ttl-millis", false);
+            remoteGroupCacheTtlMillis = value == null || value.trim().length() == 0 ? 60000 : Long.parseLong(value.trim());
+        }
+        return remoteGroupCacheTtlMillis;
+    }
+
+    /**
+     * Cached remote group membership of user.
+     */
+    private static final class RemoteGroupMembership {
+        /** The normalized remote group names. */
+        private final Set<String> groups;
+        /** The load time. */
+        private final long loaded;
+
+        /**
+         * Constructor for setting fields.
+         *
+         * @param groups the normalized remote group names
+         * @param loaded the load time
+         */
+        private RemoteGroupMembership(final Set<String> groups, final long loaded) {
+            this.groups = groups;
+            this.loaded = loaded;
+        }
     }
 
     /**
@@ -314,15 +478,15 @@ public class PasswordLoginUtil {
             return "message-password-expired";
         }
 
-        boolean passwordMatch = checkPasswordMatchWithUserIdAsSalt(user, userPassword);
-
-        if (!passwordMatch) {
-            passwordMatch = checkPasswordMatchWithEmailAsSalt(user, userPassword);
-        }
+        final String passwordHash = PasswordHashUtil.checkPassword(user, userPassword);
 
-        if (passwordMatch) {
+        if (passwordHash != null) {
             LOGGER.info("User login: " + user.getEmailAddress()
                     + " (Remote address: " + remoteHost + ":" + remotePort + ")");
+            if (!passwordHash.equals(user.getPasswordHash())) {
+                LOGGER.info("User password rehashed: " + user.getEmailAddress());
+                user.setPasswordHash(passwordHash);
+            }
             user.setFailedLoginCount(0);
             UserDao.updateUser(entityManager, user);
 
@@ -343,20 +507,4 @@ public class PasswordLoginUtil {
             return "message-login-failed";
         }
     }
-
-    private static boolean checkPasswordMatchWithUserIdAsSalt(User user, char[] userPassword) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getUserId() + ":").toCharArray(), userPassword));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final String passwordAndSaltDigest = StringUtil.toHexString(md.digest(passwordAndSaltBytes));
-        return passwordAndSaltDigest.equals(user.getPasswordHash());
-    }
-
-    private static boolean checkPasswordMatchWithEmailAsSalt(User user, char[] userPassword) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((user.getEmailAddress() + ":").toCharArray(), userPassword));
-        final MessageDigest md = MessageDigest.getInstance("SHA-256");
-        final String passwordAndSaltDigest = StringUtil.toHexString(md.digest(passwordAndSaltBytes));
-        return passwordAndSaltDigest.equals(user.getPasswordHash());
-    }
-
-
 }
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.Privilege;
+import org.bubblecloud.ilves.model.User;
+
+import javax.persistence.EntityManager;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Group and user privileges of owner company to single data item. Matrix is loaded with
+ * constant number of queries and modifications are tracked so that only changed cells
+ * are written on save.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class PrivilegeMatrix implements Serializable {
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The owner company. */
+    private final Company owner;
+    /** The data ID. */
+    private final String dataId;
+    /** The privilege keys. */
+    private final String[] privilegeKeys;
+    /** The groups of the owner company. */
+    private final List<Group> groups;
+    /** The page of users of the owner company. */
+    private final List<User> users;
+    /** The loaded privileges by cell key. */
+    private final Map<String, List<Privilege>> privileges = new HashMap<String, List<Privilege>>();
+    /** The privileges to be added by cell key. */
+    private final Map<String, Privilege> addedPrivileges = new LinkedHashMap<String, Privilege>();
+    /** The privileges to be removed by cell key. */
+    private final Map<String, List<Privilege>> removedPrivileges = new LinkedHashMap<String, List<Privilege>>();
+
+    /**
+     * Constructor for setting loaded matrix contents.
+     *
+     * @param owner the owner company
+     * @param dataId the data ID
+     * @param privilegeKeys the privilege keys
+     * @param groups the groups
+     * @param users the users
+     * @param privileges the privileges
+     */
+    private PrivilegeMatrix(final Company owner, final String dataId, final String[] privilegeKeys,
+                            final List<Group> groups, final List<User> users,
+                            final Collection<Privilege> privileges) {
+        this.owner = owner;
+        this.dataId = dataId;
+        this.privilegeKeys = privilegeKeys.clone();
+        this.groups = Collections.unmodifiableList(groups);
+        this.users = Collections.unmodifiableList(users);
+        for (final Privilege privilege : privileges) {
+            final String cellKey;
+            if (privilege.getGroup() != null) {
+                cellKey = getGroupCellKey(privilege.getGroup(), privilege.getKey());
+            } else {
+                cellKey = getUserCellKey(privilege.getUser(), privilege.getKey());
+            }
+            if (!this.privileges.containsKey(cellKey)) {
+                this.privileges.put(cellKey, new ArrayList<Privilege>(1));
+            }
+            this.privileges.get(cellKey).add(privilege);
+        }
+    }
+
+    /**
+     * Loads privilege matrix with one query for groups, one for page of users and one for privileges.
+     * Users are paged with keyset so that large companies do not load all users to memory.
+     *
+     * @param entityManager the entity manager
+     * @param owner the owner company
+     * @param dataId the data ID
+     * @param afterUser the last user of previous page or null for the first page
+     * @param maxUsers the maximum number of users on page
+     * @param privilegeKeys the privilege keys
+     * @return the privilege matrix
+     */
+    public static PrivilegeMatrix load(final EntityManager entityManager, final Company owner,
+                                       final String dataId, final User afterUser, final int maxUsers,
+                                       final String... privilegeKeys) {
+        final List<User> users = UserDao.getUsers(entityManager, owner, afterUser, maxUsers);
+        return new PrivilegeMatrix(owner, dataId, privilegeKeys,
+                UserDao.getGroups(entityManager, owner), users,
+                UserDao.listPrivileges(entityManager, owner, users, dataId, Arrays.asList(privilegeKeys)));
+    }
+
+    public Company getOwner() {
+        return owner;
+    }
+
+    public String getDataId() {
+        return dataId;
+    }
+
+    public String[] getPrivilegeKeys() {
+        return privilegeKeys.clone();
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Checks whether group has privilege taking unsaved modifications into account.
+     *
+     * @param group the group
+     * @param privilegeKey the privilege key
+     * @return true if group has privilege
+     */
+    public boolean hasGroupPrivilege(final Group group, final String privilegeKey) {
+        return hasPrivilege(getGroupCellKey(group, privilegeKey));
+    }
+
+    /**
+     * Checks whether user has privilege taking unsaved modifications into account.
+     *
+     * @param user the user
+     * @param privilegeKey the privilege key
+     * @return true if user has privilege
+     */
+    public boolean hasUserPrivilege(final User user, final String privilegeKey) {
+        return hasPrivilege(getUserCellKey(user, privilegeKey));
+    }
+
+    /**
+     * Grants or revokes group privilege. Modification is written on save.
+     *
+     * @param group the group
+     * @param privilegeKey the privilege key
+     * @param privileged true if group should have privilege
+     */
+    public void setGroupPrivilege(final Group group, final String privilegeKey, final boolean privileged) {
+        setPrivilege(getGroupCellKey(group, privilegeKey), privileged,
+                new Privilege(group, null, privilegeKey, dataId));
+    }
+
+    /**
+     * Grants or revokes user privilege. Modification is written on save.
+     *
+     * @param user the user
+     * @param privilegeKey the privilege key
+     * @param privileged true if user should have privilege
+     */
+    public void setUserPrivilege(final User user, final String privilegeKey, final boolean privileged) {
+        setPrivilege(getUserCellKey(user, privilegeKey), privileged,
+                new Privilege(null, user, privilegeKey, dataId));
+    }
+
+    /**
+     * @return true if matrix has unsaved modifications
+     */
+    public boolean isModified() {
+        return !addedPrivileges.isEmpty() || !removedPrivileges.isEmpty();
+    }
+
+    /**
+     * @return the new privileges to be added
+     */
+    public List<Privilege> getAddedPrivileges() {
+        return new ArrayList<Privilege>(addedPrivileges.values());
+    }
+
+    /**
+     * @return the existing privileges to be removed
+     */
+    public List<Privilege> getRemovedPrivileges() {
+        final List<Privilege> removed = new ArrayList<Privilege>();
+        for (final List<Privilege> cellPrivileges : removedPrivileges.values()) {
+            removed.addAll(cellPrivileges);
+        }
+        return removed;
+    }
+
+    /**
+     * Checks whether cell is privileged taking unsaved modifications into account.
+     *
+     * @param cellKey the cell key
+     * @return true if cell is privileged
+     */
+    private boolean hasPrivilege(final String cellKey) {
+        if (addedPrivileges.containsKey(cellKey)) {
+            return true;
+        }
+        if (removedPrivileges.containsKey(cellKey)) {
+            return false;
+        }
+        return privileges.containsKey(cellKey);
+    }
+
+    /**
+     * Records modification of cell.
+     *
+     * @param cellKey the cell key
+     * @param privileged true if cell should be privileged
+     * @param privilege the new privilege to add if cell is not privileged
+     */
+    private void setPrivilege(final String cellKey, final boolean privileged, final Privilege privilege) {
+        if (privileges.containsKey(cellKey)) {
+            if (privileged) {
+                removedPrivileges.remove(cellKey);
+            } else {
+                removedPrivileges.put(cellKey, privileges.get(cellKey));
+            }
+        } else {
+            if (privileged) {
+                addedPrivileges.put(cellKey, privilege);
+            } else {
+                addedPrivileges.remove(cellKey);
+            }
+        }
+    }
+
+    /**
+     * Gets cell key of group privilege.
+     *
+     * @param group the group
+     * @param privilegeKey the privilege key
+     * @return the cell key
+     */
+    private static String getGroupCellKey(final Group group, final String privilegeKey) {
+        return "group:" + group.getGroupId() + ":" + privilegeKey;
+    }
+
+    /**
+     * Gets cell key of user privilege.
+     *
+     * @param user the user
+     * @param privilegeKey the privilege key
+     * @return the cell key
+     */
+    private static String getUserCellKey(final User user, final String privilegeKey) {
+        return "user:" + user.getUserId() + ":" + privilegeKey;
+    }
+
+}
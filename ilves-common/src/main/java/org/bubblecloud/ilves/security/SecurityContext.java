@@ -2,6 +2,7 @@ package org.bubblecloud.ilves.security;
 
 import org.apache.commons.lang.StringUtils;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesSnapshot;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 
 import javax.persistence.EntityManager;
@@ -106,8 +107,9 @@ public class SecurityContext {
                            final List<String> roles) {
         this.entityManager = entityManager;
         this.auditEntityManager = auditEntityManager;
-        this.componentPort = Integer.parseInt(PropertiesUtil.getProperty("site", "http-port"));
-        this.componentType = PropertiesUtil.getProperty("site", "site-type");
+        final PropertiesSnapshot siteProperties = PropertiesUtil.getSnapshot("site");
+        this.componentPort = siteProperties.getInteger("http-port", 0);
+        this.componentType = siteProperties.getString("site-type");
         this.serverName = request.getServerName();
         this.localIpAddress = request.getLocalAddr();
         setRemoteDetails(request);
@@ -129,12 +131,13 @@ public class SecurityContext {
                            final HttpServletRequest request) {
         this.entityManager = entityManager;
         this.auditEntityManager = auditEntityManager;
-        if (Integer.parseInt(PropertiesUtil.getProperty("site", "https-port")) == 0) {
-            this.componentPort = Integer.parseInt(PropertiesUtil.getProperty("site", "http-port"));
+        final PropertiesSnapshot siteProperties = PropertiesUtil.getSnapshot("site");
+        if (siteProperties.getInteger("https-port", 0) == 0) {
+            this.componentPort = siteProperties.getInteger("http-port", 0);
         } else {
-            this.componentPort = Integer.parseInt(PropertiesUtil.getProperty("site", "https-port"));
+            this.componentPort = siteProperties.getInteger("https-port", 0);
         }
-        this.componentType = PropertiesUtil.getProperty("site", "site-type");
+        this.componentType = siteProperties.getString("site-type");
         this.serverName = request.getServerName();
         this.localIpAddress = request.getLocalAddr();
         setRemoteDetails(request);
@@ -10,7 +10,10 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by tlaukkan on 12/14/2014.
@@ -159,6 +162,21 @@ public class SecurityService {
         AuditService.log(context, "update", "user", user.getUserId(), user.getEmailAddress());
     }
 
+    /**
+     * Revokes all signed access tokens issued to user before current time.
+     * @param context the processing context
+     * @param user the user
+     */
+    public static final void revokeAccessTokens(final SecurityContext context, final User user) {
+        if (user.getUserId().equals(context.getUserId())) {
+            requireRole("revoke-access-tokens", context, DefaultRoles.ADMINISTRATOR, DefaultRoles.USER);
+        } else {
+            requireRole("revoke-access-tokens", context, DefaultRoles.ADMINISTRATOR);
+        }
+        UserDao.revokeAccessTokens(context.getEntityManager(), user.getUserId());
+        AuditService.log(context, "revoke access tokens", "user", user.getUserId(), user.getEmailAddress());
+    }
+
     /**
      * Removes user from database.
      * @param context the processing context
@@ -294,6 +312,154 @@ public class SecurityService {
         AuditService.log(context, group.getName()  + " had " + privilegeKey + " revoked", dataType, dataId, dataLabel);
     }
 
+    /**
+     * Adds user privileges to given data in single transaction.
+     * @param context the processing context
+     * @param user the user
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs
+     */
+    public static void addUserPrivileges(final SecurityContext context, final User user, final String privilegeKey,
+                                         final String dataType, final List<String> dataIds) {
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, dataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.addUserPrivileges(context.getEntityManager(), user, privilegeKey, dataIds);
+        for (final String dataId : dataIds) {
+            AuditService.log(context, user.getEmailAddress() + " had " + privilegeKey + " granted", dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Adds group privileges to given data in single transaction.
+     * @param context the processing context
+     * @param group the group
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs
+     */
+    public static void addGroupPrivileges(final SecurityContext context, final Group group, final String privilegeKey,
+                                          final String dataType, final List<String> dataIds) {
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, dataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.addGroupPrivileges(context.getEntityManager(), group, privilegeKey, dataIds);
+        for (final String dataId : dataIds) {
+            AuditService.log(context, group.getName() + " had " + privilegeKey + " granted", dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Removes user privileges to given data in single transaction.
+     * @param context the processing context
+     * @param user the user
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs
+     */
+    public static void removeUserPrivileges(final SecurityContext context, final User user, final String privilegeKey,
+                                            final String dataType, final List<String> dataIds) {
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, dataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.removeUserPrivileges(context.getEntityManager(), user, privilegeKey, dataIds);
+        for (final String dataId : dataIds) {
+            AuditService.log(context, user.getEmailAddress() + " had " + privilegeKey + " revoked", dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Removes group privileges to given data in single transaction.
+     * @param context the processing context
+     * @param group the group
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs
+     */
+    public static void removeGroupPrivileges(final SecurityContext context, final Group group, final String privilegeKey,
+                                             final String dataType, final List<String> dataIds) {
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, dataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.removeGroupPrivileges(context.getEntityManager(), group, privilegeKey, dataIds);
+        for (final String dataId : dataIds) {
+            AuditService.log(context, group.getName() + " had " + privilegeKey + " revoked", dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Replaces user privileges to given data in single transaction. User will have the privilege
+     * to granted data IDs and privileges to other listed data IDs are removed.
+     * @param context the processing context
+     * @param user the user
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs whose privileges are replaced
+     * @param grantedDataIds the data IDs the user should have privilege to
+     */
+    public static void replaceUserPrivileges(final SecurityContext context, final User user, final String privilegeKey,
+                                             final String dataType, final List<String> dataIds,
+                                             final List<String> grantedDataIds) {
+        final Set<String> allDataIds = new LinkedHashSet<String>(dataIds);
+        allDataIds.addAll(grantedDataIds);
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, allDataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.replaceUserPrivileges(context.getEntityManager(), user, privilegeKey, dataIds, grantedDataIds);
+        for (final String dataId : allDataIds) {
+            AuditService.log(context, user.getEmailAddress() + " had " + privilegeKey
+                    + (grantedDataIds.contains(dataId) ? " granted" : " revoked"), dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Replaces group privileges to given data in single transaction. Group will have the privilege
+     * to granted data IDs and privileges to other listed data IDs are removed.
+     * @param context the processing context
+     * @param group the group
+     * @param privilegeKey the privilegeKey
+     * @param dataType the data type
+     * @param dataIds the data IDs whose privileges are replaced
+     * @param grantedDataIds the data IDs the group should have privilege to
+     */
+    public static void replaceGroupPrivileges(final SecurityContext context, final Group group, final String privilegeKey,
+                                              final String dataType, final List<String> dataIds,
+                                              final List<String> grantedDataIds) {
+        final Set<String> allDataIds = new LinkedHashSet<String>(dataIds);
+        allDataIds.addAll(grantedDataIds);
+        requirePrivileges(DefaultPrivileges.ADMINISTER, dataType, allDataIds, context, DefaultRoles.ADMINISTRATOR);
+        UserDao.replaceGroupPrivileges(context.getEntityManager(), group, privilegeKey, dataIds, grantedDataIds);
+        for (final String dataId : allDataIds) {
+            AuditService.log(context, group.getName() + " had " + privilegeKey
+                    + (grantedDataIds.contains(dataId) ? " granted" : " revoked"), dataType, dataId, null);
+        }
+    }
+
+    /**
+     * Saves modified cells of privilege matrix to database in single transaction.
+     * @param context the processing context
+     * @param privilegeMatrix the privilege matrix
+     * @param dataType the data type
+     * @param dataLabel the data label
+     */
+    public static void updatePrivileges(final SecurityContext context, final PrivilegeMatrix privilegeMatrix,
+                                        final String dataType, final String dataLabel) {
+        final String dataId = privilegeMatrix.getDataId();
+        requirePrivilege(DefaultPrivileges.ADMINISTER, dataType, dataId, dataLabel, context, DefaultRoles.ADMINISTRATOR);
+        final List<Privilege> addedPrivileges = privilegeMatrix.getAddedPrivileges();
+        final List<Privilege> removedPrivileges = privilegeMatrix.getRemovedPrivileges();
+        UserDao.updatePrivileges(context.getEntityManager(), privilegeMatrix.getOwner(),
+                addedPrivileges, removedPrivileges);
+        for (final Privilege privilege : addedPrivileges) {
+            AuditService.log(context, getPrivilegeHolderName(privilege) + " had " + privilege.getKey() + " granted",
+                    dataType, dataId, dataLabel);
+        }
+        for (final Privilege privilege : removedPrivileges) {
+            AuditService.log(context, getPrivilegeHolderName(privilege) + " had " + privilege.getKey() + " revoked",
+                    dataType, dataId, dataLabel);
+        }
+    }
+
+    /**
+     * Gets name of the group or user holding privilege for audit log.
+     * @param privilege the privilege
+     * @return the group name or user email address
+     */
+    private static String getPrivilegeHolderName(final Privilege privilege) {
+        return privilege.getGroup() != null ? privilege.getGroup().getName() : privilege.getUser().getEmailAddress();
+    }
+
     /**
      * Require privilege to given data or one of the listed roles.
      * @param key the privilege key
@@ -303,9 +469,9 @@ public class SecurityService {
      * @param context the processing context
      * @param roles the privileged roles
      */
-    private static synchronized void requirePrivilege(final String key,
-                                                      final String dataType, final String dataId, final String dataLabel,
-                                                      final SecurityContext context, final String... roles) {
+    private static void requirePrivilege(final String key,
+                                         final String dataType, final String dataId, final String dataLabel,
+                                         final SecurityContext context, final String... roles) {
         for (final String role : roles) {
             if (context.getRoles().contains(role)) {
                 AuditService.log(context, key + " access granted based on role " + role);
@@ -319,6 +485,28 @@ public class SecurityService {
         AuditService.log(context, key + " access granted based on privilege", dataType, dataId, dataLabel);
     }
 
+    /**
+     * Require privilege to each of given data or one of the listed roles.
+     * @param key the privilege key
+     * @param dataType the data type
+     * @param dataIds the data IDs
+     * @param context the processing context
+     * @param roles the privileged roles
+     */
+    private static void requirePrivileges(final String key,
+                                          final String dataType, final Collection<String> dataIds,
+                                          final SecurityContext context, final String... roles) {
+        for (final String role : roles) {
+            if (context.getRoles().contains(role)) {
+                AuditService.log(context, key + " access granted based on role " + role);
+                return;
+            }
+        }
+        for (final String dataId : dataIds) {
+            requirePrivilege(key, dataType, dataId, null, context);
+        }
+    }
+
     /**
      * Require one of the following roles for privilege identified by privilege key.
      * @param key the privilege key
@@ -344,7 +532,7 @@ public class SecurityService {
      * @param dataId the data ID
      * @return true if privilege exists on given data.
      */
-    private static synchronized boolean hasPrivilege(final String key, final String dataId, final SecurityContext context) {
+    private static boolean hasPrivilege(final String key, final String dataId, final SecurityContext context) {
         final EntityManager entityManager = context.getEntityManager();
         final Company company = context.getObject(Company.class);
 
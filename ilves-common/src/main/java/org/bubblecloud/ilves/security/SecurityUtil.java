@@ -6,6 +6,7 @@ import org.apache.log4j.Logger;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
+import org.bubblecloud.ilves.cache.InMemoryCache;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.bubblecloud.ilves.util.StringUtil;
@@ -20,7 +21,6 @@ import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Arrays;
@@ -64,8 +64,24 @@ public class SecurityUtil {
      * Default initialization vector for encrypted configuration.
      */
     public static final byte[] CONFIGURATION_ENCRYPTION_IV = Hex.decode("1aa13e4a6f1a022b51b550fffcd43021");
-    /** The secure random. */
-    private static SecureRandom random = new SecureRandom();
+    /**
+     * The symmetric cipher transformation.
+     */
+    public static final String SYMMETRIC_CIPHER_TRANSFORMATION = SYMMETRIC_ENCRYPTION_ALGORITHM + "/CBC/PKCS5Padding";
+    /**
+     * The hash algorithm.
+     */
+    public static final String HASH_ALGORITHM = "SHA-256";
+    /** The configuration encoding secret key. */
+    private static final SecretKeySpec configurationKey = new SecretKeySpec(CONFIGURATION_ENCODING_SECRET_KEY,
+            SYMMETRIC_ENCRYPTION_ALGORITHM);
+    /** The configuration encryption initialization vector. */
+    private static final IvParameterSpec configurationIv = new IvParameterSpec(CONFIGURATION_ENCRYPTION_IV);
+    /** The keys derived from current key encryption secret key. */
+    private static volatile DerivedKeys derivedKeys;
+    /** The decrypted device secrets by encrypted device secret. */
+    private static final InMemoryCache<String, String> deviceSecretCache = new InMemoryCache<String, String>(
+            60 * 1000, 15 * 1000, 1000);
     /** The access token lifetime in milliseconds. */
     public static final long ACCESS_TOKEN_LIFETIME_MILLIS = 15 * 60 * 1000;
 
@@ -75,7 +91,7 @@ public class SecurityUtil {
      * @return new system secret key
      */
     public static String generateKeyEncryptionSecretKey() {
-        final SecureRandom secureRandom = new SecureRandom();
+        final SecureRandom secureRandom = CryptoProvider.getSecureRandom();
         byte[] secretKeyBytes = new byte[SYMMETRIC_ENCRYPTION_KEY_SIZE / 8];
         secureRandom.nextBytes(secretKeyBytes);
         return encodeConfiguration(Hex.toHexString(secretKeyBytes));
@@ -89,12 +105,10 @@ public class SecurityUtil {
      * @param plainText the plain text
      * @return the cipher text
      */
-    private static String encrypt(final byte[] iv, final byte[] secretKey, final String plainText) {
+    private static String encrypt(final IvParameterSpec iv, final SecretKeySpec secretKey, final String plainText) {
         try {
-            final SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey,
-                    SYMMETRIC_ENCRYPTION_ALGORITHM);
-            final Cipher cipher = Cipher.getInstance(secretKeySpec.getAlgorithm() + "/CBC/PKCS5Padding", PROVIDER);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+            final Cipher cipher = CryptoProvider.getCipher(SYMMETRIC_CIPHER_TRANSFORMATION, PROVIDER);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, iv);
             return new String(Base64.encode(cipher.doFinal(plainText.getBytes(CHARSET))), CHARSET);
         } catch (final Exception e) {
             throw new SecurityException("Error encoding", e);
@@ -109,12 +123,10 @@ public class SecurityUtil {
      * @param cipherText the cipher text
      * @return the plain text
      */
-    private static String decrypt(final byte[] iv, final byte[] secretKey, final String cipherText) {
+    private static String decrypt(final IvParameterSpec iv, final SecretKeySpec secretKey, final String cipherText) {
         try {
-            final SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey,
-                    SYMMETRIC_ENCRYPTION_ALGORITHM);
-            final Cipher cipher = Cipher.getInstance(secretKeySpec.getAlgorithm() + "/CBC/PKCS5Padding", PROVIDER);
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+            final Cipher cipher = CryptoProvider.getCipher(SYMMETRIC_CIPHER_TRANSFORMATION, PROVIDER);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
             return new String(cipher.doFinal(Base64.decode(cipherText.getBytes(CHARSET))), CHARSET);
         } catch (final Exception e) {
             throw new SecurityException("Error dencoding", e);
@@ -128,7 +140,7 @@ public class SecurityUtil {
      * @return the encoded configuration text
      */
     private static String encodeConfiguration(final String plainText) {
-        return encrypt(CONFIGURATION_ENCRYPTION_IV, CONFIGURATION_ENCODING_SECRET_KEY, plainText);
+        return encrypt(configurationIv, configurationKey, plainText);
     }
 
     /**
@@ -138,7 +150,7 @@ public class SecurityUtil {
      * @return the plain configuration
      */
     private static String decodeConfiguration(final String encodedText) {
-        return decrypt(CONFIGURATION_ENCRYPTION_IV, CONFIGURATION_ENCODING_SECRET_KEY, encodedText);
+        return decrypt(configurationIv, configurationKey, encodedText);
     }
 
     /**
@@ -148,9 +160,7 @@ public class SecurityUtil {
      * @return the cipher text
      */
     public static String encryptSecretKey(final String plainText) {
-        final String systemEncodedSecretKey = PropertiesUtil.getProperty("site", "key-encryption-secret-key");
-        final String systemSecretKey = decodeConfiguration(systemEncodedSecretKey);
-        return encrypt(CONFIGURATION_ENCRYPTION_IV, Hex.decode(systemSecretKey), plainText);
+        return encrypt(configurationIv, getDerivedKeys().keyEncryptionKey, plainText);
     }
 
     /**
@@ -168,9 +178,62 @@ public class SecurityUtil {
                 LOGGER.error("Attempt to write candidate key to key-encryption-secret-key-candidate.properties failed", e);
             }
         }
+        return decrypt(configurationIv, getDerivedKeys().keyEncryptionKey, cipherText);
+    }
+
+    /**
+     * Decrypts authentication device secret with key encryption secret key. Decrypted secrets
+     * are cached for a short while as same device secrets are decrypted repeatedly during login.
+     *
+     * @param encryptedSecret the encrypted device secret
+     * @return the device secret
+     */
+    public static String decryptDeviceSecret(final String encryptedSecret) {
+        final String cachedSecret = deviceSecretCache.get(encryptedSecret);
+        if (cachedSecret != null) {
+            return cachedSecret;
+        }
+        final String secret = decryptSecretKey(encryptedSecret);
+        deviceSecretCache.put(encryptedSecret, secret);
+        return secret;
+    }
+
+    /**
+     * @return the decrypted device secret cache
+     */
+    static InMemoryCache<String, String> getDeviceSecretCache() {
+        return deviceSecretCache;
+    }
+
+    /**
+     * Gets keys derived from current key encryption secret key. Keys are derived again
+     * if key encryption secret key property has changed.
+     *
+     * @return the derived keys
+     */
+    private static DerivedKeys getDerivedKeys() {
         final String systemEncodedSecretKey = PropertiesUtil.getProperty("site", "key-encryption-secret-key");
-        final String systemSecretKey = decodeConfiguration(systemEncodedSecretKey);
-        return decrypt(CONFIGURATION_ENCRYPTION_IV, Hex.decode(systemSecretKey), cipherText);
+        if (systemEncodedSecretKey == null) {
+            throw new SecurityException("Key encryption secret key is not defined.");
+        }
+        DerivedKeys keys = derivedKeys;
+        if (keys == null || !keys.encodedSecretKey.equals(systemEncodedSecretKey)) {
+            keys = new DerivedKeys(systemEncodedSecretKey);
+            derivedKeys = keys;
+            // Device secrets decrypted with previous key are not valid with the new key.
+            deviceSecretCache.clear();
+        }
+        return keys;
+    }
+
+    /**
+     * Gets secret key for signing self contained access tokens. The key is derived from key encryption
+     * secret key so that no separate secret needs to be configured.
+     *
+     * @return the signing secret key
+     */
+    public static byte[] getAccessTokenSigningKey() {
+        return getDerivedKeys().accessTokenSigningKey.clone();
     }
 
     /**
@@ -179,14 +242,8 @@ public class SecurityUtil {
      * @return the hash as hex encoded string
      */
     public static String calculateHash(String stringValue) {
-        final MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-            md.update(stringValue.getBytes("UTF-8")); // Change this to "UTF-16" if needed
-        } catch (final Exception e) {
-            throw new RuntimeException("Unable to compute session ID hash.", e);
-        }
-        return org.apache.commons.codec.binary.Hex.encodeHexString(md.digest());
+        final MessageDigest md = CryptoProvider.getDigest(HASH_ALGORITHM);
+        return org.apache.commons.codec.binary.Hex.encodeHexString(md.digest(stringValue.getBytes(CHARSET)));
     }
 
     /**
@@ -194,21 +251,13 @@ public class SecurityUtil {
      * @return the access token
      */
     public static char[] generateAccessToken() {
-        final char[] accessToken;
-        synchronized (random) {
-            accessToken = org.apache.commons.codec.binary.Hex.encodeHex(new BigInteger(130, random).toByteArray());
-        }
-        return accessToken;
+        return org.apache.commons.codec.binary.Hex.encodeHex(
+                new BigInteger(130, CryptoProvider.getSecureRandom()).toByteArray());
     }
 
     public static String getSecretHash(final char[] secret) {
         final byte[] accessTokenHashBytes = convertCharactersToBytes(secret);
-        final MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new SecurityException(e);
-        }
+        final MessageDigest md = CryptoProvider.getDigest(HASH_ALGORITHM);
         return StringUtil.toHexString(md.digest(accessTokenHashBytes));
     }
 
@@ -225,4 +274,30 @@ public class SecurityUtil {
         Arrays.fill(byteBuffer.array(), (byte) 0);
         return bytes;
     }
+
+    /**
+     * Keys derived from key encryption secret key.
+     */
+    private static final class DerivedKeys {
+        /** The encoded key encryption secret key the keys were derived from. */
+        private final String encodedSecretKey;
+        /** The key encryption secret key. */
+        private final SecretKeySpec keyEncryptionKey;
+        /** The access token signing key. */
+        private final byte[] accessTokenSigningKey;
+
+        /**
+         * Constructor which derives the keys.
+         *
+         * @param encodedSecretKey the encoded key encryption secret key
+         */
+        private DerivedKeys(final String encodedSecretKey) {
+            this.encodedSecretKey = encodedSecretKey;
+            final byte[] secretKey = Hex.decode(decodeConfiguration(encodedSecretKey));
+            keyEncryptionKey = new SecretKeySpec(secretKey, SYMMETRIC_ENCRYPTION_ALGORITHM);
+            final MessageDigest md = CryptoProvider.getDigest(HASH_ALGORITHM);
+            md.update("access-token-signing-key:".getBytes(CHARSET));
+            accessTokenSigningKey = md.digest(secretKey);
+        }
+    }
 }
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+
+/**
+ * Self contained access token signed with HMAC-SHA256. Signed access tokens carry company, user and
+ * validity period so that they can be validated without user session lookup from database.
+ * Signed access tokens are enabled with access-token-signed site property.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class SignedAccessToken {
+    /** The MAC algorithm. */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    /** The token format version. */
+    private static final String VERSION = "1";
+
+    /** The company ID. */
+    private final String companyId;
+    /** The user ID. */
+    private final String userId;
+    /** The issue time in milliseconds. */
+    private final long issued;
+    /** The expiration time in milliseconds. */
+    private final long expires;
+
+    /**
+     * Constructor for setting token fields.
+     *
+     * @param companyId the company ID
+     * @param userId the user ID
+     * @param issued the issue time in milliseconds
+     * @param expires the expiration time in milliseconds
+     */
+    private SignedAccessToken(final String companyId, final String userId, final long issued, final long expires) {
+        this.companyId = companyId;
+        this.userId = userId;
+        this.issued = issued;
+        this.expires = expires;
+    }
+
+    public String getCompanyId() {
+        return companyId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getIssued() {
+        return issued;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Checks whether signed access tokens are issued instead of stored access tokens.
+     *
+     * @return true if signed access tokens are enabled
+     */
+    public static boolean isEnabled() {
+        return "true".equals(PropertiesUtil.getProperty("site", "access-token-signed", false));
+    }
+
+    /**
+     * Checks whether access token is in signed access token format.
+     *
+     * @param accessToken the access token
+     * @return true if access token is signed access token
+     */
+    public static boolean isSigned(final char[] accessToken) {
+        for (final char c : accessToken) {
+            if (c == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generates signed access token.
+     *
+     * @param company the company
+     * @param user the user
+     * @param lifetimeMillis the access token lifetime in milliseconds
+     * @return the signed access token
+     */
+    public static char[] generate(final Company company, final User user, final long lifetimeMillis) {
+        final long issued = System.currentTimeMillis();
+        final String payload = Base64.encodeBase64URLSafeString((VERSION + ":" + company.getCompanyId() + ":"
+                + user.getUserId() + ":" + issued + ":" + (issued + lifetimeMillis)).getBytes(SecurityUtil.CHARSET));
+        return (payload + "." + Base64.encodeBase64URLSafeString(sign(payload))).toCharArray();
+    }
+
+    /**
+     * Verifies signature and validity period of signed access token.
+     *
+     * @param accessToken the access token
+     * @return the signed access token or null if access token is malformed, forged or expired.
+     */
+    public static SignedAccessToken verify(final char[] accessToken) {
+        final String token = new String(accessToken);
+        final int separatorIndex = token.indexOf('.');
+        if (separatorIndex < 1) {
+            return null;
+        }
+        final String payload = token.substring(0, separatorIndex);
+        final byte[] signature = Base64.decodeBase64(token.substring(separatorIndex + 1));
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        final String[] fields = new String(Base64.decodeBase64(payload), SecurityUtil.CHARSET).split(":");
+        if (fields.length != 5 || !VERSION.equals(fields[0])) {
+            return null;
+        }
+        final SignedAccessToken signedAccessToken;
+        try {
+            signedAccessToken = new SignedAccessToken(fields[1], fields[2],
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= signedAccessToken.getExpires()) {
+            return null;
+        }
+        return signedAccessToken;
+    }
+
+    /**
+     * Calculates signature of payload.
+     *
+     * @param payload the payload
+     * @return the signature
+     */
+    private static byte[] sign(final String payload) {
+        try {
+            final Mac mac = CryptoProvider.getMac(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(SecurityUtil.getAccessTokenSigningKey(), MAC_ALGORITHM));
+            return mac.doFinal(payload.getBytes(SecurityUtil.CHARSET));
+        } catch (final Exception e) {
+            throw new SecurityException("Error signing access token.", e);
+        }
+    }
+}
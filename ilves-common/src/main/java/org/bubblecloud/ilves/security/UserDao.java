@@ -16,15 +16,33 @@
 package org.bubblecloud.ilves.security;
 
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.AccessTokenCache;
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.cache.UserClientCertificateCache;
+import org.bubblecloud.ilves.exception.SiteException;
 import org.bubblecloud.ilves.model.*;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * User data access object.
@@ -35,6 +53,8 @@ public class UserDao {
 
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(UserDao.class);
+    /** The maximum number of data IDs in single privilege query parameter list. */
+    private static final int PRIVILEGE_BATCH_SIZE = 500;
 
     /**
      * Adds user to database.
@@ -46,6 +66,7 @@ public class UserDao {
         if (!user.getOwner().equals(defaultGroup.getOwner())) {
             throw new RuntimeException("User and group are not owner by same company.");
         }
+        requireCertificateNotAssignedToOtherUser(entityManager, user);
         final EntityTransaction transaction = entityManager.getTransaction();
         transaction.begin();
         try {
@@ -54,6 +75,7 @@ public class UserDao {
                 entityManager.persist(new GroupMember(defaultGroup, user));
             }
             transaction.commit();
+            UserClientCertificateCache.update(user);
         } catch (final Exception e) {
             LOGGER.error("Error in add user.", e);
             if (transaction.isActive()) {
@@ -69,12 +91,15 @@ public class UserDao {
      * @param user the user
      */
     protected static final void updateUser(final EntityManager entityManager, final User user) {
+        requireCertificateNotAssignedToOtherUser(entityManager, user);
         final EntityTransaction transaction = entityManager.getTransaction();
         transaction.begin();
         try {
             user.setModified(new Date());
             entityManager.persist(user);
             transaction.commit();
+            AccessTokenCache.invalidateUser(user.getUserId());
+            UserClientCertificateCache.update(user);
         } catch (final Exception e) {
             LOGGER.error("Error in update user.", e);
             if (transaction.isActive()) {
@@ -84,6 +109,32 @@ public class UserDao {
         }
     }
 
+    /**
+     * Revokes signed access tokens issued to user before current time. Invoked only on explicit request
+     * as it invalidates the API access of all clients of the user.
+     * @param entityManager the entity manager
+     * @param userId the user ID
+     */
+    public static final void revokeAccessTokens(final EntityManager entityManager, final String userId) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            entityManager.createQuery("update User u set u.accessTokensRevoked = :accessTokensRevoked " +
+                    "where u.userId = :userId")
+                    .setParameter("accessTokensRevoked", new Date())
+                    .setParameter("userId", userId)
+                    .executeUpdate();
+            transaction.commit();
+            AccessTokenCache.invalidateUser(userId);
+        } catch (final Exception e) {
+            LOGGER.error("Error in revoke access tokens.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Removes user from database.
      * @param entityManager the entity manager
@@ -95,6 +146,8 @@ public class UserDao {
         try {
             entityManager.remove(user);
             transaction.commit();
+            AccessTokenCache.invalidateUser(user.getUserId());
+            UserClientCertificateCache.remove(user);
         } catch (final Exception e) {
             LOGGER.error("Error in remove user.", e);
             if (transaction.isActive()) {
@@ -118,6 +171,40 @@ public class UserDao {
         }
     }
 
+    /**
+     * Checks whether TLS client certificate of user has been assigned to another user.
+     * @param entityManager the entity manager.
+     * @param user the user
+     * @return true if another user has the same certificate
+     */
+    public static final boolean isCertificateAssignedToOtherUser(final EntityManager entityManager, final User user) {
+        if (user.getCertificateFingerprint() == null) {
+            return false;
+        }
+        final TypedQuery<String> query = entityManager.createQuery("select e.userId from User as e " +
+                "where e.certificateFingerprint=:certificateFingerprint", String.class);
+        query.setParameter("certificateFingerprint", user.getCertificateFingerprint());
+        for (final String userId : query.getResultList()) {
+            if (!userId.equals(user.getUserId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Requires that TLS client certificate of user has not been assigned to another user.
+     * @param entityManager the entity manager.
+     * @param user the user
+     * @throws SiteException if another user has the same certificate
+     */
+    private static void requireCertificateNotAssignedToOtherUser(final EntityManager entityManager, final User user) {
+        if (isCertificateAssignedToOtherUser(entityManager, user)) {
+            throw new SiteException("TSL client certificate of user " + user.getEmailAddress()
+                    + " has already been assigned to another user: " + user.getCertificateFingerprint());
+        }
+    }
+
     /**
      * Gets given email password reset.
      * @param entityManager the entity manager.
@@ -215,30 +302,193 @@ public class UserDao {
     }
 
     /**
-     * Gets list of users.
+     * Gets list of users of owner company.
      * @param entityManager the entity manager.
      * @param owner the owning company
      * @return list of users
      */
     public static final List<User> getUsers(final EntityManager entityManager, final Company owner) {
         final TypedQuery<User> query = entityManager.createQuery(
-                "select e from User as e order by e.lastName, e.firstName",
+                "select e from User as e where e.owner=:owner order by e.lastName, e.firstName, e.userId",
                 User.class);
+        query.setParameter("owner", owner);
         return  query.getResultList();
     }
 
     /**
-     * Gets list of groups.
+     * Gets page of users of owner company ordered by last name, first name and ID. Page is located
+     * with the last user of the previous page instead of offset so that the cost of the query does
+     * not grow with page depth.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param afterUser the last user of the previous page or null for the first page
+     * @param maxResults the maximum page size
+     * @return page of users
+     */
+    public static final List<User> getUsers(final EntityManager entityManager, final Company owner,
+                                            final User afterUser, final int maxResults) {
+        return getUsers(entityManager, owner, afterUser, maxResults, false);
+    }
+
+    /**
+     * Iterates all users of owner company in pages of given size. Users are loaded read only and are not
+     * retained in persistence context so that memory use stays constant regardless of user count.
+     * Iterated users must not be modified.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param batchSize the number of users loaded per query
+     * @return iterable of users
+     */
+    public static final Iterable<User> iterateUsers(final EntityManager entityManager, final Company owner,
+                                                    final int batchSize) {
+        return new KeysetIterable<User>() {
+            @Override
+            protected List<User> loadBatch(final User last) {
+                return getUsers(entityManager, owner, last, batchSize, true);
+            }
+        };
+    }
+
+    /**
+     * Gets page of users.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param afterUser the last user of the previous page or null for the first page
+     * @param maxResults the maximum page size
+     * @param readOnly true if users are loaded read only
+     * @return page of users
+     */
+    private static List<User> getUsers(final EntityManager entityManager, final Company owner,
+                                       final User afterUser, final int maxResults, final boolean readOnly) {
+        final TypedQuery<User> query;
+        if (afterUser == null) {
+            query = entityManager.createQuery(
+                    "select e from User as e where e.owner=:owner order by e.lastName, e.firstName, e.userId",
+                    User.class);
+        } else {
+            query = entityManager.createQuery(
+                    "select e from User as e where e.owner=:owner and (e.lastName > :lastName"
+                            + " or (e.lastName = :lastName and e.firstName > :firstName)"
+                            + " or (e.lastName = :lastName and e.firstName = :firstName and e.userId > :userId))"
+                            + " order by e.lastName, e.firstName, e.userId",
+                    User.class);
+            query.setParameter("lastName", afterUser.getLastName());
+            query.setParameter("firstName", afterUser.getFirstName());
+            query.setParameter("userId", afterUser.getUserId());
+        }
+        query.setParameter("owner", owner);
+        if (readOnly) {
+            query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+        }
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
+    /**
+     * Gets number of users of owner company.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @return number of users
+     */
+    public static final long countUsers(final EntityManager entityManager, final Company owner) {
+        final TypedQuery<Long> query = entityManager.createQuery(
+                "select count(e) from User as e where e.owner=:owner", Long.class);
+        query.setParameter("owner", owner);
+        return query.getSingleResult();
+    }
+
+    /**
+     * Gets list of groups of owner company.
      * @param entityManager the entity manager.
      * @param owner the owning company
      * @return list of groups
      */
     public static final List<Group> getGroups(final EntityManager entityManager, final Company owner) {
-        final TypedQuery<Group> query = entityManager.createQuery("select e from Group as e order by e.name",
+        final TypedQuery<Group> query = entityManager.createQuery(
+                "select e from Group as e where e.owner=:owner order by e.name, e.groupId",
                 Group.class);
+        query.setParameter("owner", owner);
         return  query.getResultList();
     }
 
+    /**
+     * Gets page of groups of owner company ordered by name and ID. Page is located with the last group
+     * of the previous page instead of offset.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param afterGroup the last group of the previous page or null for the first page
+     * @param maxResults the maximum page size
+     * @return page of groups
+     */
+    public static final List<Group> getGroups(final EntityManager entityManager, final Company owner,
+                                              final Group afterGroup, final int maxResults) {
+        return getGroups(entityManager, owner, afterGroup, maxResults, false);
+    }
+
+    /**
+     * Iterates all groups of owner company in pages of given size. Groups are loaded read only and are not
+     * retained in persistence context. Iterated groups must not be modified.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param batchSize the number of groups loaded per query
+     * @return iterable of groups
+     */
+    public static final Iterable<Group> iterateGroups(final EntityManager entityManager, final Company owner,
+                                                      final int batchSize) {
+        return new KeysetIterable<Group>() {
+            @Override
+            protected List<Group> loadBatch(final Group last) {
+                return getGroups(entityManager, owner, last, batchSize, true);
+            }
+        };
+    }
+
+    /**
+     * Gets page of groups.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @param afterGroup the last group of the previous page or null for the first page
+     * @param maxResults the maximum page size
+     * @param readOnly true if groups are loaded read only
+     * @return page of groups
+     */
+    private static List<Group> getGroups(final EntityManager entityManager, final Company owner,
+                                         final Group afterGroup, final int maxResults, final boolean readOnly) {
+        final TypedQuery<Group> query;
+        if (afterGroup == null) {
+            query = entityManager.createQuery(
+                    "select e from Group as e where e.owner=:owner order by e.name, e.groupId",
+                    Group.class);
+        } else {
+            query = entityManager.createQuery(
+                    "select e from Group as e where e.owner=:owner and (e.name > :name"
+                            + " or (e.name = :name and e.groupId > :groupId))"
+                            + " order by e.name, e.groupId",
+                    Group.class);
+            query.setParameter("name", afterGroup.getName());
+            query.setParameter("groupId", afterGroup.getGroupId());
+        }
+        query.setParameter("owner", owner);
+        if (readOnly) {
+            query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+        }
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
+    /**
+     * Gets number of groups of owner company.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @return number of groups
+     */
+    public static final long countGroups(final EntityManager entityManager, final Company owner) {
+        final TypedQuery<Long> query = entityManager.createQuery(
+                "select count(e) from Group as e where e.owner=:owner", Long.class);
+        query.setParameter("owner", owner);
+        return query.getSingleResult();
+    }
+
     /**
      * Gets list of groups for given user.
      * @param entityManager the entity manager.
@@ -309,6 +559,7 @@ public class UserDao {
             group.setModified(new Date());
             entityManager.persist(group);
             transaction.commit();
+            AccessTokenCache.invalidateCompany(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in update group.", e);
             if (transaction.isActive()) {
@@ -329,6 +580,7 @@ public class UserDao {
         try {
             entityManager.remove(group);
             transaction.commit();
+            AccessTokenCache.invalidateCompany(group.getOwner());
         } catch (final Exception e) {
             LOGGER.error("Error in remove group.", e);
             if (transaction.isActive()) {
@@ -385,6 +637,7 @@ public class UserDao {
         try {
             entityManager.persist(new GroupMember(group, user));
             transaction.commit();
+            AccessTokenCache.invalidateUser(user.getUserId());
         } catch (final Exception e) {
             LOGGER.error("Error in add group member.", e);
             if (transaction.isActive()) {
@@ -413,6 +666,7 @@ public class UserDao {
             try {
                 entityManager.remove(groupMembers.get(0));
                 transaction.commit();
+                AccessTokenCache.invalidateUser(user.getUserId());
             } catch (final Exception e) {
                 LOGGER.error("Error in remove group member.", e);
                 if (transaction.isActive()) {
@@ -442,30 +696,18 @@ public class UserDao {
             }
             throw new RuntimeException(e);
         }
+        PrivilegeCache.flush(user.getOwner());
     }
 
     /**
-     * Adds new user privileges to database.
+     * Adds new user privileges to database in single transaction. Existing privileges are not duplicated.
      * @param entityManager the entity manager
      * @param user the user
      * @param privilegeKey the privilegeKey
      * @param dataIds the dataIds
      */
     protected static void addUserPrivileges(final EntityManager entityManager, final User user, final String privilegeKey, final List<String> dataIds) {
-        final EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
-        try {
-            for (final String dataId : dataIds) {
-                entityManager.persist(new Privilege(null, user, privilegeKey, dataId));
-            }
-            transaction.commit();
-        } catch (final Exception e) {
-            LOGGER.error("Error in adding user privilege.", e);
-            if (transaction.isActive()) {
-                transaction.rollback();
-            }
-            throw new RuntimeException(e);
-        }
+        mutatePrivileges(entityManager, null, user, privilegeKey, dataIds, Collections.<String>emptyList());
     }
 
     /**
@@ -489,10 +731,11 @@ public class UserDao {
             }
             throw new RuntimeException(e);
         }
+        PrivilegeCache.flush(group.getOwner());
     }
 
     /**
-     * Adds new group privilege to database.
+     * Adds new group privileges to database in single transaction. Existing privileges are not duplicated.
      * @param entityManager the entity manager
      * @param group the group
      * @param privilegeKey the privilegeKey
@@ -500,20 +743,7 @@ public class UserDao {
      */
     protected static void addGroupPrivileges(final EntityManager entityManager,
                                          final Group group, final String privilegeKey, final List<String> dataIds) {
-        final EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
-        try {
-            for (final String dataId : dataIds) {
-                entityManager.persist(new Privilege(group, null, privilegeKey, dataId));
-            }
-            transaction.commit();
-        } catch (final Exception e) {
-            LOGGER.error("Error in adding group privilege.", e);
-            if (transaction.isActive()) {
-                transaction.rollback();
-            }
-            throw new RuntimeException(e);
-        }
+        mutatePrivileges(entityManager, group, null, privilegeKey, dataIds, Collections.<String>emptyList());
     }
 
     /**
@@ -545,39 +775,18 @@ public class UserDao {
             }
             throw new RuntimeException(e);
         }
+        PrivilegeCache.flush(user.getOwner());
     }
 
     /**
-     * Removes user privileges from database.
+     * Removes user privileges from database in single transaction.
      * @param entityManager the entity manager
      * @param user the user
      * @param privilegeKey the privilegeKey
      * @param dataIds the dataIds
      */
     protected static void removeUserPrivileges(final EntityManager entityManager, final User user, final String privilegeKey, final List<String> dataIds) {
-        final EntityTransaction transaction = entityManager.getTransaction();
-        transaction.begin();
-        try {
-            for (final String dataId : dataIds) {
-                final TypedQuery<Privilege> query = entityManager.createQuery(
-                        "select e from Privilege as e where e.user=:user and e.key=:key and e.dataId=:dataId",
-                        Privilege.class);
-                query.setParameter("user", user);
-                query.setParameter("key", privilegeKey);
-                query.setParameter("dataId", dataId);
-                final List<Privilege> privileges = query.getResultList();
-                if (privileges.size() > 0) {
-                    entityManager.remove(privileges.get(0));
-                }
-            }
-            transaction.commit();
-        } catch (final Exception e) {
-            LOGGER.error("Error in removing user privilege.", e);
-            if (transaction.isActive()) {
-                transaction.rollback();
-            }
-            throw new RuntimeException(e);
-        }
+        mutatePrivileges(entityManager, null, user, privilegeKey, Collections.<String>emptyList(), dataIds);
     }
 
     /**
@@ -609,39 +818,162 @@ public class UserDao {
             }
             throw new RuntimeException(e);
         }
+        PrivilegeCache.flush(group.getOwner());
     }
 
     /**
-     * Removes group privileges from database.
+     * Removes group privileges from database in single transaction.
      * @param entityManager the entity manager
      * @param group the group
      * @param privilegeKey the privilegeKey
      * @param dataIds the dataIds
      */
-    protected static void removeGroupPrivilege(final EntityManager entityManager, final Group group, final String privilegeKey, final List<String> dataIds) {
+    protected static void removeGroupPrivileges(final EntityManager entityManager, final Group group,
+                                                final String privilegeKey, final Collection<String> dataIds) {
+        mutatePrivileges(entityManager, group, null, privilegeKey, Collections.<String>emptyList(), dataIds);
+    }
+
+    /**
+     * Replaces user privileges of given data IDs in single transaction. User will have the privilege
+     * to granted data IDs and privileges to other listed data IDs are removed.
+     * @param entityManager the entity manager
+     * @param user the user
+     * @param privilegeKey the privilegeKey
+     * @param dataIds the data IDs whose privileges are replaced
+     * @param grantedDataIds the data IDs the user should have privilege to
+     */
+    protected static void replaceUserPrivileges(final EntityManager entityManager, final User user,
+                                                final String privilegeKey, final Collection<String> dataIds,
+                                                final Collection<String> grantedDataIds) {
+        final Set<String> revokedDataIds = new HashSet<String>(dataIds);
+        revokedDataIds.removeAll(grantedDataIds);
+        mutatePrivileges(entityManager, null, user, privilegeKey, grantedDataIds, revokedDataIds);
+    }
+
+    /**
+     * Replaces group privileges of given data IDs in single transaction. Group will have the privilege
+     * to granted data IDs and privileges to other listed data IDs are removed.
+     * @param entityManager the entity manager
+     * @param group the group
+     * @param privilegeKey the privilegeKey
+     * @param dataIds the data IDs whose privileges are replaced
+     * @param grantedDataIds the data IDs the group should have privilege to
+     */
+    protected static void replaceGroupPrivileges(final EntityManager entityManager, final Group group,
+                                                 final String privilegeKey, final Collection<String> dataIds,
+                                                 final Collection<String> grantedDataIds) {
+        final Set<String> revokedDataIds = new HashSet<String>(dataIds);
+        revokedDataIds.removeAll(grantedDataIds);
+        mutatePrivileges(entityManager, group, null, privilegeKey, grantedDataIds, revokedDataIds);
+    }
+
+    /**
+     * Grants and revokes privileges of either group or user in single transaction. Revoked privileges are
+     * removed with bulk deletes and missing granted privileges are inserted with JDBC batches on the
+     * connection of the transaction. Privilege cache of the owner company is flushed once after commit.
+     * @param entityManager the entity manager
+     * @param group the group or null if user privileges are modified
+     * @param user the user or null if group privileges are modified
+     * @param privilegeKey the privilegeKey
+     * @param grantedDataIds the data IDs to grant privilege to
+     * @param revokedDataIds the data IDs to revoke privilege from
+     */
+    private static void mutatePrivileges(final EntityManager entityManager, final Group group, final User user,
+                                         final String privilegeKey, final Collection<String> grantedDataIds,
+                                         final Collection<String> revokedDataIds) {
+        if (grantedDataIds.isEmpty() && revokedDataIds.isEmpty()) {
+            return;
+        }
+        final String holderField = group != null ? "group" : "user";
+        final Object holder = group != null ? group : user;
         final EntityTransaction transaction = entityManager.getTransaction();
         transaction.begin();
         try {
-            for (final String dataId : dataIds) {
-                final TypedQuery<Privilege> query = entityManager.createQuery(
-                        "select e from Privilege as e where e.group=:group and e.key=:key and e.dataId=:dataId",
-                        Privilege.class);
-                query.setParameter("group", group);
+            final List<String> revoked = new ArrayList<String>(new LinkedHashSet<String>(revokedDataIds));
+            for (int i = 0; i < revoked.size(); i += PRIVILEGE_BATCH_SIZE) {
+                entityManager.createQuery("delete from Privilege e where e." + holderField + "=:holder"
+                        + " and e.key=:key and e.dataId in :dataIds")
+                        .setParameter("holder", holder)
+                        .setParameter("key", privilegeKey)
+                        .setParameter("dataIds", revoked.subList(i, Math.min(i + PRIVILEGE_BATCH_SIZE, revoked.size())))
+                        .executeUpdate();
+            }
+
+            final List<String> granted = new ArrayList<String>(new LinkedHashSet<String>(grantedDataIds));
+            final Set<String> existing = new HashSet<String>();
+            for (int i = 0; i < granted.size(); i += PRIVILEGE_BATCH_SIZE) {
+                final TypedQuery<String> query = entityManager.createQuery("select e.dataId from Privilege e where e."
+                        + holderField + "=:holder and e.key=:key and e.dataId in :dataIds", String.class);
+                query.setParameter("holder", holder);
                 query.setParameter("key", privilegeKey);
-                query.setParameter("dataId", dataId);
-                final List<Privilege> privileges = query.getResultList();
-                if (privileges.size() > 0) {
-                    entityManager.remove(privileges.get(0));
+                query.setParameter("dataIds", granted.subList(i, Math.min(i + PRIVILEGE_BATCH_SIZE, granted.size())));
+                existing.addAll(query.getResultList());
+            }
+            final List<Privilege> inserted = new ArrayList<Privilege>();
+            for (final String dataId : granted) {
+                if (!existing.contains(dataId)) {
+                    inserted.add(new Privilege(group, user, privilegeKey, dataId));
                 }
             }
+            insertPrivileges(entityManager, inserted);
             transaction.commit();
         } catch (final Exception e) {
-            LOGGER.error("Error in removing group privilege.", e);
+            LOGGER.error("Error in modifying " + holderField + " privileges.", e);
             if (transaction.isActive()) {
                 transaction.rollback();
             }
             throw new RuntimeException(e);
         }
+        PrivilegeCache.flush(group != null ? group.getOwner() : user.getOwner());
+    }
+
+    /**
+     * Inserts privileges with JDBC batches on the connection of the active transaction. The site persistence
+     * unit does not enable EclipseLink batch writing, so persisting the privileges one by one would cost
+     * one round trip per row.
+     * @param entityManager the entity manager with active transaction
+     * @param privileges the privileges to insert
+     * @throws SQLException if insert fails
+     */
+    private static void insertPrivileges(final EntityManager entityManager, final List<Privilege> privileges)
+            throws SQLException {
+        if (privileges.isEmpty()) {
+            return;
+        }
+        entityManager.flush();
+        final Connection connection = entityManager.unwrap(Connection.class);
+        try (final PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO privilege (privilegeid, group_groupid, user_userid, key, dataid, created)"
+                        + " VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < privileges.size(); i++) {
+                final Privilege privilege = privileges.get(i);
+                preparedStatement.setString(1, UUID.randomUUID().toString().toUpperCase());
+                preparedStatement.setString(2, privilege.getGroup() != null
+                        ? privilege.getGroup().getGroupId() : null);
+                preparedStatement.setString(3, privilege.getUser() != null
+                        ? privilege.getUser().getUserId() : null);
+                preparedStatement.setString(4, privilege.getKey());
+                preparedStatement.setString(5, privilege.getDataId());
+                preparedStatement.setTimestamp(6, new Timestamp(privilege.getCreated().getTime()));
+                preparedStatement.addBatch();
+                if ((i + 1) % PRIVILEGE_BATCH_SIZE == 0 || i + 1 == privileges.size()) {
+                    preparedStatement.executeBatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes group privileges from database.
+     * @param entityManager the entity manager
+     * @param group the group
+     * @param privilegeKey the privilegeKey
+     * @param dataIds the dataIds
+     * @deprecated use {@link #removeGroupPrivileges(EntityManager, Group, String, Collection)}
+     */
+    @Deprecated
+    protected static void removeGroupPrivilege(final EntityManager entityManager, final Group group, final String privilegeKey, final List<String> dataIds) {
+        removeGroupPrivileges(entityManager, group, privilegeKey, dataIds);
     }
     /**
      * Check if user has given privilege.
@@ -690,6 +1022,34 @@ public class UserDao {
         return query.getResultList();
     }
 
+    /**
+     * Get privileges of all groups owned by given company.
+     * @param entityManager the entity manager
+     * @param owner the owning company
+     * @return list of group privileges.
+     */
+    public static List<Privilege> getCompanyGroupPrivileges(final EntityManager entityManager, final Company owner) {
+        final TypedQuery<Privilege> query = entityManager.createQuery(
+                "select e from Privilege as e where e.group.owner=:owner",
+                Privilege.class);
+        query.setParameter("owner", owner);
+        return query.getResultList();
+    }
+
+    /**
+     * Get privileges of all users owned by given company.
+     * @param entityManager the entity manager
+     * @param owner the owning company
+     * @return list of user privileges.
+     */
+    public static List<Privilege> getCompanyUserPrivileges(final EntityManager entityManager, final Company owner) {
+        final TypedQuery<Privilege> query = entityManager.createQuery(
+                "select e from Privilege as e where e.user.owner=:owner",
+                Privilege.class);
+        query.setParameter("owner", owner);
+        return query.getResultList();
+    }
+
     /**
      * Check if group has given privilege.
      * @param entityManager the entity manager
@@ -725,4 +1085,172 @@ public class UserDao {
         query.setParameter("dataId", dataId);
         return query.getResultList();
     }
+
+    /**
+     * Lists group privileges of owner company and privileges of given users for given data and privilege keys
+     * in single query.
+     * @param entityManager the entity manager
+     * @param owner the owner company
+     * @param users the users whose privileges are listed
+     * @param dataId the dataId
+     * @param privilegeKeys the privilege keys
+     * @return list of privileges
+     */
+    public static List<Privilege> listPrivileges(final EntityManager entityManager, final Company owner,
+                                                 final List<User> users, final String dataId,
+                                                 final Collection<String> privilegeKeys) {
+        if (privilegeKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final TypedQuery<Privilege> query = entityManager.createQuery(
+                "select e from Privilege as e left join e.group as g left join e.user as u " +
+                        "where e.dataId=:dataId and e.key in :keys and (g.owner=:owner"
+                        + (users.isEmpty() ? ")" : " or u in :users)"),
+                Privilege.class);
+        query.setParameter("dataId", dataId);
+        query.setParameter("keys", new ArrayList<String>(privilegeKeys));
+        query.setParameter("owner", owner);
+        if (!users.isEmpty()) {
+            query.setParameter("users", users);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Adds and removes privileges of owner company in single transaction. Groups and users of added
+     * privileges have to exist and belong to the owner company. Removed privileges are deleted with bulk
+     * deletes and added privileges are inserted with JDBC batches on the connection of the transaction.
+     * Privilege cache of the owner company is flushed once after commit.
+     * @param entityManager the entity manager
+     * @param owner the owner company
+     * @param addedPrivileges the new privileges to persist
+     * @param removedPrivileges the existing privileges to remove
+     */
+    protected static void updatePrivileges(final EntityManager entityManager, final Company owner,
+                                           final Collection<Privilege> addedPrivileges,
+                                           final Collection<Privilege> removedPrivileges) {
+        if (addedPrivileges.isEmpty() && removedPrivileges.isEmpty()) {
+            return;
+        }
+        requirePrivilegeHoldersExist(entityManager, owner, addedPrivileges);
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            final List<String> removedIds = new ArrayList<String>(removedPrivileges.size());
+            for (final Privilege privilege : removedPrivileges) {
+                removedIds.add(privilege.getPrivilegeId());
+            }
+            for (int i = 0; i < removedIds.size(); i += PRIVILEGE_BATCH_SIZE) {
+                entityManager.createQuery("delete from Privilege e where e.privilegeId in :privilegeIds")
+                        .setParameter("privilegeIds",
+                                removedIds.subList(i, Math.min(i + PRIVILEGE_BATCH_SIZE, removedIds.size())))
+                        .executeUpdate();
+            }
+            insertPrivileges(entityManager, new ArrayList<Privilege>(addedPrivileges));
+            transaction.commit();
+        } catch (final Exception e) {
+            LOGGER.error("Error in updating privileges.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+        PrivilegeCache.flush(owner);
+    }
+
+    /**
+     * Requires that groups and users of given privileges exist and belong to owner company.
+     * @param entityManager the entity manager
+     * @param owner the owner company
+     * @param privileges the privileges
+     * @throws SiteException if group or user does not exist or belongs to other company
+     */
+    private static void requirePrivilegeHoldersExist(final EntityManager entityManager, final Company owner,
+                                                     final Collection<Privilege> privileges) {
+        final List<String> groupIds = new ArrayList<String>();
+        final List<String> userIds = new ArrayList<String>();
+        for (final Privilege privilege : privileges) {
+            if (privilege.getGroup() != null) {
+                groupIds.add(privilege.getGroup().getGroupId());
+            } else if (privilege.getUser() != null) {
+                userIds.add(privilege.getUser().getUserId());
+            } else {
+                throw new SiteException("Privilege has neither group nor user: " + privilege.getKey());
+            }
+        }
+        final List<String> distinctGroupIds = new ArrayList<String>(new LinkedHashSet<String>(groupIds));
+        for (int i = 0; i < distinctGroupIds.size(); i += PRIVILEGE_BATCH_SIZE) {
+            final List<String> batch = distinctGroupIds.subList(i,
+                    Math.min(i + PRIVILEGE_BATCH_SIZE, distinctGroupIds.size()));
+            final TypedQuery<Long> query = entityManager.createQuery("select count(e) from Group as e"
+                    + " where e.owner=:owner and e.groupId in :ids", Long.class);
+            query.setParameter("owner", owner);
+            query.setParameter("ids", batch);
+            if (query.getSingleResult().longValue() != batch.size()) {
+                throw new SiteException("Privilege group does not exist in company: " + owner.getHost());
+            }
+        }
+        final List<String> distinctUserIds = new ArrayList<String>(new LinkedHashSet<String>(userIds));
+        for (int i = 0; i < distinctUserIds.size(); i += PRIVILEGE_BATCH_SIZE) {
+            final List<String> batch = distinctUserIds.subList(i,
+                    Math.min(i + PRIVILEGE_BATCH_SIZE, distinctUserIds.size()));
+            final TypedQuery<Long> query = entityManager.createQuery("select count(e) from User as e"
+                    + " where e.owner=:owner and e.userId in :ids", Long.class);
+            query.setParameter("owner", owner);
+            query.setParameter("ids", batch);
+            if (query.getSingleResult().longValue() != batch.size()) {
+                throw new SiteException("Privilege user does not exist in company: " + owner.getHost());
+            }
+        }
+    }
+
+    /**
+     * Iterable loading entities in batches located by the last entity of the previous batch.
+     * @param <T> the entity type
+     */
+    private abstract static class KeysetIterable<T> implements Iterable<T> {
+
+        /**
+         * Loads batch following given entity.
+         * @param last the last entity of previous batch or null for the first batch
+         * @return the batch or empty list if there are no more entities
+         */
+        protected abstract List<T> loadBatch(final T last);
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                /** The current batch. */
+                private List<T> batch = loadBatch(null);
+                /** The index of next entity in current batch. */
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    if (index < batch.size()) {
+                        return true;
+                    }
+                    if (batch.isEmpty()) {
+                        return false;
+                    }
+                    batch = loadBatch(batch.get(batch.size() - 1));
+                    index = 0;
+                    return !batch.isEmpty();
+                }
+
+                @Override
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return batch.get(index++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Pool of LDAP connections to user directory. Connections are kept open between logins to avoid
+ * TCP handshakes. Borrowed connections are health checked by binding with the directory login DN,
+ * which also resets the identity left by previous user bind. Connections idle longer than
+ * ldap-pool-idle-timeout-millis are closed instead of reused.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class UserDirectoryConnectionPool {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(UserDirectoryConnectionPool.class);
+
+    /** The pools by user directory ID. */
+    private static final ConcurrentHashMap<String, UserDirectoryConnectionPool> pools =
+            new ConcurrentHashMap<String, UserDirectoryConnectionPool>();
+
+    /** The directory address. */
+    private final String address;
+    /** The directory port. */
+    private final int port;
+    /** The login DN. */
+    private final String loginDn;
+    /** The login password. */
+    private final String loginPassword;
+    /** The maximum number of idle connections. */
+    private final int maxIdle;
+    /** The idle timeout in milliseconds. */
+    private final long idleTimeoutMillis;
+    /** The idle connections, most recently used first. */
+    private final LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<IdleConnection>();
+    /** Whether pool has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Constructor for setting pool configuration.
+     *
+     * @param address the directory address
+     * @param port the directory port
+     * @param loginDn the login DN
+     * @param loginPassword the login password
+     * @param maxIdle the maximum number of idle connections
+     * @param idleTimeoutMillis the idle timeout in milliseconds
+     */
+    public UserDirectoryConnectionPool(final String address, final int port, final String loginDn,
+                                       final String loginPassword, final int maxIdle,
+                                       final long idleTimeoutMillis) {
+        this.address = address;
+        this.port = port;
+        this.loginDn = loginDn;
+        this.loginPassword = loginPassword;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Gets connection pool of user directory. Pool is replaced if directory connection details change.
+     *
+     * @param userDirectory the user directory
+     * @return the connection pool
+     */
+    public static UserDirectoryConnectionPool getPool(final UserDirectory userDirectory) {
+        final UserDirectoryConnectionPool pool = pools.get(userDirectory.getUserDirectoryId());
+        if (pool != null && pool.isConfiguredFor(userDirectory)) {
+            return pool;
+        }
+        synchronized (pools) {
+            final UserDirectoryConnectionPool currentPool = pools.get(userDirectory.getUserDirectoryId());
+            if (currentPool != null && currentPool.isConfiguredFor(userDirectory)) {
+                return currentPool;
+            }
+            final UserDirectoryConnectionPool newPool = new UserDirectoryConnectionPool(
+                    userDirectory.getAddress(), userDirectory.getPort(),
+                    userDirectory.getLoginDn(), userDirectory.getLoginPassword(),
+                    getIntegerProperty("ldap-pool-max-idle", 8),
+                    getIntegerProperty("ldap-pool-idle-timeout-millis", 60000));
+            pools.put(userDirectory.getUserDirectoryId(), newPool);
+            if (currentPool != null) {
+                currentPool.close();
+            }
+            return newPool;
+        }
+    }
+
+    /**
+     * Closes all user directory connection pools. Called on site shutdown.
+     */
+    public static void closePools() {
+        synchronized (pools) {
+            final Iterator<Map.Entry<String, UserDirectoryConnectionPool>> iterator = pools.entrySet().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().getValue().close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Borrows connection bound with directory login DN. Idle connection is reused if it is still
+     * connected and bind succeeds, otherwise new connection is opened.
+     *
+     * @return the connection
+     * @throws LdapException if new connection can not be opened or bound
+     */
+    public LdapConnection borrow() throws LdapException {
+        final long now = System.currentTimeMillis();
+        IdleConnection idleConnection;
+        while ((idleConnection = idleConnections.pollFirst()) != null) {
+            final LdapConnection connection = idleConnection.connection;
+            if (now - idleConnection.released > idleTimeoutMillis || !connection.isConnected()) {
+                closeConnection(connection);
+                continue;
+            }
+            try {
+                connection.bind(loginDn, loginPassword);
+                return connection;
+            } catch (final LdapException e) {
+                LOGGER.debug("Discarding pooled LDAP connection failing health check: " + address + ":" + port, e);
+                closeConnection(connection);
+            }
+        }
+        final LdapConnection connection = new LdapNetworkConnection(address, port);
+        try {
+            connection.bind(loginDn, loginPassword);
+        } catch (final LdapException e) {
+            closeConnection(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Releases healthy connection back to pool.
+     *
+     * @param connection the connection
+     */
+    public void release(final LdapConnection connection) {
+        if (closed || !connection.isConnected() || idleConnections.size() >= maxIdle) {
+            closeConnection(connection);
+            return;
+        }
+        idleConnections.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+    }
+
+    /**
+     * Closes connection which is in unknown state instead of returning it to pool.
+     *
+     * @param connection the connection
+     */
+    public void invalidate(final LdapConnection connection) {
+        closeConnection(connection);
+    }
+
+    /**
+     * Gets number of idle connections.
+     *
+     * @return the idle connection count
+     */
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Closes pool and idle connections. Borrowed connections are closed when released.
+     */
+    public void close() {
+        closed = true;
+        IdleConnection idleConnection;
+        while ((idleConnection = idleConnections.pollFirst()) != null) {
+            closeConnection(idleConnection.connection);
+        }
+    }
+
+    /**
+     * Checks whether pool has been created for current connection details of user directory.
+     * Login DN and password are null for anonymous bind.
+     *
+     * @param userDirectory the user directory
+     * @return true if connection details match
+     */
+    boolean isConfiguredFor(final UserDirectory userDirectory) {
+        return ObjectUtils.equals(address, userDirectory.getAddress()) && port == userDirectory.getPort()
+                && ObjectUtils.equals(loginDn, userDirectory.getLoginDn())
+                && ObjectUtils.equals(loginPassword, userDirectory.getLoginPassword());
+    }
+
+    /**
+     * Closes connection quietly.
+     *
+     * @param connection the connection
+     */
+    private void closeConnection(final LdapConnection connection) {
+        try {
+            connection.close();
+        } catch (final IOException e) {
+            LOGGER.debug("Error closing LDAP connection: " + address + ":" + port, e);
+        }
+    }
+
+    /**
+     * Gets integer site property.
+     *
+     * @param key the property key
+     * @param defaultValue the default value if property is not defined
+     * @return the property value
+     */
+    private static int getIntegerProperty(final String key, final int defaultValue) {
+        final String value = PropertiesUtil.getProperty("site", key, false);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Idle connection with release time.
+     */
+    private static final class IdleConnection {
+        /** The connection. */
+        private final LdapConnection connection;
+        /** The release time. */
+        private final long released;
+
+        /**
+         * Constructor for setting fields.
+         *
+         * @param connection the connection
+         * @param released the release time
+         */
+        private IdleConnection(final LdapConnection connection, final long released) {
+            this.connection = connection;
+            this.released = released;
+        }
+    }
+}
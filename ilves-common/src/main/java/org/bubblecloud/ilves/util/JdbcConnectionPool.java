@@ -0,0 +1,603 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.util;
+
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JDBC connection pool data source. Number of open connections is bounded by maximum pool size and
+ * threads wait for a free connection until acquire timeout. Connections which have been idle longer
+ * than validation interval are validated before handed out and connections held longer than leak
+ * detection threshold are logged together with the stack trace of the borrowing thread. Auto commit,
+ * read only and transaction isolation settings of returned connections are reset to the values the
+ * connection was opened with.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class JdbcConnectionPool implements DataSource {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(JdbcConnectionPool.class);
+
+    /** The pool name. */
+    private final String name;
+    /** The JDBC URL. */
+    private final String url;
+    /** The JDBC user. */
+    private final String user;
+    /** The JDBC password. */
+    private final String password;
+    /** The maximum number of open connections. */
+    private final int maximumSize;
+    /** The maximum time to wait for free connection in milliseconds. */
+    private final long acquireTimeoutMillis;
+    /** The validation timeout in seconds. */
+    private final int validationTimeoutSeconds;
+    /** The idle time after which connection is validated before use in milliseconds. */
+    private final long validationIntervalMillis;
+    /** The time after which borrowed connection is reported as leaked in milliseconds or 0 if disabled. */
+    private final long leakDetectionThresholdMillis;
+
+    /** The permits for open connections. */
+    private final Semaphore permits;
+    /** The idle connections, most recently returned first. */
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+    /** The borrowed connections. */
+    private final ConcurrentHashMap<PooledConnection, Boolean> activeConnections =
+            new ConcurrentHashMap<PooledConnection, Boolean>();
+    /** The leak detector or null if leak detection is disabled. */
+    private final ScheduledExecutorService leakDetector;
+
+    /** The number of connections handed out. */
+    private final AtomicLong acquireCount = new AtomicLong();
+    /** The number of acquire timeouts. */
+    private final AtomicLong timeoutCount = new AtomicLong();
+    /** The total time waited for connections in milliseconds. */
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    /** The maximum time waited for connection in milliseconds. */
+    private final AtomicLong maximumWaitMillis = new AtomicLong();
+    /** The number of connections opened. */
+    private final AtomicLong createdCount = new AtomicLong();
+    /** The number of connections discarded due to failed validation. */
+    private final AtomicLong invalidCount = new AtomicLong();
+    /** The number of detected leaks. */
+    private final AtomicLong leakCount = new AtomicLong();
+    /** Whether pool has been closed. */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for setting connection and pool parameters.
+     *
+     * @param name the pool name
+     * @param driver the JDBC driver class or null if driver is registered already
+     * @param url the JDBC URL
+     * @param user the JDBC user
+     * @param password the JDBC password
+     * @param maximumSize the maximum number of open connections
+     * @param acquireTimeoutMillis the maximum time to wait for free connection
+     * @param validationTimeoutSeconds the validation timeout in seconds
+     * @param validationIntervalMillis the idle time after which connection is validated before use
+     * @param leakDetectionThresholdMillis the time after which borrowed connection is reported as leaked or 0
+     */
+    public JdbcConnectionPool(final String name, final String driver, final String url, final String user,
+                              final String password, final int maximumSize, final long acquireTimeoutMillis,
+                              final int validationTimeoutSeconds, final long validationIntervalMillis,
+                              final long leakDetectionThresholdMillis) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size has to be positive: " + maximumSize);
+        }
+        if (driver != null && driver.length() > 0) {
+            try {
+                Class.forName(driver);
+            } catch (final ClassNotFoundException e) {
+                throw new IllegalArgumentException("JDBC driver not found: " + driver, e);
+            }
+        }
+        this.name = name;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maximumSize = maximumSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+        this.permits = new Semaphore(maximumSize, true);
+
+        if (leakDetectionThresholdMillis > 0) {
+            leakDetector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ilves-jdbc-pool-" + name + "-leak-detector");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            final long checkInterval = Math.max(1000, leakDetectionThresholdMillis / 2);
+            leakDetector.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    detectLeaks();
+                }
+            }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        } else {
+            leakDetector = null;
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed.");
+        }
+        final long startTimeMillis = System.currentTimeMillis();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timeout waiting for connection from pool " + name + " after "
+                        + acquireTimeoutMillis + " ms. " + this);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection from pool " + name + ".", e);
+        }
+        final long waitMillis = System.currentTimeMillis() - startTimeMillis;
+        totalWaitMillis.addAndGet(waitMillis);
+        long currentMaximumWaitMillis = maximumWaitMillis.get();
+        while (waitMillis > currentMaximumWaitMillis
+                && !maximumWaitMillis.compareAndSet(currentMaximumWaitMillis, waitMillis)) {
+            currentMaximumWaitMillis = maximumWaitMillis.get();
+        }
+
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (isValid(pooledConnection)) {
+                    break;
+                }
+                invalidCount.incrementAndGet();
+                closeQuietly(pooledConnection.connection);
+            }
+            if (pooledConnection == null) {
+                final Connection connection = DriverManager.getConnection(url, user, password);
+                try {
+                    pooledConnection = new PooledConnection(connection);
+                } catch (final SQLException | RuntimeException e) {
+                    closeQuietly(connection);
+                    throw e;
+                }
+                createdCount.incrementAndGet();
+            }
+            pooledConnection.borrowed = System.currentTimeMillis();
+            pooledConnection.borrower = leakDetector != null ? new Exception("Connection borrowed from pool "
+                    + name + " by thread " + Thread.currentThread().getName()) : null;
+            activeConnections.put(pooledConnection, Boolean.TRUE);
+            acquireCount.incrementAndGet();
+            return pooledConnection.newHandle();
+        } catch (final SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connection pool " + name + " does not support user credentials.");
+    }
+
+    /**
+     * Closes idle connections and prevents new connections from being borrowed. Borrowed connections
+     * are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            closeQuietly(pooledConnection.connection);
+        }
+    }
+
+    /**
+     * Gets pool name.
+     *
+     * @return the pool name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets maximum number of open connections.
+     *
+     * @return the maximum pool size
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Gets number of borrowed connections.
+     *
+     * @return the active connection count
+     */
+    public int getActiveCount() {
+        return activeConnections.size();
+    }
+
+    /**
+     * Gets number of idle connections.
+     *
+     * @return the idle connection count
+     */
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Gets estimate of number of threads waiting for connection.
+     *
+     * @return the waiting thread count
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Gets number of connections handed out.
+     *
+     * @return the acquire count
+     */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * Gets number of times waiting for connection timed out.
+     *
+     * @return the timeout count
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Gets total time threads have waited for connections.
+     *
+     * @return the total wait time in milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+    /**
+     * Gets maximum time a thread has waited for connection.
+     *
+     * @return the maximum wait time in milliseconds
+     */
+    public long getMaximumWaitMillis() {
+        return maximumWaitMillis.get();
+    }
+
+    /**
+     * Gets number of connections opened to database.
+     *
+     * @return the created connection count
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * Gets number of connections discarded due to failed validation.
+     *
+     * @return the invalid connection count
+     */
+    public long getInvalidCount() {
+        return invalidCount.get();
+    }
+
+    /**
+     * Gets number of detected connection leaks.
+     *
+     * @return the leak count
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "JDBC connection pool " + name + " [active: " + getActiveCount() + ", idle: " + getIdleCount()
+                + ", waiting: " + getWaitingCount() + ", maximum: " + maximumSize
+                + ", acquired: " + getAcquireCount() + ", timeouts: " + getTimeoutCount()
+                + ", total wait: " + getTotalWaitMillis() + " ms, maximum wait: " + getMaximumWaitMillis()
+                + " ms, created: " + getCreatedCount() + ", invalid: " + getInvalidCount()
+                + ", leaks: " + getLeakCount() + "]";
+    }
+
+    /**
+     * Validates idle connection if it has been idle longer than validation interval.
+     *
+     * @param pooledConnection the pooled connection
+     * @return true if connection is valid
+     */
+    private boolean isValid(final PooledConnection pooledConnection) {
+        if (System.currentTimeMillis() - pooledConnection.returned < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return pooledConnection.connection.isValid(validationTimeoutSeconds);
+        } catch (final SQLException e) {
+            LOGGER.debug("Connection validation failed in pool " + name + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns connection to pool. Open transaction is rolled back and connection settings are reset.
+     *
+     * @param pooledConnection the pooled connection
+     */
+    private void release(final PooledConnection pooledConnection) {
+        activeConnections.remove(pooledConnection);
+        pooledConnection.borrower = null;
+        try {
+            final Connection connection = pooledConnection.connection;
+            final boolean reusable = !closed && !connection.isClosed();
+            if (reusable) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                if (connection.getAutoCommit() != pooledConnection.defaultAutoCommit) {
+                    connection.setAutoCommit(pooledConnection.defaultAutoCommit);
+                }
+                if (connection.isReadOnly() != pooledConnection.defaultReadOnly) {
+                    connection.setReadOnly(pooledConnection.defaultReadOnly);
+                }
+                if (connection.getTransactionIsolation() != pooledConnection.defaultTransactionIsolation) {
+                    connection.setTransactionIsolation(pooledConnection.defaultTransactionIsolation);
+                }
+            }
+            if (reusable) {
+                pooledConnection.returned = System.currentTimeMillis();
+                idleConnections.offerFirst(pooledConnection);
+            } else {
+                closeQuietly(pooledConnection.connection);
+            }
+        } catch (final SQLException e) {
+            LOGGER.warn("Discarding connection which failed to reset in pool " + name + ": " + e.getMessage());
+            closeQuietly(pooledConnection.connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Logs connections which have been borrowed longer than leak detection threshold.
+     */
+    private void detectLeaks() {
+        final long now = System.currentTimeMillis();
+        for (final PooledConnection pooledConnection : activeConnections.keySet()) {
+            final Exception borrower = pooledConnection.borrower;
+            if (borrower != null && !pooledConnection.leakReported
+                    && now - pooledConnection.borrowed > leakDetectionThresholdMillis) {
+                pooledConnection.leakReported = true;
+                leakCount.incrementAndGet();
+                LOGGER.warn("Possible connection leak, connection has been borrowed for "
+                        + (now - pooledConnection.borrowed) + " ms. " + this, borrower);
+            }
+        }
+    }
+
+    /**
+     * Closes connection ignoring errors.
+     *
+     * @param connection the connection
+     */
+    private void closeQuietly(final Connection connection) {
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            LOGGER.debug("Error closing connection in pool " + name + ".", e);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Connection pool " + name + " is not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Physical connection held by the pool.
+     */
+    private final class PooledConnection {
+        /** The physical connection. */
+        private final Connection connection;
+        /** The auto commit setting connection was opened with. */
+        private final boolean defaultAutoCommit;
+        /** The read only setting connection was opened with. */
+        private final boolean defaultReadOnly;
+        /** The transaction isolation connection was opened with. */
+        private final int defaultTransactionIsolation;
+        /** The time connection was borrowed. */
+        private volatile long borrowed;
+        /** The time connection was returned. */
+        private volatile long returned = System.currentTimeMillis();
+        /** The stack trace of borrower or null if leak detection is disabled. */
+        private volatile Exception borrower;
+        /** Whether leak has been reported for current borrow. */
+        private volatile boolean leakReported;
+
+        /**
+         * Constructor for setting the physical connection and recording its initial settings.
+         *
+         * @param connection the physical connection
+         * @throws SQLException if SQL exception occurs while reading connection settings
+         */
+        private PooledConnection(final Connection connection) throws SQLException {
+            this.connection = connection;
+            this.defaultAutoCommit = connection.getAutoCommit();
+            this.defaultReadOnly = connection.isReadOnly();
+            this.defaultTransactionIsolation = connection.getTransactionIsolation();
+        }
+
+        /**
+         * Constructs connection handle given to borrower. Closing the handle returns connection to pool.
+         * Statements and database meta data created through the handle return the handle as their
+         * connection so that borrower can not close the physical connection through them.
+         *
+         * @return the connection handle
+         */
+        private Connection newHandle() {
+            leakReported = false;
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[] {Connection.class}, new InvocationHandler() {
+                        /** Whether handle has been closed. */
+                        private boolean handleClosed = false;
+
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                                throws Throwable {
+                            final String methodName = method.getName();
+                            if ("close".equals(methodName)) {
+                                if (!handleClosed) {
+                                    handleClosed = true;
+                                    release(PooledConnection.this);
+                                }
+                                return null;
+                            }
+                            if ("isClosed".equals(methodName)) {
+                                return handleClosed || connection.isClosed();
+                            }
+                            if ("equals".equals(methodName)) {
+                                return proxy == args[0];
+                            }
+                            if ("hashCode".equals(methodName)) {
+                                return System.identityHashCode(proxy);
+                            }
+                            if ("toString".equals(methodName)) {
+                                return "Pooled connection of " + name + ": " + connection;
+                            }
+                            if (handleClosed) {
+                                throw new SQLException("Connection has been returned to pool " + name + ".");
+                            }
+                            final Object result;
+                            try {
+                                result = method.invoke(connection, args);
+                            } catch (final InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                            final Class<?> returnType = method.getReturnType();
+                            if (result != null && (Statement.class.isAssignableFrom(returnType)
+                                    || DatabaseMetaData.class.equals(returnType))) {
+                                return newChildHandle(result, returnType, (Connection) proxy);
+                            }
+                            return result;
+                        }
+                    });
+        }
+
+        /**
+         * Constructs handle of statement or database meta data which returns connection handle
+         * instead of the physical connection.
+         *
+         * @param child the statement or database meta data
+         * @param type the interface of the child
+         * @param handle the connection handle
+         * @return the child handle
+         */
+        private Object newChildHandle(final Object child, final Class<?> type, final Connection handle) {
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[] {type}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                                throws Throwable {
+                            final String methodName = method.getName();
+                            if ("getConnection".equals(methodName)) {
+                                return handle;
+                            }
+                            if ("equals".equals(methodName)) {
+                                return proxy == args[0];
+                            }
+                            if ("hashCode".equals(methodName)) {
+                                return System.identityHashCode(proxy);
+                            }
+                            try {
+                                return method.invoke(child, args);
+                            } catch (final InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+}
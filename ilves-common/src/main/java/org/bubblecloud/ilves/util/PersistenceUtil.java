@@ -33,7 +33,9 @@ import javax.persistence.Persistence;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -41,10 +43,19 @@ import java.util.Map;
  * @author Tommi S.E Laukkanen
  */
 public final class PersistenceUtil {
+    /** The name of the connection pool of site entity manager factory. */
+    public static final String SITE_POOL = "site";
+    /** The name of the connection pool of audit entity manager factory. */
+    public static final String AUDIT_POOL = "audit";
+
     /**
      * The entity manager factory for test.
      */
     private static Map<String, EntityManagerFactory> entityManagerFactories = new HashMap<String, EntityManagerFactory>();
+    /**
+     * The connection pools of entity manager factories.
+     */
+    private static Map<String, JdbcConnectionPool> connectionPools = new HashMap<String, JdbcConnectionPool>();
 
     /**
      * Private constructor to disable construction of utility class.
@@ -63,27 +74,8 @@ public final class PersistenceUtil {
         final String entityManagerFactoryKey = persistenceUnit + "-" + propertiesCategory;
         synchronized (entityManagerFactories) {
             if (!entityManagerFactories.containsKey(entityManagerFactoryKey)) {
-                final EntityManagerFactory entityManagerFactory = newEntityManagerFactory(persistenceUnit, propertiesCategory);
-
-                final String changeLog = PropertiesUtil.getProperty(
-                        propertiesCategory, "liquibase-change-log");
-
-                try {
-                    final EntityManager entityManager = entityManagerFactory.createEntityManager();
-                    entityManager.getTransaction().begin();
-                    final Connection connection = entityManager.unwrap(Connection.class);
-                    final Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(
-                            new JdbcConnection(connection));
-                    final Liquibase liquibase = new Liquibase(changeLog, new ClassLoaderResourceAccessor(), database);
-                    liquibase.update("");
-                    if (entityManager.getTransaction().isActive()) {
-                        entityManager.getTransaction().commit();
-                    }
-                } catch (Exception e) {
-                    throw new SiteException("Error updating database.", e);
-                }
-
-                entityManagerFactories.put(entityManagerFactoryKey, entityManagerFactory);
+                entityManagerFactories.put(entityManagerFactoryKey, newUpdatedEntityManagerFactory(persistenceUnit,
+                        propertiesCategory, SITE_POOL));
             }
 
             return entityManagerFactories.get(entityManagerFactoryKey);
@@ -91,7 +83,40 @@ public final class PersistenceUtil {
     }
 
     /**
-     * Allows removing entity manager factory in case of database failure.
+     * Gets singleton entity manager factory for audit log writing. The factory has JDBC batch writing enabled
+     * so that audit log batches are inserted with batched statements. If audit connection pool is configured
+     * then the factory has its own connection pool so that audit log writes do not compete with site requests
+     * for connections. Otherwise connections are shared with the site entity manager factory pool if it exists.
+     * @param persistenceUnit the persistence unit
+     * @param propertiesCategory the properties category
+     * @return the audit entity manager factory singleton
+     */
+    public static EntityManagerFactory getAuditEntityManagerFactory(final String persistenceUnit,
+                                                                    final String propertiesCategory) {
+        getEntityManagerFactory(persistenceUnit, propertiesCategory);
+        final String entityManagerFactoryKey = persistenceUnit + "-" + propertiesCategory + "-" + AUDIT_POOL;
+        synchronized (entityManagerFactories) {
+            if (!entityManagerFactories.containsKey(entityManagerFactoryKey)) {
+                entityManagerFactories.put(entityManagerFactoryKey, newEntityManagerFactory(persistenceUnit,
+                        propertiesCategory, AUDIT_POOL));
+            }
+            return entityManagerFactories.get(entityManagerFactoryKey);
+        }
+    }
+
+    /**
+     * Gets connection pools of entity manager factories for monitoring.
+     * @return the connection pools
+     */
+    public static List<JdbcConnectionPool> getConnectionPools() {
+        synchronized (entityManagerFactories) {
+            return new ArrayList<JdbcConnectionPool>(connectionPools.values());
+        }
+    }
+
+    /**
+     * Allows removing entity manager factory in case of database failure. Site and audit entity manager
+     * factories of the persistence unit and their connection pools are closed.
      *
      * @param persistenceUnit the persistence unit
      * @param propertiesCategory the properties category
@@ -100,9 +125,32 @@ public final class PersistenceUtil {
                                                                final String propertiesCategory) {
         final String entityManagerFactoryKey = persistenceUnit + "-" + propertiesCategory;
         synchronized (entityManagerFactories) {
-            if (entityManagerFactories.containsKey(entityManagerFactoryKey)) {
-                entityManagerFactories.remove(entityManagerFactoryKey);
-            }
+            closeEntityManagerFactory(entityManagerFactories.remove(entityManagerFactoryKey + "-" + AUDIT_POOL));
+            closeEntityManagerFactory(entityManagerFactories.remove(entityManagerFactoryKey));
+            closeConnectionPool(connectionPools.remove(entityManagerFactoryKey + "-" + AUDIT_POOL));
+            closeConnectionPool(connectionPools.remove(entityManagerFactoryKey + "-" + SITE_POOL));
+        }
+    }
+
+    /**
+     * Closes entity manager factory if it is open.
+     *
+     * @param entityManagerFactory the entity manager factory or null
+     */
+    private static void closeEntityManagerFactory(final EntityManagerFactory entityManagerFactory) {
+        if (entityManagerFactory != null && entityManagerFactory.isOpen()) {
+            entityManagerFactory.close();
+        }
+    }
+
+    /**
+     * Closes connection pool.
+     *
+     * @param connectionPool the connection pool or null
+     */
+    private static void closeConnectionPool(final JdbcConnectionPool connectionPool) {
+        if (connectionPool != null) {
+            connectionPool.close();
         }
     }
 
@@ -123,21 +171,20 @@ public final class PersistenceUtil {
 
             // Construct schema according to liquibase changelog.
             PropertiesUtil.setProperty(propertiesCategory, PersistenceUnitProperties.DDL_GENERATION, "none");
-            final EntityManagerFactory factory = getEntityManagerFactory(persistenceUnit, propertiesCategory);
-            removeEntityManagerFactory(persistenceUnit, propertiesCategory);
+            final EntityManagerFactory factory = newUpdatedEntityManagerFactory(persistenceUnit,
+                    propertiesCategory, null);
 
             // Empty ref schema
             PropertiesUtil.setProperty(propertiesCategory, PersistenceUnitProperties.JDBC_URL, refJdbcUrl);
             dropDatabaseObjects(persistenceUnit, propertiesCategory);
 
             // Construct ref schema according to liquibase changelog.
-            getEntityManagerFactory(persistenceUnit, propertiesCategory).close();
-            removeEntityManagerFactory(persistenceUnit, propertiesCategory);
+            newUpdatedEntityManagerFactory(persistenceUnit, propertiesCategory, null).close();
 
             // Update ref schema according to JPA changes.
             PropertiesUtil.setProperty(propertiesCategory, PersistenceUnitProperties.DDL_GENERATION, "create-or-extend-tables");
             PropertiesUtil.setProperty(propertiesCategory, PersistenceUnitProperties.JDBC_URL, refJdbcUrl);
-            final EntityManagerFactory refFactory = newEntityManagerFactory(persistenceUnit, propertiesCategory);
+            final EntityManagerFactory refFactory = newEntityManagerFactory(persistenceUnit, propertiesCategory, null);
 
             // Reset original settings.
             PropertiesUtil.setProperty(propertiesCategory, PersistenceUnitProperties.DDL_GENERATION, originalDllGeneration);
@@ -164,6 +211,10 @@ public final class PersistenceUtil {
 
             entityManager.getTransaction().rollback();
             refEntityManager.getTransaction().rollback();
+            entityManager.close();
+            refEntityManager.close();
+            factory.close();
+            refFactory.close();
 
             return byteArrayOutputStream.toString();
         } catch(final Exception e) {
@@ -178,7 +229,7 @@ public final class PersistenceUtil {
      */
     private static void dropDatabaseObjects(String persistenceUnit, String propertiesCategory) {
         try {
-            final EntityManagerFactory tempRefEntityManagerFactory = newEntityManagerFactory(persistenceUnit, propertiesCategory);
+            final EntityManagerFactory tempRefEntityManagerFactory = newEntityManagerFactory(persistenceUnit, propertiesCategory, null);
             final EntityManager entityManager = tempRefEntityManagerFactory.createEntityManager();
             entityManager.getTransaction().begin();
             final Connection connection = entityManager.unwrap(Connection.class);
@@ -195,26 +246,143 @@ public final class PersistenceUtil {
 
 
     /**
-     * Constructs new entity manager factory.
+     * Constructs new entity manager factory and updates database schema according to Liquibase change log.
      *
      * @param persistenceUnit the persistence unit
      * @param propertiesCategory the properties category
+     * @param poolName the connection pool name or null
      * @return the new entity manager factory.
      */
-    private static EntityManagerFactory newEntityManagerFactory(String persistenceUnit, String propertiesCategory) {
+    private static EntityManagerFactory newUpdatedEntityManagerFactory(final String persistenceUnit,
+                                                                       final String propertiesCategory,
+                                                                       final String poolName) {
+        final EntityManagerFactory entityManagerFactory = newEntityManagerFactory(persistenceUnit,
+                propertiesCategory, poolName);
+
+        final String changeLog = PropertiesUtil.getProperty(
+                propertiesCategory, "liquibase-change-log");
+
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            final Connection connection = entityManager.unwrap(Connection.class);
+            final Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(
+                    new JdbcConnection(connection));
+            final Liquibase liquibase = new Liquibase(changeLog, new ClassLoaderResourceAccessor(), database);
+            liquibase.update("");
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().commit();
+            }
+        } catch (Exception e) {
+            entityManagerFactory.close();
+            if (poolName != null) {
+                synchronized (entityManagerFactories) {
+                    closeConnectionPool(connectionPools.remove(persistenceUnit + "-" + propertiesCategory
+                            + "-" + poolName));
+                }
+            }
+            throw new SiteException("Error updating database.", e);
+        } finally {
+            if (entityManager.isOpen()) {
+                entityManager.close();
+            }
+        }
+        return entityManagerFactory;
+    }
+
+    /**
+     * Constructs new entity manager factory. If connection pool name is given and pool size is configured
+     * then the factory uses connection pool instead of EclipseLink internal connection management.
+     *
+     * @param persistenceUnit the persistence unit
+     * @param propertiesCategory the properties category
+     * @param poolName the connection pool name or null
+     * @return the new entity manager factory.
+     */
+    private static EntityManagerFactory newEntityManagerFactory(final String persistenceUnit,
+                                                                final String propertiesCategory,
+                                                                final String poolName) {
+        final String driver = PropertiesUtil.getProperty(propertiesCategory, PersistenceUnitProperties.JDBC_DRIVER);
+        final String url = PropertiesUtil.getProperty(propertiesCategory, PersistenceUnitProperties.JDBC_URL);
+        final String user = PropertiesUtil.getProperty(propertiesCategory, PersistenceUnitProperties.JDBC_USER);
+        final String password = PropertiesUtil.getProperty(propertiesCategory, PersistenceUnitProperties.JDBC_PASSWORD);
+
         final Map properties = new HashMap();
-        properties.put(PersistenceUnitProperties.JDBC_DRIVER, PropertiesUtil.getProperty(
-                propertiesCategory, PersistenceUnitProperties.JDBC_DRIVER));
-        properties.put(PersistenceUnitProperties.JDBC_URL, PropertiesUtil.getProperty(
-                propertiesCategory, PersistenceUnitProperties.JDBC_URL));
-        properties.put(PersistenceUnitProperties.JDBC_USER, PropertiesUtil.getProperty(
-                propertiesCategory, PersistenceUnitProperties.JDBC_USER));
-        properties.put(PersistenceUnitProperties.JDBC_PASSWORD, PropertiesUtil.getProperty(
-                propertiesCategory, PersistenceUnitProperties.JDBC_PASSWORD));
         properties.put(PersistenceUnitProperties.DDL_GENERATION, PropertiesUtil.getProperty(
                 propertiesCategory, PersistenceUnitProperties.DDL_GENERATION));
+        final String jdbcTimeout = PropertiesUtil.getProperty(propertiesCategory, "eclipselink.jdbc.timeout", false);
+        if (jdbcTimeout != null && jdbcTimeout.length() > 0) {
+            properties.put("eclipselink.jdbc.timeout", jdbcTimeout);
+        }
+
+        final boolean audit = AUDIT_POOL.equals(poolName);
+        if (audit) {
+            properties.put(PersistenceUnitProperties.BATCH_WRITING, "JDBC");
+            properties.put(PersistenceUnitProperties.BATCH_WRITING_SIZE,
+                    getProperty(propertiesCategory, "audit-log-batch-size", "100"));
+            properties.put(PersistenceUnitProperties.SESSION_NAME, persistenceUnit + "-" + propertiesCategory
+                    + "-" + AUDIT_POOL + "-" + url + "-" + user);
+        }
+
+        final int poolSize = poolName != null ? getPoolSize(propertiesCategory, poolName) : 0;
+        final JdbcConnectionPool sitePool;
+        synchronized (entityManagerFactories) {
+            sitePool = connectionPools.get(persistenceUnit + "-" + propertiesCategory + "-" + SITE_POOL);
+        }
+        if (poolSize > 0) {
+            final String poolKey = persistenceUnit + "-" + propertiesCategory + "-" + poolName;
+            final JdbcConnectionPool connectionPool = new JdbcConnectionPool(poolKey, driver, url, user, password,
+                    poolSize,
+                    Long.parseLong(getProperty(propertiesCategory, "jdbc-pool-acquire-timeout-millis", "5000")),
+                    Integer.parseInt(getProperty(propertiesCategory, "jdbc-pool-validation-timeout-seconds", "2")),
+                    Long.parseLong(getProperty(propertiesCategory, "jdbc-pool-validation-interval-millis", "30000")),
+                    Long.parseLong(getProperty(propertiesCategory,
+                            "jdbc-pool-leak-detection-threshold-millis", "60000")));
+            properties.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, connectionPool);
+            properties.put(PersistenceUnitProperties.SESSION_NAME, poolKey + "-" + url + "-" + user);
+            synchronized (entityManagerFactories) {
+                connectionPools.put(poolKey, connectionPool);
+            }
+        } else if (audit && sitePool != null) {
+            properties.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, sitePool);
+        } else {
+            properties.put(PersistenceUnitProperties.JDBC_DRIVER, driver);
+            properties.put(PersistenceUnitProperties.JDBC_URL, url);
+            properties.put(PersistenceUnitProperties.JDBC_USER, user);
+            properties.put(PersistenceUnitProperties.JDBC_PASSWORD, password);
+        }
 
         return Persistence.createEntityManagerFactory(
                 persistenceUnit, properties);
     }
+
+    /**
+     * Gets configured size of connection pool.
+     *
+     * @param propertiesCategory the properties category
+     * @param poolName the pool name
+     * @return the pool size or 0 if pool is disabled
+     */
+    private static int getPoolSize(final String propertiesCategory, final String poolName) {
+        final String propertyKey = AUDIT_POOL.equals(poolName) ? "audit-jdbc-pool-maximum-size"
+                : "jdbc-pool-maximum-size";
+        return Integer.parseInt(getProperty(propertiesCategory, propertyKey, "0"));
+    }
+
+    /**
+     * Gets optional property value.
+     *
+     * @param propertiesCategory the properties category
+     * @param propertyKey the property key
+     * @param defaultValue the default value
+     * @return the property value or default value if property is not defined
+     */
+    private static String getProperty(final String propertiesCategory, final String propertyKey,
+                                      final String defaultValue) {
+        final String value = PropertiesUtil.getProperty(propertiesCategory, propertyKey, false);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
 }
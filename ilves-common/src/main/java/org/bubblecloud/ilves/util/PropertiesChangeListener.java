@@ -0,0 +1,34 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.util;
+
+import java.util.Set;
+
+/**
+ * Listener notified when properties of a category change due to reload or override.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public interface PropertiesChangeListener {
+
+    /**
+     * Invoked after new snapshot of category has been published.
+     *
+     * @param snapshot the new properties snapshot
+     * @param changedKeys the keys of added, removed and changed properties
+     */
+    void propertiesChanged(PropertiesSnapshot snapshot, Set<String> changedKeys);
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of resolved properties of one category. Override, extension and base
+ * properties are merged when snapshot is built and numeric and boolean values are parsed once
+ * so that reads do not require locking or parsing.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class PropertiesSnapshot {
+
+    /** The category. */
+    private final String category;
+    /** The property values. */
+    private final Map<String, String> values;
+    /** The property values parsed as long. */
+    private final Map<String, Long> longValues;
+    /** The non empty property values parsed as boolean. */
+    private final Map<String, Boolean> booleanValues;
+
+    /**
+     * Constructor for setting resolved property values.
+     *
+     * @param category the category
+     * @param values the resolved property values
+     */
+    public PropertiesSnapshot(final String category, final Map<String, String> values) {
+        this.category = category;
+        this.values = Collections.unmodifiableMap(new HashMap<String, String>(values));
+        final Map<String, Long> longValues = new HashMap<String, Long>();
+        final Map<String, Boolean> booleanValues = new HashMap<String, Boolean>();
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            final String value = entry.getValue().trim();
+            if (value.length() == 0) {
+                continue;
+            }
+            booleanValues.put(entry.getKey(), Boolean.parseBoolean(value));
+            try {
+                longValues.put(entry.getKey(), Long.parseLong(value));
+            } catch (final NumberFormatException e) {
+                continue;
+            }
+        }
+        this.longValues = Collections.unmodifiableMap(longValues);
+        this.booleanValues = Collections.unmodifiableMap(booleanValues);
+    }
+
+    /**
+     * Gets the category.
+     *
+     * @return the category
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Gets keys of defined properties.
+     *
+     * @return the property keys
+     */
+    public Set<String> getKeys() {
+        return values.keySet();
+    }
+
+    /**
+     * Gets property value.
+     *
+     * @param key the property key
+     * @return the property value or null if property is not defined
+     */
+    public String getString(final String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Gets trimmed property value or default value if property is not defined or is empty.
+     *
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value or default value
+     */
+    public String getString(final String key, final String defaultValue) {
+        final String value = values.get(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Gets property value as long or default value if property is not defined or is empty.
+     *
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value or default value
+     * @throws NumberFormatException if property value is not a number
+     */
+    public long getLong(final String key, final long defaultValue) {
+        final Long value = longValues.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (getString(key, null) == null) {
+            return defaultValue;
+        }
+        throw new NumberFormatException("Property is not a number: " + category + " / " + key);
+    }
+
+    /**
+     * Gets property value as integer or default value if property is not defined or is empty.
+     *
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return the property value or default value
+     * @throws NumberFormatException if property value is not an integer
+     */
+    public int getInteger(final String key, final int defaultValue) {
+        final long value = getLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Property is not an integer: " + category + " / " + key);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Gets property value as boolean or default value if property is not defined or is empty.
+     *
+     * @param key the property key
+     * @param defaultValue the default value
+     * @return true if property value is "true" ignoring case
+     */
+    public boolean getBoolean(final String key, final boolean defaultValue) {
+        final Boolean value = booleanValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Gets keys of properties which differ between this and given snapshot.
+     *
+     * @param other the other snapshot
+     * @return the keys of added, removed and changed properties
+     */
+    public Set<String> getChangedKeys(final PropertiesSnapshot other) {
+        final Set<String> changedKeys = new HashSet<String>();
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            if (!entry.getValue().equals(other.values.get(entry.getKey()))) {
+                changedKeys.add(entry.getKey());
+            }
+        }
+        for (final String key : other.values.keySet()) {
+            if (!values.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        return changedKeys;
+    }
+}
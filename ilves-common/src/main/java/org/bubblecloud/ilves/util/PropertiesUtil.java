@@ -15,30 +15,53 @@
  */
 package org.bubblecloud.ilves.util;
 
+import org.apache.log4j.Logger;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Properties loading utility which supports [category]-ext.properties for
  * extending properties defined in [category].properties.
  *
+ * Properties of each category are resolved to immutable snapshot which is read without locking.
+ * Snapshots are rebuilt when properties are overridden or when property files are reloaded.
+ *
  * @author Tommi S.E. Laukkanen
  */
 public final class PropertiesUtil {
 
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(PropertiesUtil.class);
     /** The loaded properties. */
     private static final Map<String, Properties> PROPERTIES_MAP = new HashMap<String, Properties>();
     /** The loaded extension properties. */
     private static final Map<String, Properties> EXTENDED_PROPERTIES_MAP = new HashMap<String, Properties>();
     /** Map of property overrides */
     private static final Map<String, Properties> OVERRIDE_PROPERTIES_MAP = new HashMap<String, Properties>();
+    /** The property files and their last modification times. */
+    private static final Map<File, Long> PROPERTIES_FILES = new HashMap<File, Long>();
+    /** The properties change listeners. */
+    private static final List<PropertiesChangeListener> LISTENERS =
+            new CopyOnWriteArrayList<PropertiesChangeListener>();
     /** The category redirection map. */
     private static Map<String, String> categoryRedirection = new HashMap<String, String>();
+    /** The published immutable snapshots by category. */
+    private static volatile Map<String, PropertiesSnapshot> snapshots = Collections.emptyMap();
+    /** The property file reload thread or null if reloading is not started. */
+    private static Thread reloadThread;
 
     /**
      * Private default constructor to disable construction of utility class.
@@ -56,7 +79,12 @@ public final class PropertiesUtil {
      * @param targetCategory the target category
      */
     public static void setCategoryRedirection(final String sourceCategory, final String targetCategory){
-        categoryRedirection.put(sourceCategory, targetCategory);
+        final List<PropertiesSnapshot[]> changes;
+        synchronized (PropertiesUtil.class) {
+            categoryRedirection.put(sourceCategory, targetCategory);
+            changes = rebuildSnapshots();
+        }
+        notifyListeners(changes);
     }
 
     /**
@@ -65,11 +93,33 @@ public final class PropertiesUtil {
      * @param propertyKey the property key
      * @param propertyValue the property value
      */
-    public static synchronized void setProperty(final String category, final String propertyKey, final String propertyValue) {
-        if (!OVERRIDE_PROPERTIES_MAP.containsKey(category)) {
-            OVERRIDE_PROPERTIES_MAP.put(category, new Properties());
+    public static void setProperty(final String category, final String propertyKey, final String propertyValue) {
+        final List<PropertiesSnapshot[]> changes;
+        synchronized (PropertiesUtil.class) {
+            if (!OVERRIDE_PROPERTIES_MAP.containsKey(category)) {
+                OVERRIDE_PROPERTIES_MAP.put(category, new Properties());
+            }
+            OVERRIDE_PROPERTIES_MAP.get(category).put(propertyKey, propertyValue);
+            changes = rebuildSnapshots();
+        }
+        notifyListeners(changes);
+    }
+
+    /**
+     * Removes explicit override value of a property.
+     * @param category the category
+     * @param propertyKey the property key
+     */
+    public static void removeProperty(final String category, final String propertyKey) {
+        final List<PropertiesSnapshot[]> changes;
+        synchronized (PropertiesUtil.class) {
+            final Properties overrides = OVERRIDE_PROPERTIES_MAP.get(category);
+            if (overrides == null || overrides.remove(propertyKey) == null) {
+                return;
+            }
+            changes = rebuildSnapshots();
         }
-        OVERRIDE_PROPERTIES_MAP.get(category).put(propertyKey, propertyValue);
+        notifyListeners(changes);
     }
 
 
@@ -79,7 +129,7 @@ public final class PropertiesUtil {
      * @param propertyKey Property key defines the key in property file.
      * @return property value String or null.
      */
-    public static synchronized String getProperty(final String categoryKey, final String propertyKey) {
+    public static String getProperty(final String categoryKey, final String propertyKey) {
         return getProperty(categoryKey, propertyKey, true);
     }
 
@@ -89,7 +139,7 @@ public final class PropertiesUtil {
      * @param propertyKey Property key defines the key in property file.
      * @return property value String or null.
      */
-    public static synchronized boolean hasProperty(final String categoryKey, final String propertyKey) {
+    public static boolean hasProperty(final String categoryKey, final String propertyKey) {
         return getProperty(categoryKey, propertyKey, false) != null;
     }
 
@@ -100,51 +150,214 @@ public final class PropertiesUtil {
      * @param required if required then non existing property causes exception.
      * @return property value String or null.
      */
-    public static synchronized String getProperty(final String categoryKey, final String propertyKey, final boolean required) {
-
-        final String baseCategoryKey;
-        final String extendedCategoryKey;
-        if (categoryRedirection.containsKey(categoryKey)) {
-            baseCategoryKey = categoryRedirection.get(categoryKey);
-            extendedCategoryKey = categoryRedirection.get(categoryKey) + "-ext";
+    public static String getProperty(final String categoryKey, final String propertyKey, final boolean required) {
+        final String valueString = getSnapshot(categoryKey).getString(propertyKey);
+        if (valueString != null) {
+            return valueString;
+        }
+        if (required) {
+            throw new RuntimeException("Property not found: " + getBaseCategoryKey(categoryKey) + " / " + propertyKey);
         } else {
-            baseCategoryKey = categoryKey;
-            extendedCategoryKey = categoryKey + "-ext";
+            return null;
         }
+    }
 
-        if (!PROPERTIES_MAP.containsKey(baseCategoryKey)) {
-            PROPERTIES_MAP.put(baseCategoryKey, getProperties(baseCategoryKey));
+    /**
+     * Gets current immutable properties snapshot of category. Snapshot is loaded on first access.
+     * @param categoryKey Category defines the property file prefix.
+     * @return the properties snapshot
+     */
+    public static PropertiesSnapshot getSnapshot(final String categoryKey) {
+        final PropertiesSnapshot snapshot = snapshots.get(categoryKey);
+        if (snapshot != null) {
+            return snapshot;
         }
+        synchronized (PropertiesUtil.class) {
+            final PropertiesSnapshot loadedSnapshot = snapshots.get(categoryKey);
+            if (loadedSnapshot != null) {
+                return loadedSnapshot;
+            }
+            final PropertiesSnapshot newSnapshot = buildSnapshot(categoryKey);
+            final Map<String, PropertiesSnapshot> newSnapshots = new HashMap<String, PropertiesSnapshot>(snapshots);
+            newSnapshots.put(categoryKey, newSnapshot);
+            snapshots = Collections.unmodifiableMap(newSnapshots);
+            return newSnapshot;
+        }
+    }
 
-        if (!EXTENDED_PROPERTIES_MAP.containsKey(extendedCategoryKey)) {
-            EXTENDED_PROPERTIES_MAP.put(extendedCategoryKey, getProperties(extendedCategoryKey));
+    /**
+     * Adds listener notified when properties of loaded categories change.
+     * @param listener the listener
+     */
+    public static void addChangeListener(final PropertiesChangeListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes properties change listener.
+     * @param listener the listener
+     */
+    public static void removeChangeListener(final PropertiesChangeListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Reloads property files of loaded categories and atomically publishes new snapshots.
+     * Listeners are notified of categories whose properties changed.
+     */
+    public static void reload() {
+        final List<PropertiesSnapshot[]> changes;
+        synchronized (PropertiesUtil.class) {
+            PROPERTIES_MAP.clear();
+            EXTENDED_PROPERTIES_MAP.clear();
+            PROPERTIES_FILES.clear();
+            changes = rebuildSnapshots();
+        }
+        notifyListeners(changes);
+    }
+
+    /**
+     * Starts daemon thread which reloads properties when property files on disk are modified.
+     * Properties loaded from jar files are not reloaded.
+     * @param intervalMillis the interval between property file modification checks
+     */
+    public static synchronized void startReloading(final long intervalMillis) {
+        if (reloadThread != null) {
+            return;
+        }
+        reloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (final InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        if (isModified()) {
+                            LOGGER.info("Property files modified, reloading properties.");
+                            reload();
+                        }
+                    } catch (final Throwable t) {
+                        LOGGER.error("Error reloading properties.", t);
+                    }
+                }
+            }
+        }, "ilves-properties-reload");
+        reloadThread.setDaemon(true);
+        reloadThread.start();
+    }
+
+    /**
+     * Stops property file reload thread.
+     */
+    public static synchronized void stopReloading() {
+        if (reloadThread != null) {
+            reloadThread.interrupt();
+            reloadThread = null;
         }
+    }
 
-        if (OVERRIDE_PROPERTIES_MAP.containsKey(baseCategoryKey)) {
-            final String valueString = (String) OVERRIDE_PROPERTIES_MAP.get(baseCategoryKey).get(propertyKey);
-            if (valueString != null) {
-                return valueString;
+    /**
+     * Checks whether any loaded property file has been modified or removed.
+     * @return true if property file has been modified
+     */
+    private static synchronized boolean isModified() {
+        for (final Map.Entry<File, Long> entry : PROPERTIES_FILES.entrySet()) {
+            if (entry.getKey().lastModified() != entry.getValue()) {
+                return true;
             }
         }
+        return false;
+    }
 
-        if (EXTENDED_PROPERTIES_MAP.get(extendedCategoryKey) != null) {
-            final String valueString = (String) EXTENDED_PROPERTIES_MAP.get(extendedCategoryKey).get(propertyKey);
-            if (valueString != null) {
-                return valueString;
+    /**
+     * Rebuilds snapshots of all loaded categories. Must be called while holding class lock.
+     * @return the changed snapshots as pairs of old and new snapshot
+     */
+    private static List<PropertiesSnapshot[]> rebuildSnapshots() {
+        final List<PropertiesSnapshot[]> changes = new ArrayList<PropertiesSnapshot[]>();
+        final Map<String, PropertiesSnapshot> newSnapshots = new HashMap<String, PropertiesSnapshot>();
+        for (final PropertiesSnapshot oldSnapshot : snapshots.values()) {
+            final PropertiesSnapshot newSnapshot = buildSnapshot(oldSnapshot.getCategory());
+            newSnapshots.put(newSnapshot.getCategory(), newSnapshot);
+            if (!oldSnapshot.getChangedKeys(newSnapshot).isEmpty()) {
+                changes.add(new PropertiesSnapshot[] {oldSnapshot, newSnapshot});
             }
         }
+        snapshots = Collections.unmodifiableMap(newSnapshots);
+        return changes;
+    }
 
-        if (PROPERTIES_MAP.get(baseCategoryKey) != null) {
-            final String valueString = (String) PROPERTIES_MAP.get(baseCategoryKey).get(propertyKey);
-            if (valueString != null) {
-                return valueString;
+    /**
+     * Notifies listeners of changed snapshots. Must be called without holding class lock.
+     * @param changes the changed snapshots as pairs of old and new snapshot
+     */
+    private static void notifyListeners(final List<PropertiesSnapshot[]> changes) {
+        for (final PropertiesSnapshot[] change : changes) {
+            final Set<String> changedKeys = change[0].getChangedKeys(change[1]);
+            for (final PropertiesChangeListener listener : LISTENERS) {
+                try {
+                    listener.propertiesChanged(change[1], changedKeys);
+                } catch (final Throwable t) {
+                    LOGGER.error("Error in properties change listener.", t);
+                }
             }
         }
+    }
 
-        if (required) {
-            throw new RuntimeException("Property not found: " + baseCategoryKey + " / " + propertyKey);
+    /**
+     * Gets base category key taking category redirection into account.
+     * @param categoryKey the category key
+     * @return the base category key
+     */
+    private static synchronized String getBaseCategoryKey(final String categoryKey) {
+        if (categoryRedirection.containsKey(categoryKey)) {
+            return categoryRedirection.get(categoryKey);
         } else {
-            return null;
+            return categoryKey;
+        }
+    }
+
+    /**
+     * Builds snapshot of category by merging base, extension and override properties.
+     * Must be called while holding class lock.
+     * @param categoryKey the category key
+     * @return the snapshot
+     */
+    private static PropertiesSnapshot buildSnapshot(final String categoryKey) {
+        final String baseCategoryKey = getBaseCategoryKey(categoryKey);
+        final String extendedCategoryKey = baseCategoryKey + "-ext";
+
+        if (!PROPERTIES_MAP.containsKey(baseCategoryKey)) {
+            PROPERTIES_MAP.put(baseCategoryKey, getProperties(baseCategoryKey));
+        }
+
+        if (!EXTENDED_PROPERTIES_MAP.containsKey(extendedCategoryKey)) {
+            EXTENDED_PROPERTIES_MAP.put(extendedCategoryKey, getProperties(extendedCategoryKey));
+        }
+
+        final Map<String, String> values = new HashMap<String, String>();
+        putAll(values, PROPERTIES_MAP.get(baseCategoryKey));
+        putAll(values, EXTENDED_PROPERTIES_MAP.get(extendedCategoryKey));
+        putAll(values, OVERRIDE_PROPERTIES_MAP.get(baseCategoryKey));
+        return new PropertiesSnapshot(categoryKey, values);
+    }
+
+    /**
+     * Puts string properties to map overriding existing values.
+     * @param values the map
+     * @param properties the properties or null
+     */
+    private static void putAll(final Map<String, String> values, final Properties properties) {
+        if (properties == null) {
+            return;
+        }
+        for (final Map.Entry<Object, Object> entry : properties.entrySet()) {
+            if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+                values.put((String) entry.getKey(), (String) entry.getValue());
+            }
         }
     }
 
@@ -156,6 +369,7 @@ public final class PropertiesUtil {
     private static synchronized Properties getProperties(final String categoryKey) {
         final String propertiesFileName = categoryKey + ".properties";
         final Properties properties = new Properties();
+        final URL resource = PropertiesUtil.class.getClassLoader().getResource(propertiesFileName);
         InputStream inputStream = PropertiesUtil.class.getClassLoader().getResourceAsStream(propertiesFileName);
         if (inputStream == null) {
             try {
@@ -163,6 +377,7 @@ public final class PropertiesUtil {
                     return null;
                 }
                 inputStream = new FileInputStream(propertiesFileName);
+                trackFile(new File(propertiesFileName));
             } catch (final IOException e) {
                 e.printStackTrace();
                 return null;
@@ -170,6 +385,12 @@ public final class PropertiesUtil {
             if (inputStream == null) {
                 return null;
             }
+        } else if (resource != null && "file".equals(resource.getProtocol())) {
+            try {
+                trackFile(new File(resource.toURI()));
+            } catch (final URISyntaxException e) {
+                LOGGER.warn("Unable to track modifications of property file: " + resource);
+            }
         }
         try {
             properties.load(inputStream);
@@ -180,4 +401,12 @@ public final class PropertiesUtil {
         }
         return properties;
     }
+
+    /**
+     * Records property file modification time for reload checks.
+     * @param file the property file
+     */
+    private static void trackFile(final File file) {
+        PROPERTIES_FILES.put(file, file.lastModified());
+    }
 }
@@ -0,0 +1,105 @@
+package org.bubblecloud.ilves.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for in memory cache.
+ */
+public class InMemoryCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(60000, 1000, 10);
+        cache.put("a", "1");
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.size());
+        cache.put("a", "2");
+        Assert.assertEquals("2", cache.get("a"));
+        Assert.assertEquals(1, cache.size());
+        cache.remove("a");
+        Assert.assertFalse(cache.containsKey("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCapacityEviction() {
+        final InMemoryCache<Integer, Integer> cache = new InMemoryCache<Integer, Integer>(0, 0, 10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+        }
+        cache.get(0);
+        for (int i = 10; i < 15; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertEquals(10, cache.size());
+        Assert.assertEquals(5, cache.getEvictionCount());
+        Assert.assertTrue(cache.containsKey(0));
+        Assert.assertFalse(cache.containsKey(1));
+        Assert.assertTrue(cache.containsKey(14));
+    }
+
+    @Test
+    public void testWeightEviction() {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(0, 0, 100, 10,
+                new CacheWeigher<String, String>() {
+                    @Override
+                    public int weigh(final String key, final String value) {
+                        return value.length();
+                    }
+                });
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        Assert.assertEquals(10, cache.weight());
+        cache.put("c", "123");
+        Assert.assertTrue(cache.weight() <= 10);
+        Assert.assertFalse(cache.containsKey("a"));
+        Assert.assertTrue(cache.containsKey("c"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(50, 10000, 10);
+        cache.put("a", "1");
+        Thread.sleep(100);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testClear() {
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(60000, 1000, 10);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testRemovalListener() {
+        final List<String> removed = new ArrayList<String>();
+        final InMemoryCache<String, String> cache = new InMemoryCache<String, String>(0, 0, 2, 0, null,
+                new CacheRemovalListener<String, String>() {
+                    @Override
+                    public void removed(final String key, final String value) {
+                        removed.add(key + "=" + value);
+                    }
+                });
+        cache.put("a", "1");
+        cache.put("a", "2");
+        cache.put("b", "3");
+        cache.put("c", "4");
+        cache.remove("b");
+        cache.clear();
+        Assert.assertEquals(Arrays.asList("a=1", "a=2", "b=3", "c=4"), removed);
+    }
+}
@@ -8,6 +8,17 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by tlaukkan on 5/4/14.
@@ -140,4 +151,133 @@ public class AuditServiceTest {
         Assert.assertEquals(auditLogEntryRecorded.getDataNewVersionId(), auditLogEntryLoaded.getDataNewVersionId());
         Assert.assertEquals(auditLogEntryRecorded.getDataLabel(), auditLogEntryLoaded.getDataLabel());
     }
+
+    @Test
+    public void testAsynchronousAuditLog() {
+        final SecurityContext securityContext = new SecurityContext(entityManager, entityManager,
+                "localhost", "127.0.0.1", 8080, "unit-test", "localhost", "127.0.0.1", 12345,
+                "test-user-id", "test-user-name", new ArrayList<String>());
+
+        AuditService.startAsynchronousLogging(TestUtil.getEntityManagerFactory(), "site");
+        final AuditLogWriter auditLogWriter = AuditService.getAuditLogWriter();
+        for (int i = 0; i < 250; i++) {
+            AuditService.log(securityContext, "test-asynchronous-event", "test-data-type", "test-data-id-" + i,
+                    "test-data-label");
+        }
+        AuditService.stopAsynchronousLogging();
+
+        Assert.assertNull(AuditService.getAuditLogWriter());
+        Assert.assertEquals(250, auditLogWriter.getWrittenCount());
+        Assert.assertEquals(0, auditLogWriter.getDroppedCount());
+        Assert.assertEquals(250L, entityManager.createQuery(
+                "select count(e) from AuditLogEntry as e where e.event=:event", Long.class)
+                .setParameter("event", "test-asynchronous-event").getSingleResult().longValue());
+    }
+
+    @Test
+    public void testBlockingWriteAfterStop() {
+        final AuditLogWriter auditLogWriter = new AuditLogWriter(TestUtil.getEntityManagerFactory(), 1, 10, 1000,
+                AuditLogWriter.OverflowPolicy.BLOCK, null);
+        auditLogWriter.stop(5000);
+        for (int i = 0; i < 3; i++) {
+            auditLogWriter.write(new AuditLogEntry(null, "test-stopped-event", "127.0.0.1:8080", "unit-test",
+                    "127.0.0.1:12345", "test-user-id", "test-user-name", "test-data-type", "test-data-id-" + i,
+                    null, null, "test-data-label", new Date()));
+        }
+
+        Assert.assertEquals(3, auditLogWriter.getWrittenCount());
+        Assert.assertEquals(0, auditLogWriter.getQueueSize());
+        Assert.assertEquals(3L, entityManager.createQuery(
+                "select count(e) from AuditLogEntry as e where e.event=:event", Long.class)
+                .setParameter("event", "test-stopped-event").getSingleResult().longValue());
+    }
+
+    @Test
+    public void testAuditLogArchive() throws Exception {
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>();
+        for (int i = 0; i < 3; i++) {
+            entries.add(AuditService.log(entityManager, "test-company-id", "test-archived-event",
+                    "127.0.0.1:8080", "unit-test", "127.0.0.1:12345", "test-user-id", "test-user-name",
+                    "test-data-type", "test-data-id-" + i, null, null, "test-data-label"));
+        }
+
+        final File directory = new File("target/audit-log-archive-test-" + System.currentTimeMillis());
+        final AuditLogArchive archive = new AuditLogArchive(directory);
+        archive.append(entries);
+        archive.append(entries.subList(0, 1));
+
+        final Date startTime = new Date(System.currentTimeMillis() - 60 * 60 * 1000L);
+        final Date endTime = new Date(System.currentTimeMillis() + 60 * 60 * 1000L);
+        final List<AuditLogEntry> archivedEntries = archive.read("test-company-id", startTime, endTime);
+        Assert.assertEquals(3, archivedEntries.size());
+        Assert.assertFalse(archivedEntries.get(0).getCreated().before(archivedEntries.get(2).getCreated()));
+        Assert.assertEquals("test-company-id", archivedEntries.get(0).getCompanyId());
+        Assert.assertEquals(0, archive.read("other-company-id", startTime, endTime).size());
+    }
+
+    @Test
+    public void testAuditLogArchiveTruncatedBatch() throws Exception {
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>();
+        for (int i = 0; i < 3; i++) {
+            entries.add(AuditService.log(entityManager, "test-company-id", "test-archived-event",
+                    "127.0.0.1:8080", "unit-test", "127.0.0.1:12345", "test-user-id", "test-user-name",
+                    "test-data-type", "test-data-id-" + i, null, null, "test-data-label"));
+        }
+
+        final File directory = new File("target/audit-log-archive-test-" + System.currentTimeMillis());
+        final AuditLogArchive archive = new AuditLogArchive(directory);
+        archive.append(entries.subList(0, 1));
+
+        // Truncated batch sorted before valid batches and temporary file of interrupted batch.
+        final File companyDirectory = new File(directory, "test-company-id");
+        final File[] validFiles = companyDirectory.listFiles();
+        Assert.assertEquals(1, validFiles.length);
+        final byte[] bytes = Files.readAllBytes(validFiles[0].toPath());
+        final SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM");
+        monthFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String month = monthFormat.format(entries.get(0).getCreated());
+        for (final String name : new String[] {"audit-" + month + "-0.gz", "audit-" + month + "-1.tmp"}) {
+            final FileOutputStream outputStream = new FileOutputStream(new File(companyDirectory, name));
+            try {
+                outputStream.write(Arrays.copyOf(bytes, bytes.length / 2));
+            } finally {
+                outputStream.close();
+            }
+        }
+
+        archive.append(entries.subList(1, 3));
+
+        final Date startTime = new Date(System.currentTimeMillis() - 60 * 60 * 1000L);
+        final Date endTime = new Date(System.currentTimeMillis() + 60 * 60 * 1000L);
+        final List<AuditLogEntry> archivedEntries = archive.read("test-company-id", startTime, endTime);
+        Assert.assertEquals(3, archivedEntries.size());
+    }
+
+    @Test
+    public void testAuditLogArchiveInvalidRecordLength() throws Exception {
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>();
+        entries.add(AuditService.log(entityManager, "test-company-id", "test-archived-event",
+                "127.0.0.1:8080", "unit-test", "127.0.0.1:12345", "test-user-id", "test-user-name",
+                "test-data-type", "test-data-id", null, null, "test-data-label"));
+
+        final File directory = new File("target/audit-log-archive-test-" + System.currentTimeMillis());
+        final AuditLogArchive archive = new AuditLogArchive(directory);
+        archive.append(entries);
+
+        // Batch with record length far beyond what the file can hold.
+        final SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM");
+        monthFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String month = monthFormat.format(entries.get(0).getCreated());
+        final DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(
+                new File(new File(directory, "test-company-id"), "audit-" + month + "-0.gz"))));
+        try {
+            outputStream.writeInt(Integer.MAX_VALUE);
+        } finally {
+            outputStream.close();
+        }
+
+        final Date startTime = new Date(System.currentTimeMillis() - 60 * 60 * 1000L);
+        final Date endTime = new Date(System.currentTimeMillis() + 60 * 60 * 1000L);
+        Assert.assertEquals(1, archive.read("test-company-id", startTime, endTime).size());
+    }
 }
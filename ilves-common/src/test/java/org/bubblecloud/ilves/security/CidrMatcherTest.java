@@ -0,0 +1,37 @@
+package org.bubblecloud.ilves.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for CIDR subnet white list matcher.
+ */
+public class CidrMatcherTest {
+    @Test
+    public void testIpv4() {
+        final CidrMatcher matcher = new CidrMatcher("10.0.0.0/8, 192.168.1.0/24,,127.0.0.1/32,invalid");
+        Assert.assertTrue(matcher.matches("10.1.2.3"));
+        Assert.assertTrue(matcher.matches("192.168.1.255"));
+        Assert.assertTrue(matcher.matches("127.0.0.1"));
+        Assert.assertFalse(matcher.matches("11.0.0.1"));
+        Assert.assertFalse(matcher.matches("192.168.2.1"));
+        Assert.assertFalse(matcher.matches("127.0.0.2"));
+        Assert.assertFalse(matcher.matches("256.1.1.1"));
+        Assert.assertFalse(matcher.matches("10.1.2"));
+        Assert.assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void testIpv6() {
+        final CidrMatcher matcher = new CidrMatcher("2001:db8::/32,::1/128,10.0.0.0/8");
+        Assert.assertTrue(matcher.matches("2001:db8::1"));
+        Assert.assertTrue(matcher.matches("2001:0db8:0000:0000:0000:0000:0000:0001"));
+        Assert.assertTrue(matcher.matches("2001:db8::1%eth0"));
+        Assert.assertTrue(matcher.matches("::1"));
+        Assert.assertTrue(matcher.matches("::ffff:10.0.0.1"));
+        Assert.assertFalse(matcher.matches("2001:db9::1"));
+        Assert.assertFalse(matcher.matches("::2"));
+        Assert.assertFalse(matcher.matches("1:2:3::4:5:6:7:8"));
+        Assert.assertFalse(matcher.matches("2001::db8::1"));
+    }
+}
@@ -0,0 +1,136 @@
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.exception.ServiceBusyException;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.bubblecloud.ilves.util.StringUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit test for password hash util.
+ */
+public class PasswordHashUtilTest {
+
+    @After
+    public void after() {
+        PropertiesUtil.removeProperty("site", "password-hash-iterations");
+        PropertiesUtil.removeProperty("site", "password-hash-threads");
+        PropertiesUtil.removeProperty("site", "password-hash-queue-size");
+        PropertiesUtil.removeProperty("site", "password-hash-timeout-millis");
+        PasswordHashUtil.shutdown();
+    }
+
+    @Test
+    public void testPbkdf2Sha256() {
+        PropertiesUtil.setProperty("site", "password-hash-iterations", "1000");
+        PasswordHashUtil.shutdown();
+
+        final String passwordHash = PasswordHashUtil.hashPassword("password".toCharArray());
+        final String[] parts = passwordHash.split("\\$");
+        Assert.assertEquals(5, parts.length);
+        Assert.assertEquals("pbkdf2-sha256", parts[1]);
+        Assert.assertEquals("1000", parts[2]);
+        Assert.assertTrue(PasswordHashUtil.isPasswordHash(passwordHash));
+        Assert.assertFalse(PasswordHashUtil.isRehashNeeded(passwordHash));
+        Assert.assertFalse(passwordHash.equals(PasswordHashUtil.hashPassword("password".toCharArray())));
+
+        final User user = newUser(passwordHash);
+        Assert.assertEquals(passwordHash, PasswordHashUtil.checkPassword(user, "password".toCharArray()));
+        Assert.assertNull(PasswordHashUtil.checkPassword(user, "wrong".toCharArray()));
+
+        PropertiesUtil.setProperty("site", "password-hash-iterations", "2000");
+        PasswordHashUtil.shutdown();
+        Assert.assertTrue(PasswordHashUtil.isRehashNeeded(passwordHash));
+        final String rehashedPasswordHash = PasswordHashUtil.checkPassword(user, "password".toCharArray());
+        Assert.assertTrue(rehashedPasswordHash.startsWith("$pbkdf2-sha256$2000$"));
+    }
+
+    @Test
+    public void testLegacyHash() throws Exception {
+        PropertiesUtil.setProperty("site", "password-hash-iterations", "1000");
+        PasswordHashUtil.shutdown();
+
+        final String userIdSaltedHash = legacyHash("user-1", "password");
+        final String emailSaltedHash = legacyHash("test@test.org", "password");
+        Assert.assertTrue(PasswordHashUtil.isPasswordHash(userIdSaltedHash));
+        Assert.assertTrue(PasswordHashUtil.isRehashNeeded(userIdSaltedHash));
+        Assert.assertFalse(PasswordHashUtil.isPasswordHash("password"));
+
+        for (final String legacyHash : new String[] {userIdSaltedHash, emailSaltedHash}) {
+            final User user = newUser(legacyHash);
+            Assert.assertNull(PasswordHashUtil.checkPassword(user, "wrong".toCharArray()));
+            final String rehashedPasswordHash = PasswordHashUtil.checkPassword(user, "password".toCharArray());
+            Assert.assertTrue(rehashedPasswordHash.startsWith("$pbkdf2-sha256$1000$"));
+            Assert.assertEquals(rehashedPasswordHash, PasswordHashUtil.checkPassword(newUser(rehashedPasswordHash),
+                    "password".toCharArray()));
+        }
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        PropertiesUtil.setProperty("site", "password-hash-iterations", "2000000");
+        PropertiesUtil.setProperty("site", "password-hash-threads", "1");
+        PropertiesUtil.setProperty("site", "password-hash-queue-size", "1");
+        PropertiesUtil.setProperty("site", "password-hash-timeout-millis", "100");
+        PasswordHashUtil.shutdown();
+
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            // Started hashing is waited to completion even if it exceeds timeout.
+            final Future<String> running = executorService.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return PasswordHashUtil.hashPassword("password".toCharArray());
+                }
+            });
+            Thread.sleep(50);
+
+            // Queued hashing which does not start before timeout is reported busy.
+            try {
+                PasswordHashUtil.hashPassword("password".toCharArray());
+                Assert.fail("Queued password hashing should have timed out.");
+            } catch (final ServiceBusyException e) {
+                Assert.assertFalse(running.isDone());
+            }
+
+            Assert.assertTrue(running.get().startsWith("$pbkdf2-sha256$2000000$"));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Constructs user with password hash.
+     *
+     * @param passwordHash the password hash
+     * @return the user
+     */
+    private static User newUser(final String passwordHash) {
+        final User user = new User();
+        user.setUserId("user-1");
+        user.setEmailAddress("test@test.org");
+        user.setPasswordHash(passwordHash);
+        return user;
+    }
+
+    /**
+     * Calculates legacy SHA-256 password hash.
+     *
+     * @param salt the salt
+     * @param password the password
+     * @return the password hash
+     * @throws Exception if exception occurs
+     */
+    private static String legacyHash(final String salt, final String password) throws Exception {
+        return StringUtil.toHexString(MessageDigest.getInstance("SHA-256").digest(
+                (salt + ":" + password).getBytes(SecurityUtil.CHARSET)));
+    }
+}
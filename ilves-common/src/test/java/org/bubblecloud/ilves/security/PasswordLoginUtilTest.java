@@ -0,0 +1,21 @@
+package org.bubblecloud.ilves.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for password login utilities.
+ */
+public class PasswordLoginUtilTest {
+
+    @Test
+    public void testEscapeFilterValue() {
+        Assert.assertEquals("test@test.org", PasswordLoginUtil.escapeFilterValue("test@test.org"));
+        Assert.assertEquals("", PasswordLoginUtil.escapeFilterValue(""));
+        Assert.assertEquals("\\2a\\28\\29\\5c\\00", PasswordLoginUtil.escapeFilterValue("*()\\\u0000"));
+        Assert.assertEquals("\\2a\\29\\28uid=\\2a", PasswordLoginUtil.escapeFilterValue("*)(uid=*"));
+        Assert.assertEquals("cn=Test\\5c, Group,ou=groups",
+                PasswordLoginUtil.escapeFilterValue("cn=Test\\, Group,ou=groups"));
+        Assert.assertEquals("m\u00e4k\u00e4r\u00e4", PasswordLoginUtil.escapeFilterValue("m\u00e4k\u00e4r\u00e4"));
+    }
+}
@@ -1,5 +1,7 @@
 package org.bubblecloud.ilves.security;
 
+import org.bubblecloud.ilves.cache.InMemoryCache;
+import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -14,4 +16,36 @@ public class SecurityUtilTest {
         Assert.assertFalse(cipherText.equals(plainText));
         Assert.assertEquals(plainText, SecurityUtil.decryptSecretKey(cipherText));
     }
+
+    @Test
+    public void testDeviceSecretDecryption() {
+        final String plainText = "device-secret";
+        final String cipherText = SecurityUtil.encryptSecretKey(plainText);
+        final InMemoryCache<String, String> cache = SecurityUtil.getDeviceSecretCache();
+        final long hitCount = cache.getHitCount();
+        Assert.assertEquals(plainText, SecurityUtil.decryptDeviceSecret(cipherText));
+        Assert.assertEquals(hitCount, cache.getHitCount());
+        Assert.assertTrue(cache.containsKey(cipherText));
+        Assert.assertEquals(plainText, SecurityUtil.decryptDeviceSecret(cipherText));
+        Assert.assertEquals(hitCount + 1, cache.getHitCount());
+
+        try {
+            PropertiesUtil.setProperty("site", "key-encryption-secret-key",
+                    SecurityUtil.generateKeyEncryptionSecretKey());
+            final String newCipherText = SecurityUtil.encryptSecretKey(plainText);
+            Assert.assertFalse(cache.containsKey(cipherText));
+            Assert.assertEquals(plainText, SecurityUtil.decryptDeviceSecret(newCipherText));
+        } finally {
+            PropertiesUtil.removeProperty("site", "key-encryption-secret-key");
+        }
+        Assert.assertEquals(plainText, SecurityUtil.decryptDeviceSecret(cipherText));
+    }
+
+    @Test
+    public void testHashWithReusedDigest() {
+        final String hash = SecurityUtil.calculateHash("test-string");
+        Assert.assertEquals(64, hash.length());
+        Assert.assertEquals(hash, SecurityUtil.calculateHash("test-string"));
+        Assert.assertFalse(hash.equals(SecurityUtil.calculateHash("other-string")));
+    }
 }
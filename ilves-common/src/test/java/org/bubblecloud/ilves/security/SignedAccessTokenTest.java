@@ -0,0 +1,105 @@
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.cache.AccessTokenCache;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+
+/**
+ * Unit test for signed access tokens.
+ */
+public class SignedAccessTokenTest {
+    @Test
+    public void testSignedAccessToken() {
+        final Company company = new Company();
+        company.setCompanyId("company-1");
+        final User user = new User();
+        user.setUserId("user-1");
+
+        final char[] accessToken = SignedAccessToken.generate(company, user, 60000);
+        Assert.assertTrue(SignedAccessToken.isSigned(accessToken));
+        Assert.assertFalse(SignedAccessToken.isSigned(SecurityUtil.generateAccessToken()));
+
+        final SignedAccessToken signedAccessToken = SignedAccessToken.verify(accessToken);
+        Assert.assertNotNull(signedAccessToken);
+        Assert.assertEquals("company-1", signedAccessToken.getCompanyId());
+        Assert.assertEquals("user-1", signedAccessToken.getUserId());
+
+        final char[] forgedAccessToken = accessToken.clone();
+        forgedAccessToken[0] = forgedAccessToken[0] == 'A' ? 'B' : 'A';
+        Assert.assertNull(SignedAccessToken.verify(forgedAccessToken));
+
+        Assert.assertNull(SignedAccessToken.verify(SignedAccessToken.generate(company, user, -1)));
+    }
+
+    @Test
+    public void testSignedAccessTokenRevocation() throws Exception {
+        TestUtil.before();
+        final EntityManager entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        try {
+            final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+            final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+            final Company company = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11",
+                    invoicingAddress, deliveryAddress);
+            entityManager.getTransaction().begin();
+            entityManager.persist(invoicingAddress);
+            entityManager.persist(deliveryAddress);
+            entityManager.persist(company);
+            entityManager.getTransaction().commit();
+
+            final Group group = new Group(company, "user", "User");
+            UserDao.addGroup(entityManager, group);
+            final User user = new User(company, "First", "Last", "first.last@test.org", "+358 40 1234567", "");
+            user.setCertificate("AQIDBA==");
+            UserDao.addUser(entityManager, user, group);
+            final SecurityContext context = new SecurityContext(entityManager, entityManager,
+                    "localhost", "127.0.0.1", 8080, "unit-test", "localhost", "127.0.0.1", 12345,
+                    user.getUserId(), user.getEmailAddress(), Collections.singletonList(DefaultRoles.USER));
+
+            final char[] accessToken = SignedAccessToken.generate(company, user, 60000);
+            final AccessTokenCache.Principal principal = getPrincipal(company, accessToken);
+            Assert.assertNotNull(principal);
+            Assert.assertEquals(user, principal.getUser());
+            Assert.assertEquals(1, principal.getGroups().size());
+            Assert.assertNotSame(principal.getUser(), principal.getUser());
+            Assert.assertEquals(user.getCertificateFingerprint(), principal.getUser().getCertificateFingerprint());
+
+            // Logout only evicts cached principals and does not revoke signed access tokens.
+            LoginService.logout(context);
+            Assert.assertNotNull(getPrincipal(company, accessToken));
+
+            Thread.sleep(5);
+            SecurityService.revokeAccessTokens(context, user);
+            Assert.assertNull(getPrincipal(company, accessToken));
+
+            Thread.sleep(5);
+            Assert.assertNotNull(getPrincipal(company, SignedAccessToken.generate(company, user, 60000)));
+        } finally {
+            entityManager.close();
+            TestUtil.after();
+        }
+    }
+
+    /**
+     * Gets principal with new entity manager as API requests do.
+     *
+     * @param company the company
+     * @param accessToken the access token
+     * @return the principal or null
+     */
+    private AccessTokenCache.Principal getPrincipal(final Company company, final char[] accessToken) {
+        final EntityManager requestEntityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        try {
+            return AccessTokenCache.getPrincipal(requestEntityManager, company, accessToken);
+        } finally {
+            requestEntityManager.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.bubblecloud.ilves.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bubblecloud.ilves.cache.UserClientCertificateCache;
+import org.bubblecloud.ilves.exception.SiteException;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.io.File;
+import java.security.cert.X509Certificate;
+
+/**
+ * Unit test for user lookup by TLS client certificate.
+ */
+public class UserClientCertificateTest {
+    /** The key store password. */
+    private static final String KEY_STORE_PASSWORD = "changeme";
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The key store of generated certificates. */
+    private File keyStoreFile;
+    /** The company. */
+    private Company company;
+    /** The default group of users. */
+    private Group group;
+
+    @Before
+    public void before() throws Exception {
+        PropertiesUtil.setProperty("site", "client-certificate-cache-max-age-millis", "200");
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        keyStoreFile = File.createTempFile("client-certificates", ".bks");
+        keyStoreFile.delete();
+
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        company = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11",
+                invoicingAddress, deliveryAddress);
+        entityManager.getTransaction().begin();
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        entityManager.persist(company);
+        entityManager.getTransaction().commit();
+        group = new Group(company, "user", "User");
+        UserDao.addGroup(entityManager, group);
+    }
+
+    @After
+    public void after() {
+        entityManager.close();
+        TestUtil.after();
+        keyStoreFile.delete();
+        PropertiesUtil.removeProperty("site", "client-certificate-cache-max-age-millis");
+    }
+
+    @Test
+    public void testLoadAndBackfill() throws Exception {
+        final X509Certificate certificate = generateCertificate("user-1");
+        final X509Certificate sharedCertificate = generateCertificate("shared");
+        final User user = addUser("user1@test.org", certificate);
+        addUser("user2@test.org", sharedCertificate);
+        clearFingerprints();
+        // Legacy rows may share certificate as fingerprints were not unique before.
+        addUser("user3@test.org", sharedCertificate);
+        clearFingerprints();
+
+        UserClientCertificateCache.init(TestUtil.getEntityManagerFactory());
+
+        Assert.assertEquals(user.getUserId(),
+                UserClientCertificateCache.getUserByCertificate(certificate, false).getUserId());
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(sharedCertificate, false));
+        entityManager.clear();
+        Assert.assertEquals(DigestUtils.sha256Hex(certificate.getEncoded()),
+                entityManager.find(User.class, user.getUserId()).getCertificateFingerprint());
+        Assert.assertEquals(Long.valueOf(1), entityManager.createQuery(
+                "select count(u) from User u where u.certificateFingerprint is not null", Long.class)
+                .getSingleResult());
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws Exception {
+        UserClientCertificateCache.init(TestUtil.getEntityManagerFactory());
+        final X509Certificate certificate = generateCertificate("user-1");
+        final X509Certificate newCertificate = generateCertificate("user-1-new");
+
+        final User user = addUser("user1@test.org", certificate);
+        Assert.assertEquals(user, UserClientCertificateCache.getUserByCertificate(certificate, true));
+
+        user.setCertificate(Base64.encodeBase64String(newCertificate.getEncoded()));
+        UserDao.updateUser(entityManager, user);
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(certificate, true));
+        Assert.assertEquals(user, UserClientCertificateCache.getUserByCertificate(newCertificate, true));
+
+        // Assigning blacklisted certificate to user removes it from blacklist.
+        user.setCertificate(Base64.encodeBase64String(certificate.getEncoded()));
+        UserDao.updateUser(entityManager, user);
+        Assert.assertEquals(user, UserClientCertificateCache.getUserByCertificate(certificate, true));
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(newCertificate, false));
+
+        try {
+            addUser("user2@test.org", certificate);
+            Assert.fail("Certificate of another user should have been rejected.");
+        } catch (final SiteException e) {
+            Assert.assertEquals(user, UserClientCertificateCache.getUserByCertificate(certificate, true));
+        }
+
+        UserDao.removeGroupMember(entityManager, group, user);
+        UserDao.removeUser(entityManager, user);
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(certificate, false));
+    }
+
+    @Test
+    public void testMissAndRevalidation() throws Exception {
+        UserClientCertificateCache.init(TestUtil.getEntityManagerFactory());
+        final X509Certificate certificate = generateCertificate("user-1");
+
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(certificate, false));
+
+        // User stored by another node is found from database when certificate was not blacklisted.
+        final User user = new User(company, "First", "Last", "user1@test.org", "", "");
+        user.setCertificate(Base64.encodeBase64String(certificate.getEncoded()));
+        entityManager.getTransaction().begin();
+        entityManager.persist(user);
+        entityManager.getTransaction().commit();
+        Assert.assertEquals(user.getUserId(),
+                UserClientCertificateCache.getUserByCertificate(certificate, true).getUserId());
+
+        // Certificate removed by another node is served until background revalidation after maximum age
+        // removes and blacklists it.
+        clearFingerprints();
+        Thread.sleep(300);
+        Assert.assertEquals(user.getUserId(),
+                UserClientCertificateCache.getUserByCertificate(certificate, true).getUserId());
+        final long timeout = System.currentTimeMillis() + 5000;
+        while (UserClientCertificateCache.getUserByCertificate(certificate, true) != null) {
+            Assert.assertTrue("Certificate was not revalidated.", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+
+        entityManager.getTransaction().begin();
+        entityManager.createQuery("update User u set u.certificateFingerprint = :certificateFingerprint")
+                .setParameter("certificateFingerprint", DigestUtils.sha256Hex(certificate.getEncoded()))
+                .executeUpdate();
+        entityManager.getTransaction().commit();
+        Assert.assertNull(UserClientCertificateCache.getUserByCertificate(certificate, true));
+    }
+
+    /**
+     * Adds user with certificate to company.
+     *
+     * @param emailAddress the email address
+     * @param certificate the certificate
+     * @return the user
+     * @throws Exception if exception occurs
+     */
+    private User addUser(final String emailAddress, final X509Certificate certificate) throws Exception {
+        final User user = new User(company, "First", "Last", emailAddress, "", "");
+        user.setCertificate(Base64.encodeBase64String(certificate.getEncoded()));
+        UserDao.addUser(entityManager, user, group);
+        return user;
+    }
+
+    /**
+     * Clears certificate fingerprints of all users from database.
+     */
+    private void clearFingerprints() {
+        entityManager.getTransaction().begin();
+        entityManager.createQuery("update User u set u.certificateFingerprint = null").executeUpdate();
+        entityManager.getTransaction().commit();
+    }
+
+    /**
+     * Generates self signed certificate.
+     *
+     * @param commonName the common name
+     * @return the certificate
+     */
+    private X509Certificate generateCertificate(final String commonName) {
+        final String alias = CertificateUtil.generateSelfSignedCertificate(commonName, null,
+                keyStoreFile.getAbsolutePath(), KEY_STORE_PASSWORD, KEY_STORE_PASSWORD);
+        return CertificateUtil.getCertificate(alias, keyStoreFile.getAbsolutePath(), KEY_STORE_PASSWORD);
+    }
+}
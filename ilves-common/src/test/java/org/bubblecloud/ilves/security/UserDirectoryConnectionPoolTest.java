@@ -0,0 +1,34 @@
+package org.bubblecloud.ilves.security;
+
+import org.bubblecloud.ilves.model.UserDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for user directory connection pool.
+ */
+public class UserDirectoryConnectionPoolTest {
+
+    @Test
+    public void testIsConfiguredForAnonymousBind() {
+        final UserDirectory userDirectory = new UserDirectory();
+        userDirectory.setAddress("localhost");
+        userDirectory.setPort(389);
+
+        final UserDirectoryConnectionPool anonymousPool = new UserDirectoryConnectionPool("localhost", 389,
+                null, null, 1, 1000);
+        Assert.assertTrue(anonymousPool.isConfiguredFor(userDirectory));
+
+        userDirectory.setLoginDn("cn=admin");
+        userDirectory.setLoginPassword("password");
+        Assert.assertFalse(anonymousPool.isConfiguredFor(userDirectory));
+
+        final UserDirectoryConnectionPool pool = new UserDirectoryConnectionPool("localhost", 389,
+                "cn=admin", "password", 1, 1000);
+        Assert.assertTrue(pool.isConfiguredFor(userDirectory));
+
+        userDirectory.setLoginDn(null);
+        userDirectory.setLoginPassword(null);
+        Assert.assertFalse(pool.isConfiguredFor(userDirectory));
+    }
+}
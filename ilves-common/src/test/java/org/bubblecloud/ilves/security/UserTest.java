@@ -1,8 +1,11 @@
 package org.bubblecloud.ilves.security;
 
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.exception.SiteException;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.Privilege;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.util.TestUtil;
 import org.junit.After;
@@ -11,6 +14,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -71,8 +78,11 @@ public final class UserTest {
         Assert.assertEquals(group, userGroups.get(0));
         Assert.assertEquals(group2, userGroups.get(1));
 
+        Assert.assertFalse(PrivilegeCache.hasPrivilege(entityManager, owner, group, "test-key", "test-data"));
         UserDao.addUserPrivilege(entityManager, user, "test-key", "test-data");
         UserDao.addGroupPrivilege(entityManager, group, "test-key", "test-data");
+        Assert.assertTrue(PrivilegeCache.hasPrivilege(entityManager, owner, user, "test-key", "test-data"));
+        Assert.assertTrue(PrivilegeCache.hasPrivilege(entityManager, owner, group, "test-key", "test-data"));
 
         Assert.assertTrue(UserDao.hasUserPrivilege(entityManager, user, "test-key", "test-data"));
         Assert.assertTrue(UserDao.hasGroupPrivilege(entityManager, group, "test-key", "test-data"));
@@ -84,6 +94,8 @@ public final class UserTest {
 
         Assert.assertFalse(UserDao.hasUserPrivilege(entityManager, user, "test-key", "test-data"));
         Assert.assertFalse(UserDao.hasGroupPrivilege(entityManager, group, "test-key", "test-data"));
+        Assert.assertFalse(PrivilegeCache.hasPrivilege(entityManager, owner, user, "test-key", "test-data"));
+        Assert.assertFalse(PrivilegeCache.hasPrivilege(entityManager, owner, group, "test-key", "test-data"));
 
         UserDao.removeGroupMember(entityManager, group, user);
         UserDao.removeGroupMember(entityManager, group2, user);
@@ -94,4 +106,225 @@ public final class UserTest {
         Assert.assertNull(UserDao.getGroup(entityManager, owner, "test-group"));
 
     }
+
+    /**
+     * Tests bulk privilege modifications.
+     */
+    @Test
+    public void testBulkPrivileges() {
+        final Company owner = addCompany("8");
+        final Group group = addGroup(owner, "test-group");
+
+        UserDao.addGroupPrivileges(entityManager, group, "view", Arrays.asList("a", "b", "c"));
+        UserDao.addGroupPrivileges(entityManager, group, "view", Arrays.asList("c", "d"));
+        Assert.assertEquals(4, UserDao.getGroupPrivileges(entityManager, group).size());
+
+        UserDao.replaceGroupPrivileges(entityManager, group, "view", Arrays.asList("a", "b", "e"),
+                Arrays.asList("b", "e"));
+        Assert.assertFalse(UserDao.hasGroupPrivilege(entityManager, group, "view", "a"));
+        Assert.assertTrue(UserDao.hasGroupPrivilege(entityManager, group, "view", "b"));
+        Assert.assertTrue(UserDao.hasGroupPrivilege(entityManager, group, "view", "e"));
+        Assert.assertEquals(4, UserDao.getGroupPrivileges(entityManager, group).size());
+
+        UserDao.removeGroupPrivileges(entityManager, group, "view", Arrays.asList("b", "c", "d", "e"));
+        Assert.assertEquals(0, UserDao.getGroupPrivileges(entityManager, group).size());
+
+        UserDao.removeGroup(entityManager, group);
+    }
+
+    /**
+     * Tests bulk privilege modifications through security service.
+     */
+    @Test
+    public void testBulkPrivilegesService() {
+        final Company owner = addCompany("8");
+        final Group group = addGroup(owner, "test-group");
+        final User user = new User(owner, "First", "Last", "user@test.org", "", "");
+        UserDao.addUser(entityManager, user, group);
+
+        final SecurityContext administratorContext = new SecurityContext(entityManager, entityManager,
+                "localhost", "127.0.0.1", 8080, "unit-test", "localhost", "127.0.0.1", 12345,
+                "test-user-id", "test-user-name", Collections.singletonList(DefaultRoles.ADMINISTRATOR));
+        SecurityService.addUserPrivileges(administratorContext, user, "view", "data", Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(3, UserDao.getUserPrivileges(entityManager, user).size());
+        SecurityService.replaceUserPrivileges(administratorContext, user, "view", "data", Arrays.asList("a", "b"),
+                Arrays.asList("b", "d"));
+        Assert.assertFalse(UserDao.hasUserPrivilege(entityManager, user, "view", "a"));
+        Assert.assertTrue(UserDao.hasUserPrivilege(entityManager, user, "view", "d"));
+        SecurityService.addGroupPrivileges(administratorContext, group, "view", "data", Arrays.asList("a", "b"));
+        SecurityService.removeGroupPrivileges(administratorContext, group, "view", "data", Arrays.asList("a"));
+        Assert.assertEquals(1, UserDao.getGroupPrivileges(entityManager, group).size());
+
+        UserDao.addUserPrivileges(entityManager, user, DefaultPrivileges.ADMINISTER, Arrays.asList("b", "c", "d"));
+        final SecurityContext userContext = new SecurityContext(entityManager, entityManager,
+                "localhost", "127.0.0.1", 8080, "unit-test", "localhost", "127.0.0.1", 12345,
+                user.getUserId(), user.getEmailAddress(), Collections.singletonList(DefaultRoles.USER));
+        userContext.putObject(Company.class, owner);
+        try {
+            SecurityService.removeUserPrivileges(userContext, user, "view", "data", Arrays.asList("b", "e"));
+            Assert.fail("Removing privileges without administer privilege to all data should be denied.");
+        } catch (final SiteException e) {
+            Assert.assertTrue(UserDao.hasUserPrivilege(entityManager, user, "view", "b"));
+        }
+        SecurityService.removeUserPrivileges(userContext, user, "view", "data", Arrays.asList("b", "c", "d"));
+        Assert.assertEquals(3, UserDao.getUserPrivileges(entityManager, user).size());
+        Assert.assertFalse(UserDao.hasUserPrivilege(entityManager, user, "view", "b"));
+    }
+
+    /**
+     * Tests owner scoped user and group paging, iteration and counting. Users with equal last and first
+     * names cross page boundaries so that keyset paging has to break ties with ID.
+     */
+    @Test
+    public void testUserPaging() {
+        final Company owner = addCompany("8");
+        final Group group = addGroup(owner, "test-group");
+        addGroup(owner, "b-group");
+        addGroup(owner, "c-group");
+        final Company otherOwner = addCompany("other");
+        final Group otherGroup = addGroup(otherOwner, "test-group");
+        addGroup(otherOwner, "b-group");
+
+        final String[][] names = {{"Anna", "Aalto"}, {"Anna", "Aalto"}, {"Anna", "Aalto"}, {"Bertta", "Aalto"},
+                {"Anna", "Beta"}, {"Anna", "Beta"}, {"Cecilia", "Ceta"}};
+        final List<User> users = new ArrayList<User>();
+        for (int i = 0; i < names.length; i++) {
+            final User user = new User(owner, names[i][0], names[i][1], "user" + i + "@test.org", "", "");
+            UserDao.addUser(entityManager, user, group);
+            users.add(user);
+            UserDao.addUser(entityManager, new User(otherOwner, names[i][0], names[i][1], "user" + i + "@test.org",
+                    "", ""), otherGroup);
+        }
+        Collections.sort(users, new Comparator<User>() {
+            @Override
+            public int compare(final User o1, final User o2) {
+                int result = o1.getLastName().compareTo(o2.getLastName());
+                if (result == 0) {
+                    result = o1.getFirstName().compareTo(o2.getFirstName());
+                }
+                if (result == 0) {
+                    result = o1.getUserId().compareTo(o2.getUserId());
+                }
+                return result;
+            }
+        });
+
+        Assert.assertEquals(7, UserDao.countUsers(entityManager, owner));
+        Assert.assertEquals(3, UserDao.countGroups(entityManager, owner));
+        Assert.assertEquals(2, UserDao.countGroups(entityManager, otherOwner));
+
+        for (int pageSize = 1; pageSize <= 4; pageSize++) {
+            final List<User> pagedUsers = new ArrayList<User>();
+            List<User> page = UserDao.getUsers(entityManager, owner, null, pageSize);
+            while (!page.isEmpty()) {
+                Assert.assertTrue(page.size() <= pageSize);
+                pagedUsers.addAll(page);
+                page = UserDao.getUsers(entityManager, owner, page.get(page.size() - 1), pageSize);
+            }
+            Assert.assertEquals(users, pagedUsers);
+        }
+
+        final List<Group> pagedGroups = new ArrayList<Group>();
+        List<Group> groupPage = UserDao.getGroups(entityManager, owner, null, 2);
+        while (!groupPage.isEmpty()) {
+            pagedGroups.addAll(groupPage);
+            groupPage = UserDao.getGroups(entityManager, owner, groupPage.get(groupPage.size() - 1), 2);
+        }
+        Assert.assertEquals(3, pagedGroups.size());
+        Assert.assertEquals("b-group", pagedGroups.get(0).getName());
+        Assert.assertEquals("c-group", pagedGroups.get(1).getName());
+        Assert.assertEquals("test-group", pagedGroups.get(2).getName());
+        for (final Group pagedGroup : pagedGroups) {
+            Assert.assertEquals(owner, pagedGroup.getOwner());
+        }
+
+        final List<User> iteratedUsers = new ArrayList<User>();
+        for (final User user : UserDao.iterateUsers(entityManager, owner, 2)) {
+            Assert.assertEquals(owner, user.getOwner());
+            iteratedUsers.add(user);
+        }
+        Assert.assertEquals(users, iteratedUsers);
+    }
+
+    /**
+     * Tests privilege matrix loading and saving of modified cells.
+     */
+    @Test
+    public void testPrivilegeMatrix() {
+        final Company owner = addCompany("8");
+        final Group group = addGroup(owner, "test-group");
+        final User user = new User(owner, "First", "Last", "user@test.org", "", "");
+        UserDao.addUser(entityManager, user, group);
+        UserDao.addGroupPrivilege(entityManager, group, "view", "data");
+        UserDao.addGroupPrivilege(entityManager, group, "view", "other-data");
+
+        final User otherUser = new User(owner, "Second", "Last", "second@test.org", "", "");
+        UserDao.addUser(entityManager, otherUser, group);
+        UserDao.addUserPrivilege(entityManager, otherUser, "view", "data");
+
+        final PrivilegeMatrix matrix = PrivilegeMatrix.load(entityManager, owner, "data", null, 1, "view", "edit");
+        Assert.assertEquals(Collections.singletonList(user), matrix.getUsers());
+        Assert.assertTrue(matrix.hasGroupPrivilege(group, "view"));
+        Assert.assertFalse(matrix.hasGroupPrivilege(group, "edit"));
+        Assert.assertFalse(matrix.hasUserPrivilege(user, "view"));
+
+        matrix.setGroupPrivilege(group, "view", true);
+        Assert.assertFalse(matrix.isModified());
+        matrix.setGroupPrivilege(group, "view", false);
+        matrix.setUserPrivilege(user, "edit", true);
+        Assert.assertEquals(1, matrix.getAddedPrivileges().size());
+        Assert.assertEquals(1, matrix.getRemovedPrivileges().size());
+        UserDao.updatePrivileges(entityManager, owner, matrix.getAddedPrivileges(), matrix.getRemovedPrivileges());
+
+        final PrivilegeMatrix reloaded = PrivilegeMatrix.load(entityManager, owner, "data", null, 1, "view", "edit");
+        Assert.assertFalse(reloaded.hasGroupPrivilege(group, "view"));
+        Assert.assertTrue(reloaded.hasUserPrivilege(user, "edit"));
+        Assert.assertTrue(UserDao.hasGroupPrivilege(entityManager, group, "view", "other-data"));
+
+        final PrivilegeMatrix secondPage = PrivilegeMatrix.load(entityManager, owner, "data", user, 1, "view", "edit");
+        Assert.assertEquals(Collections.singletonList(otherUser), secondPage.getUsers());
+        Assert.assertTrue(secondPage.hasUserPrivilege(otherUser, "view"));
+        Assert.assertFalse(secondPage.hasUserPrivilege(user, "edit"));
+        Assert.assertTrue(PrivilegeMatrix.load(entityManager, owner, "data", otherUser, 1, "view").getUsers().isEmpty());
+
+        final Company otherOwner = addCompany("other");
+        final Group otherGroup = addGroup(otherOwner, "test-group");
+        try {
+            UserDao.updatePrivileges(entityManager, owner,
+                    Collections.singletonList(new Privilege(otherGroup, null, "view", "data")),
+                    Collections.<Privilege>emptyList());
+            Assert.fail("Privilege to group of other company should be rejected.");
+        } catch (final SiteException e) {
+            Assert.assertFalse(UserDao.hasGroupPrivilege(entityManager, otherGroup, "view", "data"));
+        }
+    }
+
+    /**
+     * Adds company with given host.
+     * @param host the host
+     * @return the company
+     */
+    private Company addCompany(final String host) {
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        final Company company = new Company("1", "2", "3", "4", "5", "6", "7", host, "9", "10", "11", invoicingAddress, deliveryAddress);
+        entityManager.getTransaction().begin();
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        entityManager.persist(company);
+        entityManager.getTransaction().commit();
+        return company;
+    }
+
+    /**
+     * Adds group with given name to owner company.
+     * @param owner the owner company
+     * @param name the group name
+     * @return the group
+     */
+    private Group addGroup(final Company owner, final String name) {
+        final Group group = new Group(owner, name, "Test Group");
+        UserDao.addGroup(entityManager, group);
+        return group;
+    }
 }
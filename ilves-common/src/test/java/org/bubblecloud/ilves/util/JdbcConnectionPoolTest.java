@@ -0,0 +1,78 @@
+package org.bubblecloud.ilves.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Unit test for JDBC connection pool.
+ */
+public class JdbcConnectionPoolTest {
+
+    @Test
+    public void testBorrowAndReturn() throws Exception {
+        final JdbcConnectionPool pool = new JdbcConnectionPool("test", "org.hsqldb.jdbcDriver",
+                "jdbc:hsqldb:mem:pooltest", "sa", "", 2, 100, 1, 0, 0);
+        try {
+            final Connection first = pool.getConnection();
+            final Connection second = pool.getConnection();
+            Assert.assertEquals(2, pool.getActiveCount());
+            try {
+                pool.getConnection();
+                Assert.fail("Pool exhaustion should time out.");
+            } catch (final SQLException e) {
+                Assert.assertEquals(1, pool.getTimeoutCount());
+            }
+
+            first.setAutoCommit(false);
+            first.close();
+            first.close();
+            Assert.assertTrue(first.isClosed());
+            Assert.assertEquals(1, pool.getActiveCount());
+            Assert.assertEquals(1, pool.getIdleCount());
+
+            final Connection third = pool.getConnection();
+            Assert.assertTrue(third.getAutoCommit());
+            Assert.assertEquals(2, pool.getCreatedCount());
+            Assert.assertEquals(3, pool.getAcquireCount());
+
+            second.close();
+            third.close();
+            Assert.assertEquals(0, pool.getActiveCount());
+            Assert.assertEquals(2, pool.getIdleCount());
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testResetAndStatementConnection() throws Exception {
+        final JdbcConnectionPool pool = new JdbcConnectionPool("test", "org.hsqldb.jdbcDriver",
+                "jdbc:hsqldb:mem:pooltest", "sa", "", 1, 100, 1, 0, 0);
+        try {
+            final Connection first = pool.getConnection();
+            final int transactionIsolation = first.getTransactionIsolation();
+            first.setReadOnly(true);
+            first.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            final Statement statement = first.createStatement();
+            Assert.assertSame(first, statement.getConnection());
+            Assert.assertSame(first, first.getMetaData().getConnection());
+            statement.getConnection().close();
+            Assert.assertEquals(1, pool.getIdleCount());
+
+            final Connection second = pool.getConnection();
+            Assert.assertFalse(second.isReadOnly());
+            Assert.assertEquals(transactionIsolation, second.getTransactionIsolation());
+            Assert.assertTrue(second.getAutoCommit());
+            Assert.assertEquals(1, pool.getCreatedCount());
+            second.close();
+        } finally {
+            pool.close();
+        }
+    }
+
+}
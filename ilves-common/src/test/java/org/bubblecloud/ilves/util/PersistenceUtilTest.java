@@ -0,0 +1,46 @@
+package org.bubblecloud.ilves.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManagerFactory;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Tests persistence util entity manager factory life cycle.
+ */
+public class PersistenceUtilTest {
+
+    @Test
+    public void testRemoveEntityManagerFactoryClosesPools() {
+        PropertiesUtil.setProperty("site", "jdbc-pool-maximum-size", "2");
+        PropertiesUtil.setProperty("site", "audit-jdbc-pool-maximum-size", "1");
+        try {
+            TestUtil.before();
+            final EntityManagerFactory entityManagerFactory = TestUtil.getEntityManagerFactory();
+            final EntityManagerFactory auditEntityManagerFactory =
+                    PersistenceUtil.getAuditEntityManagerFactory("site", "site");
+            final List<JdbcConnectionPool> connectionPools = PersistenceUtil.getConnectionPools();
+            Assert.assertEquals(2, connectionPools.size());
+
+            TestUtil.after();
+
+            Assert.assertFalse(entityManagerFactory.isOpen());
+            Assert.assertFalse(auditEntityManagerFactory.isOpen());
+            Assert.assertTrue(PersistenceUtil.getConnectionPools().isEmpty());
+            for (final JdbcConnectionPool connectionPool : connectionPools) {
+                try {
+                    connectionPool.getConnection();
+                    Assert.fail("Connection pool was not closed.");
+                } catch (final SQLException e) {
+                    // Expected.
+                }
+            }
+        } finally {
+            PropertiesUtil.removeProperty("site", "jdbc-pool-maximum-size");
+            PropertiesUtil.removeProperty("site", "audit-jdbc-pool-maximum-size");
+        }
+    }
+
+}
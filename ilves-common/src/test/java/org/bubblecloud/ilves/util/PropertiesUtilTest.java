@@ -0,0 +1,74 @@
+package org.bubblecloud.ilves.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit test for properties snapshots.
+ */
+public class PropertiesUtilTest {
+    /** The category of overridden test properties. */
+    private static final String CATEGORY = "snapshot-test";
+
+    @After
+    public void after() {
+        PropertiesUtil.removeProperty(CATEGORY, "enabled");
+        PropertiesUtil.removeProperty(CATEGORY, "count");
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Assert.assertEquals(8080, PropertiesUtil.getSnapshot("site").getInteger("http-port", 0));
+        Assert.assertEquals("8080", PropertiesUtil.getProperty("site", "http-port"));
+
+        final String category = CATEGORY;
+        Assert.assertFalse(PropertiesUtil.hasProperty(category, "enabled"));
+        final PropertiesSnapshot oldSnapshot = PropertiesUtil.getSnapshot(category);
+
+        final List<Set<String>> changes = new ArrayList<Set<String>>();
+        final PropertiesChangeListener listener = new PropertiesChangeListener() {
+            @Override
+            public void propertiesChanged(final PropertiesSnapshot snapshot, final Set<String> changedKeys) {
+                if (category.equals(snapshot.getCategory())) {
+                    changes.add(changedKeys);
+                }
+            }
+        };
+        PropertiesUtil.addChangeListener(listener);
+        try {
+            PropertiesUtil.setProperty(category, "enabled", " true ");
+            PropertiesUtil.setProperty(category, "count", "42");
+            PropertiesUtil.setProperty(category, "count", "42");
+        } finally {
+            PropertiesUtil.removeChangeListener(listener);
+        }
+
+        Assert.assertEquals(2, changes.size());
+        Assert.assertTrue(changes.get(0).contains("enabled"));
+        Assert.assertTrue(changes.get(1).contains("count"));
+
+        final PropertiesSnapshot snapshot = PropertiesUtil.getSnapshot(category);
+        Assert.assertTrue(snapshot.getBoolean("enabled", false));
+        Assert.assertEquals(42, snapshot.getInteger("count", 0));
+        Assert.assertEquals(7, snapshot.getInteger("missing", 7));
+        Assert.assertNull(oldSnapshot.getString("enabled"));
+
+        PropertiesUtil.setProperty(category, "count", "x");
+        try {
+            PropertiesUtil.getSnapshot(category).getInteger("count", 0);
+            Assert.fail("Non numeric property should not parse.");
+        } catch (final NumberFormatException e) {
+            Assert.assertEquals("x", PropertiesUtil.getProperty(category, "count"));
+        }
+
+        PropertiesUtil.removeProperty(category, "enabled");
+        Assert.assertFalse(PropertiesUtil.hasProperty(category, "enabled"));
+        Assert.assertFalse(PropertiesUtil.getSnapshot(category).getBoolean("enabled", false));
+    }
+
+}
@@ -5,64 +5,112 @@ import org.bubblecloud.ilves.site.SiteContext;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * API invocation handler which checks access grants.
+ * API invocation handler which checks access grants. Access grants of API interface methods are
+ * resolved once at construction and the site context and implementation of current request are
+ * bound to the calling thread so that single handler and proxy can serve all requests.
  *
  * @author Tommi S.E. Laukkanen
  */
 public class ApiInvocationHandler implements InvocationHandler {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ApiInvocationHandler.class);
-    /** The site context. */
-    private SiteContext context;
-    /** The instance. */
-    private final Object instance;
+    /** The site context of current thread. */
+    private final ThreadLocal<SiteContext> context = new ThreadLocal<SiteContext>();
+    /** The instance of current thread. */
+    private final ThreadLocal<Object> instance = new ThreadLocal<Object>();
+    /** The API methods with their access grants. */
+    private final Map<Method, ApiMethod> apiMethods = new HashMap<Method, ApiMethod>();
 
     /**
-     * Constructor for setting site context and instance to the invokation handler.
+     * Constructor which resolves access grants of API interface methods.
+     * @param apiInterface the API interface
+     */
+    public ApiInvocationHandler(final Class apiInterface) {
+        for (final Method method : apiInterface.getMethods()) {
+            apiMethods.put(method, new ApiMethod(method));
+        }
+    }
+
+    /**
+     * Binds site context and instance to current thread.
      * @param context the context
      * @param instance the instance
      */
-    public ApiInvocationHandler(final SiteContext context, final Object instance) {
-        this.context = context;
-        this.instance = instance;
+    public void bind(final SiteContext context, final Object instance) {
+        this.context.set(context);
+        this.instance.set(instance);
+    }
+
+    /**
+     * Unbinds site context and instance from current thread.
+     */
+    public void unbind() {
+        context.remove();
+        instance.remove();
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         final long startTimeMillis = System.currentTimeMillis();
+        ApiMethod apiMethod = apiMethods.get(method);
+        if (apiMethod == null) {
+            apiMethod = new ApiMethod(method);
+        }
         try {
-            final AccessGrant accessGrant = method.getAnnotation(AccessGrant.class);
-
-            if (accessGrant == null) {
-                LOGGER.warn(method.getDeclaringClass().getSimpleName() + "." + method.getName()
-                        + " missing access control annotation.");
+            if (apiMethod.roles == null) {
+                LOGGER.warn(apiMethod.name + " missing access control annotation.");
                 throw new SecurityException("access_denied");
             }
 
-            if (accessGrant.roles().length > 0) {
+            if (apiMethod.roles.length > 0) {
+                final List<String> roles = context.get().getRoles();
                 boolean roleAccessGranted = false;
-                for (final String role : accessGrant.roles()) {
-                    if (context.getRoles().contains(role)) {
+                for (final String role : apiMethod.roles) {
+                    if (roles.contains(role)) {
                         roleAccessGranted = true;
-                        continue;
+                        break;
                     }
                 }
                 if (!roleAccessGranted) {
-                    LOGGER.warn(method.getDeclaringClass().getSimpleName() + "." + method.getName()
-                            + " access denied for user with roles: " + context.getRoles());
+                    LOGGER.warn(apiMethod.name + " access denied for user with roles: " + roles);
                     throw new SecurityException("access_denied");
                 }
             }
 
-            return method.invoke(instance, args);
+            return method.invoke(instance.get(), args);
 
         } catch (final Throwable t) {
             LOGGER.error("API call caused unhandled exception: " + method.getName(), t);
             throw t;
         } finally {
-            LOGGER.debug("API: " + method.getDeclaringClass().getSimpleName() + "." + method.getName() + " " + (System.currentTimeMillis() - startTimeMillis) + " ms.");
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("API: " + apiMethod.name + " " + (System.currentTimeMillis() - startTimeMillis) + " ms.");
+            }
+        }
+    }
+
+    /**
+     * API method with resolved access grant.
+     */
+    private static final class ApiMethod {
+        /** The qualified method name used in logging. */
+        private final String name;
+        /** The granted roles or null if method is missing access grant. */
+        private final String[] roles;
+
+        /**
+         * Constructor which resolves access grant of method.
+         * @param method the method
+         */
+        private ApiMethod(final Method method) {
+            this.name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+            final AccessGrant accessGrant = method.getAnnotation(AccessGrant.class);
+            this.roles = accessGrant != null ? accessGrant.roles() : null;
         }
     }
 
@@ -0,0 +1,65 @@
+package org.bubblecloud.ilves.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.googlecode.jsonrpc4j.JsonRpcServer;
+import org.bubblecloud.ilves.exception.SiteException;
+import org.bubblecloud.ilves.site.SiteContext;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+
+/**
+ * Route to API prepared when API is registered. The proxy and JSON RPC server are shared between
+ * requests and the API implementation is instantiated and bound to the proxy for each request.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+final class ApiRoute {
+    /** The API implementation constructor. */
+    private final Constructor<? extends ApiImplementation> implementationConstructor;
+    /** The invocation handler of the API proxy. */
+    private final ApiInvocationHandler invocationHandler;
+    /** The JSON RPC server. */
+    private final JsonRpcServer jsonRpcServer;
+
+    /**
+     * Constructor which prepares API proxy and JSON RPC server.
+     * @param apiInterface the API interface
+     * @param apiImplementation the API implementation
+     * @param objectMapper the object mapper
+     */
+    ApiRoute(final Class apiInterface, final Class<? extends ApiImplementation> apiImplementation,
+             final ObjectMapper objectMapper) {
+        try {
+            implementationConstructor = apiImplementation.getConstructor();
+        } catch (final NoSuchMethodException e) {
+            throw new SiteException("API implementation does not have public default constructor: "
+                    + apiImplementation, e);
+        }
+        invocationHandler = new ApiInvocationHandler(apiInterface);
+        final Object proxy = Proxy.newProxyInstance(apiInterface.getClassLoader(),
+                new Class[] {apiInterface}, invocationHandler);
+        jsonRpcServer = new JsonRpcServer(objectMapper, proxy, apiInterface);
+    }
+
+    /**
+     * Handles API request with new API implementation instance.
+     * @param context the site context
+     * @param request the request
+     * @param response the response
+     * @throws Exception if exception occurs during processing
+     */
+    void handle(final SiteContext context, final HttpServletRequest request, final HttpServletResponse response)
+            throws Exception {
+        final ApiImplementation implementation = implementationConstructor.newInstance();
+        implementation.setContext(context);
+        invocationHandler.bind(context, implementation);
+        try {
+            jsonRpcServer.handle(request, response);
+        } finally {
+            invocationHandler.unbind();
+        }
+    }
+}
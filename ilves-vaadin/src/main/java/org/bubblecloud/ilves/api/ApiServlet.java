@@ -1,13 +1,10 @@
 package org.bubblecloud.ilves.api;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.googlecode.jsonrpc4j.JsonRpcServer;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.AccessTokenCache;
 import org.bubblecloud.ilves.model.Company;
-import org.bubblecloud.ilves.model.Group;
-import org.bubblecloud.ilves.model.User;
-import org.bubblecloud.ilves.model.UserSession;
-import org.bubblecloud.ilves.security.*;
+import org.bubblecloud.ilves.security.DefaultRoles;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
 import org.bubblecloud.ilves.site.SiteContext;
 import org.bubblecloud.ilves.util.WebSecurityUtil;
@@ -20,10 +17,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
 import java.security.AccessControlException;
-import java.util.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The API servlet.
@@ -33,10 +29,10 @@ import java.util.*;
 public class ApiServlet extends HttpServlet {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ApiServlet.class);
-    /** The object mapper. */
-    private LinkedList<ObjectMapper> objectMapperPool = new LinkedList<ObjectMapper>();
-    /** The thread safe API objects. */
-    private static Map<Class, Class<? extends ApiImplementation>> apis = new HashMap<>();
+    /** The object mapper shared by API routes. */
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    /** The API routes by lower case API interface simple name. */
+    private static Map<String, ApiRoute> routes = new ConcurrentHashMap<String, ApiRoute>();
 
     /**
      * Add API object to the API servlet class.
@@ -44,7 +40,8 @@ public class ApiServlet extends HttpServlet {
      * @param apiImplementation the API implementation
      */
     public static void addApi(final Class apiInterface, final Class<? extends ApiImplementation> apiImplementation) {
-        apis.put(apiInterface, apiImplementation);
+        routes.put(apiInterface.getSimpleName().toLowerCase(),
+                new ApiRoute(apiInterface, apiImplementation, OBJECT_MAPPER));
     }
 
     /**
@@ -62,13 +59,22 @@ public class ApiServlet extends HttpServlet {
             uri = uri.substring(0, uri.length() - 1);
         }
 
+        final ApiRoute route = routes.get(uri.substring(uri.lastIndexOf('/') + 1));
+        if (route == null) {
+            LOGGER.warn("API not found for URI: " + uri);
+            response.setStatus(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+
+        EntityManager entityManager = null;
+        EntityManager auditEntityManager = null;
         try {
             // The entity managet factory.
             final EntityManagerFactory entityManagerFactory = DefaultSiteUI.getEntityManagerFactory();
             // Construct entity manager for this site context.
-            final EntityManager entityManager = entityManagerFactory.createEntityManager();
+            entityManager = entityManagerFactory.createEntityManager();
             // Construct audit entity manager for this site context.
-            final EntityManager auditEntityManager = entityManagerFactory.createEntityManager();
+            auditEntityManager = entityManagerFactory.createEntityManager();
             // The virtual host based on URL.
             final Company company = DefaultSiteUI.resolveCompany(entityManager, request.getServerName());
             // The security provider.
@@ -77,15 +83,10 @@ public class ApiServlet extends HttpServlet {
             final String accessTokenHeaderValue = request.getHeader("Authorization");
             if (accessTokenHeaderValue != null && accessTokenHeaderValue.startsWith("Bearer ")) {
                 final char[] accessToken = accessTokenHeaderValue.substring(7).toCharArray();
-                final String accessTokenHash = SecurityUtil.getSecretHash(accessToken);
-                final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager, accessTokenHash);
-                if (userSession != null) {
-                    final long sessionAgeMillis = new Date().getTime() - userSession.getCreated().getTime();
-                    if (sessionAgeMillis < SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS) {
-                        final User user = userSession.getUser();
-                        final List<Group> groups = UserDao.getUserGroups(entityManager, company, user);
-                        securityProvider.setUser(user, groups);
-                    }
+                final AccessTokenCache.Principal principal = AccessTokenCache.getPrincipal(entityManager, company,
+                        accessToken);
+                if (principal != null) {
+                    securityProvider.setUser(principal.getUser(), principal.getGroups());
                 }
             }
 
@@ -95,44 +96,10 @@ public class ApiServlet extends HttpServlet {
             context.putObject(EntityManagerFactory.class, entityManagerFactory);
             context.putObject(Company.class, company);
 
-            Class apiInterface = null;
-            ApiImplementation apiImplementation = null;
-            for (final Class apiCandidate : apis.keySet()) {
-                final String apikey = apiCandidate.getSimpleName().toLowerCase();
-                if (uri.endsWith(apikey)) {
-                    apiInterface = apiCandidate;
-                    apiImplementation = apis.get(apiCandidate).newInstance();
-                    break;
-                }
-            }
-            if (apiInterface == null) {
-                LOGGER.warn("API not found for URI: " + uri);
-                response.setStatus(HttpStatus.NOT_FOUND_404);
-                return;
-            }
-
-            apiImplementation.setContext(context);
-
-            ObjectMapper objectMapper;
-            synchronized (objectMapperPool) {
-                if (objectMapperPool.size() == 0) {
-                    objectMapperPool.push(new ObjectMapper());
-                }
-                objectMapper = objectMapperPool.pop();
-            }
-
-            final ClassLoader classLoader = this.getClass().getClassLoader();
-            final Class[] interfaces = new Class[] {apiInterface};
-            final InvocationHandler invocationHandler = new ApiInvocationHandler(context, apiImplementation);
-            final JsonRpcServer jsonRpcServer = new JsonRpcServer(objectMapper, Proxy.newProxyInstance(classLoader, interfaces, invocationHandler));
             final long startTimeMillis = System.currentTimeMillis();
-            jsonRpcServer.handle(request, response);
+            route.handle(context, request, response);
             LOGGER.trace("RPC CALL time: " + (System.currentTimeMillis() - startTimeMillis) + " ms");
 
-            synchronized (objectMapperPool) {
-                objectMapperPool.push(objectMapper);
-            }
-
         } catch (final IllegalAccessError e) {
             LOGGER.warn("Access denied: " + request.getRequestURI() + ": " + e.getMessage());
             response.setStatus(HttpStatus.UNAUTHORIZED_401);
@@ -142,7 +109,14 @@ public class ApiServlet extends HttpServlet {
         } catch (final Throwable t) {
             LOGGER.error("Error processing: " + request.getRequestURI(), t);
             response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+        } finally {
+            if (entityManager != null) {
+                entityManager.close();
+            }
+            if (auditEntityManager != null) {
+                auditEntityManager.close();
+            }
         }
     }
 
-}
\ No newline at end of file
+}
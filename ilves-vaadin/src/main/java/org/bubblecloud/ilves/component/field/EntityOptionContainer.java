@@ -0,0 +1,474 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.component.field;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+import com.vaadin.data.util.PropertysetItem;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+import com.vaadin.data.util.filter.UnsupportedFilterException;
+import com.vaadin.ui.UI;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.site.AbstractSiteUI;
+import org.bubblecloud.ilves.site.SiteContext;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.*;
+
+/**
+ * Read only container of entity options for select components. Options of the current company are
+ * loaded in pages of ID and label pairs so that entities are never held in session. Label filters of
+ * combo box are pushed down to database as prefix matches of lower case filter attributes. Each
+ * whitespace separated token of the filter has to match prefix of some filter attribute, for example
+ * "john sm" matches user John Smith. Every attribute is looked up separately with plain prefix query
+ * so that owner and attribute index can be used, and matching IDs are combined in memory.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public abstract class EntityOptionContainer implements Container.Indexed, Container.Filterable {
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The label property ID. */
+    public static final String LABEL_PROPERTY_ID = "label";
+    /** The number of options loaded in single query. */
+    private static final int PAGE_SIZE = 50;
+    /** The maximum number of cached labels. */
+    private static final int MAX_CACHED_LABELS = 1000;
+    /** The maximum number of IDs looked up per filter attribute and matched options. */
+    private static final int MAX_FILTER_MATCHES = 1000;
+
+    /** The entity name. */
+    private final String entityName;
+    /** The selected attributes of which the first is the ID attribute. */
+    private final String[] selectAttributes;
+    /** The lower case attributes matched with filter prefix. */
+    private final String[] filterAttributes;
+    /** The order attributes. */
+    private final String[] orderAttributes;
+    /** The container filters. */
+    private final List<Filter> filters = new ArrayList<Filter>();
+    /** The option labels by ID. */
+    private final Map<Object, String> labels = new HashMap<Object, String>();
+    /** The IDs of the loaded page. */
+    private List<Object> pageItemIds = Collections.emptyList();
+    /** The index of the first item of the loaded page or -1 if page is not loaded. */
+    private int pageStartIndex = -1;
+    /** The cached size or -1 if size has not been queried. */
+    private int size = -1;
+    /** The filter strings of the loaded options or null if options are not loaded. */
+    private List<String> loadedFilterStrings;
+    /** The IDs of options matching filter tokens or null if there are no filter tokens. */
+    private List<Object> matchingIds;
+
+    /**
+     * Constructor for defining entity attributes.
+     *
+     * @param entityName the entity name
+     * @param selectAttributes the selected attributes of which the first is the ID attribute
+     * @param filterAttributes the lower case attributes matched with filter token prefixes
+     * @param orderAttributes the order attributes, last one should be unique
+     */
+    public EntityOptionContainer(final String entityName, final String[] selectAttributes,
+                                 final String[] filterAttributes, final String[] orderAttributes) {
+        this.entityName = entityName;
+        this.selectAttributes = selectAttributes;
+        this.filterAttributes = filterAttributes;
+        this.orderAttributes = orderAttributes;
+    }
+
+    /**
+     * Formats option label from selected attribute values.
+     *
+     * @param row the selected attribute values
+     * @return the label
+     */
+    protected abstract String formatLabel(final Object[] row);
+
+    @Override
+    public int size() {
+        validate();
+        if (size < 0) {
+            if (matchingIds != null) {
+                size = matchingIds.size();
+            } else {
+                final TypedQuery<Long> query = getEntityManager().createQuery(
+                        "select count(e) from " + entityName + " e where e.owner = :owner", Long.class);
+                query.setParameter("owner", getOwner());
+                size = query.getSingleResult().intValue();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Object getIdByIndex(final int index) {
+        if (index < 0) {
+            return null;
+        }
+        validate();
+        if (pageStartIndex < 0 || index < pageStartIndex || index >= pageStartIndex + PAGE_SIZE) {
+            loadPage(index - index % PAGE_SIZE);
+        }
+        final int pageIndex = index - pageStartIndex;
+        return pageIndex < pageItemIds.size() ? pageItemIds.get(pageIndex) : null;
+    }
+
+    @Override
+    public List<?> getItemIds(final int startIndex, final int numberOfItems) {
+        final List<Object> itemIds = new ArrayList<Object>(numberOfItems);
+        for (int i = startIndex; i < startIndex + numberOfItems; i++) {
+            final Object itemId = getIdByIndex(i);
+            if (itemId == null) {
+                break;
+            }
+            itemIds.add(itemId);
+        }
+        return itemIds;
+    }
+
+    /**
+     * Gets IDs of all options matching current filters. Loads all options and should be avoided.
+     *
+     * @return the item IDs
+     */
+    @Override
+    public Collection<?> getItemIds() {
+        return getItemIds(0, size());
+    }
+
+    /**
+     * Gets index of item if it is in the loaded page.
+     *
+     * @param itemId the item ID
+     * @return the index or -1 if item is not in the loaded page
+     */
+    @Override
+    public int indexOfId(final Object itemId) {
+        final int pageIndex = pageItemIds.indexOf(itemId);
+        return pageIndex >= 0 ? pageStartIndex + pageIndex : -1;
+    }
+
+    @Override
+    public boolean containsId(final Object itemId) {
+        return findLabel(itemId) != null;
+    }
+
+    @Override
+    public Item getItem(final Object itemId) {
+        final String label = findLabel(itemId);
+        if (label == null) {
+            return null;
+        }
+        final PropertysetItem item = new PropertysetItem();
+        item.addItemProperty(LABEL_PROPERTY_ID, new ObjectProperty<String>(label, String.class, true));
+        return item;
+    }
+
+    @Override
+    public Property getContainerProperty(final Object itemId, final Object propertyId) {
+        final Item item = getItem(itemId);
+        return item != null ? item.getItemProperty(propertyId) : null;
+    }
+
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return Collections.singletonList(LABEL_PROPERTY_ID);
+    }
+
+    @Override
+    public Class<?> getType(final Object propertyId) {
+        return LABEL_PROPERTY_ID.equals(propertyId) ? String.class : null;
+    }
+
+    @Override
+    public Object nextItemId(final Object itemId) {
+        final int index = indexOfId(itemId);
+        return index >= 0 ? getIdByIndex(index + 1) : null;
+    }
+
+    @Override
+    public Object prevItemId(final Object itemId) {
+        final int index = indexOfId(itemId);
+        return index > 0 ? getIdByIndex(index - 1) : null;
+    }
+
+    @Override
+    public Object firstItemId() {
+        return getIdByIndex(0);
+    }
+
+    @Override
+    public Object lastItemId() {
+        return getIdByIndex(size() - 1);
+    }
+
+    @Override
+    public boolean isFirstId(final Object itemId) {
+        return itemId != null && itemId.equals(firstItemId());
+    }
+
+    @Override
+    public boolean isLastId(final Object itemId) {
+        return itemId != null && itemId.equals(lastItemId());
+    }
+
+    @Override
+    public void addContainerFilter(final Filter filter) throws UnsupportedFilterException {
+        if (!(filter instanceof SimpleStringFilter)
+                || !LABEL_PROPERTY_ID.equals(((SimpleStringFilter) filter).getPropertyId())) {
+            throw new UnsupportedFilterException("Unsupported entity option filter: " + filter);
+        }
+        filters.add(filter);
+    }
+
+    @Override
+    public void removeContainerFilter(final Filter filter) {
+        filters.remove(filter);
+    }
+
+    @Override
+    public void removeAllContainerFilters() {
+        filters.clear();
+    }
+
+    @Override
+    public Collection<Filter> getContainerFilters() {
+        return Collections.unmodifiableList(new ArrayList<Filter>(filters));
+    }
+
+    /**
+     * Clears loaded options so that they are queried again.
+     */
+    public void refresh() {
+        size = -1;
+        pageStartIndex = -1;
+        pageItemIds = Collections.emptyList();
+        loadedFilterStrings = null;
+    }
+
+    /**
+     * Clears loaded options if filters have changed since they were loaded. Combo box adds and
+     * removes its filter on every repaint so loaded options are kept while filter string stays same.
+     */
+    private void validate() {
+        final List<String> filterStrings = new ArrayList<String>(filters.size());
+        for (final Filter filter : filters) {
+            filterStrings.add(((SimpleStringFilter) filter).getFilterString());
+        }
+        if (!filterStrings.equals(loadedFilterStrings)) {
+            refresh();
+            loadedFilterStrings = filterStrings;
+            matchingIds = findMatchingIds(filterStrings);
+        }
+    }
+
+    @Override
+    public Item addItem(final Object itemId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public Object addItem() {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public boolean removeItem(final Object itemId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public boolean addContainerProperty(final Object propertyId, final Class<?> type, final Object defaultValue) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public boolean removeContainerProperty(final Object propertyId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public boolean removeAllItems() {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public Object addItemAfter(final Object previousItemId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public Item addItemAfter(final Object previousItemId, final Object newItemId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public Object addItemAt(final int index) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    @Override
+    public Item addItemAt(final int index, final Object newItemId) {
+        throw new UnsupportedOperationException("Entity options are read only.");
+    }
+
+    /**
+     * Loads page of options starting from given index.
+     *
+     * @param startIndex the start index
+     */
+    private void loadPage(final int startIndex) {
+        if (labels.size() > MAX_CACHED_LABELS) {
+            labels.clear();
+        }
+        pageStartIndex = startIndex;
+        if (matchingIds != null && matchingIds.isEmpty()) {
+            pageItemIds = Collections.emptyList();
+            return;
+        }
+        final StringBuilder jpql = new StringBuilder("select ").append(getSelect()).append(" from ")
+                .append(entityName).append(" e where e.owner = :owner");
+        if (matchingIds != null) {
+            jpql.append(" and e.").append(selectAttributes[0]).append(" in :ids");
+        }
+        jpql.append(" order by ");
+        for (int i = 0; i < orderAttributes.length; i++) {
+            jpql.append(i > 0 ? ", e." : "e.").append(orderAttributes[i]);
+        }
+        final TypedQuery<Object[]> query = getEntityManager().createQuery(jpql.toString(), Object[].class);
+        query.setParameter("owner", getOwner());
+        if (matchingIds != null) {
+            query.setParameter("ids", matchingIds);
+        }
+        query.setFirstResult(startIndex);
+        query.setMaxResults(PAGE_SIZE);
+
+        final List<Object> itemIds = new ArrayList<Object>(PAGE_SIZE);
+        for (final Object[] row : query.getResultList()) {
+            itemIds.add(row[0]);
+            labels.put(row[0], formatLabel(row));
+        }
+        pageItemIds = itemIds;
+    }
+
+    /**
+     * Gets label of option with single query if it is not already loaded.
+     *
+     * @param itemId the item ID
+     * @return the label or null if option does not exist
+     */
+    private String findLabel(final Object itemId) {
+        if (itemId == null) {
+            return null;
+        }
+        if (labels.containsKey(itemId)) {
+            return labels.get(itemId);
+        }
+        final TypedQuery<Object[]> query = getEntityManager().createQuery("select " + getSelect() + " from "
+                + entityName + " e where e.owner = :owner and e." + selectAttributes[0] + " = :id", Object[].class);
+        query.setParameter("owner", getOwner());
+        query.setParameter("id", itemId);
+        final List<Object[]> rows = query.getResultList();
+        if (rows.isEmpty()) {
+            return null;
+        }
+        final String label = formatLabel(rows.get(0));
+        labels.put(itemId, label);
+        return label;
+    }
+
+    /**
+     * @return the JPQL select clause
+     */
+    private String getSelect() {
+        final StringBuilder select = new StringBuilder();
+        for (int i = 0; i < selectAttributes.length; i++) {
+            select.append(i > 0 ? ", e." : "e.").append(selectAttributes[i]);
+        }
+        return select.toString();
+    }
+
+    /**
+     * Finds IDs of options matching whitespace separated tokens of filter strings as prefixes of lower
+     * case filter attributes. Every token has to match some filter attribute. Each attribute is looked
+     * up with separate prefix query in attribute order so that the owner and attribute index is used
+     * instead of scanning the rows of owner. At most MAX_FILTER_MATCHES IDs are looked up per attribute
+     * and returned, the user has to type longer filter to narrow down larger result sets.
+     *
+     * @param filterStrings the filter strings
+     * @return the matching IDs or null if filter strings have no tokens
+     */
+    private List<Object> findMatchingIds(final List<String> filterStrings) {
+        Set<Object> ids = null;
+        for (final String filterString : filterStrings) {
+            if (filterString == null) {
+                continue;
+            }
+            for (final String token : filterString.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+                if (token.length() == 0) {
+                    continue;
+                }
+                final String prefix = token.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+                final Set<Object> tokenIds = new HashSet<Object>();
+                for (final String filterAttribute : filterAttributes) {
+                    final TypedQuery<Object> query = getEntityManager().createQuery("select e."
+                            + selectAttributes[0] + " from " + entityName + " e where e.owner = :owner and e."
+                            + filterAttribute + " like :prefix escape '!' order by e." + filterAttribute,
+                            Object.class);
+                    query.setParameter("owner", getOwner());
+                    query.setParameter("prefix", prefix);
+                    query.setMaxResults(MAX_FILTER_MATCHES);
+                    tokenIds.addAll(query.getResultList());
+                }
+                if (ids == null) {
+                    ids = tokenIds;
+                } else {
+                    ids.retainAll(tokenIds);
+                }
+            }
+        }
+        if (ids == null) {
+            return null;
+        }
+        final List<Object> matchingIds = new ArrayList<Object>(ids);
+        return matchingIds.size() > MAX_FILTER_MATCHES
+                ? new ArrayList<Object>(matchingIds.subList(0, MAX_FILTER_MATCHES)) : matchingIds;
+    }
+
+    /**
+     * @return the owner company of options, by default the company of current UI
+     */
+    protected Company getOwner() {
+        return getSiteContext().getObject(Company.class);
+    }
+
+    /**
+     * @return the entity manager used to query options, by default the entity manager of current UI
+     */
+    protected EntityManager getEntityManager() {
+        return getSiteContext().getObject(EntityManager.class);
+    }
+
+    /**
+     * @return the site context of current UI
+     */
+    private static SiteContext getSiteContext() {
+        return ((AbstractSiteUI) UI.getCurrent()).getSite().getSiteContext();
+    }
+}
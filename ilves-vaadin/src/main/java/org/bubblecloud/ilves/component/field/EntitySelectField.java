@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.component.field;
+
+import com.vaadin.data.util.converter.Converter;
+import com.vaadin.shared.ui.combobox.FilteringMode;
+import com.vaadin.ui.ComboBox;
+import org.bubblecloud.ilves.component.formatter.EntityIdConverter;
+
+/**
+ * Type-ahead field for selecting entity of current company. Options are loaded lazily from
+ * {@link EntityOptionContainer} and item IDs are converted to entities only when value is
+ * written to property data source.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public abstract class EntitySelectField<E> extends ComboBox {
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The converter between entity and item ID. */
+    private final Converter<Object, E> entityConverter;
+
+    /**
+     * Constructor for setting entity class and option container.
+     *
+     * @param entityClass the entity class
+     * @param optionContainer the option container
+     */
+    public EntitySelectField(final Class<E> entityClass, final EntityOptionContainer optionContainer) {
+        super(null, optionContainer);
+        entityConverter = new EntityIdConverter<E>(entityClass);
+        setItemCaptionMode(ItemCaptionMode.PROPERTY);
+        setItemCaptionPropertyId(EntityOptionContainer.LABEL_PROPERTY_ID);
+        setFilteringMode(FilteringMode.STARTSWITH);
+        setConverter(entityConverter);
+    }
+
+    /**
+     * Sets converter. Entity converter is kept if converter is null as item IDs
+     * need to be converted to entities.
+     *
+     * @param converter the converter or null
+     */
+    @Override
+    public void setConverter(final Converter<Object, ?> converter) {
+        super.setConverter(converter != null ? converter : entityConverter);
+    }
+
+}
@@ -15,51 +15,44 @@
  */
 package org.bubblecloud.ilves.component.field;
 
-import com.vaadin.ui.ComboBox;
-import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
-import org.bubblecloud.ilves.site.AbstractSiteUI;
-
-import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Expression;
-import javax.persistence.criteria.Root;
 
 /**
  * Field for selecting group.
  *
  * @author Tommi S.E. Laukkanen
  */
-public class GroupField extends ComboBox {
+public class GroupField extends EntitySelectField<Group> {
     /** Serial version UID. */
     private static final long serialVersionUID = 1L;
 
     /**
-     * Default constructor which populates the select with existing customers.
+     * Default constructor which sets up lazy loading of company groups matched by description or name prefix.
      */
     public GroupField() {
-        super();
+        super(Group.class, new GroupOptionContainer());
     }
 
-    @Override
-    public final void attach() {
-        super.attach();
-        final EntityManager entityManager = ((AbstractSiteUI) getUI().getUI()).getSite().getSiteContext().getObject(
-                EntityManager.class);
-        final Company company = ((AbstractSiteUI) getUI().getUI()).getSite().getSiteContext().getObject(
-                Company.class);
-        final CriteriaBuilder queryBuilder = entityManager.getCriteriaBuilder();
-        final CriteriaQuery<Group> criteriaQuery = queryBuilder.createQuery(Group.class);
-        final Root<Group> root = criteriaQuery.from(Group.class);
-        final Expression<Comparable> owner = root.get("owner");
-        criteriaQuery.where(queryBuilder.equal(owner, company));
-        criteriaQuery.orderBy(queryBuilder.asc(root.get("description")));
-        
-        final TypedQuery<Group> companyQuery = entityManager.createQuery(criteriaQuery);
-        for (final Group group : companyQuery.getResultList()) {
-            addItem(group);
+    /**
+     * Container of group options ordered and labeled by description.
+     */
+    static class GroupOptionContainer extends EntityOptionContainer {
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Default constructor which defines the group attributes.
+         */
+        GroupOptionContainer() {
+            super("Group",
+                    new String[] {"groupId", "description"},
+                    new String[] {"normalizedDescription", "normalizedName"},
+                    new String[] {"description", "groupId"});
+        }
+
+        @Override
+        protected String formatLabel(final Object[] row) {
+            return (String) row[1];
         }
     }
 
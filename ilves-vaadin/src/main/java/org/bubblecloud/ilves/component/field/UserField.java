@@ -15,52 +15,44 @@
  */
 package org.bubblecloud.ilves.component.field;
 
-import com.vaadin.ui.ComboBox;
-import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.User;
-import org.bubblecloud.ilves.site.AbstractSiteUI;
-
-import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Expression;
-import javax.persistence.criteria.Root;
 
 /**
- * Field for selecting group.
+ * Field for selecting user.
  *
  * @author Tommi S.E. Laukkanen
  */
-public class UserField extends ComboBox {
+public class UserField extends EntitySelectField<User> {
     /** Serial version UID. */
     private static final long serialVersionUID = 1L;
 
     /**
-     * Default constructor which populates the select with existing customers.
+     * Default constructor which sets up lazy loading of company users matched by name or email address prefix.
      */
     public UserField() {
-        super();
+        super(User.class, new UserOptionContainer());
     }
 
-    @Override
-    public final void attach() {
-        super.attach();
-        final EntityManager entityManager = ((AbstractSiteUI) getUI().getUI()).getSite().getSiteContext().getObject(
-                EntityManager.class);
-        final Company company = ((AbstractSiteUI) getUI().getUI()).getSite().getSiteContext().getObject(
-                Company.class);
-        final CriteriaBuilder queryBuilder = entityManager.getCriteriaBuilder();
-        final CriteriaQuery<User> criteriaQuery = queryBuilder.createQuery(User.class);
-        final Root<User> root = criteriaQuery.from(User.class);
-        final Expression<Comparable> owner = root.get("owner");
-        criteriaQuery.where(queryBuilder.equal(owner, company));
-        criteriaQuery.orderBy(queryBuilder.asc(root.get("owner")),
-                queryBuilder.asc(root.get("lastName")),
-                queryBuilder.asc(root.get("firstName")));
-        final TypedQuery<User> companyQuery = entityManager.createQuery(criteriaQuery);
-        for (final User user : companyQuery.getResultList()) {
-            addItem(user);
+    /**
+     * Container of user options ordered and labeled by last name and first name.
+     */
+    static class UserOptionContainer extends EntityOptionContainer {
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Default constructor which defines the user attributes.
+         */
+        UserOptionContainer() {
+            super("User",
+                    new String[] {"userId", "firstName", "lastName", "emailAddress"},
+                    new String[] {"normalizedLastName", "normalizedFirstName", "normalizedEmailAddress"},
+                    new String[] {"lastName", "firstName", "userId"});
+        }
+
+        @Override
+        protected String formatLabel(final Object[] row) {
+            return row[2] + ", " + row[1] + " (" + row[3] + ")";
         }
     }
 
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.component.formatter;
+
+import com.vaadin.data.util.converter.Converter;
+import com.vaadin.ui.UI;
+import org.bubblecloud.ilves.site.AbstractSiteUI;
+
+import javax.persistence.EntityManager;
+import java.util.Locale;
+
+/**
+ * Converter between entity and its ID for select components holding only entity IDs as item IDs.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class EntityIdConverter<E> implements Converter<Object, E> {
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The entity class. */
+    private final Class<E> entityClass;
+
+    /**
+     * Constructor for setting entity class.
+     *
+     * @param entityClass the entity class
+     */
+    public EntityIdConverter(final Class<E> entityClass) {
+        this.entityClass = entityClass;
+    }
+
+    @Override
+    public E convertToModel(final Object value, final Class<? extends E> targetType, final Locale locale)
+            throws ConversionException {
+        if (value == null) {
+            return null;
+        }
+        final E entity = getEntityManager().find(entityClass, value);
+        if (entity == null) {
+            throw new ConversionException("No " + entityClass.getSimpleName() + " found with ID: " + value);
+        }
+        return entity;
+    }
+
+    @Override
+    public Object convertToPresentation(final E value, final Class<? extends Object> targetType, final Locale locale)
+            throws ConversionException {
+        if (value == null) {
+            return null;
+        }
+        return getEntityManager().getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(value);
+    }
+
+    @Override
+    public Class<E> getModelType() {
+        return entityClass;
+    }
+
+    @Override
+    public Class<Object> getPresentationType() {
+        return Object.class;
+    }
+
+    /**
+     * @return the entity manager of current UI
+     */
+    private static EntityManager getEntityManager() {
+        return ((AbstractSiteUI) UI.getCurrent()).getSite().getSiteContext().getObject(EntityManager.class);
+    }
+}
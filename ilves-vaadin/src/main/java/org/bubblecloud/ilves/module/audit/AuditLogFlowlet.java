@@ -15,24 +15,29 @@
  */
 package org.bubblecloud.ilves.module.audit;
 
+import com.vaadin.data.util.BeanItem;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.Button.ClickListener;
 import com.vaadin.ui.GridLayout;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Table;
+import com.vaadin.ui.TextField;
 import org.bubblecloud.ilves.component.field.TimestampField;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.component.grid.*;
 import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.util.ContainerUtil;
 import org.joda.time.DateTime;
-import org.vaadin.addons.lazyquerycontainer.EntityContainer;
+import org.vaadin.addons.lazyquerycontainer.LazyQueryContainer;
+import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
 
 import javax.persistence.EntityManager;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * AuditLogEntry list flow.
@@ -44,7 +49,7 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
     /** Serial version UID. */
     private static final long serialVersionUID = 1L;
     /** The entity container. */
-    private EntityContainer<AuditLogEntry> entityContainer;
+    private LazyQueryContainer entityContainer;
     /** The content grid. */
     private Grid entityGrid;
 
@@ -67,8 +72,10 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
     public void initialize() {
         // Get entity manager from site context and prepare container.
         final EntityManager entityManager = getSite().getSiteContext().getObject(EntityManager.class);
-        entityContainer = new EntityContainer<AuditLogEntry>(entityManager, true, false, false, AuditLogEntry.class, 1000,
-                new String[] { "created" }, new boolean[] { false }, "auditLogEntryId");
+        final Company company = getSite().getSiteContext().getObject(Company.class);
+        final AuditLogQueryFactory queryFactory = new AuditLogQueryFactory(entityManager, company.getCompanyId());
+        entityContainer = new LazyQueryContainer(new LazyQueryDefinition(false, 1000, "auditLogEntryId"),
+                queryFactory);
 
         // Get descriptors and set container properties.
         final List<FilterDescriptor> filterDescriptors = new ArrayList<FilterDescriptor>();
@@ -78,6 +85,8 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
         filterDescriptors.add(new FilterDescriptor("endTime", "created", getSite().localize("filter-end-time"),
                 new TimestampField(),
                 200, "<=", Date.class, new DateTime().withTimeAtStartOfDay().plusDays(1).toDate()));
+        filterDescriptors.add(new FilterDescriptor("userName", "userName", getSite().localize("filter-user-name"),
+                new TextField(), 200, "=", String.class, ""));
         final List<FieldDescriptor> fieldDescriptors = FieldSetDescriptorRegister.getFieldSetDescriptor(
                 AuditLogEntry.class).getFieldDescriptors();
         ContainerUtil.addContainerProperties(entityContainer, fieldDescriptors);
@@ -94,8 +103,23 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
         buttonLayout.setSizeUndefined();
         gridLayout.addComponent(buttonLayout, 0, 0);
 
-        final Table table = new FormattingTable();
+        final Table table = new FormattingTable() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void changeVariables(final Object source, final Map<String, Object> variables) {
+                super.changeVariables(source, variables);
+                // Audit log count is approximate, let it grow when scrolled near the counted end.
+                if (queryFactory.isSizeGrowable()) {
+                    final int firstIndex = getCurrentPageFirstItemIndex();
+                    entityContainer.refresh();
+                    setCurrentPageFirstItemIndex(firstIndex);
+                }
+            }
+        };
         table.setPageLength(13);
+        table.setSortEnabled(false);
 
         // Initialize grid
         entityGrid = new Grid(table, entityContainer);
@@ -114,7 +138,9 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
                 if (entityGrid.getSelectedItemId() == null) {
                     return;
                 }
-                final AuditLogEntry entity = entityContainer.getEntity(entityGrid.getSelectedItemId());
+                @SuppressWarnings("unchecked")
+                final AuditLogEntry entity = ((BeanItem<AuditLogEntry>) entityContainer.getItem(
+                        entityGrid.getSelectedItemId())).getBean();
                 final AuditLogEntryFlowlet contentView = getFlow().forward(AuditLogEntryFlowlet.class);
                 contentView.edit(entity, false);
             }
@@ -124,9 +150,6 @@ public final class AuditLogFlowlet extends AbstractFlowlet {
 
     @Override
     public void enter() {
-        //final Company company = getSite().getSiteContext().getObject(Company.class);
-        entityContainer.removeDefaultFilters();
-        //entityContainer.addDefaultFilter(new Compare.Equal("owner.companyId", company.getCompanyId()));
         entityGrid.refresh();
     }
 
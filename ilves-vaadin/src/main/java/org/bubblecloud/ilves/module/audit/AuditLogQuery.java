@@ -0,0 +1,275 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.audit;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.util.BeanItem;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.Like;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.vaadin.addons.lazyquerycontainer.Query;
+import org.vaadin.addons.lazyquerycontainer.QueryDefinition;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.*;
+
+/**
+ * Read only audit log query which pages with the (created, auditLogEntryId) key of the last loaded
+ * entry instead of offset. Entries are ordered by creation time descending unless ascending sort
+ * of created property is requested. Count is approximate: entries are counted at most COUNT_STEP past the
+ * last loaded key, so that opening the view does not count the whole filtered range. Count grows when query
+ * is constructed again after keyset pages near the counted end have been loaded. Supported filters are
+ * comparisons and likes of audit log entry properties.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class AuditLogQuery implements Query {
+
+    /** The maximum number of entries counted past the last loaded key. */
+    static final int COUNT_STEP = 10000;
+    /** The number of entries before counted end from which loaded entries allow count to grow. */
+    private static final int GROW_MARGIN = 1000;
+
+    /** The properties which can be filtered. */
+    private static final Set<String> FILTER_PROPERTY_IDS = new HashSet<String>(Arrays.asList(
+            "created", "event", "componentAddress", "componentType", "userAddress", "userId", "userName",
+            "dataType", "dataId", "dataOldVersionId", "dataNewVersionId", "dataLabel"));
+
+    /** The entity manager. */
+    private final EntityManager entityManager;
+    /** True if entries are ordered by creation time ascending. */
+    private final boolean ascending;
+    /** The JPQL where clause. */
+    private final String where;
+    /** The JPQL parameters. */
+    private final Map<String, Object> parameters = new HashMap<String, Object>();
+    /** The last loaded entries by index of the entry following them. */
+    private final TreeMap<Integer, AuditLogEntry> keys = new TreeMap<Integer, AuditLogEntry>();
+    /** The cached size or -1 if size has not been queried. */
+    private int size = -1;
+    /** True if size is exact count of filtered entries. */
+    private boolean sizeExact;
+
+    /**
+     * Constructor for setting query parameters.
+     *
+     * @param entityManager the entity manager
+     * @param queryDefinition the query definition
+     * @param companyId the owner company ID
+     */
+    public AuditLogQuery(final EntityManager entityManager, final QueryDefinition queryDefinition,
+                         final String companyId) {
+        this(entityManager, queryDefinition, companyId, null);
+    }
+
+    /**
+     * Constructor for setting query parameters. Loaded keys of previous query with same filters and
+     * order are reused so that count continues from the last loaded key.
+     *
+     * @param entityManager the entity manager
+     * @param queryDefinition the query definition
+     * @param companyId the owner company ID
+     * @param previousQuery the previous query or null
+     */
+    public AuditLogQuery(final EntityManager entityManager, final QueryDefinition queryDefinition,
+                         final String companyId, final AuditLogQuery previousQuery) {
+        this.entityManager = entityManager;
+
+        final Object[] sortPropertyIds = queryDefinition.getSortPropertyIds();
+        final boolean[] sortAscendingStates = queryDefinition.getSortPropertyAscendingStates();
+        ascending = sortPropertyIds != null && sortPropertyIds.length > 0 && "created".equals(sortPropertyIds[0])
+                && sortAscendingStates[0];
+
+        final StringBuilder whereBuilder = new StringBuilder("e.companyId = :companyId");
+        parameters.put("companyId", companyId);
+        final List<Container.Filter> filters = new ArrayList<Container.Filter>();
+        filters.addAll(queryDefinition.getDefaultFilters());
+        filters.addAll(queryDefinition.getFilters());
+        for (final Container.Filter filter : filters) {
+            final String parameter = "p" + parameters.size();
+            if (filter instanceof Compare) {
+                final Compare compare = (Compare) filter;
+                whereBuilder.append(" and e.").append(getPropertyId(compare.getPropertyId()))
+                        .append(getOperator(compare.getOperation())).append(':').append(parameter);
+                parameters.put(parameter, compare.getValue());
+            } else if (filter instanceof Like) {
+                final Like like = (Like) filter;
+                whereBuilder.append(" and e.").append(getPropertyId(like.getPropertyId()))
+                        .append(" like :").append(parameter);
+                parameters.put(parameter, like.getValue());
+            } else {
+                throw new UnsupportedOperationException("Unsupported audit log filter: " + filter);
+            }
+        }
+        where = whereBuilder.toString();
+        if (previousQuery != null && previousQuery.ascending == ascending && previousQuery.where.equals(where)
+                && previousQuery.parameters.equals(parameters)) {
+            keys.putAll(previousQuery.keys);
+        }
+    }
+
+    @Override
+    public int size() {
+        if (size < 0) {
+            final Map.Entry<Integer, AuditLogEntry> key = keys.lastEntry();
+            final int keyIndex = key != null ? key.getKey() : 0;
+
+            final TypedQuery<String> probe = entityManager.createQuery("select e.auditLogEntryId "
+                    + getFrom(key) + getOrderBy(), String.class);
+            setParameters(probe, key);
+            probe.setFirstResult(COUNT_STEP);
+            probe.setMaxResults(1);
+            if (!probe.getResultList().isEmpty()) {
+                size = keyIndex + COUNT_STEP + 1;
+                sizeExact = false;
+            } else {
+                final TypedQuery<Long> count = entityManager.createQuery("select count(e) " + getFrom(key),
+                        Long.class);
+                setParameters(count, key);
+                size = keyIndex + count.getSingleResult().intValue();
+                sizeExact = true;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether count should grow because entries near the counted end have been loaded.
+     * Count grows when query is constructed again with this query as the previous query.
+     *
+     * @return true if count is not exact and entries near counted end have been loaded
+     */
+    public boolean isSizeGrowable() {
+        return size >= 0 && !sizeExact && !keys.isEmpty() && keys.lastKey() >= size - GROW_MARGIN;
+    }
+
+    @Override
+    public List<Item> loadItems(final int startIndex, final int count) {
+        final Map.Entry<Integer, AuditLogEntry> key = keys.floorEntry(startIndex);
+        final TypedQuery<AuditLogEntry> query = entityManager.createQuery("select e " + getFrom(key)
+                + getOrderBy(), AuditLogEntry.class);
+        setParameters(query, key);
+        query.setFirstResult(key != null ? startIndex - key.getKey() : startIndex);
+        query.setMaxResults(count);
+        query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+
+        final List<AuditLogEntry> entries = query.getResultList();
+        if (!entries.isEmpty()) {
+            keys.put(startIndex + entries.size(), entries.get(entries.size() - 1));
+        }
+        final List<Item> items = new ArrayList<Item>(entries.size());
+        for (final AuditLogEntry entry : entries) {
+            items.add(new BeanItem<AuditLogEntry>(entry));
+        }
+        return items;
+    }
+
+    @Override
+    public void saveItems(final List<Item> addedItems, final List<Item> modifiedItems, final List<Item> removedItems) {
+        throw new UnsupportedOperationException("Audit log is read only.");
+    }
+
+    @Override
+    public boolean deleteAllItems() {
+        throw new UnsupportedOperationException("Audit log is read only.");
+    }
+
+    @Override
+    public Item constructItem() {
+        throw new UnsupportedOperationException("Audit log is read only.");
+    }
+
+    /**
+     * Gets JPQL from and where clauses of filtered entries following given key.
+     *
+     * @param key the key entry or null to start from the first entry
+     * @return the JPQL from and where clauses
+     */
+    private String getFrom(final Map.Entry<Integer, AuditLogEntry> key) {
+        final StringBuilder jpql = new StringBuilder("from AuditLogEntry e where ").append(where);
+        if (key != null) {
+            final String comparison = ascending ? " > " : " < ";
+            jpql.append(" and (e.created").append(comparison).append(":keyCreated")
+                    .append(" or (e.created = :keyCreated and e.auditLogEntryId").append(comparison)
+                    .append(":keyId))");
+        }
+        return jpql.toString();
+    }
+
+    /**
+     * @return the JPQL order by clause
+     */
+    private String getOrderBy() {
+        final String direction = ascending ? " asc" : " desc";
+        return " order by e.created" + direction + ", e.auditLogEntryId" + direction;
+    }
+
+    /**
+     * Sets filter and key parameters to query.
+     *
+     * @param query the query
+     * @param key the key entry or null if query starts from the first entry
+     */
+    private void setParameters(final TypedQuery<?> query, final Map.Entry<Integer, AuditLogEntry> key) {
+        for (final Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            query.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        if (key != null) {
+            query.setParameter("keyCreated", key.getValue().getCreated());
+            query.setParameter("keyId", key.getValue().getAuditLogEntryId());
+        }
+    }
+
+    /**
+     * Validates filtered property ID.
+     *
+     * @param propertyId the property ID
+     * @return the property ID
+     */
+    private static String getPropertyId(final Object propertyId) {
+        if (!FILTER_PROPERTY_IDS.contains(propertyId)) {
+            throw new UnsupportedOperationException("Unsupported audit log filter property: " + propertyId);
+        }
+        return (String) propertyId;
+    }
+
+    /**
+     * Gets JPQL operator of comparison.
+     *
+     * @param operation the comparison operation
+     * @return the JPQL operator
+     */
+    private static String getOperator(final Compare.Operation operation) {
+        switch (operation) {
+            case EQUAL:
+                return " = ";
+            case GREATER:
+                return " > ";
+            case GREATER_OR_EQUAL:
+                return " >= ";
+            case LESS:
+                return " < ";
+            case LESS_OR_EQUAL:
+                return " <= ";
+            default:
+                throw new UnsupportedOperationException("Unsupported audit log filter operation: " + operation);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.audit;
+
+import org.vaadin.addons.lazyquerycontainer.Query;
+import org.vaadin.addons.lazyquerycontainer.QueryDefinition;
+import org.vaadin.addons.lazyquerycontainer.QueryFactory;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Factory of audit log queries for lazy query container.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class AuditLogQueryFactory implements QueryFactory {
+
+    /** The entity manager. */
+    private final EntityManager entityManager;
+    /** The owner company ID. */
+    private final String companyId;
+    /** The last constructed query. */
+    private AuditLogQuery query;
+
+    /**
+     * Constructor for setting query parameters.
+     *
+     * @param entityManager the entity manager
+     * @param companyId the owner company ID
+     */
+    public AuditLogQueryFactory(final EntityManager entityManager, final String companyId) {
+        this.entityManager = entityManager;
+        this.companyId = companyId;
+    }
+
+    @Override
+    public Query constructQuery(final QueryDefinition queryDefinition) {
+        query = new AuditLogQuery(entityManager, queryDefinition, companyId, query);
+        return query;
+    }
+
+    /**
+     * Checks whether count of the last constructed query should grow because entries near its counted
+     * end have been loaded. Count grows when container is refreshed.
+     *
+     * @return true if count of the last query should grow
+     */
+    public boolean isSizeGrowable() {
+        return query != null && query.isSizeGrowable();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Content of asset disk cache file leased from asset content cache. The lease has to be released
+ * once content has been written so that memory mapped content can be unmapped after eviction.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class AssetContent {
+    /** The content buffer positioned at start of the content. */
+    private final ByteBuffer buffer;
+    /** The memory mapping holding the content or null if content is held in heap. */
+    private final AssetContentCache.MappedContent mappedContent;
+
+    /**
+     * Constructor for setting content buffer and its mapping.
+     *
+     * @param buffer the content buffer
+     * @param mappedContent the memory mapping or null if content is held in heap
+     */
+    AssetContent(final ByteBuffer buffer, final AssetContentCache.MappedContent mappedContent) {
+        this.buffer = buffer;
+        this.mappedContent = mappedContent;
+    }
+
+    /**
+     * @return the content buffer positioned at start of the content
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Releases the lease. Buffer must not be accessed after release.
+     */
+    public void release() {
+        if (mappedContent != null) {
+            mappedContent.release();
+        }
+    }
+}
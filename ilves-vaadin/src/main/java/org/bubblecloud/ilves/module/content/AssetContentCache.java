@@ -0,0 +1,270 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.CacheRemovalListener;
+import org.bubblecloud.ilves.cache.CacheWeigher;
+import org.bubblecloud.ilves.cache.InMemoryCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of asset disk cache file contents. Small files are held in heap and larger files
+ * are memory mapped so that they can be written to network without copying through heap.
+ * Files which do not fit in the cache budgets are not cached and have to be streamed from disk.
+ * Memory mapped files are unmapped when they have been evicted and all leases have been released.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class AssetContentCache {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(AssetContentCache.class);
+
+    /** The weigher using buffer capacity as weight. */
+    private static final CacheWeigher<String, ByteBuffer> BUFFER_WEIGHER = new CacheWeigher<String, ByteBuffer>() {
+        @Override
+        public int weigh(final String key, final ByteBuffer value) {
+            return value.capacity();
+        }
+    };
+
+    /** The weigher using mapped length as weight. */
+    private static final CacheWeigher<String, MappedContent> MAPPED_WEIGHER = new CacheWeigher<String, MappedContent>() {
+        @Override
+        public int weigh(final String key, final MappedContent value) {
+            return value.content.capacity();
+        }
+    };
+
+    /** The listener releasing cache reference of evicted memory mappings. */
+    private static final CacheRemovalListener<String, MappedContent> MAPPED_REMOVAL_LISTENER =
+            new CacheRemovalListener<String, MappedContent>() {
+        @Override
+        public void removed(final String key, final MappedContent value) {
+            value.release();
+        }
+    };
+
+    /** The maximum size of file held in heap. */
+    private final int heapMaxFileSize;
+    /** The maximum total size of files held in heap. */
+    private final long heapCacheSize;
+    /** The maximum total size of memory mapped files. */
+    private final long mappedCacheSize;
+    /** The cache of small files held in heap. */
+    private final InMemoryCache<String, ByteBuffer> heapCache;
+    /** The cache of memory mapped files. */
+    private final InMemoryCache<String, MappedContent> mappedCache;
+    /** The total size of memory mappings which have not been unmapped, including evicted but leased ones. */
+    private final AtomicLong mappedBytes = new AtomicLong();
+
+    /**
+     * Constructor for defining cache limits.
+     *
+     * @param heapMaxFileSize the maximum size of file held in heap
+     * @param heapCacheSize the maximum total size of files held in heap
+     * @param mappedCacheSize the maximum total size of memory mapped files
+     */
+    public AssetContentCache(final int heapMaxFileSize, final long heapCacheSize, final long mappedCacheSize) {
+        this.heapMaxFileSize = heapMaxFileSize;
+        this.heapCacheSize = Math.max(1, heapCacheSize);
+        this.mappedCacheSize = Math.max(1, mappedCacheSize);
+        heapCache = new InMemoryCache<String, ByteBuffer>(10 * 60 * 1000, 60 * 1000, 10000,
+                this.heapCacheSize, BUFFER_WEIGHER);
+        mappedCache = new InMemoryCache<String, MappedContent>(10 * 60 * 1000, 60 * 1000, 1000,
+                this.mappedCacheSize, MAPPED_WEIGHER, MAPPED_REMOVAL_LISTENER);
+    }
+
+    /**
+     * Gets content of asset disk cache file. The returned content has to be released after it has been written.
+     *
+     * @param assetId the asset ID
+     * @param file the asset disk cache file
+     * @return the content or null if file is too large to be cached and has to be streamed from disk.
+     * @throws IOException if IO exception occurs
+     */
+    public AssetContent getContent(final String assetId, final File file) throws IOException {
+        final long length = file.length();
+        final String key = assetId + ":" + file.lastModified() + ":" + length;
+        if (length <= heapMaxFileSize && length <= heapCacheSize) {
+            return new AssetContent(getHeapContent(key, file, (int) length).duplicate(), null);
+        }
+        if (length > mappedCacheSize || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        final MappedContent cachedContent = mappedCache.get(key);
+        if (cachedContent != null && cachedContent.retain()) {
+            return new AssetContent(cachedContent.content.duplicate(), cachedContent);
+        }
+
+        final MappedByteBuffer mapping;
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            randomAccessFile.close();
+        }
+        final MappedContent mappedContent = new MappedContent(mapping);
+        mappedContent.retain();
+        mappedCache.put(key, mappedContent);
+        return new AssetContent(mappedContent.content.duplicate(), mappedContent);
+    }
+
+    /**
+     * Gets total size of memory mappings which have not yet been unmapped.
+     *
+     * @return the mapped bytes
+     */
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     * Removes all content from cache. Memory mappings are unmapped once their leases have been released.
+     */
+    public void clear() {
+        heapCache.clear();
+        mappedCache.clear();
+    }
+
+    /**
+     * Gets content of small file from heap cache reading it from disk if not cached.
+     *
+     * @param key the cache key
+     * @param file the file
+     * @param length the file length
+     * @return the read only content buffer
+     * @throws IOException if IO exception occurs
+     */
+    private ByteBuffer getHeapContent(final String key, final File file, final int length) throws IOException {
+        ByteBuffer content = heapCache.get(key);
+        if (content == null) {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = randomAccessFile.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Asset cache file ended before expected length: " + file);
+                    }
+                }
+                buffer.flip();
+                content = buffer.asReadOnlyBuffer();
+            } finally {
+                randomAccessFile.close();
+            }
+            heapCache.put(key, content);
+        }
+        return content;
+    }
+
+    /**
+     * Gets slice of content buffer.
+     *
+     * @param content the content buffer
+     * @param range the range
+     * @return the buffer containing the range
+     */
+    public static ByteBuffer slice(final ByteBuffer content, final HttpRange range) {
+        final ByteBuffer slice = content.duplicate();
+        slice.limit((int) range.getEnd() + 1);
+        slice.position((int) range.getStart());
+        return slice;
+    }
+
+    /**
+     * Reference counted memory mapping. Cache holds one reference until the mapping is evicted and
+     * each lease holds one reference until released. Mapping is unmapped when last reference is released.
+     */
+    final class MappedContent {
+        /** The memory mapping. */
+        private final MappedByteBuffer mapping;
+        /** The read only view of the mapping. */
+        private final ByteBuffer content;
+        /** The reference count. */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * Constructor for setting the mapping. The constructed instance holds the cache reference.
+         *
+         * @param mapping the memory mapping
+         */
+        private MappedContent(final MappedByteBuffer mapping) {
+            this.mapping = mapping;
+            this.content = mapping.asReadOnlyBuffer();
+            mappedBytes.addAndGet(mapping.capacity());
+        }
+
+        /**
+         * Acquires reference to the mapping.
+         *
+         * @return true if reference was acquired or false if mapping has already been unmapped
+         */
+        boolean retain() {
+            while (true) {
+                final int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Releases reference to the mapping and unmaps it if this was the last reference.
+         */
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                mappedBytes.addAndGet(-mapping.capacity());
+                unmap(mapping);
+            }
+        }
+    }
+
+    /**
+     * Unmaps memory mapping immediately instead of waiting for garbage collection. If the JVM does not
+     * expose buffer cleaner then mapping is released by garbage collection.
+     *
+     * @param mapping the memory mapping
+     */
+    private static void unmap(final MappedByteBuffer mapping) {
+        try {
+            final Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(mapping);
+            if (cleaner != null) {
+                final Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            LOGGER.debug("Unable to unmap asset content, leaving it to garbage collection.", e);
+        }
+    }
+
+}
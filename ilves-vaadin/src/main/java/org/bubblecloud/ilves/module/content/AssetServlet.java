@@ -9,7 +9,10 @@ import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.security.CompanyDao;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
+import org.bubblecloud.ilves.util.PropertiesChangeListener;
+import org.bubblecloud.ilves.util.PropertiesSnapshot;
 import org.bubblecloud.ilves.util.PropertiesUtil;
+import org.eclipse.jetty.server.HttpOutput;
 
 import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
@@ -17,12 +20,20 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Servlet for sharing assets.
@@ -33,14 +44,70 @@ public class AssetServlet extends HttpServlet {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(AssetServlet.class);
 
+    /** The multipart byte ranges boundary. */
+    private static final String MULTIPART_BOUNDARY = "ILVES_ASSET_BYTERANGES";
+    /** The maximum size of memory mapping used to write part of uncached file. */
+    private static final long MAPPED_WINDOW_SIZE = 4 * 1024 * 1024;
+    /** The default cache control header value. */
+    private static final String DEFAULT_CACHE_CONTROL = "max-age=3600";
+
     private static Map<Company, InMemoryCache<String, Asset>> nameAssetCache =
-            new HashMap<Company, InMemoryCache<String, Asset>>();
+            new ConcurrentHashMap<Company, InMemoryCache<String, Asset>>();
+
+    /** The asset content cache. */
+    private AssetContentCache assetContentCache;
+
+    /** The cache control header values resolved per MIME type. */
+    private static Map<String, String> typeCacheControls = new ConcurrentHashMap<String, String>();
+
+    /** The listener clearing resolved cache control header values when site properties are reloaded. */
+    private static final PropertiesChangeListener CACHE_CONTROL_LISTENER = new PropertiesChangeListener() {
+        @Override
+        public void propertiesChanged(final PropertiesSnapshot snapshot, final Set<String> changedKeys) {
+            if ("site".equals(snapshot.getCategory())) {
+                typeCacheControls.clear();
+            }
+        }
+    };
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        PropertiesUtil.addChangeListener(CACHE_CONTROL_LISTENER);
+        assetContentCache = new AssetContentCache(
+                Integer.parseInt(getProperty("asset-heap-cache-max-file-size", "16384")),
+                Long.parseLong(getProperty("asset-heap-cache-size", "16777216")),
+                Long.parseLong(getProperty("asset-mapped-cache-size", "268435456")));
+    }
+
+    @Override
+    public void destroy() {
+        PropertiesUtil.removeChangeListener(CACHE_CONTROL_LISTENER);
+        assetContentCache.clear();
+        super.destroy();
+    }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         // Allocate entity manager.
         final EntityManager entityManager = DefaultSiteUI.getEntityManagerFactory().createEntityManager();
+        try {
+            doGet(req, resp, entityManager);
+        } finally {
+            entityManager.close();
+        }
+    }
 
+    /**
+     * Serves asset.
+     *
+     * @param req the request
+     * @param resp the response
+     * @param entityManager the entity manager
+     * @throws IOException if IO exception occurs
+     */
+    private void doGet(final HttpServletRequest req, final HttpServletResponse resp,
+                       final EntityManager entityManager) throws IOException {
         // Find user and groups from session or assume anonymous.
         final User user = (User) req.getSession().getAttribute("user");
         final List<Group> groups =  (List<Group>) req.getSession().getAttribute("groups");
@@ -52,11 +119,7 @@ public class AssetServlet extends HttpServlet {
         } else {
             company = (Company) req.getSession().getAttribute("company");
             if (company == null) {
-                company = CompanyDao.getCompany(entityManager, req.getServerName());
-                req.getSession().setAttribute("company", company);
-            }
-            if (company == null) {
-                company = CompanyDao.getCompany(entityManager, "*");
+                company = CompanyDao.resolveCompany(entityManager, req.getServerName());
                 req.getSession().setAttribute("company", company);
             }
         }
@@ -83,6 +146,17 @@ public class AssetServlet extends HttpServlet {
             return;
         }
 
+        // Answer conditional requests before touching asset data.
+        final String eTag = getETag(asset);
+        final long lastModified = asset.getModified().getTime() / 1000 * 1000;
+        resp.setHeader("ETag", eTag);
+        resp.setDateHeader("Last-Modified", lastModified);
+        setCacheHeaders(resp, asset.getType());
+        if (isNotModified(req, eTag, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
         // Load asset from file cache if exists and not modified before last modified of the asset file.
         final String assetCachePath = PropertiesUtil.getProperty("site", "asset-cache-path");
         final File assetCache = new File(assetCachePath);
@@ -128,23 +202,327 @@ public class AssetServlet extends HttpServlet {
             }
         }
 
-        if (assetCacheFile.exists()) {
-            final int cacheAgeSeconds = 3600;
-            final long expiry = System.currentTimeMillis() + cacheAgeSeconds * 1000;
-            resp.setDateHeader("Expires", expiry);
-            resp.setHeader("Cache-Control", "max-age="+ cacheAgeSeconds);
-            resp.setContentType(asset.getType());
-            resp.setContentLength(asset.getSize());
-
-            final FileInputStream inputStream = new FileInputStream(assetCacheFile);
-            IOUtils.copy(inputStream, resp.getOutputStream());
-            inputStream.close();
-
-            resp.setStatus(200);
-        } else {
+        if (!assetCacheFile.exists()) {
             resp.setStatus(500);
+            return;
+        }
+
+        final long length = assetCacheFile.length();
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        final List<HttpRange> ranges;
+        if (isRangeApplicable(req, eTag, lastModified)) {
+            ranges = HttpRange.parse(req.getHeader("Range"), length);
+        } else {
+            ranges = null;
         }
 
+        final AssetContent assetContent = assetContentCache.getContent(asset.getAssetId(), assetCacheFile);
+        try {
+            final ByteBuffer content = assetContent != null ? assetContent.getBuffer() : null;
+            if (ranges == null) {
+                resp.setStatus(200);
+                resp.setContentType(asset.getType());
+                resp.setHeader("Content-Length", Long.toString(length));
+                if (content != null) {
+                    sendContent(resp.getOutputStream(), content);
+                } else {
+                    try (final FileChannel channel = FileChannel.open(assetCacheFile.toPath(), StandardOpenOption.READ)) {
+                        sendRange(resp.getOutputStream(), channel, 0, length);
+                    }
+                }
+            } else if (ranges.isEmpty()) {
+                resp.setHeader("Content-Range", "bytes */" + length);
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                final HttpRange range = ranges.get(0);
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setContentType(asset.getType());
+                resp.setHeader("Content-Range", range.getContentRange(length));
+                resp.setHeader("Content-Length", Long.toString(range.getLength()));
+                if (content != null) {
+                    sendContent(resp.getOutputStream(), AssetContentCache.slice(content, range));
+                } else {
+                    try (final FileChannel channel = FileChannel.open(assetCacheFile.toPath(), StandardOpenOption.READ)) {
+                        sendRange(resp.getOutputStream(), channel, range.getStart(), range.getLength());
+                    }
+                }
+            } else {
+                final List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+                final byte[] closeDelimiter = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("ISO-8859-1");
+                long contentLength = closeDelimiter.length;
+                for (int i = 0; i < ranges.size(); i++) {
+                    final HttpRange range = ranges.get(i);
+                    final byte[] partHeader = ((i == 0 ? "--" : "\r\n--") + MULTIPART_BOUNDARY + "\r\n"
+                            + "Content-Type: " + asset.getType() + "\r\n"
+                            + "Content-Range: " + range.getContentRange(length) + "\r\n\r\n").getBytes("ISO-8859-1");
+                    partHeaders.add(partHeader);
+                    contentLength += partHeader.length + range.getLength();
+                }
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+                resp.setHeader("Content-Length", Long.toString(contentLength));
+                final OutputStream outputStream = resp.getOutputStream();
+                if (content != null) {
+                    for (int i = 0; i < ranges.size(); i++) {
+                        outputStream.write(partHeaders.get(i));
+                        writeContent(outputStream, AssetContentCache.slice(content, ranges.get(i)));
+                    }
+                    outputStream.write(closeDelimiter);
+                } else {
+                    try (final FileChannel channel = FileChannel.open(assetCacheFile.toPath(), StandardOpenOption.READ)) {
+                        for (int i = 0; i < ranges.size(); i++) {
+                            outputStream.write(partHeaders.get(i));
+                            writeRange(outputStream, channel, ranges.get(i).getStart(), ranges.get(i).getLength());
+                        }
+                        outputStream.write(closeDelimiter);
+                    }
+                }
+            }
+        } finally {
+            if (assetContent != null) {
+                assetContent.release();
+            }
+        }
+    }
+
+    /**
+     * Sends complete response content. Jetty output sends direct and memory mapped buffers
+     * to network without copying them through heap.
+     *
+     * @param outputStream the servlet output stream
+     * @param content the content
+     * @throws IOException if IO exception occurs
+     */
+    private static void sendContent(final OutputStream outputStream, final ByteBuffer content) throws IOException {
+        if (outputStream instanceof HttpOutput) {
+            ((HttpOutput) outputStream).sendContent(content);
+        } else {
+            writeContent(outputStream, content);
+        }
+    }
+
+    /**
+     * Writes part of response content.
+     *
+     * @param outputStream the servlet output stream
+     * @param content the content
+     * @throws IOException if IO exception occurs
+     */
+    private static void writeContent(final OutputStream outputStream, final ByteBuffer content) throws IOException {
+        if (outputStream instanceof HttpOutput) {
+            ((HttpOutput) outputStream).write(content);
+        } else {
+            final WritableByteChannel channel = Channels.newChannel(outputStream);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+    }
+
+    /**
+     * Gets strong entity tag of asset derived from asset ID and modification time.
+     *
+     * @param asset the asset
+     * @return the entity tag
+     */
+    private static String getETag(final Asset asset) {
+        return "\"" + asset.getAssetId() + "-" + Long.toHexString(asset.getModified().getTime()) + "\"";
+    }
+
+    /**
+     * Checks whether client has current version of the asset based on If-None-Match or If-Modified-Since headers.
+     *
+     * @param req the request
+     * @param eTag the asset entity tag
+     * @param lastModified the asset last modified time
+     * @return true if asset has not been modified
+     */
+    private static boolean isNotModified(final HttpServletRequest req, final String eTag, final long lastModified) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (final String candidate : ifNoneMatch.split(",")) {
+                final String trimmedCandidate = candidate.trim();
+                if (trimmedCandidate.equals("*") || trimmedCandidate.equals(eTag)
+                        || trimmedCandidate.equals("W/" + eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Checks whether Range header should be applied based on optional If-Range header.
+     *
+     * @param req the request
+     * @param eTag the asset entity tag
+     * @param lastModified the asset last modified time
+     * @return true if range header should be applied
+     */
+    private static boolean isRangeApplicable(final HttpServletRequest req, final String eTag, final long lastModified) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(eTag);
+        }
+        return getDateHeader(req, "If-Range") == lastModified;
+    }
+
+    /**
+     * Gets date header value ignoring malformed values.
+     *
+     * @param req the request
+     * @param headerName the header name
+     * @return the date in milliseconds or -1 if header is missing or malformed
+     */
+    private static long getDateHeader(final HttpServletRequest req, final String headerName) {
+        try {
+            return req.getDateHeader(headerName);
+        } catch (final IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sets Cache-Control and Expires headers configured for MIME type. Cache control is looked up from
+     * asset-cache-control.[type], asset-cache-control.[major type] and asset-cache-control properties.
+     *
+     * @param resp the response
+     * @param type the MIME type
+     */
+    private static void setCacheHeaders(final HttpServletResponse resp, final String type) {
+        final String typeKey = type != null ? type : "";
+        String cacheControl = typeCacheControls.get(typeKey);
+        if (cacheControl == null) {
+            final PropertiesSnapshot siteProperties = PropertiesUtil.getSnapshot("site");
+            cacheControl = siteProperties.getString("asset-cache-control." + typeKey, null);
+            if (cacheControl == null && typeKey.indexOf('/') > 0) {
+                cacheControl = siteProperties.getString(
+                        "asset-cache-control." + typeKey.substring(0, typeKey.indexOf('/')), null);
+            }
+            if (cacheControl == null) {
+                cacheControl = siteProperties.getString("asset-cache-control", DEFAULT_CACHE_CONTROL);
+            }
+            typeCacheControls.put(typeKey, cacheControl);
+        }
+        resp.setHeader("Cache-Control", cacheControl);
+        final int maxAgeIndex = cacheControl.indexOf("max-age=");
+        if (maxAgeIndex >= 0) {
+            final String maxAge = cacheControl.substring(maxAgeIndex + "max-age=".length()).split("[,\\s]")[0];
+            try {
+                resp.setDateHeader("Expires", System.currentTimeMillis() + Long.parseLong(maxAge) * 1000);
+            } catch (final NumberFormatException e) {
+                LOGGER.warn("Invalid max-age in asset cache control: " + cacheControl);
+            }
+        }
+    }
+
+    /**
+     * Gets optional site property value or default value if property is not defined.
+     *
+     * @param propertyKey the property key
+     * @param defaultValue the default value
+     * @return the property value or default value
+     */
+    private static String getProperty(final String propertyKey, final String defaultValue) {
+        return PropertiesUtil.getSnapshot("site").getString(propertyKey, defaultValue);
+    }
+
+    /**
+     * Sends file range as complete response content. Jetty output reads the channel to its own
+     * pooled buffers so that uncached files are not copied through heap.
+     *
+     * @param outputStream the servlet output stream
+     * @param channel the file channel
+     * @param start the start position
+     * @param length the range length
+     * @throws IOException if IO exception occurs
+     */
+    private static void sendRange(final OutputStream outputStream, final FileChannel channel,
+                                  final long start, final long length) throws IOException {
+        if (outputStream instanceof HttpOutput) {
+            ((HttpOutput) outputStream).sendContent(new RangeChannel(channel, start, length));
+        } else {
+            writeRange(outputStream, channel, start, length);
+        }
+    }
+
+    /**
+     * Writes file range as part of response content in memory mapped windows.
+     *
+     * @param outputStream the servlet output stream
+     * @param channel the file channel
+     * @param start the start position
+     * @param length the range length
+     * @throws IOException if IO exception occurs
+     */
+    private static void writeRange(final OutputStream outputStream, final FileChannel channel,
+                                   final long start, final long length) throws IOException {
+        final long end = start + length;
+        for (long position = start; position < end; position += MAPPED_WINDOW_SIZE) {
+            writeContent(outputStream, channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_WINDOW_SIZE, end - position)));
+        }
+    }
+
+    /**
+     * Readable channel of file range. Closing the range does not close the file channel.
+     */
+    private static final class RangeChannel implements ReadableByteChannel {
+        /** The file channel. */
+        private final FileChannel channel;
+        /** The end position of the range exclusive. */
+        private final long end;
+        /** The current position. */
+        private long position;
+
+        /**
+         * Constructor for defining the range.
+         *
+         * @param channel the file channel
+         * @param start the start position
+         * @param length the range length
+         */
+        private RangeChannel(final FileChannel channel, final long start, final long length) {
+            this.channel = channel;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read(final ByteBuffer buffer) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            final int limit = buffer.limit();
+            if (buffer.remaining() > end - position) {
+                buffer.limit(buffer.position() + (int) (end - position));
+            }
+            try {
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Asset cache file ended before range end: " + end);
+                }
+                position += read;
+                return read;
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
     }
 
 }
@@ -118,11 +118,15 @@ public class ContentModule implements SiteModule {
     public void injectDynamicContent(final SiteDescriptor dynamicSiteDescriptor) {
         final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
         final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
-        final User user = ((SecurityProviderSessionImpl) Site.getCurrent().getSecurityProvider()).getUserFromSession();
+        final SecurityProviderSessionImpl securityProvider =
+                (SecurityProviderSessionImpl) Site.getCurrent().getSecurityProvider();
+        final User user = securityProvider.getUserFromSession();
         final List<Group> groups;
         if (user == null) {
             groups = new ArrayList<Group>();
             groups.add(UserDao.getGroup(entityManager, company, "anonymous"));
+        } else if (securityProvider.getGroupsFromSession() != null) {
+            groups = securityProvider.getGroupsFromSession();
         } else {
             groups = UserDao.getUserGroups(entityManager, company, user);
         }
@@ -178,10 +182,11 @@ public class ContentModule implements SiteModule {
                 continue;
             }
 
-            boolean editPrivilege = UserDao.hasUserPrivilege(entityManager, user, "edit", content.getContentId());
+            boolean editPrivilege = PrivilegeCache.hasPrivilege(entityManager, company,
+                    user, "edit", content.getContentId());
             if (!editPrivilege) {
                 for (final Group group : groups) {
-                    if (UserDao.hasGroupPrivilege(entityManager, group, "edit", content.getContentId())) {
+                    if (PrivilegeCache.hasPrivilege(entityManager, company, group, "edit", content.getContentId())) {
                         editPrivilege = true;
                         break;
                     }
@@ -217,7 +222,7 @@ public class ContentModule implements SiteModule {
             final ViewDescriptor viewDescriptor = new ViewDescriptor(page, title, DefaultValoView.class);
             viewDescriptor.getProductionVersion().setDynamic(true);
             if (editPrivilege) {
-                viewDescriptor.setViewletClass("content", RenderFlow.class, content);
+                viewDescriptor.setViewletClass("content", RenderFlow.class, content.getContentId());
             } else {
                 viewDescriptor.setViewletClass("content", RenderViewlet.class, markup);
             }
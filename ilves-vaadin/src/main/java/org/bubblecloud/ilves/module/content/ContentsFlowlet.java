@@ -141,8 +141,9 @@ public final class ContentsFlowlet extends AbstractFlowlet {
                 if (entityGrid.getSelectedItemId() == null) {
                     return;
                 }
-                entityContainer.removeItem(entityGrid.getSelectedItemId());
-                entityContainer.commit();
+                final Content entity = entityContainer.getEntity(entityGrid.getSelectedItemId());
+                ContentDao.removeContent(getSite().getSiteContext().getObject(EntityManager.class), entity);
+                entityContainer.refresh();
             }
         });
     }
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.module.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HTTP byte range of a resource.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class HttpRange {
+    /** The maximum number of ranges served in single response. */
+    public static final int MAX_RANGES = 16;
+
+    /** The first byte position. */
+    private final long start;
+    /** The last byte position inclusive. */
+    private final long end;
+
+    /**
+     * Constructor for setting range positions.
+     *
+     * @param start the first byte position
+     * @param end the last byte position inclusive
+     */
+    public HttpRange(final long start, final long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Gets Content-Range header value for this range.
+     *
+     * @param resourceLength the resource length
+     * @return the content range header value
+     */
+    public String getContentRange(final long resourceLength) {
+        return "bytes " + start + "-" + end + "/" + resourceLength;
+    }
+
+    /**
+     * Parses Range header value.
+     *
+     * @param rangeHeader the range header value
+     * @param resourceLength the resource length
+     * @return the satisfiable ranges, empty list if no range is satisfiable or null if header
+     *         is not a valid byte range header and should be ignored.
+     */
+    public static List<HttpRange> parse(final String rangeHeader, final long resourceLength) {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+        final String[] rangeSpecs = rangeHeader.substring("bytes=".length()).split(",");
+        if (rangeSpecs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<HttpRange> ranges = new ArrayList<HttpRange>(rangeSpecs.length);
+        for (final String rangeSpec : rangeSpecs) {
+            final String trimmedRangeSpec = rangeSpec.trim();
+            final int separatorIndex = trimmedRangeSpec.indexOf('-');
+            if (separatorIndex < 0) {
+                return null;
+            }
+            final long first;
+            final long last;
+            try {
+                final String firstString = trimmedRangeSpec.substring(0, separatorIndex).trim();
+                final String lastString = trimmedRangeSpec.substring(separatorIndex + 1).trim();
+                if (firstString.isEmpty()) {
+                    if (lastString.isEmpty()) {
+                        return null;
+                    }
+                    final long suffixLength = Long.parseLong(lastString);
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength == 0 || resourceLength == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, resourceLength - suffixLength);
+                    last = resourceLength - 1;
+                } else {
+                    first = Long.parseLong(firstString);
+                    last = lastString.isEmpty() ? resourceLength - 1
+                            : Math.min(Long.parseLong(lastString), resourceLength - 1);
+                    if (first < 0 || (!lastString.isEmpty() && Long.parseLong(lastString) < first)) {
+                        return null;
+                    }
+                    if (first >= resourceLength) {
+                        continue;
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new HttpRange(first, last));
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
@@ -17,9 +17,17 @@ package org.bubblecloud.ilves.module.content;
 
 import org.bubblecloud.ilves.component.flow.AbstractFlowViewlet;
 import org.bubblecloud.ilves.component.flow.Flowlet;
+import org.bubblecloud.ilves.exception.SiteException;
+import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.ui.user.privilege.PrivilegesFlowlet;
 
+import javax.persistence.EntityManager;
+
 /**
+ * Flow for rendering and editing content. Viewlet configuration contains the content ID as site
+ * descriptors are shared between sessions and content entity is loaded with entity manager of
+ * current session.
+ *
  * @author Tommi S.E. Laukkanen
  */
 public final class RenderFlow extends AbstractFlowViewlet {
@@ -31,7 +39,14 @@ public final class RenderFlow extends AbstractFlowViewlet {
 
     @Override
     protected void addFlowlets() {
-        final Flowlet markdownFlowlet = new RenderFlowlet((Content) getViewletDescriptor().getConfiguration());
+        final EntityManager entityManager = getSite().getSiteContext().getObject(EntityManager.class);
+        final Company company = getSite().getSiteContext().getObject(Company.class);
+        final String contentId = getViewletDescriptor().getConfiguration();
+        final Content content = ContentDao.getContent(entityManager, company, contentId);
+        if (content == null) {
+            throw new SiteException("Content not found: " + contentId);
+        }
+        final Flowlet markdownFlowlet = new RenderFlowlet(content);
         addFlowlet(markdownFlowlet);
         final Flowlet contentFlowlet = new ContentFlowlet();
         addFlowlet(contentFlowlet);
@@ -34,11 +34,9 @@ import javax.persistence.EntityManager;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Random;
 
 /**
  * Google authenticator service for two factor authentication with Google Authenticator app.
@@ -62,7 +60,7 @@ public class GoogleAuthenticatorService {
         final int secretSize = 10;
 
         final byte[] buffer = new byte[secretSize];
-        new Random().nextBytes(buffer);
+        CryptoProvider.getSecureRandom().nextBytes(buffer);
 
         // Getting the key and converting it to Base32
         final Base32 codec = new Base32();
@@ -106,10 +104,16 @@ public class GoogleAuthenticatorService {
         }
         final Base32 codec32 = new Base32();
         final byte[] decodedKey = codec32.decode(secret);
+        final Mac mac = CryptoProvider.getMac(HMAC_HASH_FUNCTION);
+        try {
+            mac.init(new SecretKeySpec(decodedKey, HMAC_HASH_FUNCTION));
+        } catch (final InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
         final long timeWindow = System.currentTimeMillis() / 30000;
         final int window = 0;
         for (int i = -((window - 1) / 2); i <= window / 2; ++i) {
-            final long hash = calculateCode(decodedKey, timeWindow + i);
+            final long hash = calculateCode(mac, timeWindow + i);
             if (hash == code) {
                 return true;
             }
@@ -121,38 +125,31 @@ public class GoogleAuthenticatorService {
      * Calculates the verification code of the provided key at the specified
      * instant of time using the algorithm specified in RFC 6238.
      *
-     * @param key the secret key in binary format.
+     * @param mac the MAC initialized with the secret key.
      * @param tm  the instant of time.
      * @return the validation code for the provided key at the specified instant
      * of time.
      */
-    private static int calculateCode(final byte[] key, final long tm) {
+    private static int calculateCode(final Mac mac, final long tm) {
         final byte[] data = new byte[8];
         long value = tm;
         for (int i = 8; i-- > 0; value >>>= 8) {
             data[i] = (byte) value;
         }
 
-        final SecretKeySpec signKey = new SecretKeySpec(key, HMAC_HASH_FUNCTION);
-        try {
-            final Mac mac = Mac.getInstance(HMAC_HASH_FUNCTION);
-            mac.init(signKey);
-            final byte[] hash = mac.doFinal(data);
-            final int offset = hash[hash.length - 1] & 0xF;
-
-            long truncatedHash = 0;
-            for (int i = 0; i < 4; ++i) {
-                truncatedHash <<= 8;
-                truncatedHash |= (hash[offset + i] & 0xFF);
-            }
+        final byte[] hash = mac.doFinal(data);
+        final int offset = hash[hash.length - 1] & 0xF;
 
-            truncatedHash &= 0x7FFFFFFF;
-            truncatedHash %= 1000000;
-
-            return (int) truncatedHash;
-        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
-            throw new RuntimeException(ex);
+        long truncatedHash = 0;
+        for (int i = 0; i < 4; ++i) {
+            truncatedHash <<= 8;
+            truncatedHash |= (hash[offset + i] & 0xFF);
         }
+
+        truncatedHash &= 0x7FFFFFFF;
+        truncatedHash %= 1000000;
+
+        return (int) truncatedHash;
     }
 
     /**
@@ -1,19 +1,16 @@
 package org.bubblecloud.ilves.security;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.api.ApiImplementation;
 import org.bubblecloud.ilves.api.apis.RequestAccessTokenResult;
 import org.bubblecloud.ilves.api.apis.SecurityApi;
+import org.bubblecloud.ilves.cache.AccessTokenCache;
 import org.bubblecloud.ilves.model.*;
 import org.bubblecloud.ilves.module.customer.CustomerModule;
 import org.bubblecloud.ilves.site.SiteContext;
 import org.bubblecloud.ilves.site.SiteModuleManager;
-import org.bubblecloud.ilves.util.StringUtil;
 
 import javax.persistence.EntityManager;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.List;
 
@@ -55,13 +52,23 @@ public class SecurityApiImpl implements SecurityApi, ApiImplementation {
             return result;
         }
 
-        final char[] accessToken = SecurityUtil.generateAccessToken();
         final RequestAccessTokenResult result = new RequestAccessTokenResult();
-        result.setAccessToken(new String(accessToken));
         result.setExpirationTime(new Date(System.currentTimeMillis() + SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS));
 
-        final String errorKey = LoginService.login(context, company,
-                user, emailAddress, password.toCharArray(), context.getSession().getId(), accessToken);
+        final String errorKey;
+        if (SignedAccessToken.isEnabled()) {
+            // Signed access tokens are validated without user session so user session is not recorded.
+            errorKey = LoginService.login(context, company, user, emailAddress, password.toCharArray());
+            if (errorKey == null) {
+                result.setAccessToken(new String(SignedAccessToken.generate(company, user,
+                        SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS)));
+            }
+        } else {
+            final char[] accessToken = SecurityUtil.generateAccessToken();
+            result.setAccessToken(new String(accessToken));
+            errorKey = LoginService.login(context, company,
+                    user, emailAddress, password.toCharArray(), context.getSession().getId(), accessToken);
+        }
 
         if (errorKey == null) {
             return result;
@@ -86,10 +93,20 @@ public class SecurityApiImpl implements SecurityApi, ApiImplementation {
         }
 
         final String accessTokenHash = SecurityUtil.getSecretHash(accessToken.toCharArray());
+        if (SignedAccessToken.isSigned(accessToken.toCharArray())) {
+            final SignedAccessToken signedAccessToken = SignedAccessToken.verify(accessToken.toCharArray());
+            if (signedAccessToken != null && signedAccessToken.getUserId().equals(user.getUserId())) {
+                AccessTokenCache.revoke(accessTokenHash, signedAccessToken.getExpires());
+            }
+            return;
+        }
+
         final UserSession userSession = SecurityService.getUserSessionByAccessTokenHash(entityManager, accessTokenHash);
 
         if (userSession != null) {
             SecurityService.removeUserSession(entityManager, userSession);
+            AccessTokenCache.revoke(accessTokenHash,
+                    userSession.getCreated().getTime() + SecurityUtil.ACCESS_TOKEN_LIFETIME_MILLIS);
         }
 
         return;
@@ -111,15 +128,7 @@ public class SecurityApiImpl implements SecurityApi, ApiImplementation {
             final User newUser = new User(company, firstName, lastName, emailAddress, phoneNumber, "");
             UserDao.addUser(entityManager, newUser, UserDao.getGroup(entityManager, company, "user"));
 
-            final byte[] passwordAndSaltBytes = SecurityUtil.convertCharactersToBytes(ArrayUtils.addAll((newUser.getUserId() + ":").toCharArray(), password.toCharArray()));
-            final MessageDigest md;
-            try {
-                md = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new SecurityException(e);
-            }
-            final byte[] passwordAndSaltDigest = md.digest(passwordAndSaltBytes);
-            newUser.setPasswordHash(StringUtil.toHexString(passwordAndSaltDigest));
+            newUser.setPasswordHash(PasswordHashUtil.hashPassword(password.toCharArray()));
             UserDao.updateUser(entityManager, newUser);
 
             if (SiteModuleManager.isModuleInitialized(CustomerModule.class)) {
@@ -69,7 +69,7 @@ public class U2fService {
         final List<DeviceRegistration> deviceRegistrations = new ArrayList<>();
         for (final AuthenticationDevice authenticationDevice : authenticationDevices) {
             if (authenticationDevice.getType() == AuthenticationDeviceType.UNIVERSAL_SECOND_FACTOR) {
-                final String secret = SecurityUtil.decryptSecretKey(authenticationDevice.getEncryptedSecret());
+                final String secret = SecurityUtil.decryptDeviceSecret(authenticationDevice.getEncryptedSecret());
                 final DeviceRegistration deviceRegistration = DeviceRegistration.fromJson(secret);
                 deviceRegistrations.add(deviceRegistration);
             }
@@ -5,11 +5,15 @@ import org.apache.log4j.Logger;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bubblecloud.ilves.module.audit.AuditModule;
 import org.bubblecloud.ilves.module.content.ContentModule;
+import org.bubblecloud.ilves.security.AuditService;
 import org.bubblecloud.ilves.security.DefaultRoles;
+import org.bubblecloud.ilves.security.UserDirectoryConnectionPool;
 import org.bubblecloud.ilves.site.*;
 import org.bubblecloud.ilves.util.PersistenceUtil;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.webapp.WebAppContext;
 
 import java.io.IOException;
@@ -71,10 +75,23 @@ public class DefaultJettyConfiguration {
         }
         final int httpsPort = Integer.parseInt(PropertiesUtil.getProperty("site", "https-port"));
 
+        final long propertiesReloadIntervalMillis = PropertiesUtil.getSnapshot(propertiesCategory)
+                .getLong("properties-reload-interval-millis", 0);
+        if (propertiesReloadIntervalMillis > 0) {
+            PropertiesUtil.startReloading(propertiesReloadIntervalMillis);
+            LOGGER.info("Reloading modified property files every " + propertiesReloadIntervalMillis + " ms.");
+        }
+
         // Configure Java Persistence API.
         // -------------------------------
         DefaultSiteUI.setEntityManagerFactory(PersistenceUtil.getEntityManagerFactory(
                 persistenceUnit, propertiesCategory));
+        if (!"false".equals(PropertiesUtil.getProperty(propertiesCategory, "audit-log-asynchronous", false))) {
+            AuditService.startAsynchronousLogging(PersistenceUtil.getAuditEntityManagerFactory(
+                    persistenceUnit, propertiesCategory), propertiesCategory);
+        }
+        AuditService.startArchiving(PersistenceUtil.getAuditEntityManagerFactory(
+                persistenceUnit, propertiesCategory), propertiesCategory);
 
         // Configure providers.
         // --------------------
@@ -131,6 +148,12 @@ public class DefaultJettyConfiguration {
                 clientCertificateRequired);
 
         server.setHandler(context);
+        server.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+            @Override
+            public void lifeCycleStopped(final LifeCycle event) {
+                UserDirectoryConnectionPool.closePools();
+            }
+        });
 
         return server;
     }
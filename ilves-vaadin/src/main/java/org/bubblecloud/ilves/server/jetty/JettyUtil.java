@@ -15,6 +15,7 @@
  */
 package org.bubblecloud.ilves.server.jetty;
 
+import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.cache.UserClientCertificateCache;
 import org.bubblecloud.ilves.security.CertificateUtil;
 import org.bubblecloud.ilves.site.DefaultSiteUI;
@@ -53,6 +54,7 @@ public class JettyUtil {
             final boolean requestClientAuthentication,
             final boolean requireClientAuthentication) throws IOException {
         UserClientCertificateCache.init(DefaultSiteUI.getEntityManagerFactory());
+        PrivilegeCache.init(DefaultSiteUI.getEntityManagerFactory());
 
         final String keyStorePath = PropertiesUtil.getProperty("site", "key-store-path");
         final String keyStorePassword = PropertiesUtil.getProperty("site", "key-store-password");
@@ -81,7 +81,7 @@ public class CredentialPostRequestHandler implements RequestHandler {
             }
 
             final EntityManager entityManager = ui.getSite().getSiteContext().getEntityManager();
-            final Company company = DefaultSiteUI.resolveCompany(entityManager, (VaadinServletRequest) request);
+            final Company company = DefaultSiteUI.resolveCompany(entityManager, ((VaadinServletRequest) request).getServerName());
             final User user = UserDao.getUser(entityManager, company, emailAddress);
 
             if (user == null) {
@@ -92,7 +92,7 @@ public class CredentialPostRequestHandler implements RequestHandler {
 
             if (user.getGoogleAuthenticatorSecret() != null) {
                 final String code = request.getParameter("code");
-                if (code == null || !GoogleAuthenticatorService.checkCode(SecurityUtil.decryptSecretKey(user.getGoogleAuthenticatorSecret()), code)) {
+                if (code == null || !GoogleAuthenticatorService.checkCode(SecurityUtil.decryptDeviceSecret(user.getGoogleAuthenticatorSecret()), code)) {
                     if (ui.getSession() == null) {
                         LOGGER.error("Vaadin UI not initialized when CredentialPostRequestHandler was invoked.");
                         return false;
@@ -15,6 +15,12 @@
  */
 package org.bubblecloud.ilves.site;
 
+import org.bubblecloud.ilves.cache.InMemoryCache;
+import org.bubblecloud.ilves.cache.PrivilegeCache;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.module.content.ContentDao;
 import org.bubblecloud.ilves.security.DefaultRoles;
 import org.bubblecloud.ilves.site.view.valo.DefaultValoView;
 import org.bubblecloud.ilves.ui.AccessDeniedViewlet;
@@ -29,6 +35,7 @@ import org.bubblecloud.ilves.ui.anonymous.login.OpenIdLoginViewlet;
 import org.bubblecloud.ilves.ui.user.AccountFlowViewlet;
 import org.bubblecloud.ilves.ui.user.OpenIdLinkViewlet;
 
+import javax.persistence.EntityManager;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -43,6 +50,13 @@ public class DefaultContentProvider implements ContentProvider {
      */
     private final SiteDescriptor siteDescriptor;
 
+    /**
+     * The dynamic site descriptors memoized per company and group set. Entries are validated against
+     * company content version and privilege generation on each access.
+     */
+    private final InMemoryCache<String, DynamicSiteDescriptor> dynamicSiteDescriptors =
+            new InMemoryCache<String, DynamicSiteDescriptor>(10 * 60 * 1000, 60 * 1000, 1000);
+
     public DefaultContentProvider() {
         final List<ViewDescriptor> viewDescriptors = Collections.synchronizedList(new ArrayList<ViewDescriptor>());
 
@@ -135,11 +149,108 @@ public class DefaultContentProvider implements ContentProvider {
         return siteDescriptor;
     }
 
+    /**
+     * Gets dynamic site descriptor of current user. Dynamic site descriptors are memoized per company and
+     * group set and each caller receives its own copy which it is free to modify. The copy shares viewlet
+     * configurations with other sessions so modules must not put managed entities to configurations.
+     *
+     * @return the dynamic site descriptor
+     */
     @Override
     public SiteDescriptor getDynamicSiteDescriptor() {
+        final Site site = Site.getCurrent();
+        final Company company = site != null ? (Company) site.getSiteContext().getObject(Company.class) : null;
+        final EntityManager entityManager = site != null
+                ? (EntityManager) site.getSiteContext().getObject(EntityManager.class) : null;
+        if (company == null || entityManager == null
+                || !(site.getSecurityProvider() instanceof SecurityProviderSessionImpl)) {
+            return buildDynamicSiteDescriptor();
+        }
+
+        final long contentVersion = ContentDao.getContentVersion(company);
+        final long privilegeGeneration = PrivilegeCache.getGeneration(company);
+        final String key = getDynamicSiteDescriptorKey(entityManager, company,
+                (SecurityProviderSessionImpl) site.getSecurityProvider());
+
+        final DynamicSiteDescriptor cached = dynamicSiteDescriptors.get(key);
+        if (cached != null && cached.contentVersion == contentVersion
+                && cached.privilegeGeneration == privilegeGeneration) {
+            return cached.siteDescriptor.clone();
+        }
+
+        final SiteDescriptor dynamicSiteDescriptor = buildDynamicSiteDescriptor();
+        dynamicSiteDescriptors.put(key, new DynamicSiteDescriptor(dynamicSiteDescriptor, contentVersion,
+                privilegeGeneration));
+        return dynamicSiteDescriptor.clone();
+    }
+
+    /**
+     * Builds dynamic site descriptor by injecting dynamic content of site modules to clone of site descriptor.
+     *
+     * @return the dynamic site descriptor
+     */
+    private SiteDescriptor buildDynamicSiteDescriptor() {
         final SiteDescriptor dynamicSiteDescriptor = siteDescriptor.clone();
         SiteModuleManager.injectDynamicContent(dynamicSiteDescriptor);
         return dynamicSiteDescriptor;
     }
 
+    /**
+     * Gets dynamic site descriptor cache key consisting of company ID and sorted group IDs of current user.
+     * User ID is used instead of group IDs if user has been granted privileges directly.
+     *
+     * @param entityManager the entity manager
+     * @param company the company
+     * @param securityProvider the security provider
+     * @return the cache key
+     */
+    private String getDynamicSiteDescriptorKey(final EntityManager entityManager, final Company company,
+                                               final SecurityProviderSessionImpl securityProvider) {
+        final StringBuilder key = new StringBuilder(company.getCompanyId());
+        final User user = securityProvider.getUserFromSession();
+        if (user == null) {
+            return key.append(':').append(DefaultRoles.ANONYMOUS).toString();
+        }
+        final List<Group> groups = securityProvider.getGroupsFromSession();
+        if (groups == null || PrivilegeCache.hasUserPrivileges(entityManager, company, user)) {
+            return key.append(":user:").append(user.getUserId()).toString();
+        }
+        final List<String> groupIds = new ArrayList<String>(groups.size());
+        for (final Group group : groups) {
+            groupIds.add(group.getGroupId());
+        }
+        Collections.sort(groupIds);
+        key.append(":groups");
+        for (final String groupId : groupIds) {
+            key.append(':').append(groupId);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Dynamic site descriptor with the versions it was built from.
+     */
+    private static final class DynamicSiteDescriptor {
+        /** The dynamic site descriptor. */
+        private final SiteDescriptor siteDescriptor;
+        /** The content version of company at the time of build. */
+        private final long contentVersion;
+        /** The privilege generation of company at the time of build. */
+        private final long privilegeGeneration;
+
+        /**
+         * Constructor for setting dynamic site descriptor and versions.
+         *
+         * @param siteDescriptor the dynamic site descriptor
+         * @param contentVersion the content version
+         * @param privilegeGeneration the privilege generation
+         */
+        private DynamicSiteDescriptor(final SiteDescriptor siteDescriptor, final long contentVersion,
+                                      final long privilegeGeneration) {
+            this.siteDescriptor = siteDescriptor;
+            this.contentVersion = contentVersion;
+            this.privilegeGeneration = privilegeGeneration;
+        }
+    }
+
 }
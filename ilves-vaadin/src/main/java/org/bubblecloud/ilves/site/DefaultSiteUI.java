@@ -88,12 +88,15 @@ public final class DefaultSiteUI extends AbstractSiteUI {
         return new Site(SiteMode.PRODUCTION, contentProvider, localizationProvider, securityProvider, siteContext);
     }
 
+    /**
+     * Resolves company serving given host name.
+     *
+     * @param entityManager the entity manager
+     * @param hostName the host name
+     * @return the company or null
+     */
     public static Company resolveCompany(EntityManager entityManager, final String hostName) {
-        Company company = CompanyDao.getCompany(entityManager, hostName);
-        if (company == null) {
-            company = CompanyDao.getCompany(entityManager, "*");
-        }
-        return company;
+        return CompanyDao.resolveCompany(entityManager, hostName);
     }
 
     /**
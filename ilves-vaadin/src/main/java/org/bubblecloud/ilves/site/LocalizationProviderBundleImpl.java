@@ -17,11 +17,15 @@ package org.bubblecloud.ilves.site;
 
 import org.apache.log4j.Logger;
 
+import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * LocalizationProvider implementation which loads localized values from
- * resource bundle in classpath.
+ * resource bundle in classpath. Bundles of each locale are merged to single
+ * key to value table on first use so that lookup is a single map access.
  * @author Tommi S.E. Laukkanen
  */
 public final class LocalizationProviderBundleImpl implements LocalizationProvider {
@@ -29,8 +33,12 @@ public final class LocalizationProviderBundleImpl implements LocalizationProvide
     private static final Logger LOGGER = Logger.getLogger(LocalizationProviderBundleImpl.class);
     /** The bundle base names. */
     private final String[] bundleBaseNames;
-    /** The loaded resource bundles. */
-    private final Map<Locale, List<ResourceBundle>> resourceBundles = new HashMap<Locale, List<ResourceBundle>>();
+    /** The merged localization tables by locale. */
+    private final ConcurrentMap<Locale, Map<String, String>> localizationTables =
+            new ConcurrentHashMap<Locale, Map<String, String>>();
+    /** The compiled message formats by locale. */
+    private final ConcurrentMap<Locale, ConcurrentMap<String, MessageFormat>> messageFormats =
+            new ConcurrentHashMap<Locale, ConcurrentMap<String, MessageFormat>>();
 
     /**
      * Constructor which allows setting bundle base names.
@@ -45,22 +53,60 @@ public final class LocalizationProviderBundleImpl implements LocalizationProvide
      */
     @Override
     public String localize(final String key, final Locale locale) {
-        if (!resourceBundles.containsKey(locale)) {
-            resourceBundles.put(locale, new ArrayList<ResourceBundle>());
-            final List<ResourceBundle> bundles = resourceBundles.get(locale);
-            for (final String bundleBaseName : bundleBaseNames) {
-                bundles.add(ResourceBundle.getBundle(bundleBaseName, locale));
-            }
-        }
-
-        for (final ResourceBundle resourceBundle : resourceBundles.get(locale)) {
-            if (resourceBundle.containsKey(key)) {
-                return resourceBundle.getString(key);
-            }
+        final String value = getLocalizationTable(locale).get(key);
+        if (value != null) {
+            return value;
         }
 
         //LOGGER.warn("No localization found for: '" + key + "' in locale: " + UI.getCurrent().getLocale());
         return key;
     }
 
+    /**
+     * Gets localized value corresponding to given localization key formatted
+     * with given arguments as {@link MessageFormat} pattern.
+     * @param key The localization key.
+     * @param locale The locale.
+     * @param arguments The message format arguments.
+     * @return The formatted localized value.
+     */
+    public String localize(final String key, final Locale locale, final Object... arguments) {
+        ConcurrentMap<String, MessageFormat> localeFormats = messageFormats.get(locale);
+        if (localeFormats == null) {
+            messageFormats.putIfAbsent(locale, new ConcurrentHashMap<String, MessageFormat>());
+            localeFormats = messageFormats.get(locale);
+        }
+        MessageFormat messageFormat = localeFormats.get(key);
+        if (messageFormat == null) {
+            localeFormats.putIfAbsent(key, new MessageFormat(localize(key, locale), locale));
+            messageFormat = localeFormats.get(key);
+        }
+        // Message format instances are not thread safe.
+        synchronized (messageFormat) {
+            return messageFormat.format(arguments);
+        }
+    }
+
+    /**
+     * Gets merged localization table of locale. Earlier bundle base names take
+     * precedence over later ones.
+     * @param locale The locale.
+     * @return The localization table.
+     */
+    private Map<String, String> getLocalizationTable(final Locale locale) {
+        final Map<String, String> localizationTable = localizationTables.get(locale);
+        if (localizationTable != null) {
+            return localizationTable;
+        }
+        final Map<String, String> newLocalizationTable = new HashMap<String, String>();
+        for (int i = bundleBaseNames.length - 1; i >= 0; i--) {
+            final ResourceBundle resourceBundle = ResourceBundle.getBundle(bundleBaseNames[i], locale);
+            for (final String key : resourceBundle.keySet()) {
+                newLocalizationTable.put(key, resourceBundle.getString(key));
+            }
+        }
+        localizationTables.putIfAbsent(locale, Collections.unmodifiableMap(newLocalizationTable));
+        return localizationTables.get(locale);
+    }
+
 }
@@ -108,7 +108,10 @@ public final class SecurityProviderSessionImpl implements SecurityProvider {
      * Gets groups from session.
      * @return the groups or null.
      */
-    private List<Group> getGroupsFromSession() {
+    public List<Group> getGroupsFromSession() {
+        if (UI.getCurrent() == null) {
+            return null;
+        }
         return (List<Group>) ((AbstractSiteUI) UI.getCurrent()).getSession().getAttribute("groups");
     }
 
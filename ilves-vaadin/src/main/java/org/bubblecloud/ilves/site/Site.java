@@ -25,11 +25,14 @@ import com.vaadin.ui.Button;
 import com.vaadin.ui.UI;
 import com.vaadin.ui.Window;
 import org.apache.log4j.Logger;
+import org.bubblecloud.ilves.cache.InMemoryCache;
 import org.bubblecloud.ilves.exception.SiteException;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.util.PropertiesUtil;
 
+import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -39,6 +42,9 @@ import java.util.Map;
 public final class Site implements ViewProvider, ViewChangeListener {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(Site.class);
+    /** The compiled message formats of localization providers which do not cache them, keyed by locale and pattern. */
+    private static final InMemoryCache<String, MessageFormat> MESSAGE_FORMATS =
+            new InMemoryCache<String, MessageFormat>(60 * 60 * 1000, 60 * 1000, 1000);
     /** The site. */
     private final SiteDescriptor siteDescriptor;
     /** The portal mode of operation. */
@@ -142,14 +148,44 @@ public final class Site implements ViewProvider, ViewChangeListener {
         }
     }
 
+    /**
+     * Gets localized value corresponding to given localization key formatted
+     * with given arguments as {@link java.text.MessageFormat} pattern.
+     * @param key The localization key.
+     * @param arguments The message format arguments.
+     * @return The formatted localized value.
+     */
+    public String localize(final String key, final Object... arguments) {
+        if (localizationProvider instanceof LocalizationProviderBundleImpl) {
+            return ((LocalizationProviderBundleImpl) localizationProvider).localize(
+                    key, UI.getCurrent().getLocale(), arguments);
+        } else if (localizationProvider != null) {
+            final Locale locale = UI.getCurrent().getLocale();
+            final String pattern = localizationProvider.localize(key, locale);
+            final String cacheKey = locale + "\n" + pattern;
+            MessageFormat messageFormat = MESSAGE_FORMATS.get(cacheKey);
+            if (messageFormat == null) {
+                messageFormat = new MessageFormat(pattern, locale);
+                MESSAGE_FORMATS.put(cacheKey, messageFormat);
+            }
+            // Message format instances are not thread safe.
+            synchronized (messageFormat) {
+                return messageFormat.format(arguments);
+            }
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Gets getIcon corresponding to given localization key.
      * @param key The localization key.
      * @return The localized getIcon.
      */
     public Resource getIcon(final String key) {
-        if (PropertiesUtil.hasProperty("icon", key)) {
-            final String value = PropertiesUtil.getProperty("icon", key).trim();
+        final String propertyValue = PropertiesUtil.getSnapshot("icon").getString(key);
+        if (propertyValue != null) {
+            final String value = propertyValue.trim();
             if (value.startsWith("FontAwesome.")) {
                 final String iconName = value.substring(value.indexOf('.') + 1);
                 for (final FontAwesome icon : FontAwesome.values()) {
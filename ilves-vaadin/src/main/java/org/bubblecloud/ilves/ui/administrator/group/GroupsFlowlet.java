@@ -16,11 +16,13 @@
 package org.bubblecloud.ilves.ui.administrator.group;
 
 import com.vaadin.data.util.filter.Compare;
+import com.vaadin.ui.Alignment;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.Button.ClickListener;
 import com.vaadin.ui.GridLayout;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.Table;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.component.grid.FieldDescriptor;
@@ -55,6 +57,8 @@ public final class GroupsFlowlet extends AbstractFlowlet {
     private EntityContainer<Group> container;
     /** The grid. */
     private Grid grid;
+    /** The group count label. */
+    private Label countLabel;
 
     @Override
     public String getFlowletKey() {
@@ -165,19 +169,36 @@ public final class GroupsFlowlet extends AbstractFlowlet {
 
                 SecurityService.removeGroup(getSite().getSiteContext(), entity);
                 container.refresh();
+                refreshCount();
             }
         });
 
+        countLabel = new Label();
+        buttonLayout.addComponent(countLabel);
+        buttonLayout.setComponentAlignment(countLabel, Alignment.MIDDLE_LEFT);
+
         final Company company = getSite().getSiteContext().getObject(Company.class);
         container.removeDefaultFilters();
         container.addDefaultFilter(
                 new Compare.Equal("owner.companyId", company.getCompanyId()));
         grid.refresh();
+        refreshCount();
     }
 
     @Override
     public void enter() {
         container.refresh();
+        refreshCount();
+    }
+
+    /**
+     * Refreshes group count of the company.
+     */
+    private void refreshCount() {
+        final EntityManager entityManager = getSite().getSiteContext().getObject(EntityManager.class);
+        final Company company = getSite().getSiteContext().getObject(Company.class);
+        countLabel.setValue(getSite().localize("label-group-count-value",
+                UserDao.countGroups(entityManager, company)));
     }
 
 }
@@ -22,12 +22,14 @@ import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.Button.ClickListener;
 import com.vaadin.ui.GridLayout;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Notification;
 import com.vaadin.ui.Table;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.component.grid.*;
 import org.bubblecloud.ilves.model.GroupMember;
 import org.bubblecloud.ilves.model.User;
 import org.bubblecloud.ilves.security.DefaultRoles;
+import org.bubblecloud.ilves.security.PasswordHashUtil;
 import org.bubblecloud.ilves.security.PasswordLoginUtil;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.security.UserDao;
@@ -136,11 +138,15 @@ public final class UserFlowlet extends AbstractFlowlet implements ValidatingEdit
             @Override
             public void buttonClick(final ClickEvent event) {
                 editor.commit();
+                if (UserDao.isCertificateAssignedToOtherUser(entityManager, user)) {
+                    Notification.show(getSite().localize("message-certificate-assigned-to-other-user"),
+                            Notification.Type.WARNING_MESSAGE);
+                    return;
+                }
                 try {
                     final boolean toBeAdded = user.getUserId() == null;
                     if (user.getPasswordHash() != null) {
-                        final int hashSize = 64;
-                        if (user.getPasswordHash().length() != hashSize) {
+                        if (!PasswordHashUtil.isPasswordHash(user.getPasswordHash())) {
                             try {
                                 PasswordLoginUtil.setUserPasswordHash(user.getOwner(), user, user.getPasswordHash().toCharArray());
                             } catch (NoSuchAlgorithmException e) {
@@ -15,21 +15,15 @@
  */
 package org.bubblecloud.ilves.ui.administrator.user;
 
-import com.vaadin.data.util.BeanItem;
 import com.vaadin.server.FontAwesome;
 import com.vaadin.shared.ui.label.ContentMode;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.Table.ColumnGenerator;
-import org.bubblecloud.ilves.model.AuthenticationDevice;
-import org.bubblecloud.ilves.model.User;
-import org.bubblecloud.ilves.security.SiteAuthenticationService;
-
-import java.util.List;
 
 /**
- * Helper class for Vaadin tables to generate user MFA status column.
+ * Helper class for Vaadin tables to generate user lock status column.
  *
  * @author Tommi S.E. Laukkanen
  */
@@ -39,9 +33,17 @@ public final class UserLockedStatusColumnGenerator implements ColumnGenerator {
      */
     private static final long serialVersionUID = 1L;
     /**
-     * Construct which sets the application instance.
+     * The user status loader.
+     */
+    private final UserStatusLoader userStatusLoader;
+
+    /**
+     * Constructor which sets the user status loader.
+     *
+     * @param userStatusLoader the user status loader
      */
-    public UserLockedStatusColumnGenerator() {
+    public UserLockedStatusColumnGenerator(final UserStatusLoader userStatusLoader) {
+        this.userStatusLoader = userStatusLoader;
     }
 
     /**
@@ -56,9 +58,8 @@ public final class UserLockedStatusColumnGenerator implements ColumnGenerator {
         if (itemId == null) {
             return new Label();
         }
-        final User user = (User) ((BeanItem)source.getItem(itemId)).getBean();
 
-        if (user.isLockedOut()) {
+        if (userStatusLoader.isLockedOut(source, itemId)) {
             final Label label = new Label(FontAwesome.BAN.getHtml(), ContentMode.HTML);
             return label;
         } else {
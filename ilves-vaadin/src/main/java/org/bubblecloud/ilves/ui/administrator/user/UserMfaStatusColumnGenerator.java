@@ -15,28 +15,12 @@
  */
 package org.bubblecloud.ilves.ui.administrator.user;
 
-import com.vaadin.client.ui.Icon;
-import com.vaadin.data.Property;
-import com.vaadin.data.Property.ValueChangeEvent;
-import com.vaadin.data.Property.ValueChangeListener;
-import com.vaadin.data.Property.ValueChangeNotifier;
-import com.vaadin.data.util.BeanItem;
 import com.vaadin.server.FontAwesome;
-import com.vaadin.server.Resource;
 import com.vaadin.shared.ui.label.ContentMode;
 import com.vaadin.ui.Component;
-import com.vaadin.ui.Image;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.Table.ColumnGenerator;
-import org.bubblecloud.ilves.model.AuthenticationDevice;
-import org.bubblecloud.ilves.model.User;
-import org.bubblecloud.ilves.security.SiteAuthenticationService;
-import org.bubblecloud.ilves.security.UserDao;
-import org.bubblecloud.ilves.site.Site;
-
-import java.io.Serializable;
-import java.util.List;
 
 /**
  * Helper class for Vaadin tables to generate user MFA status column.
@@ -49,9 +33,17 @@ public final class UserMfaStatusColumnGenerator implements ColumnGenerator {
      */
     private static final long serialVersionUID = 1L;
     /**
-     * Construct which sets the application instance.
+     * The user status loader.
+     */
+    private final UserStatusLoader userStatusLoader;
+
+    /**
+     * Constructor which sets the user status loader.
+     *
+     * @param userStatusLoader the user status loader
      */
-    public UserMfaStatusColumnGenerator() {
+    public UserMfaStatusColumnGenerator(final UserStatusLoader userStatusLoader) {
+        this.userStatusLoader = userStatusLoader;
     }
 
     /**
@@ -66,10 +58,8 @@ public final class UserMfaStatusColumnGenerator implements ColumnGenerator {
         if (itemId == null) {
             return new Label();
         }
-        final User user = (User) ((BeanItem)source.getItem(itemId)).getBean();
 
-        final List<AuthenticationDevice> authenticationDevices = SiteAuthenticationService.getAuthenticationDevices(user.getEmailAddress());
-        if (authenticationDevices.size() > 0) {
+        if (userStatusLoader.getAuthenticationDeviceCount(source, itemId) > 0) {
             final Label label = new Label(FontAwesome.KEY.getHtml(), ContentMode.HTML);
             return label;
         } else {
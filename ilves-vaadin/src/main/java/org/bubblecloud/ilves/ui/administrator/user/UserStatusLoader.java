@@ -0,0 +1,177 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bubblecloud.ilves.ui.administrator.user;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.util.BeanItem;
+import com.vaadin.ui.Table;
+import com.vaadin.ui.UI;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.AuthenticationDeviceDao;
+import org.bubblecloud.ilves.site.AbstractSiteUI;
+
+import javax.persistence.EntityManager;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads MFA and lock status of users shown in user table. Status is loaded for
+ * whole block of container items at once when status of first item in the block
+ * is requested so that block of rows costs constant number of queries.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class UserStatusLoader implements Serializable {
+    /**
+     * Serial version UID of this class.
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * The maximum number of loaded blocks kept before status cache is cleared.
+     */
+    private static final int MAX_LOADED_BLOCKS = 4;
+
+    /**
+     * The number of items loaded at once.
+     */
+    private final int blockSize;
+    /**
+     * The authentication device counts by user ID.
+     */
+    private final Map<String, Long> authenticationDeviceCounts = new HashMap<String, Long>();
+    /**
+     * The lock status by user ID.
+     */
+    private final Map<String, Boolean> lockedOuts = new HashMap<String, Boolean>();
+
+    /**
+     * Constructor for setting block size.
+     *
+     * @param blockSize the number of items loaded at once, should match container batch size
+     */
+    public UserStatusLoader(final int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Gets number of authentication devices of user.
+     *
+     * @param source the table
+     * @param itemId the item ID of the user
+     * @return the number of authentication devices
+     */
+    public long getAuthenticationDeviceCount(final Table source, final Object itemId) {
+        final String userId = load(source, itemId);
+        return userId != null ? authenticationDeviceCounts.get(userId) : 0;
+    }
+
+    /**
+     * Checks whether user is locked out.
+     *
+     * @param source the table
+     * @param itemId the item ID of the user
+     * @return true if user is locked out
+     */
+    public boolean isLockedOut(final Table source, final Object itemId) {
+        final String userId = load(source, itemId);
+        return userId != null && lockedOuts.get(userId);
+    }
+
+    /**
+     * Clears loaded status. Should be called when container is refreshed.
+     */
+    public void clear() {
+        authenticationDeviceCounts.clear();
+        lockedOuts.clear();
+    }
+
+    /**
+     * Loads status of block of users containing given item if not already loaded.
+     *
+     * @param source the table
+     * @param itemId the item ID
+     * @return the user ID or null if item does not exist
+     */
+    private String load(final Table source, final Object itemId) {
+        final User user = getUser(source, itemId);
+        if (user == null) {
+            return null;
+        }
+        if (authenticationDeviceCounts.containsKey(user.getUserId())) {
+            return user.getUserId();
+        }
+        if (authenticationDeviceCounts.size() >= blockSize * MAX_LOADED_BLOCKS) {
+            clear();
+        }
+
+        final Container container = source.getContainerDataSource();
+        final List<?> itemIds;
+        if (container instanceof Container.Indexed) {
+            final Container.Indexed indexedContainer = (Container.Indexed) container;
+            final int index = indexedContainer.indexOfId(itemId);
+            final int startIndex = index - index % blockSize;
+            itemIds = indexedContainer.getItemIds(startIndex, Math.min(blockSize, container.size() - startIndex));
+        } else {
+            itemIds = Collections.singletonList(itemId);
+        }
+
+        final List<User> users = new ArrayList<User>(itemIds.size());
+        final List<String> userIds = new ArrayList<String>(itemIds.size());
+        for (final Object blockItemId : itemIds) {
+            final User blockUser = getUser(source, blockItemId);
+            if (blockUser != null && blockUser.getUserId() != null) {
+                users.add(blockUser);
+                userIds.add(blockUser.getUserId());
+            }
+        }
+        if (!userIds.contains(user.getUserId())) {
+            users.add(user);
+            userIds.add(user.getUserId());
+        }
+
+        final EntityManager entityManager = ((AbstractSiteUI) UI.getCurrent()).getSite()
+                .getSiteContext().getEntityManager();
+        final Map<String, Long> counts = AuthenticationDeviceDao.getAuthenticationDeviceCounts(
+                entityManager, userIds);
+        for (final User blockUser : users) {
+            final Long count = counts.get(blockUser.getUserId());
+            authenticationDeviceCounts.put(blockUser.getUserId(), count != null ? count : 0L);
+            lockedOuts.put(blockUser.getUserId(), blockUser.isLockedOut());
+        }
+        return user.getUserId();
+    }
+
+    /**
+     * Gets user of table item.
+     *
+     * @param source the table
+     * @param itemId the item ID
+     * @return the user or null if item does not exist
+     */
+    private static User getUser(final Table source, final Object itemId) {
+        final Item item = source.getItem(itemId);
+        if (item == null) {
+            return null;
+        }
+        return (User) ((BeanItem) item).getBean();
+    }
+
+}
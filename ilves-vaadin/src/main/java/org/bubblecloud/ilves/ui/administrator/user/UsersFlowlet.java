@@ -54,6 +54,10 @@ public final class UsersFlowlet extends AbstractFlowlet {
     private EntityContainer<User> container;
     /** The grid. */
     private Grid grid;
+    /** The user count label. */
+    private Label countLabel;
+    /** The user MFA and lock status loader. */
+    private UserStatusLoader userStatusLoader;
 
     @Override
     public String getFlowletKey() {
@@ -110,9 +114,10 @@ public final class UsersFlowlet extends AbstractFlowlet {
         table.setColumnCollapsed("failedLoginCount", true);
         table.setColumnCollapsed("passwordExpirationDate", true);
 
-        table.addGeneratedColumn("mfa", new UserMfaStatusColumnGenerator());
+        userStatusLoader = new UserStatusLoader(1000);
+        table.addGeneratedColumn("mfa", new UserMfaStatusColumnGenerator(userStatusLoader));
         table.setColumnHeader("mfa", getSite().localize("field-mfa-status"));
-        table.addGeneratedColumn("locked", new UserLockedStatusColumnGenerator());
+        table.addGeneratedColumn("locked", new UserLockedStatusColumnGenerator(userStatusLoader));
         table.setColumnHeader("locked", getSite().localize("field-locked"));
 
         final List<Object> visibleColumnIds = new ArrayList<>();
@@ -187,7 +192,9 @@ public final class UsersFlowlet extends AbstractFlowlet {
                 }
 
                 SecurityService.removeUser(getSite().getSiteContext(), entity);
+                userStatusLoader.clear();
                 container.refresh();
+                refreshCount();
             }
         });
 
@@ -206,6 +213,7 @@ public final class UsersFlowlet extends AbstractFlowlet {
                 final User user = container.getEntity(grid.getSelectedItemId());
                 user.setLockedOut(true);
                 SecurityService.updateUser(getSite().getSiteContext(), user);
+                userStatusLoader.clear();
                 container.refresh();
             }
         });
@@ -226,6 +234,7 @@ public final class UsersFlowlet extends AbstractFlowlet {
                 user.setLockedOut(false);
                 user.setFailedLoginCount(0);
                 SecurityService.updateUser(getSite().getSiteContext(), user);
+                userStatusLoader.clear();
                 container.refresh();
             }
         });
@@ -246,22 +255,40 @@ public final class UsersFlowlet extends AbstractFlowlet {
                 if (U2fService.hasDeviceRegistrations(getSite().getSiteContext(), user.getEmailAddress())) {
                     SiteAuthenticationService.removeDeviceRegistrations(user.getEmailAddress());
                 }
+                userStatusLoader.clear();
                 container.refresh();
                 Notification.show(getSite().localize("message-disabled-two-factor-authentication-for-user"),
                         Notification.Type.HUMANIZED_MESSAGE);
             }
         });
 
+        countLabel = new Label();
+        buttonLayout.addComponent(countLabel);
+        buttonLayout.setComponentAlignment(countLabel, Alignment.MIDDLE_LEFT);
+
         final Company company = getSite().getSiteContext().getObject(Company.class);
         container.removeDefaultFilters();
         container.addDefaultFilter(
                 new Compare.Equal("owner.companyId", company.getCompanyId()));
         grid.refresh();
+        refreshCount();
     }
 
     @Override
     public void enter() {
+        userStatusLoader.clear();
         container.refresh();
+        refreshCount();
+    }
+
+    /**
+     * Refreshes user count of the company.
+     */
+    private void refreshCount() {
+        final EntityManager entityManager = getSite().getSiteContext().getObject(EntityManager.class);
+        final Company company = getSite().getSiteContext().getObject(Company.class);
+        countLabel.setValue(getSite().localize("label-user-count-value",
+                UserDao.countUsers(entityManager, company)));
     }
 
 }
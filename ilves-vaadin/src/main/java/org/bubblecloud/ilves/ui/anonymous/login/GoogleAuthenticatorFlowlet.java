@@ -78,7 +78,7 @@ public class GoogleAuthenticatorFlowlet extends AbstractFlowlet {
                 final List<AuthenticationDevice> authenticationDevices = SiteAuthenticationService.getAuthenticationDevices(emailAddress);
                 for (final AuthenticationDevice authenticationDevice : authenticationDevices) {
                     if (authenticationDevice.getType() == AuthenticationDeviceType.GOOGLE_AUTHENTICATOR) {
-                        if (GoogleAuthenticatorService.checkCode(SecurityUtil.decryptSecretKey(authenticationDevice.getEncryptedSecret()), code)) {
+                        if (GoogleAuthenticatorService.checkCode(SecurityUtil.decryptDeviceSecret(authenticationDevice.getEncryptedSecret()), code)) {
                             SiteAuthenticationService.login(emailAddress, password,accessToken);
                             return;
                         }
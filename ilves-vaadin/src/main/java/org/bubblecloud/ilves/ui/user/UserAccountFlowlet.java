@@ -21,11 +21,13 @@ import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.Button.ClickListener;
 import com.vaadin.ui.GridLayout;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Notification;
 import org.apache.log4j.Logger;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.component.grid.ValidatingEditor;
 import org.bubblecloud.ilves.component.grid.ValidatingEditorStateListener;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.PasswordHashUtil;
 import org.bubblecloud.ilves.security.PasswordLoginUtil;
 import org.bubblecloud.ilves.security.SecurityService;
 import org.bubblecloud.ilves.site.SiteFields;
@@ -108,8 +110,7 @@ public final class UserAccountFlowlet extends AbstractFlowlet implements Validat
                 try {
 
                     if (user.getPasswordHash() != null) {
-                        final int hashSize = 64;
-                        if (user.getPasswordHash().length() != hashSize) {
+                        if (!PasswordHashUtil.isPasswordHash(user.getPasswordHash())) {
                             try {
                                 PasswordLoginUtil.setUserPasswordHash(user.getOwner(), user, user.getPasswordHash().toCharArray());
                             } catch (NoSuchAlgorithmException e) {
@@ -145,6 +146,21 @@ public final class UserAccountFlowlet extends AbstractFlowlet implements Validat
             }
         });
 
+        final Button revokeAccessTokensButton = new Button(getSite().localize("button-revoke-access-tokens"));
+        revokeAccessTokensButton.setImmediate(true);
+        editorButtonLayout.addComponent(revokeAccessTokensButton);
+        revokeAccessTokensButton.addClickListener(new ClickListener() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void buttonClick(final ClickEvent event) {
+                SecurityService.revokeAccessTokens(getSite().getSiteContext(), user);
+                Notification.show(getSite().localize("message-access-tokens-revoked"),
+                        Notification.Type.HUMANIZED_MESSAGE);
+            }
+        });
+
     }
 
     /**
@@ -20,16 +20,16 @@ import com.vaadin.shared.ui.MarginInfo;
 import com.vaadin.shared.ui.label.ContentMode;
 import com.vaadin.ui.*;
 import com.vaadin.ui.themes.Reindeer;
-import org.bubblecloud.ilves.cache.PrivilegeCache;
 import org.bubblecloud.ilves.component.flow.AbstractFlowlet;
 import org.bubblecloud.ilves.model.Company;
 import org.bubblecloud.ilves.model.Group;
 import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.security.PrivilegeMatrix;
 import org.bubblecloud.ilves.security.SecurityService;
-import org.bubblecloud.ilves.security.UserDao;
 import org.bubblecloud.ilves.site.Site;
 
 import javax.persistence.EntityManager;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -37,6 +37,8 @@ import java.util.List;
  * @author Tommi S.E. Laukkanen
  */
 public class PrivilegesFlowlet extends AbstractFlowlet {
+    /** The number of users shown on one page of user matrix. */
+    private static final int USER_PAGE_SIZE = 50;
 
     private boolean dirty = false;
     private String dataLabel;
@@ -46,10 +48,18 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
     private Button saveButton;
     /** The discard button. */
     private Button discardButton;
+    /** The previous user page button. */
+    private Button previousUsersButton;
+    /** The next user page button. */
+    private Button nextUsersButton;
+    /** The last users of previous pages preceding current user page, null for the first page. */
+    private final List<User> userPageAnchors = new ArrayList<User>();
     private VerticalLayout matrixLayout;
 
     private Label titleLabel;
 
+    /** The loaded privilege matrix. */
+    private PrivilegeMatrix privilegeMatrix;
     private GridLayout groupMatrix;
     private CheckBox[] groupCheckBoxes;
     private GridLayout userMatrix;
@@ -87,9 +97,7 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
 
             @Override
             public void buttonClick(final Button.ClickEvent event) {
-                saveGroupMatrix();
-                saveUserMatrix();
-                PrivilegeCache.flush((Company) Site.getCurrent().getSiteContext().getObject(Company.class));
+                saveMatrix();
             }
         });
         discardButton = getSite().getButton("discard");
@@ -100,8 +108,33 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
 
             @Override
             public void buttonClick(final Button.ClickEvent event) {
-                refreshGroupMatrix();
-                refreshUserMatrix();
+                refreshMatrix();
+            }
+        });
+
+        previousUsersButton = getSite().getButton("previous-users");
+        buttonLayout.addComponent(previousUsersButton);
+        previousUsersButton.addClickListener(new Button.ClickListener() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void buttonClick(final Button.ClickEvent event) {
+                userPageAnchors.remove(userPageAnchors.size() - 1);
+                refreshMatrix();
+            }
+        });
+        nextUsersButton = getSite().getButton("next-users");
+        buttonLayout.addComponent(nextUsersButton);
+        nextUsersButton.addClickListener(new Button.ClickListener() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void buttonClick(final Button.ClickEvent event) {
+                final List<User> users = privilegeMatrix.getUsers();
+                userPageAnchors.add(users.get(users.size() - 1));
+                refreshMatrix();
             }
         });
 
@@ -128,20 +161,62 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         this.dataLabel = dataLabel;
         this.dataId = dataId;
         this.privilegeKeys = privilegeKey;
+        userPageAnchors.clear();
 
         titleLabel.setValue("<h1>" + dataLabel + " " + getSite().localize("view-privileges") + "</h1>");
-        refreshGroupMatrix();
-        refreshUserMatrix();
+        refreshMatrix();
     }
 
-    private void refreshGroupMatrix() {
+    private void refreshMatrix() {
         final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
         final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
 
+        final User afterUser = userPageAnchors.isEmpty() ? null : userPageAnchors.get(userPageAnchors.size() - 1);
+        privilegeMatrix = PrivilegeMatrix.load(entityManager, company, dataId, afterUser, USER_PAGE_SIZE,
+                privilegeKeys);
+        refreshGroupMatrix();
+        refreshUserMatrix();
+        refreshPageButtons();
+    }
+
+    /**
+     * Enables user page buttons when there are no unsaved modifications and the page exists.
+     */
+    private void refreshPageButtons() {
+        previousUsersButton.setEnabled(!dirty && !userPageAnchors.isEmpty());
+        nextUsersButton.setEnabled(!dirty && privilegeMatrix.getUsers().size() == USER_PAGE_SIZE);
+    }
+
+    private void saveMatrix() {
+        final List<Group> groups = privilegeMatrix.getGroups();
+        for (int i = 0; i < privilegeKeys.length; i++) {
+            for (int j = 0; j < groups.size(); j++) {
+                final int checkBoxIndex = i + j * privilegeKeys.length;
+                privilegeMatrix.setGroupPrivilege(groups.get(j), privilegeKeys[i],
+                        groupCheckBoxes[checkBoxIndex].getValue());
+            }
+        }
+
+        final List<User> users = privilegeMatrix.getUsers();
+        for (int i = 0; i < privilegeKeys.length; i++) {
+            for (int j = 0; j < users.size(); j++) {
+                final int checkBoxIndex = i + j * privilegeKeys.length;
+                privilegeMatrix.setUserPrivilege(users.get(j), privilegeKeys[i],
+                        userCheckBoxes[checkBoxIndex].getValue());
+            }
+        }
+
+        if (privilegeMatrix.isModified()) {
+            SecurityService.updatePrivileges(getSite().getSiteContext(), privilegeMatrix, null, null);
+        }
+        refreshMatrix();
+    }
+
+    private void refreshGroupMatrix() {
         if (groupMatrix != null) {
             matrixLayout.removeComponent(groupMatrix);
         }
-        final List<Group> groups = UserDao.getGroups(entityManager, company);
+        final List<Group> groups = privilegeMatrix.getGroups();
 
         groupCheckBoxes = new CheckBox[privilegeKeys.length * groups.size()];
         groupMatrix = new GridLayout(privilegeKeys.length + 1, groups.size() + 1);
@@ -155,6 +230,7 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
                     dirty = true;
                     saveButton.setEnabled(true);
                     discardButton.setEnabled(true);
+                    refreshPageButtons();
                 }
             });
         }
@@ -179,7 +255,7 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 groupMatrix.addComponent(groupCheckBoxes[checkBoxIndex], i + 1, j + 1);
                 groupCheckBoxes[checkBoxIndex].setValue(
-                        UserDao.hasGroupPrivilege(entityManager, groups.get(j), privilegeKeys[i], dataId));
+                        privilegeMatrix.hasGroupPrivilege(groups.get(j), privilegeKeys[i]));
             }
         }
         dirty = false;
@@ -187,37 +263,11 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         discardButton.setEnabled(false);
     }
 
-    private void saveGroupMatrix() {
-        final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
-        final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
-
-        final List<Group> groups = UserDao.getGroups(entityManager, company);
-
-        for (int i = 0; i < privilegeKeys.length; i++) {
-            for (int j = 0; j < groups.size(); j++) {
-                final int checkBoxIndex = i + j * privilegeKeys.length;
-                final boolean privileged = groupCheckBoxes[checkBoxIndex].getValue();
-                final boolean privilegedInDatabase =
-                        UserDao.hasGroupPrivilege(entityManager, groups.get(j), privilegeKeys[i], dataId);
-                if (privileged && !privilegedInDatabase) {
-                    SecurityService.addGroupPrivilege(getSite().getSiteContext(), groups.get(j), privilegeKeys[i], null, dataId, null);
-                } else if (!privileged && privilegedInDatabase) {
-                    SecurityService.removeGroupPrivilege(getSite().getSiteContext(), groups.get(j), privilegeKeys[i],  null, dataId, null);
-                }
-            }
-        }
-
-        refreshGroupMatrix();
-    }
-
     private void refreshUserMatrix() {
-        final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
-        final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
-
         if (userMatrix != null) {
             matrixLayout.removeComponent(userMatrix);
         }
-        final List<User> users = UserDao.getUsers(entityManager, company);
+        final List<User> users = privilegeMatrix.getUsers();
 
         userCheckBoxes = new CheckBox[privilegeKeys.length * users.size()];
         userMatrix = new GridLayout(privilegeKeys.length + 1, users.size() + 1);
@@ -231,6 +281,7 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
                     dirty = true;
                     saveButton.setEnabled(true);
                     discardButton.setEnabled(true);
+                    refreshPageButtons();
                 }
             });
         }
@@ -255,7 +306,7 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
                 final int checkBoxIndex = i + j * privilegeKeys.length;
                 userMatrix.addComponent(userCheckBoxes[checkBoxIndex], i + 1, j + 1);
                 userCheckBoxes[checkBoxIndex].setValue(
-                        UserDao.hasUserPrivilege(entityManager, users.get(j), privilegeKeys[i], dataId));
+                        privilegeMatrix.hasUserPrivilege(users.get(j), privilegeKeys[i]));
             }
         }
         dirty = false;
@@ -263,29 +314,6 @@ public class PrivilegesFlowlet extends AbstractFlowlet {
         discardButton.setEnabled(false);
     }
 
-    private void saveUserMatrix() {
-        final EntityManager entityManager = Site.getCurrent().getSiteContext().getObject(EntityManager.class);
-        final Company company = Site.getCurrent().getSiteContext().getObject(Company.class);
-
-        final List<User> users = UserDao.getUsers(entityManager, company);
-
-        for (int i = 0; i < privilegeKeys.length; i++) {
-            for (int j = 0; j < users.size(); j++) {
-                final int checkBoxIndex = i + j * privilegeKeys.length;
-                final boolean privileged = userCheckBoxes[checkBoxIndex].getValue();
-                final boolean privilegedInDatabase =
-                        UserDao.hasUserPrivilege(entityManager, users.get(j), privilegeKeys[i], dataId);
-                if (privileged && !privilegedInDatabase) {
-                    SecurityService.addUserPrivilege(getSite().getSiteContext(), users.get(j), privilegeKeys[i], null, dataId, null);
-                } else if (!privileged && privilegedInDatabase) {
-                    SecurityService.removeUserPrivilege(getSite().getSiteContext(), users.get(j), privilegeKeys[i], null, dataId, null);
-                }
-            }
-        }
-
-        refreshUserMatrix();
-    }
-
     @Override
     protected boolean isValid() {
         return true;
@@ -0,0 +1,246 @@
+package org.bubblecloud.ilves.component.field;
+
+import com.vaadin.data.util.filter.SimpleStringFilter;
+import org.bubblecloud.ilves.model.Company;
+import org.bubblecloud.ilves.model.Group;
+import org.bubblecloud.ilves.model.PostalAddress;
+import org.bubblecloud.ilves.model.User;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test for entity option container paging, filtering and owner scoping.
+ */
+public class EntityOptionContainerTest {
+    /** The number of filler users of the tested company. */
+    private static final int FILLER_COUNT = 110;
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The tested company. */
+    private Company company;
+    /** The other company. */
+    private Company otherCompany;
+    /** The users of tested company in option order. */
+    private final List<User> users = new ArrayList<User>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        entityManager.getTransaction().begin();
+        company = addCompany("test1.com");
+        otherCompany = addCompany("test2.com");
+        for (int i = 0; i < FILLER_COUNT; i++) {
+            users.add(addUser(company, "First" + i, "Last" + String.format("%03d", i), "user" + i + "@test.org"));
+        }
+        users.add(addUser(company, "Ronald", "McDonald", "Ronald.McDonald@Test.org"));
+        users.add(addUser(company, "Jane", "Smith", "jane.smith@test.org"));
+        users.add(addUser(company, "John", "Smith", "john.smith@test.org"));
+        users.add(addUser(company, "Johanna", "Smithson", "johanna.smithson@test.org"));
+        addUser(otherCompany, "John", "Smith", "john.smith@other.org");
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+    }
+
+    @After
+    public void after() {
+        entityManager.close();
+        TestUtil.after();
+    }
+
+    @Test
+    public void testPaging() {
+        final EntityOptionContainer container = newContainer(company);
+        Assert.assertEquals(users.size(), container.size());
+        for (int i = 0; i < users.size(); i++) {
+            Assert.assertEquals(users.get(i).getUserId(), container.getIdByIndex(i));
+            Assert.assertEquals(i, container.indexOfId(users.get(i).getUserId()));
+        }
+        Assert.assertNull(container.getIdByIndex(users.size()));
+
+        final List<?> itemIds = container.getItemIds(45, 10);
+        Assert.assertEquals(10, itemIds.size());
+        for (int i = 0; i < itemIds.size(); i++) {
+            Assert.assertEquals(users.get(45 + i).getUserId(), itemIds.get(i));
+        }
+        Assert.assertEquals(users.get(users.size() - 1).getUserId(), container.lastItemId());
+        Assert.assertEquals("Smith, John (john.smith@test.org)", container.getContainerProperty(
+                users.get(users.size() - 2).getUserId(), EntityOptionContainer.LABEL_PROPERTY_ID).getValue());
+    }
+
+    @Test
+    public void testFiltering() {
+        assertFilterMatches("john sm", "john.smith@test.org");
+        assertFilterMatches("  Sm  JOHN ", "john.smith@test.org");
+        assertFilterMatches("smith", "jane.smith@test.org", "john.smith@test.org", "johanna.smithson@test.org");
+        assertFilterMatches("mcd", "Ronald.McDonald@Test.org");
+        assertFilterMatches("ronald.mc", "Ronald.McDonald@Test.org");
+        assertFilterMatches("last10", "user100@test.org", "user101@test.org", "user102@test.org",
+                "user103@test.org", "user104@test.org", "user105@test.org", "user106@test.org",
+                "user107@test.org", "user108@test.org", "user109@test.org");
+        assertFilterMatches("first1 last00", "user1@test.org");
+        assertFilterMatches("%");
+        assertFilterMatches("_ohn");
+        assertFilterMatches("");
+
+        final EntityOptionContainer container = newContainer(company);
+        final SimpleStringFilter filter = new SimpleStringFilter(EntityOptionContainer.LABEL_PROPERTY_ID,
+                "smith", true, true);
+        container.addContainerFilter(filter);
+        Assert.assertEquals(3, container.size());
+        container.removeContainerFilter(filter);
+        Assert.assertEquals(users.size(), container.size());
+    }
+
+    @Test
+    public void testFindLabelAndOwnerScoping() {
+        final User otherUser = entityManager.createQuery(
+                "select e from User e where e.owner = :owner", User.class)
+                .setParameter("owner", otherCompany).getSingleResult();
+
+        final EntityOptionContainer container = newContainer(company);
+        final User user = users.get(users.size() - 1);
+        Assert.assertTrue(container.containsId(user.getUserId()));
+        Assert.assertEquals("Smithson, Johanna (johanna.smithson@test.org)",
+                container.getItem(user.getUserId()).getItemProperty(EntityOptionContainer.LABEL_PROPERTY_ID)
+                        .getValue());
+        Assert.assertFalse(container.containsId(otherUser.getUserId()));
+        Assert.assertNull(container.getItem(otherUser.getUserId()));
+        Assert.assertFalse(container.containsId("no-such-user"));
+        Assert.assertEquals(-1, container.indexOfId(user.getUserId()));
+
+        final EntityOptionContainer otherContainer = newContainer(otherCompany);
+        Assert.assertEquals(1, otherContainer.size());
+        Assert.assertEquals(otherUser.getUserId(), otherContainer.firstItemId());
+        Assert.assertFalse(otherContainer.containsId(user.getUserId()));
+        otherContainer.addContainerFilter(new SimpleStringFilter(EntityOptionContainer.LABEL_PROPERTY_ID,
+                "mcd", true, true));
+        Assert.assertEquals(0, otherContainer.size());
+    }
+
+    @Test
+    public void testRenameAndGroupFiltering() {
+        final User user = entityManager.find(User.class, users.get(0).getUserId());
+        entityManager.getTransaction().begin();
+        user.setLastName("\u00c4\u00e4rel\u00e4");
+        entityManager.persist(new Group(company, "Admins", "Site Administrators"));
+        entityManager.persist(new Group(company, "users", "Registered Users"));
+        entityManager.persist(new Group(otherCompany, "admins", "Administrators"));
+        entityManager.getTransaction().commit();
+        assertFilterMatches("\u00e4\u00e4r", "user0@test.org");
+        assertFilterMatches("last000");
+
+        final EntityOptionContainer container = new GroupField.GroupOptionContainer() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Company getOwner() {
+                return company;
+            }
+
+            @Override
+            protected EntityManager getEntityManager() {
+                return entityManager;
+            }
+        };
+        container.addContainerFilter(new SimpleStringFilter(EntityOptionContainer.LABEL_PROPERTY_ID,
+                "ADMIN", true, true));
+        Assert.assertEquals(1, container.size());
+        Assert.assertEquals("Site Administrators", container.getContainerProperty(container.firstItemId(),
+                EntityOptionContainer.LABEL_PROPERTY_ID).getValue());
+        container.removeAllContainerFilters();
+        container.addContainerFilter(new SimpleStringFilter(EntityOptionContainer.LABEL_PROPERTY_ID,
+                "reg", true, true));
+        Assert.assertEquals(1, container.size());
+    }
+
+    /**
+     * Asserts that filter matches exactly the users with given email addresses in option order.
+     *
+     * @param filterString the filter string
+     * @param emailAddresses the expected email addresses
+     */
+    private void assertFilterMatches(final String filterString, final String... emailAddresses) {
+        final EntityOptionContainer container = newContainer(company);
+        container.addContainerFilter(new SimpleStringFilter(EntityOptionContainer.LABEL_PROPERTY_ID,
+                filterString, true, true));
+        final List<Object> expectedIds = new ArrayList<Object>();
+        for (final String emailAddress : emailAddresses) {
+            for (final User user : users) {
+                if (user.getEmailAddress().equals(emailAddress)) {
+                    expectedIds.add(user.getUserId());
+                }
+            }
+        }
+        final int expectedSize = filterString.trim().length() == 0 ? users.size() : expectedIds.size();
+        Assert.assertEquals(filterString, expectedSize, container.size());
+        if (filterString.trim().length() > 0) {
+            Assert.assertEquals(filterString, expectedIds, container.getItemIds(0, container.size()));
+        }
+    }
+
+    /**
+     * Constructs user option container of given company.
+     *
+     * @param owner the owner company
+     * @return the container
+     */
+    private EntityOptionContainer newContainer(final Company owner) {
+        return new UserField.UserOptionContainer() {
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Company getOwner() {
+                return owner;
+            }
+
+            @Override
+            protected EntityManager getEntityManager() {
+                return entityManager;
+            }
+        };
+    }
+
+    /**
+     * Adds company with given host.
+     *
+     * @param host the host
+     * @return the company
+     */
+    private Company addCompany(final String host) {
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        final Company company = new Company("1", "2", "3", "4", "5", "6", "7", host, "9", "10", "11",
+                invoicingAddress, deliveryAddress);
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        entityManager.persist(company);
+        return company;
+    }
+
+    /**
+     * Adds user to owner company.
+     *
+     * @param owner the owner company
+     * @param firstName the first name
+     * @param lastName the last name
+     * @param emailAddress the email address
+     * @return the user
+     */
+    private User addUser(final Company owner, final String firstName, final String lastName,
+                         final String emailAddress) {
+        final User user = new User(owner, firstName, lastName, emailAddress, "", "");
+        entityManager.persist(user);
+        return user;
+    }
+}
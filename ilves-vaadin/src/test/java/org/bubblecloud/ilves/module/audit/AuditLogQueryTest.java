@@ -0,0 +1,145 @@
+package org.bubblecloud.ilves.module.audit;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.BeanItem;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.Like;
+import org.bubblecloud.ilves.model.AuditLogEntry;
+import org.bubblecloud.ilves.util.TestUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit test for audit log query paging, counting and filtering.
+ */
+public class AuditLogQueryTest {
+    /** The number of entries of the tested company, more than counted in single step. */
+    private static final int ENTRY_COUNT = 10010;
+    /** The creation time of the first entry. */
+    private static final long BASE_TIME = 1400000000000L;
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.before();
+        entityManager = TestUtil.getEntityManagerFactory().createEntityManager();
+        entityManager.getTransaction().begin();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            entityManager.persist(newEntry("company-1", "event-" + (i % 10), "user-" + (i % 2), i));
+            if (i % 1000 == 999) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            entityManager.persist(newEntry("company-2", "event-0", "user-0", i));
+            entityManager.persist(newEntry(null, "event-0", "user-0", i));
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+    }
+
+    @After
+    public void after() {
+        entityManager.close();
+        TestUtil.after();
+    }
+
+    @Test
+    public void testPagingPastCountStep() {
+        final AuditLogQuery query = new AuditLogQuery(entityManager,
+                new LazyQueryDefinition(false, 1000, "auditLogEntryId"), "company-1");
+        Assert.assertEquals(AuditLogQuery.COUNT_STEP + 1, query.size());
+        Assert.assertFalse(query.isSizeGrowable());
+
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>();
+        for (int startIndex = 0; startIndex < query.size(); startIndex += 1000) {
+            entries.addAll(getEntries(query.loadItems(startIndex, 1000)));
+        }
+        Assert.assertEquals(ENTRY_COUNT, entries.size());
+        Assert.assertTrue(query.isSizeGrowable());
+
+        // Count continues from the last loaded key of previous query with same filters.
+        final AuditLogQuery grownQuery = new AuditLogQuery(entityManager,
+                new LazyQueryDefinition(false, 1000, "auditLogEntryId"), "company-1", query);
+        Assert.assertEquals(ENTRY_COUNT, grownQuery.size());
+        Assert.assertFalse(grownQuery.isSizeGrowable());
+        for (int i = 0; i < entries.size(); i++) {
+            Assert.assertEquals("company-1", entries.get(i).getCompanyId());
+            Assert.assertEquals(BASE_TIME + (ENTRY_COUNT - 1 - i) * 1000L, entries.get(i).getCreated().getTime());
+        }
+
+        // Page starting inside loaded range is loaded by offset from the nearest preceding key.
+        final List<AuditLogEntry> page = getEntries(query.loadItems(10005, 10));
+        Assert.assertEquals(5, page.size());
+        Assert.assertEquals(entries.get(10005).getAuditLogEntryId(), page.get(0).getAuditLogEntryId());
+        Assert.assertEquals(entries.get(ENTRY_COUNT - 1).getAuditLogEntryId(), page.get(4).getAuditLogEntryId());
+    }
+
+    @Test
+    public void testFilters() {
+        final LazyQueryDefinition userFilterDefinition = new LazyQueryDefinition(false, 1000, "auditLogEntryId");
+        userFilterDefinition.addFilter(new Compare.Equal("userName", "user-1"));
+        final AuditLogQuery userQuery = new AuditLogQuery(entityManager, userFilterDefinition, "company-1");
+        Assert.assertEquals(ENTRY_COUNT / 2, userQuery.size());
+        for (final AuditLogEntry entry : getEntries(userQuery.loadItems(0, 100))) {
+            Assert.assertEquals("user-1", entry.getUserName());
+        }
+
+        final LazyQueryDefinition timeFilterDefinition = new LazyQueryDefinition(false, 1000, "auditLogEntryId");
+        timeFilterDefinition.addFilter(new Compare.GreaterOrEqual("created",
+                new Date(BASE_TIME + (ENTRY_COUNT - 20) * 1000L)));
+        timeFilterDefinition.addFilter(new Like("event", "event-1%"));
+        timeFilterDefinition.setSortState(new Object[] {"created"}, new boolean[] {true});
+        final AuditLogQuery timeQuery = new AuditLogQuery(entityManager, timeFilterDefinition, "company-1");
+        Assert.assertEquals(2, timeQuery.size());
+        final List<AuditLogEntry> entries = getEntries(timeQuery.loadItems(0, 10));
+        Assert.assertEquals(2, entries.size());
+        Assert.assertTrue(entries.get(0).getCreated().before(entries.get(1).getCreated()));
+        Assert.assertEquals("event-1", entries.get(0).getEvent());
+
+        final AuditLogQuery otherCompanyQuery = new AuditLogQuery(entityManager,
+                new LazyQueryDefinition(false, 1000, "auditLogEntryId"), "company-2");
+        Assert.assertEquals(3, otherCompanyQuery.size());
+    }
+
+    /**
+     * Constructs audit log entry.
+     *
+     * @param companyId the company ID
+     * @param event the event
+     * @param userName the user name
+     * @param index the index of entry which determines creation time
+     * @return the audit log entry
+     */
+    private static AuditLogEntry newEntry(final String companyId, final String event, final String userName,
+                                          final int index) {
+        return new AuditLogEntry(companyId, event, "127.0.0.1:80", "test", "127.0.0.1:1000", null, userName,
+                null, null, null, null, null, new Date(BASE_TIME + index * 1000L));
+    }
+
+    /**
+     * Gets audit log entries of items.
+     *
+     * @param items the items
+     * @return the audit log entries
+     */
+    @SuppressWarnings("unchecked")
+    private static List<AuditLogEntry> getEntries(final List<Item> items) {
+        final List<AuditLogEntry> entries = new ArrayList<AuditLogEntry>();
+        for (final Item item : items) {
+            entries.add(((BeanItem<AuditLogEntry>) item).getBean());
+        }
+        return entries;
+    }
+}
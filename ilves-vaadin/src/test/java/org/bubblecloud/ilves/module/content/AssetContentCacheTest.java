@@ -0,0 +1,83 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit test for AssetContentCache class.
+ */
+public class AssetContentCacheTest {
+
+    @Test
+    public void testHeapAndMappedContent() throws IOException {
+        final AssetContentCache cache = new AssetContentCache(10, 100, 1000);
+        final File small = createFile(5);
+        final File large = createFile(500);
+        try {
+            final AssetContent smallContent = cache.getContent("small", small);
+            Assert.assertEquals(5, smallContent.getBuffer().remaining());
+            smallContent.release();
+            Assert.assertEquals(0, cache.getMappedBytes());
+
+            final AssetContent largeContent = cache.getContent("large", large);
+            Assert.assertEquals(500, largeContent.getBuffer().remaining());
+            Assert.assertEquals(500, cache.getMappedBytes());
+            largeContent.release();
+            Assert.assertEquals(500, cache.getMappedBytes());
+        } finally {
+            cache.clear();
+            FileUtils.deleteQuietly(small);
+            FileUtils.deleteQuietly(large);
+        }
+        Assert.assertEquals(0, cache.getMappedBytes());
+    }
+
+    @Test
+    public void testFileLargerThanBudgetIsNotCached() throws IOException {
+        final AssetContentCache cache = new AssetContentCache(10, 100, 1000);
+        final File file = createFile(2000);
+        try {
+            Assert.assertNull(cache.getContent("huge", file));
+            Assert.assertEquals(0, cache.getMappedBytes());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testEvictedMappingIsUnmappedAfterRelease() throws IOException {
+        final AssetContentCache cache = new AssetContentCache(10, 100, 1000);
+        final File first = createFile(600);
+        final File second = createFile(600);
+        try {
+            final AssetContent firstContent = cache.getContent("first", first);
+            final AssetContent secondContent = cache.getContent("second", second);
+            // First mapping is evicted but still leased.
+            Assert.assertEquals(1200, cache.getMappedBytes());
+            Assert.assertEquals(1, firstContent.getBuffer().get(0));
+            firstContent.release();
+            Assert.assertEquals(600, cache.getMappedBytes());
+            secondContent.release();
+            Assert.assertEquals(600, cache.getMappedBytes());
+        } finally {
+            cache.clear();
+            FileUtils.deleteQuietly(first);
+            FileUtils.deleteQuietly(second);
+        }
+        Assert.assertEquals(0, cache.getMappedBytes());
+    }
+
+    private static File createFile(final int length) throws IOException {
+        final File file = File.createTempFile("asset-content-cache-test", ".bin");
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = 1;
+        }
+        FileUtils.writeByteArrayToFile(file, bytes);
+        return file;
+    }
+}
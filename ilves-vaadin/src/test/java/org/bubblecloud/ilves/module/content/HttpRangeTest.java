@@ -0,0 +1,44 @@
+package org.bubblecloud.ilves.module.content;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Unit test for HttpRange class.
+ */
+public class HttpRangeTest {
+
+    @Test
+    public void testSingleRanges() {
+        Assert.assertEquals("[0-499]", HttpRange.parse("bytes=0-499", 1000).toString());
+        Assert.assertEquals("[500-999]", HttpRange.parse("bytes=500-", 1000).toString());
+        Assert.assertEquals("[900-999]", HttpRange.parse("bytes=-100", 1000).toString());
+        Assert.assertEquals("[0-999]", HttpRange.parse("bytes=-2000", 1000).toString());
+        Assert.assertEquals("[990-999]", HttpRange.parse("bytes=990-2000", 1000).toString());
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        final List<HttpRange> ranges = HttpRange.parse("bytes=0-9, 20-29,-5", 100);
+        Assert.assertEquals("[0-9, 20-29, 95-99]", ranges.toString());
+        Assert.assertEquals("bytes 20-29/100", ranges.get(1).getContentRange(100));
+        Assert.assertEquals(10, ranges.get(1).getLength());
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        Assert.assertTrue(HttpRange.parse("bytes=1000-", 1000).isEmpty());
+        Assert.assertTrue(HttpRange.parse("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void testInvalidRanges() {
+        Assert.assertNull(HttpRange.parse(null, 1000));
+        Assert.assertNull(HttpRange.parse("items=0-1", 1000));
+        Assert.assertNull(HttpRange.parse("bytes=5-1", 1000));
+        Assert.assertNull(HttpRange.parse("bytes=a-b", 1000));
+        Assert.assertNull(HttpRange.parse("bytes=-", 1000));
+    }
+}
@@ -0,0 +1,39 @@
+package org.bubblecloud.ilves.site;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Locale;
+
+/**
+ * Unit test for resource bundle localization provider.
+ */
+public class LocalizationProviderBundleImplTest {
+
+    @Test
+    public void testLocalize() throws Exception {
+        final LocalizationProviderBundleImpl localizationProvider =
+                new LocalizationProviderBundleImpl("site-localization");
+        Assert.assertEquals("Users", localizationProvider.localize("label-user-count", Locale.ENGLISH));
+        Assert.assertEquals("no-such-key", localizationProvider.localize("no-such-key", Locale.ENGLISH));
+        Assert.assertEquals("Users: 1,234", localizationProvider.localize("label-user-count-value",
+                Locale.ENGLISH, 1234L));
+        Assert.assertEquals("Users: 5", localizationProvider.localize("label-user-count-value",
+                Locale.ENGLISH, 5L));
+        Assert.assertEquals("Groups: 0", localizationProvider.localize("label-group-count-value",
+                Locale.ENGLISH, 0L));
+    }
+
+    @Test
+    public void testLocalizeOverride() throws Exception {
+        final LocalizationProviderBundleImpl localizationProvider =
+                new LocalizationProviderBundleImpl("test-localization", "site-localization");
+        Assert.assertEquals("Member", localizationProvider.localize("label-user", Locale.ENGLISH));
+        Assert.assertEquals("Company", localizationProvider.localize("label-company", Locale.ENGLISH));
+        Assert.assertEquals("Members: 1,234", localizationProvider.localize("label-user-count-value",
+                Locale.ENGLISH, 1234L));
+        Assert.assertEquals("Groups: 1,234", localizationProvider.localize("label-group-count-value",
+                Locale.ENGLISH, 1234L));
+    }
+
+}